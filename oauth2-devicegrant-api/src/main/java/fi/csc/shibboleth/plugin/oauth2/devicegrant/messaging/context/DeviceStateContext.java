@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.messaging.context.BaseContext;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Subcontext carrying the device state already read for the device code of a token request, with the version of its
+ * storage record. Later reads of the same request pass the version to
+ * {@link DeviceCodesCache#getDeviceStateIfChanged(String, long)}, so the record is not transferred and decoded again
+ * unless it has changed. This context appears as a subcontext of the inbound {@link MessageContext}.
+ */
+public class DeviceStateContext extends BaseContext {
+
+    /** Device code the state belongs to. */
+    private String deviceCode;
+
+    /** Device state read for the device code. */
+    private DeviceStateObject deviceStateObject;
+
+    /** Version of the storage record the state was read from. */
+    private long version;
+
+    /**
+     * Get the device code the state belongs to.
+     * 
+     * @return device code
+     */
+    @Nullable
+    public String getDeviceCode() {
+        return deviceCode;
+    }
+
+    /**
+     * Get the device state read for the device code.
+     * 
+     * @return device state
+     */
+    @Nullable
+    public DeviceStateObject getDeviceStateObject() {
+        return deviceStateObject;
+    }
+
+    /**
+     * Get the version of the storage record the state was read from.
+     * 
+     * @return storage record version, 0 if not set
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the device state read for a device code.
+     * 
+     * @param code device code
+     * @param object device state
+     * @param recordVersion version of the storage record the state was read from
+     */
+    public void setDeviceState(@Nonnull final String code, @Nonnull final DeviceStateObject object,
+            @Positive final long recordVersion) {
+        deviceCode = Constraint.isNotNull(code, "Device code must not be null");
+        deviceStateObject = Constraint.isNotNull(object, "Device state must not be null");
+        version = Constraint.isGreaterThan(0, recordVersion, "Version must be greater than 0");
+    }
+}
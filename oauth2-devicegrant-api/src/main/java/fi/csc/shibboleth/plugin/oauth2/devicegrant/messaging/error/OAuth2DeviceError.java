@@ -35,4 +35,25 @@ public final class OAuth2DeviceError {
             "The device code has expired and the device authorization sessio has concluded",
             HTTPResponse.SC_BAD_REQUEST);
 
+    /**
+     * The authorization request is still pending and polling should continue, but the interval must be increased by 5
+     * seconds for this and all subsequent requests.
+     */
+    public static final ErrorObject SLOW_DOWN = new ErrorObject("slow_down",
+            "The polling interval must be increased by 5 seconds for this and all subsequent requests",
+            HTTPResponse.SC_BAD_REQUEST);
+
+    /**
+     * The client or the source address has made too many device authorization requests and must wait before making
+     * another one.
+     */
+    public static final ErrorObject RATE_LIMITED = new ErrorObject("slow_down",
+            "Too many device authorization requests, try again later", 429);
+
+    /**
+     * The client holds the maximum number of pending device codes and must wait for them to be used or to expire.
+     */
+    public static final ErrorObject TOO_MANY_DEVICE_CODES = new ErrorObject("slow_down",
+            "Too many pending device codes for the client, try again later", 429);
+
 }
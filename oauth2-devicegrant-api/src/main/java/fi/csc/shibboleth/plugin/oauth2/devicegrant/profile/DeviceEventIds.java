@@ -62,6 +62,34 @@ public final class DeviceEventIds {
     @NotEmpty
     public static final String EXPIRED_TOKEN = "ExpiredToken";
 
+    /**
+     * ID of event returned if device code was issued to another client.
+     */
+    @Nonnull
+    @NotEmpty
+    public static final String INVALID_GRANT = "InvalidGrant";
+
+    /**
+     * ID of event returned if device polls faster than the polling interval.
+     */
+    @Nonnull
+    @NotEmpty
+    public static final String SLOW_DOWN = "SlowDown";
+
+    /**
+     * ID of event returned if a client or a source address makes device authorization requests too fast.
+     */
+    @Nonnull
+    @NotEmpty
+    public static final String RATE_LIMITED = "RateLimited";
+
+    /**
+     * ID of event returned if a client holds the maximum number of pending device codes.
+     */
+    @Nonnull
+    @NotEmpty
+    public static final String TOO_MANY_DEVICE_CODES = "TooManyDeviceCodes";
+
     /**
      * Constructor.
      */
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject.State;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Base class for {@link DeviceRecordCodec}s. Decoding is shared by all codecs and accepts both the JSON format and
+ * the compact format, so the encoding format of a deployment can be changed while records written in the other format
+ * are still alive.
+ *
+ * <p>
+ * The compact format is a record type character ({@link #COMPACT_DEVICE_CODE} or {@link #COMPACT_DEVICE_STATE}), a
+ * format version character ({@link #COMPACT_VERSION}) and a sequence of fields. Each field is either
+ * {@link #COMPACT_NULL} or the length of the value in decimal, a colon and the value itself. Fields missing from the
+ * end of a record are read as null.
+ * </p>
+ */
+public abstract class AbstractDeviceRecordCodec implements DeviceRecordCodec {
+
+    /** Type character of compact device code records. */
+    public static final char COMPACT_DEVICE_CODE = 'C';
+
+    /** Type character of compact device state records. */
+    public static final char COMPACT_DEVICE_STATE = 'S';
+
+    /** Current version of the compact format. */
+    public static final char COMPACT_VERSION = '1';
+
+    /** Field value representing null in the compact format. */
+    public static final char COMPACT_NULL = '-';
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public DeviceCodeObject decodeDeviceCode(@Nonnull final String value) throws IOException {
+        if (isJSON(value)) {
+            return DeviceCodeObject.fromJSONObject(parseJSON(value));
+        }
+        final CompactReader reader = new CompactReader(value, COMPACT_DEVICE_CODE);
+        final String deviceCode = reader.next();
+        final String clientID = reader.next();
+        final String scope = reader.next();
+        final String issuedAt = reader.next();
+        if (deviceCode == null || clientID == null) {
+            throw new IOException("Compact device code record is missing mandatory fields");
+        }
+        final DeviceCodeObject object = new DeviceCodeObject(deviceCode, new ClientID(clientID), Scope.parse(scope));
+        if (issuedAt != null) {
+            try {
+                object.setIssuedAt(Long.valueOf(issuedAt));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Compact device code record could not be decoded", e);
+            }
+        }
+        return object;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public DeviceStateObject decodeDeviceState(@Nonnull final String value) throws IOException {
+        if (isJSON(value)) {
+            return DeviceStateObject.fromJSONObject(parseJSON(value));
+        }
+        final CompactReader reader = new CompactReader(value, COMPACT_DEVICE_STATE);
+        final State state = toState(reader.next());
+        final String accessToken = reader.next();
+        final String expiresAt = reader.next();
+        final String pollingInterval = reader.next();
+        final String clientID = reader.next();
+        final String longPollingTimeout = reader.next();
+        final String userCodeKey = reader.next();
+        try {
+            final DeviceStateObject object =
+                    new DeviceStateObject(state, accessToken, expiresAt == null ? null : Long.valueOf(expiresAt));
+            if (pollingInterval != null) {
+                object.setPollingInterval(Long.valueOf(pollingInterval));
+            }
+            object.setClientID(clientID);
+            if (longPollingTimeout != null) {
+                object.setLongPollingTimeout(Long.valueOf(longPollingTimeout));
+            }
+            object.setUserCodeKey(userCodeKey);
+            return object;
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Compact device state record could not be decoded", e);
+        }
+    }
+
+    /**
+     * Append a field to a compact record.
+     *
+     * @param builder compact record being built
+     * @param value field value, may be null
+     * @return the builder
+     */
+    @Nonnull
+    protected static StringBuilder appendCompactField(@Nonnull final StringBuilder builder,
+            @Nullable final String value) {
+        if (value == null) {
+            return builder.append(COMPACT_NULL);
+        }
+        return builder.append(value.length()).append(':').append(value);
+    }
+
+    /**
+     * Get the single character compact representation of a state.
+     *
+     * @param state state
+     * @return compact representation of the state
+     */
+    @Nonnull
+    protected static String fromState(@Nonnull final State state) {
+        switch (state) {
+            case APPROVED:
+                return "A";
+            case DENIED:
+                return "D";
+            default:
+                return "P";
+        }
+    }
+
+    /**
+     * Get the state matching single character compact representation.
+     *
+     * @param value compact representation of the state
+     * @return state
+     * @throws IOException if the value does not represent a state
+     */
+    @Nonnull
+    private static State toState(@Nullable final String value) throws IOException {
+        if ("P".equals(value)) {
+            return State.PENDING;
+        } else if ("A".equals(value)) {
+            return State.APPROVED;
+        } else if ("D".equals(value)) {
+            return State.DENIED;
+        }
+        throw new IOException("Compact device state record has unknown state " + value);
+    }
+
+    /**
+     * Whether the value is in the JSON format.
+     *
+     * @param value storage record value
+     * @return true if the value is a JSON object
+     */
+    private static boolean isJSON(@Nonnull final String value) {
+        return !value.isEmpty() && value.charAt(0) == '{';
+    }
+
+    /**
+     * Parse JSON object from the value.
+     *
+     * @param value storage record value
+     * @return parsed JSON object
+     * @throws IOException if value could not be parsed as a JSON object
+     */
+    @Nonnull
+    private static JSONObject parseJSON(@Nonnull final String value) throws IOException {
+        try {
+            final Object obj = new JSONParser(JSONParser.MODE_PERMISSIVE).parse(value);
+            if (obj instanceof JSONObject) {
+                return (JSONObject) obj;
+            }
+        } catch (final ParseException e) {
+            throw new IOException("Storage record could not be parsed as a JSONObject", e);
+        }
+        throw new IOException("Storage record could not be parsed as a JSONObject");
+    }
+
+    /** Sequential reader of compact record fields. */
+    private static final class CompactReader {
+
+        /** The compact record. */
+        @Nonnull
+        private final String value;
+
+        /** Current position. */
+        private int position;
+
+        /**
+         * Constructor.
+         *
+         * @param record the compact record
+         * @param type expected record type
+         * @throws IOException if the record type or version is not supported
+         */
+        private CompactReader(@Nonnull final String record, final char type) throws IOException {
+            if (record.length() < 2 || record.charAt(0) != type) {
+                throw new IOException("Storage record is not a compact record of type " + type);
+            }
+            if (record.charAt(1) != COMPACT_VERSION) {
+                throw new IOException("Unsupported compact record version " + record.charAt(1));
+            }
+            value = record;
+            position = 2;
+        }
+
+        /**
+         * Read the next field.
+         *
+         * @return field value, null if the field is null or missing
+         * @throws IOException if the field is malformed
+         */
+        @Nullable
+        private String next() throws IOException {
+            if (position >= value.length()) {
+                return null;
+            }
+            if (value.charAt(position) == COMPACT_NULL) {
+                position++;
+                return null;
+            }
+            final int separator = value.indexOf(':', position);
+            if (separator < 0) {
+                throw new IOException("Malformed compact record field at " + position);
+            }
+            final int start = separator + 1;
+            final int end;
+            try {
+                end = start + Integer.parseInt(value, position, separator, 10);
+            } catch (final NumberFormatException e) {
+                throw new IOException("Malformed compact record field length at " + position, e);
+            }
+            if (end < start || end > value.length()) {
+                throw new IOException("Compact record field at " + position + " exceeds the record");
+            }
+            position = end;
+            return value.substring(start, end);
+        }
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.minidev.json.parser.ParseException;
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Asynchronous facade of a {@link DeviceCodesCache}. Each method runs the matching blocking call of the cache on an
+ * executor and returns a {@link CompletableFuture} of its result. Storage and parsing failures complete the future
+ * exceptionally with a {@link CompletionException} caused by the original {@link IOException} or
+ * {@link ParseException}.
+ *
+ * <p>
+ * Unless an executor is set, one is created on initialization and shut down on destroy: an executor starting a
+ * virtual thread per call when the runtime supports them (Java 21 and later), otherwise a fixed pool of
+ * {@link #getPlatformThreads()} daemon threads. Waiting for a storage backend or for a state change then occupies a
+ * virtual thread instead of the calling thread.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class AsyncDeviceCodesCache extends AbstractIdentifiableInitializableComponent {
+
+    /** Default number of threads of the executor created when virtual threads are not available. */
+    public static final int DEFAULT_PLATFORM_THREADS = 32;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(AsyncDeviceCodesCache.class);
+
+    /** The cache calls are delegated to. */
+    @NonnullAfterInit
+    private DeviceCodesCache deviceCodesCache;
+
+    /** Executor running the calls. */
+    @NonnullAfterInit
+    private Executor executor;
+
+    /** Executor created by this instance, shut down on destroy. */
+    @Nullable
+    private ExecutorService ownExecutor;
+
+    /** Number of threads of the executor created when virtual threads are not available. */
+    @Positive
+    private int platformThreads = DEFAULT_PLATFORM_THREADS;
+
+    /**
+     * Set the cache calls are delegated to.
+     * 
+     * @param cache the cache calls are delegated to
+     */
+    public void setDeviceCodesCache(@Nonnull final DeviceCodesCache cache) {
+        checkSetterPreconditions();
+        deviceCodesCache = Constraint.isNotNull(cache, "DeviceCodesCache cannot be null");
+    }
+
+    /**
+     * Set the executor running the calls. The executor is not shut down by this instance.
+     * 
+     * @param exec executor running the calls, null to create one on initialization
+     */
+    public void setExecutor(@Nullable final Executor exec) {
+        checkSetterPreconditions();
+        executor = exec;
+    }
+
+    /**
+     * Get the number of threads of the executor created when virtual threads are not available.
+     * 
+     * @return number of threads
+     */
+    @Positive
+    public int getPlatformThreads() {
+        return platformThreads;
+    }
+
+    /**
+     * Set the number of threads of the executor created when virtual threads are not available.
+     * 
+     * @param threads number of threads
+     */
+    public void setPlatformThreads(@Positive final int threads) {
+        checkSetterPreconditions();
+        platformThreads = (int) Constraint.isGreaterThan(0, threads, "Number of platform threads must be positive");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (deviceCodesCache == null) {
+            throw new ComponentInitializationException("DeviceCodesCache cannot be null");
+        }
+        if (executor == null) {
+            ownExecutor = createExecutor();
+            executor = ownExecutor;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+            ownExecutor = null;
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Create the executor used when none has been set.
+     * 
+     * @return executor starting a virtual thread per call, or a fixed pool of platform threads
+     */
+    @Nonnull
+    private ExecutorService createExecutor() {
+        try {
+            // Looked up reflectively as the code is compiled for a release without virtual threads
+            final ExecutorService virtual =
+                    (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.debug("Running asynchronous device code cache calls on virtual threads");
+            return virtual;
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            log.debug("Virtual threads not available, running asynchronous device code cache calls on {} threads",
+                    platformThreads);
+        }
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = r -> {
+            final Thread thread = new Thread(r, "devicegrant-storage-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(platformThreads, factory);
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#storeDeviceCode(DeviceCodeObject, String, DeviceStateObject, long)}.
+     * 
+     * @param deviceCodeObject DeviceCodeObject to store.
+     * @param userCode key for storing the DeviceCodeObject.
+     * @param initialState initial DeviceStateObject, normally in PENDING state.
+     * @param expiration lifetime in milliseconds.
+     * @return future of true if stored successfully.
+     */
+    @Nonnull
+    public CompletableFuture<Boolean> storeDeviceCodeAsync(@Nonnull final DeviceCodeObject deviceCodeObject,
+            @Nonnull final String userCode, @Nonnull final DeviceStateObject initialState, final long expiration) {
+        return submit(() -> deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, initialState, expiration));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#getDeviceCode(String)}.
+     * 
+     * @param userCode key to DeviceCodeObject.
+     * @return future of the DeviceCodeObject keyed with user code, of null if not located.
+     */
+    @Nonnull
+    public CompletableFuture<DeviceCodeObject> getDeviceCodeAsync(@Nonnull final String userCode) {
+        return submit(() -> deviceCodesCache.getDeviceCode(userCode));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#getDeviceState(String)}.
+     * 
+     * @param deviceCode key to DeviceStateObject.
+     * @return future of the DeviceStateObject keyed with device code, of null if not located.
+     */
+    @Nonnull
+    public CompletableFuture<DeviceStateObject> getDeviceStateAsync(@Nonnull final String deviceCode) {
+        return submit(() -> deviceCodesCache.getDeviceState(deviceCode));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#getDeviceStateIfChanged(String, long)}.
+     * 
+     * @param deviceCode key to DeviceStateObject.
+     * @param knownVersion version of the record already known to the caller, zero if none.
+     * @return future of the version and the DeviceStateObject as returned by the cache.
+     */
+    @Nonnull
+    public CompletableFuture<Pair<Long, DeviceStateObject>> getDeviceStateIfChangedAsync(
+            @Nonnull final String deviceCode, @NonNegative final long knownVersion) {
+        return submit(() -> deviceCodesCache.getDeviceStateIfChanged(deviceCode, knownVersion));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#awaitDeviceState(String, long)}.
+     * 
+     * @param deviceCode key to DeviceStateObject.
+     * @param timeout maximum time to wait in milliseconds.
+     * @return future of the DeviceStateObject after the wait, of null if not located.
+     */
+    @Nonnull
+    public CompletableFuture<DeviceStateObject> awaitDeviceStateAsync(@Nonnull final String deviceCode,
+            @NonNegative final long timeout) {
+        return submit(() -> deviceCodesCache.awaitDeviceState(deviceCode, timeout));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#updateDeviceState(String, DeviceStateObject, long)}.
+     * 
+     * @param deviceCode key to store DeviceStateObject by.
+     * @param deviceStateObject DeviceStateObject containing updated information.
+     * @param expiration lifetime in milliseconds.
+     * @return future of true if the object was successfully updated.
+     */
+    @Nonnull
+    public CompletableFuture<Boolean> updateDeviceStateAsync(@Nonnull final String deviceCode,
+            @Nonnull final DeviceStateObject deviceStateObject, final long expiration) {
+        return submit(() -> deviceCodesCache.updateDeviceState(deviceCode, deviceStateObject, expiration));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#consumeDeviceState(String)}.
+     * 
+     * @param deviceCode key to DeviceStateObject.
+     * @return future of the DeviceStateObject keyed with device code, of null if not located or already consumed.
+     */
+    @Nonnull
+    public CompletableFuture<DeviceStateObject> consumeDeviceStateAsync(@Nonnull final String deviceCode) {
+        return submit(() -> deviceCodesCache.consumeDeviceState(deviceCode));
+    }
+
+    /**
+     * Asynchronous {@link DeviceCodesCache#deleteByDeviceCode(String)}.
+     * 
+     * @param deviceCode key to DeviceStateObject.
+     * @return future of true if the device state existed and was deleted.
+     */
+    @Nonnull
+    public CompletableFuture<Boolean> deleteByDeviceCodeAsync(@Nonnull final String deviceCode) {
+        return submit(() -> deviceCodesCache.deleteByDeviceCode(deviceCode));
+    }
+
+    /**
+     * Run a call of the cache on the executor.
+     * 
+     * @param <T> result type
+     * @param call the call
+     * @return future of the result of the call
+     */
+    @Nonnull
+    private <T> CompletableFuture<T> submit(@Nonnull final CacheCall<T> call) {
+        checkComponentActive();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (final IOException | ParseException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Blocking call of the cache.
+     * 
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    private interface CacheCall<T> {
+
+        /**
+         * Make the call.
+         * 
+         * @return result of the call
+         * @throws IOException if something went wrong with storage
+         * @throws ParseException if a stored object was not parsed successfully
+         */
+        @Nullable
+        T call() throws IOException, ParseException;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+
+/**
+ * {@link DeviceRecordCodec} encoding records in the compact format described in {@link AbstractDeviceRecordCodec}.
+ * The format avoids building and parsing JSON objects on every storage access.
+ */
+public class CompactDeviceRecordCodec extends AbstractDeviceRecordCodec {
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String encode(@Nonnull final DeviceCodeObject deviceCodeObject) {
+        final StringBuilder builder = new StringBuilder(64).append(COMPACT_DEVICE_CODE).append(COMPACT_VERSION);
+        appendCompactField(builder, deviceCodeObject.getDeviceCode());
+        appendCompactField(builder, deviceCodeObject.getClientID().getValue());
+        appendCompactField(builder,
+                deviceCodeObject.getScope() == null ? null : deviceCodeObject.getScope().toString());
+        if (deviceCodeObject.getIssuedAt() != null) {
+            appendCompactField(builder, deviceCodeObject.getIssuedAt().toString());
+        }
+        return builder.toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String encode(@Nonnull final DeviceStateObject deviceStateObject) {
+        final String accessToken = deviceStateObject.getAccessToken();
+        final StringBuilder builder =
+                new StringBuilder(accessToken == null ? 16 : accessToken.length() + 32).append(COMPACT_DEVICE_STATE)
+                        .append(COMPACT_VERSION);
+        appendCompactField(builder, fromState(deviceStateObject.getState()));
+        appendCompactField(builder, accessToken);
+        appendCompactField(builder,
+                deviceStateObject.getExpiresAt() == null ? null : deviceStateObject.getExpiresAt().toString());
+        // Optional trailing fields are written up to the last one set, records without them keep the original form
+        final String[] optional = {toField(deviceStateObject.getPollingInterval()),
+                deviceStateObject.getClientID(), toField(deviceStateObject.getLongPollingTimeout()),
+                deviceStateObject.getUserCodeKey()};
+        int last = optional.length;
+        while (last > 0 && optional[last - 1] == null) {
+            last--;
+        }
+        for (int i = 0; i < last; i++) {
+            appendCompactField(builder, optional[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get the string representation of a nullable number.
+     * 
+     * @param value number, may be null
+     * @return string representation, null if the number is null
+     */
+    @Nullable
+    private static String toField(@Nullable final Long value) {
+        return value == null ? null : value.toString();
+    }
+
+}
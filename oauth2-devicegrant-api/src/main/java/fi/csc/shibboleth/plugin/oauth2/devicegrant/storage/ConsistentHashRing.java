@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Consistent hash ring mapping keys to nodes.
+ *
+ * <p>
+ * Each node is placed on the ring at a number of points derived from its identifier, and a key belongs to the node of
+ * the first point at or after the hash of the key. The placement depends only on the node identifiers, so adding a
+ * node moves only the keys that now belong to the new node, about one in the new number of nodes.
+ * </p>
+ *
+ * @param <T> type of the nodes
+ */
+@Immutable
+public final class ConsistentHashRing<T> {
+
+    /** Default number of points of each node. */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /** Points of the ring in ascending order. */
+    @Nonnull
+    private final long[] points;
+
+    /** Node of each point. */
+    @Nonnull
+    private final List<T> owners;
+
+    /**
+     * Constructor.
+     *
+     * @param nodes nodes keyed by their identifiers
+     * @param virtualNodes number of points of each node
+     */
+    public ConsistentHashRing(@Nonnull final Map<String, T> nodes, @Positive final int virtualNodes) {
+        Constraint.isTrue(nodes != null && !nodes.isEmpty(), "Nodes cannot be null or empty");
+        Constraint.isGreaterThan(0, virtualNodes, "Virtual nodes must be greater than 0");
+        final List<Point<T>> placed = new ArrayList<>(nodes.size() * virtualNodes);
+        for (final Map.Entry<String, T> node : nodes.entrySet()) {
+            Constraint.isNotNull(node.getValue(), "Node cannot be null");
+            for (int i = 0; i < virtualNodes; i++) {
+                placed.add(new Point<>(hash(node.getKey() + "#" + i), node.getKey(), node.getValue()));
+            }
+        }
+        // Points shared by two nodes go to the node with the lower identifier, regardless of the order given
+        placed.sort(Comparator.<Point<T>>comparingLong(p -> p.position).thenComparing(p -> p.id));
+        final long[] positions = new long[placed.size()];
+        final List<T> nodesOfPoints = new ArrayList<>(placed.size());
+        int count = 0;
+        for (final Point<T> point : placed) {
+            if (count == 0 || positions[count - 1] != point.position) {
+                positions[count++] = point.position;
+                nodesOfPoints.add(point.node);
+            }
+        }
+        points = Arrays.copyOf(positions, count);
+        owners = List.copyOf(nodesOfPoints);
+    }
+
+    /**
+     * Get the node of a key.
+     *
+     * @param key the key
+     * @return the node the key belongs to
+     */
+    @Nonnull
+    public T locate(@Nonnull final String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners.get(index == points.length ? 0 : index);
+    }
+
+    /**
+     * Hash a string to a position on the ring.
+     *
+     * @param value the string
+     * @return the position
+     */
+    private static long hash(@Nonnull final String value) {
+        return ByteBuffer.wrap(DigestUtils.md5(value)).getLong();
+    }
+
+    /**
+     * A point of a node on the ring.
+     *
+     * @param <T> type of the nodes
+     */
+    private static final class Point<T> {
+
+        /** Position on the ring. */
+        private final long position;
+
+        /** Identifier of the node. */
+        @Nonnull
+        private final String id;
+
+        /** The node. */
+        @Nonnull
+        private final T node;
+
+        /**
+         * Constructor.
+         *
+         * @param pointPosition position on the ring
+         * @param nodeId identifier of the node
+         * @param pointNode the node
+         */
+        Point(final long pointPosition, @Nonnull final String nodeId, @Nonnull final T pointNode) {
+            position = pointPosition;
+            id = nodeId;
+            node = pointNode;
+        }
+    }
+
+}
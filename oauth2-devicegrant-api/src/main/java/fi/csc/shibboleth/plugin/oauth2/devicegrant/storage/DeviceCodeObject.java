@@ -37,6 +37,10 @@ public class DeviceCodeObject {
     @Nullable
     private final Scope scope;
 
+    /** Time the device code was issued, from EPOCH in milliseconds. */
+    @Nullable
+    private Long issuedAt;
+
     /**
      * Constructor.
      * 
@@ -83,6 +87,25 @@ public class DeviceCodeObject {
         return scope;
     }
 
+    /**
+     * Get time the device code was issued, from EPOCH in milliseconds.
+     * 
+     * @return time the device code was issued, null if not known
+     */
+    @Nullable
+    public Long getIssuedAt() {
+        return issuedAt;
+    }
+
+    /**
+     * Set time the device code was issued, from EPOCH in milliseconds.
+     * 
+     * @param time time the device code was issued, null if not known
+     */
+    public void setIssuedAt(@Nullable final Long time) {
+        issuedAt = time;
+    }
+
     /**
      * Wraps Device Code, Client ID and scope to a JSON Object.
      * 
@@ -96,6 +119,9 @@ public class DeviceCodeObject {
         if (scope != null) {
             object.put("scope", scope.toString());
         }
+        if (issuedAt != null) {
+            object.put("issued_at", issuedAt);
+        }
         return object;
     }
 
@@ -109,9 +135,13 @@ public class DeviceCodeObject {
         if (deviceCodeObject == null) {
             throw new IllegalArgumentException("device code object must not be null");
         }
-        return new DeviceCodeObject(deviceCodeObject.getAsString("device_code"),
+        final DeviceCodeObject object = new DeviceCodeObject(deviceCodeObject.getAsString("device_code"),
                 new ClientID(deviceCodeObject.getAsString("client_id")),
                 Scope.parse(deviceCodeObject.getAsString("scope")));
+        if (deviceCodeObject.getAsNumber("issued_at") != null) {
+            object.setIssuedAt(deviceCodeObject.getAsNumber("issued_at").longValue());
+        }
+        return object;
     }
 
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Persistence engine of the device codes behind {@link DeviceCodesCache}.
+ *
+ * <p>
+ * A device code consists of the {@link DeviceCodeObject} found by its user code and the {@link DeviceStateObject}
+ * found by its device code. Both are issued together and share an expiration. Each write of a device state gives it
+ * a new version, which readers use to skip unchanged states and to consume a state only once.
+ * </p>
+ *
+ * <p>
+ * Implementations must be safe for concurrent use. The cache serialises writers of the same device code on each
+ * node, so an implementation only needs to make each single call atomic. {@link StorageServiceDeviceCodeStore} keeps
+ * the device codes in an OpenSAML {@link org.opensaml.storage.StorageService}, {@link InMemoryDeviceCodeStore} in
+ * the memory of the node, {@link MappedFileDeviceCodeStore} in memory journaled to local files, and
+ * {@link JDBCDeviceCodeStore} in a dedicated database table.
+ * </p>
+ */
+@ThreadSafe
+public interface DeviceCodeStore {
+
+    /**
+     * Issue a device code, storing the device code object by user code and the initial state by device code.
+     *
+     * <p>
+     * Nothing is stored if either the user code or the device code is already in use.
+     * </p>
+     *
+     * @param deviceCodeObject device code object
+     * @param userCode user code
+     * @param initialState initial state of the device code, normally pending
+     * @param expiresAt expiration of both, from EPOCH in milliseconds
+     * @return true if the device code was issued, false if the user code or the device code is in use
+     * @throws IOException if the store fails
+     */
+    boolean issue(@Nonnull DeviceCodeObject deviceCodeObject, @Nonnull String userCode,
+            @Nonnull DeviceStateObject initialState, long expiresAt) throws IOException;
+
+    /**
+     * Look up the device code object of a user code.
+     *
+     * @param userCode user code
+     * @return the device code object, null if not found or expired
+     * @throws IOException if the store fails
+     */
+    @Nullable
+    DeviceCodeObject getByUserCode(@Nonnull String userCode) throws IOException;
+
+    /**
+     * Look up the state of a device code, unless its version is the known one.
+     *
+     * @param deviceCode device code
+     * @param knownVersion version the caller has already read, 0 or less if none
+     * @return the versioned state, with a null state if the version is the known one, null if not found or expired
+     * @throws IOException if the store fails
+     */
+    @Nullable
+    VersionedDeviceState getByDeviceCode(@Nonnull String deviceCode, long knownVersion) throws IOException;
+
+    /**
+     * Replace the state of a device code, giving it a new version.
+     *
+     * @param deviceCode device code
+     * @param state new state
+     * @param expiresAt new expiration of the state, from EPOCH in milliseconds
+     * @return true if the state was replaced, false if not found or expired
+     * @throws IOException if the store fails
+     */
+    boolean transitionState(@Nonnull String deviceCode, @Nonnull DeviceStateObject state, long expiresAt)
+            throws IOException;
+
+    /**
+     * Consume the state of a device code by deleting it, if it still has the given version.
+     *
+     * @param deviceCode device code
+     * @param version version of the state known to the caller
+     * @return true if the state was deleted by this call, false if not found or of another version
+     * @throws IOException if the store fails
+     */
+    boolean consume(@Nonnull String deviceCode, long version) throws IOException;
+
+    /**
+     * Delete the device code object of a user code, so that the user code cannot be used again.
+     *
+     * @param userCode user code
+     * @return true if deleted, false if not found
+     * @throws IOException if the store fails
+     */
+    boolean deleteUserCode(@Nonnull String userCode) throws IOException;
+
+    /**
+     * Expire a device code ahead of its expiration, deleting its state and the device code object of its user code
+     * if not deleted already.
+     *
+     * @param deviceCode device code
+     * @return true if the state was found and deleted
+     * @throws IOException if the store fails
+     */
+    boolean expire(@Nonnull String deviceCode) throws IOException;
+
+}
@@ -17,22 +17,30 @@
 package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-import net.minidev.json.JSONObject;
-import net.minidev.json.parser.JSONParser;
 import net.minidev.json.parser.ParseException;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
 import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.collection.Pair;
 import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.opensaml.storage.StorageCapabilities;
-import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,8 +49,39 @@ import org.slf4j.LoggerFactory;
  * Cache for storing {@link DeviceCodeObject} per User Code and state of the request {@link DeviceStateObject} per
  * Device Code.
  * <p>
- * This class is thread-safe and uses a synchronised method to prevent race conditions within the underlying store
- * (lacking an atomic "check and insert" operation).
+ * The device codes are kept in a {@link DeviceCodeStore}, see {@link #setStore(DeviceCodeStore)}. By default a
+ * {@link StorageServiceDeviceCodeStore} is created for the {@link StorageService} set with
+ * {@link #setStorage(StorageService)}, using the record codec and the expiry sweeper set to this instance.
+ * </p>
+ * <p>
+ * This class is thread-safe. Reads are not serialised at all, the underlying store is expected to be thread-safe.
+ * Inserts rely on the atomic issue of the store. Updates are serialised per device code
+ * using a fixed set of striped locks, so only writers of the same device code (or of device codes sharing a stripe)
+ * contend with each other.
+ * </p>
+ * <p>
+ * Readers may wait for a state change of a device code with {@link #awaitDeviceState(String, long)}. The waiters are
+ * woken by {@link #updateDeviceState(String, DeviceStateObject, long)} of this instance only, updates made by other
+ * nodes sharing the store are noticed when the wait times out.
+ * </p>
+ * <p>
+ * Device state reads may be answered from an optional bounded in-process near cache, see
+ * {@link #setNearCacheTimeToLive(Duration)}. Updates through this instance invalidate the cached state immediately,
+ * updates by other nodes are noticed once the time-to-live has passed, when the storage record version is checked.
+ * Cached states are shared by all readers and must not be modified.
+ * </p>
+ * <p>
+ * The duration of each operation may be reported to a {@link DeviceCodesCacheObserver}, see
+ * {@link #setObserver(DeviceCodesCacheObserver)}.
+ * </p>
+ * <p>
+ * The default store may shard the records over several storage services by consistent hashing of their keys, see
+ * {@link #setShards(StorageServiceShards)}.
+ * </p>
+ * <p>
+ * With the default store, expired records written through this instance may be deleted ahead of the storage
+ * service's own cleanup by a {@link DeviceRecordExpirySweeper}, see
+ * {@link #setExpirySweeper(DeviceRecordExpirySweeper)}.
  * </p>
  */
 @ThreadSafeAfterInit
@@ -65,23 +104,102 @@ public class DeviceCodesCache extends AbstractIdentifiableInitializableComponent
     @NotEmpty
     public static final String CONTEXT_STATE = DeviceCodesCache.class.getName() + ".STATE";
 
-    /** Backing storage for the cache. */
+    /** Default number of lock stripes. */
+    public static final int DEFAULT_LOCK_STRIPES = 64;
+
+    /** Default maximum number of readers waiting for a state change at the same time. */
+    public static final int DEFAULT_MAX_STATE_WAITERS = 100;
+
+    /** Default maximum number of device states in the near cache. */
+    public static final int DEFAULT_NEAR_CACHE_MAX_SIZE = 10000;
+
+    /** Backing storage of the default store, null if a store or shards are set. */
+    @Nullable
     private StorageService storage;
 
+    /** Shards of the backing storage of the default store, null if a store or storage is set. */
+    @Nullable
+    private StorageServiceShards shards;
+
+    /** Store of the device codes. */
+    @NonnullAfterInit
+    private DeviceCodeStore store;
+
+    /** Whether the store is the default one created and owned by this instance. */
+    private boolean defaultStore;
+
+    /** Number of lock stripes. */
+    @Positive
+    private int lockStripes = DEFAULT_LOCK_STRIPES;
+
+    /** Striped locks serialising writers per device code. */
+    @NonnullAfterInit
+    private Lock[] locks;
+
+    /** Codec for storage record values of the default store. */
+    @Nonnull
+    private DeviceRecordCodec recordCodec;
+
+    /** Maximum number of readers waiting for a state change at the same time. */
+    @NonNegative
+    private int maxStateWaiters = DEFAULT_MAX_STATE_WAITERS;
+
+    /** Number of readers currently waiting for a state change. */
+    @Nonnull
+    private final AtomicInteger stateWaiterCount;
+
+    /** Pending state change notifications keyed by device code. */
+    @Nonnull
+    private final ConcurrentMap<String, StateChange> stateChanges;
+
+    /** Time a device state read answers later reads from memory, zero to disable the near cache. */
+    @Nonnull
+    private Duration nearCacheTimeToLive;
+
+    /** Maximum number of device states in the near cache. */
+    @Positive
+    private int nearCacheMaxSize = DEFAULT_NEAR_CACHE_MAX_SIZE;
+
+    /** Near cache of device states, null if disabled. */
+    @Nullable
+    private DeviceStateNearCache nearCache;
+
+    /** Observer of the operations, null if none. */
+    @Nullable
+    private DeviceCodesCacheObserver observer;
+
+    /** Sweeper of the expired records written through the default store, null if none. */
+    @Nullable
+    private DeviceRecordExpirySweeper expirySweeper;
+
+    /** Counter of the pending device codes of each client, null if none. */
+    @Nullable
+    private OutstandingDeviceCodeCounter outstandingCounter;
+
     /**
-     * Get the backing store for the cache.
+     * Constructor.
+     */
+    public DeviceCodesCache() {
+        recordCodec = new JSONDeviceRecordCodec();
+        stateWaiterCount = new AtomicInteger();
+        stateChanges = new ConcurrentHashMap<>();
+        nearCacheTimeToLive = Duration.ZERO;
+    }
+
+    /**
+     * Get the backing storage of the default store.
      * 
-     * @return the backing store.
+     * @return the backing storage, null if a store is set
      */
-    @NonnullAfterInit
+    @Nullable
     public StorageService getStorage() {
         return storage;
     }
 
     /**
-     * Set the backing store for the cache.
+     * Set the backing storage of the default store.
      * 
-     * @param storageService backing store to use
+     * @param storageService backing storage to use
      */
     public void setStorage(@Nonnull final StorageService storageService) {
         checkSetterPreconditions();
@@ -95,50 +213,337 @@ public class DeviceCodesCache extends AbstractIdentifiableInitializableComponent
                 "Context " + CONTEXT_STATE.length() + " too long for StorageService " + caps.getContextSize());
     }
 
+    /**
+     * Get the shards of the backing storage of the default store.
+     * 
+     * @return the shards of the backing storage, null if not set
+     */
+    @Nullable
+    public StorageServiceShards getShards() {
+        return shards;
+    }
+
+    /**
+     * Set the shards of the backing storage of the default store, instead of a single backing storage.
+     * 
+     * @param storageShards shards of the backing storage to use
+     */
+    public void setShards(@Nonnull final StorageServiceShards storageShards) {
+        checkSetterPreconditions();
+
+        shards = Constraint.isNotNull(storageShards, "StorageServiceShards cannot be null");
+    }
+
+    /**
+     * Get the store of the device codes.
+     * 
+     * @return the store of the device codes
+     */
+    @NonnullAfterInit
+    public DeviceCodeStore getStore() {
+        return store;
+    }
+
+    /**
+     * Set the store of the device codes, instead of the default store for the storage.
+     * 
+     * @param deviceCodeStore store of the device codes
+     */
+    public void setStore(@Nullable final DeviceCodeStore deviceCodeStore) {
+        checkSetterPreconditions();
+
+        store = deviceCodeStore;
+    }
+
+    /**
+     * Get the codec for storage record values.
+     * 
+     * @return the codec for storage record values
+     */
+    @Nonnull
+    public DeviceRecordCodec getRecordCodec() {
+        return recordCodec;
+    }
+
+    /**
+     * Set the codec for storage record values of the default store.
+     * 
+     * <p>
+     * Defaults to {@link JSONDeviceRecordCodec}. All codecs read records written by any of the bundled codecs.
+     * </p>
+     * 
+     * @param codec codec for storage record values
+     */
+    public void setRecordCodec(@Nonnull final DeviceRecordCodec codec) {
+        checkSetterPreconditions();
+
+        recordCodec = Constraint.isNotNull(codec, "DeviceRecordCodec cannot be null");
+    }
+
+    /**
+     * Set the number of lock stripes used to serialise writers of the same device code.
+     * 
+     * <p>
+     * Defaults to {@link #DEFAULT_LOCK_STRIPES}.
+     * </p>
+     * 
+     * @param stripes number of lock stripes
+     */
+    public void setLockStripes(@Positive final int stripes) {
+        checkSetterPreconditions();
+
+        lockStripes = (int) Constraint.isGreaterThan(0, stripes, "Number of lock stripes must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of readers waiting for a state change at the same time.
+     * 
+     * <p>
+     * Each waiting reader holds a request thread. Readers exceeding the limit read the state without waiting. 0
+     * disables waiting altogether. Defaults to {@link #DEFAULT_MAX_STATE_WAITERS}.
+     * </p>
+     * 
+     * @param max maximum number of waiting readers
+     */
+    public void setMaxStateWaiters(@NonNegative final int max) {
+        checkSetterPreconditions();
+
+        maxStateWaiters = (int) Constraint.isGreaterThanOrEqual(0, max,
+                "Maximum number of state waiters must be greater than or equal to 0");
+    }
+
+    /**
+     * Set the time a device state read from storage answers later reads of the same device code from memory.
+     * 
+     * <p>
+     * Token polls mostly read the same pending state again, this spares the storage round trip and the decoding. A
+     * state updated by another node may be seen up to this late on this node. Defaults to zero, which disables the
+     * near cache.
+     * </p>
+     * 
+     * @param ttl time a device state answers reads from memory
+     */
+    public void setNearCacheTimeToLive(@Nonnull final Duration ttl) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(ttl != null && !ttl.isNegative(), "Near cache time-to-live cannot be negative");
+        nearCacheTimeToLive = ttl;
+    }
+
+    /**
+     * Set the maximum number of device states in the near cache.
+     * 
+     * <p>
+     * Defaults to {@link #DEFAULT_NEAR_CACHE_MAX_SIZE}.
+     * </p>
+     * 
+     * @param size maximum number of device states
+     */
+    public void setNearCacheMaxSize(@Positive final int size) {
+        checkSetterPreconditions();
+
+        nearCacheMaxSize = (int) Constraint.isGreaterThan(0, size, "Near cache size must be greater than 0");
+    }
+
+    /**
+     * Set the observer of the operations of the cache.
+     * 
+     * @param cacheObserver observer of the operations, null if none
+     */
+    public void setObserver(@Nullable final DeviceCodesCacheObserver cacheObserver) {
+        checkSetterPreconditions();
+        observer = cacheObserver;
+    }
+
+    /**
+     * Set the sweeper deleting the expired records written through the default store.
+     * 
+     * @param sweeper sweeper of the expired records, null if none
+     */
+    public void setExpirySweeper(@Nullable final DeviceRecordExpirySweeper sweeper) {
+        checkSetterPreconditions();
+        expirySweeper = sweeper;
+    }
+
+    /**
+     * Get the counter of the pending device codes of each client.
+     * 
+     * @return counter of the pending device codes, null if none
+     */
+    @Nullable
+    public OutstandingDeviceCodeCounter getOutstandingCounter() {
+        return outstandingCounter;
+    }
+
+    /**
+     * Set the counter of the pending device codes of each client. Device codes with a slot reserved in the counter
+     * are counted when stored and stop counting when decided, consumed or deleted through this instance.
+     * 
+     * @param counter counter of the pending device codes, null if none
+     */
+    public void setOutstandingCounter(@Nullable final OutstandingDeviceCodeCounter counter) {
+        checkSetterPreconditions();
+        outstandingCounter = counter;
+    }
+
+    /**
+     * Get the number of device state reads answered from the near cache.
+     * 
+     * @return number of near cache hits, 0 if the near cache is disabled
+     */
+    @NonNegative
+    public long getNearCacheHits() {
+        return nearCache == null ? 0 : nearCache.getHits();
+    }
+
+    /**
+     * Get the number of device state reads that went to storage while the near cache is enabled.
+     * 
+     * @return number of near cache misses, 0 if the near cache is disabled
+     */
+    @NonNegative
+    public long getNearCacheMisses() {
+        return nearCache == null ? 0 : nearCache.getMisses();
+    }
+
+    /**
+     * Get the number of device states evicted from the near cache to keep it within its size.
+     * 
+     * @return number of near cache evictions, 0 if the near cache is disabled
+     */
+    @NonNegative
+    public long getNearCacheEvictions() {
+        return nearCache == null ? 0 : nearCache.getEvictions();
+    }
+
     /** {@inheritDoc} */
     @Override
     public void doInitialize() throws ComponentInitializationException {
-        if (storage == null) {
-            throw new ComponentInitializationException("StorageService cannot be null");
+        if (store != null && (storage != null || shards != null)) {
+            throw new ComponentInitializationException("Either DeviceCodeStore or StorageService can be set");
+        }
+        if (storage != null && shards != null) {
+            throw new ComponentInitializationException("Either StorageService or StorageServiceShards can be set");
         }
+        if (store == null) {
+            if (storage == null && shards == null) {
+                throw new ComponentInitializationException("StorageService cannot be null");
+            }
+            final StorageServiceDeviceCodeStore storageStore = new StorageServiceDeviceCodeStore();
+            if (shards != null) {
+                storageStore.setShards(shards);
+            } else {
+                storageStore.setStorage(storage);
+            }
+            storageStore.setRecordCodec(recordCodec);
+            storageStore.setExpirySweeper(expirySweeper);
+            storageStore.initialize();
+            store = storageStore;
+            defaultStore = true;
+        }
+        locks = new Lock[lockStripes];
+        for (int i = 0; i < lockStripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        if (!nearCacheTimeToLive.isZero()) {
+            nearCache = new DeviceStateNearCache(nearCacheTimeToLive.toMillis(), nearCacheMaxSize);
+        }
+    }
 
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (defaultStore && store instanceof StorageServiceDeviceCodeStore) {
+            ((StorageServiceDeviceCodeStore) store).destroy();
+        }
+        super.doDestroy();
     }
 
     /**
-     * Adjusts the key to smaller size if needed.
+     * Get the lock guarding writes of the given device code.
      * 
-     * @param key key to adjust
-     * @return key, either original or adjusted.
+     * @param deviceCode device code
+     * @return lock for the stripe the device code maps to
      */
-    private String adjustKey(@Nonnull String key) {
-        StorageCapabilities caps = storage.getCapabilities();
-        return key.length() > caps.getKeySize() ? DigestUtils.sha1Hex(key) : key;
+    @Nonnull
+    private Lock getLock(@Nonnull final String deviceCode) {
+        final int hash = deviceCode.hashCode();
+        return locks[((hash ^ (hash >>> 16)) & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Notify the observer, if any, of a completed operation.
+     * 
+     * @param operation the operation
+     * @param start value of {@link System#nanoTime()} when the operation started
+     */
+    private void observe(@Nonnull final DeviceCodesCacheObserver.Operation operation, final long start) {
+        if (observer != null) {
+            observer.operationCompleted(operation, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stop counting a device code as pending in the outstanding counter, if any.
+     * 
+     * @param deviceCode device code
+     */
+    private void releaseOutstanding(@Nonnull final String deviceCode) {
+        if (outstandingCounter != null) {
+            outstandingCounter.release(deviceCode);
+        }
     }
 
     /**
      * Stores DeviceCodeObject keyed with user code. DeviceStateObject is created simultaneously, keyed by device code.
      * 
+     * <p>
+     * The store issues both atomically, so a failed call leaves nothing behind and no locking is needed.
+     * </p>
+     * 
      * @param deviceCodeObject DeviceCodeObject to store.
      * @param userCode key for storing the DeviceCodeObject.
      * @param expiration lifetime in milliseconds.
      * @return true if stored successfully.
      * @throws IOException if something went wrong with storage.
      */
-    public synchronized boolean storeDeviceCode(@Nonnull DeviceCodeObject deviceCodeObject, @Nonnull String userCode,
+    public boolean storeDeviceCode(@Nonnull DeviceCodeObject deviceCodeObject, @Nonnull String userCode,
             long expiration) throws IOException {
-        String deviceCodeKey = adjustKey(userCode);
-        if (!storage.create(CONTEXT_DEVICECODE, deviceCodeKey, deviceCodeObject.toJSONObject().toJSONString(),
-                System.currentTimeMillis() + expiration)) {
-            log.debug("User code collision for code {}", userCode);
-            return false;
-        }
-        String deviceStateKey = adjustKey(deviceCodeObject.getDeviceCode());
-        if (!storage.create(CONTEXT_STATE, deviceStateKey, new DeviceStateObject().toJSONObject().toJSONString(),
-                System.currentTimeMillis() + expiration)) {
-            log.debug("Device code collision for code {}", deviceCodeObject.getDeviceCode());
-            return false;
+        return storeDeviceCode(deviceCodeObject, userCode, new DeviceStateObject(), expiration);
+    }
+
+    /**
+     * Stores DeviceCodeObject keyed with user code, and the given initial DeviceStateObject keyed by device code.
+     * 
+     * <p>
+     * The store keeps track of the user code of the state, so that both can later be found from the device code, see
+     * {@link #deleteByDeviceCode(String)}.
+     * </p>
+     * 
+     * @param deviceCodeObject DeviceCodeObject to store.
+     * @param userCode key for storing the DeviceCodeObject.
+     * @param initialState initial DeviceStateObject, normally in PENDING state.
+     * @param expiration lifetime in milliseconds.
+     * @return true if stored successfully.
+     * @throws IOException if something went wrong with storage.
+     * @see #storeDeviceCode(DeviceCodeObject, String, long)
+     */
+    public boolean storeDeviceCode(@Nonnull final DeviceCodeObject deviceCodeObject, @Nonnull final String userCode,
+            @Nonnull final DeviceStateObject initialState, final long expiration) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            final long expiresAt = System.currentTimeMillis() + expiration;
+            if (!store.issue(deviceCodeObject, userCode, initialState, expiresAt)) {
+                return false;
+            }
+            if (outstandingCounter != null && deviceCodeObject.getClientID() != null) {
+                outstandingCounter.track(deviceCodeObject.getClientID().getValue(), deviceCodeObject.getDeviceCode(),
+                        expiresAt);
+            }
+            return true;
+        } finally {
+            observe(DeviceCodesCacheObserver.Operation.STORE, start);
         }
-        return true;
     }
 
     /**
@@ -149,41 +554,189 @@ public class DeviceCodesCache extends AbstractIdentifiableInitializableComponent
      * @throws IOException if something went wrong with storage.
      * @throws ParseException if DeviceCodeObject was not parsed successfully.
      */
-    @SuppressWarnings("rawtypes")
-    public synchronized DeviceCodeObject getDeviceCode(@Nonnull String userCode) throws IOException, ParseException {
-        String deviceCodeKey = adjustKey(userCode);
-        StorageRecord entry = storage.read(CONTEXT_DEVICECODE, deviceCodeKey);
-        if (entry == null) {
-            return null;
-        }
-        Object obj = new JSONParser(JSONParser.MODE_PERMISSIVE).parse(entry.getValue());
-        if (obj instanceof JSONObject) {
-            return DeviceCodeObject.fromJSONObject((JSONObject) obj);
+    public DeviceCodeObject getDeviceCode(@Nonnull String userCode) throws IOException, ParseException {
+        final long start = System.nanoTime();
+        try {
+            return store.getByUserCode(userCode);
+        } finally {
+            observe(DeviceCodesCacheObserver.Operation.READ_DEVICE_CODE, start);
         }
-        throw new IOException("Storage record could not be parsed as a JSONObject");
     }
 
     /**
      * Get DeviceStateObject, keyed by device code.
      * 
+     * <p>
+     * With the near cache enabled, the returned object may be shared with other readers and must not be modified.
+     * </p>
+     * 
      * @param deviceCode key to DeviceStateObject
      * @return DeviceStateObject keyed with device code. Null if not located.
      * @throws IOException if something went wrong with storage.
      * @throws ParseException if DeviceCodeObject was not parsed successfully.
      */
-    @SuppressWarnings("rawtypes")
-    public synchronized DeviceStateObject getDeviceState(@Nonnull String deviceCode)
+    public DeviceStateObject getDeviceState(@Nonnull String deviceCode)
             throws IOException, ParseException {
-        String deviceStateKey = adjustKey(deviceCode);
-        StorageRecord entry = storage.read(CONTEXT_STATE, deviceStateKey);
-        if (entry == null) {
-            return null;
+        final long start = System.nanoTime();
+        try {
+            if (nearCache != null) {
+                return getCachedDeviceState(nearCache, deviceCode).getSecond();
+            }
+            final VersionedDeviceState read = store.getByDeviceCode(deviceCode, 0);
+            return read == null ? null : read.getState();
+        } finally {
+            observe(DeviceCodesCacheObserver.Operation.READ_STATE, start);
+        }
+    }
+
+    /**
+     * Get DeviceStateObject, keyed by device code, unless the stored state still has the known version.
+     * 
+     * <p>
+     * The store is asked for the state only if its version differs from the known one, so an unchanged state is
+     * neither transferred nor decoded. With the near cache enabled, a fresh cached state is compared without asking
+     * the store at all.
+     * </p>
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @param knownVersion version of the state the caller has already read, 0 or less if none
+     * @return a pair of the current version and the DeviceStateObject. The state is null if the version equals
+     *         the known one, both are null if the state was not located.
+     * @throws IOException if something went wrong with storage.
+     * @throws ParseException if DeviceCodeObject was not parsed successfully.
+     */
+    @Nonnull
+    public Pair<Long, DeviceStateObject> getDeviceStateIfChanged(@Nonnull final String deviceCode,
+            final long knownVersion) throws IOException, ParseException {
+        final long start = System.nanoTime();
+        try {
+            return readDeviceStateIfChanged(deviceCode, knownVersion);
+        } finally {
+            observe(DeviceCodesCacheObserver.Operation.READ_STATE, start);
+        }
+    }
+
+    /**
+     * Read DeviceStateObject, keyed by device code, unless the stored state still has the known version.
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @param knownVersion version of the state the caller has already read, 0 or less if none
+     * @return a pair of the current version and the DeviceStateObject, as described in
+     *         {@link #getDeviceStateIfChanged(String, long)}
+     * @throws IOException if something went wrong with storage.
+     */
+    @Nonnull
+    private Pair<Long, DeviceStateObject> readDeviceStateIfChanged(@Nonnull final String deviceCode,
+            final long knownVersion) throws IOException {
+        if (nearCache != null) {
+            final Pair<Long, DeviceStateObject> current = getCachedDeviceState(nearCache, deviceCode);
+            if (current.getFirst() != null && current.getFirst() == knownVersion) {
+                return new Pair<>(current.getFirst(), null);
+            }
+            return current;
+        }
+        final VersionedDeviceState read = store.getByDeviceCode(deviceCode, knownVersion);
+        if (read == null) {
+            return new Pair<>();
+        }
+        return new Pair<>(read.getVersion(), read.getState());
+    }
+
+    /**
+     * Get DeviceStateObject through the near cache.
+     * 
+     * <p>
+     * A fresh entry is returned as such. A stale one is checked against the stored version, and only decoded again if
+     * the state has changed.
+     * </p>
+     * 
+     * @param cache near cache
+     * @param deviceCode key to DeviceStateObject
+     * @return a pair of the version and the DeviceStateObject, both null if not located
+     * @throws IOException if something went wrong with storage.
+     */
+    @Nonnull
+    private Pair<Long, DeviceStateObject> getCachedDeviceState(@Nonnull final DeviceStateNearCache cache,
+            @Nonnull final String deviceCode) throws IOException {
+        final long now = System.currentTimeMillis();
+        final DeviceStateNearCache.Entry cached = cache.get(deviceCode, now);
+        if (cached != null && cache.isFresh(cached, now)) {
+            return new Pair<>(cached.getVersion(), cached.getState());
         }
-        Object obj = new JSONParser(JSONParser.MODE_PERMISSIVE).parse(entry.getValue());
-        if (obj instanceof JSONObject) {
-            return DeviceStateObject.fromJSONObject((JSONObject) obj);
+        final long generation = cache.generation(deviceCode);
+        final VersionedDeviceState read = store.getByDeviceCode(deviceCode, cached != null ? cached.getVersion() : 0);
+        if (read == null) {
+            if (cached != null) {
+                cache.remove(deviceCode, cached);
+            }
+            return new Pair<>();
+        }
+        if (read.getState() == null) {
+            cache.put(deviceCode, cached.refresh(now), generation);
+            return new Pair<>(cached.getVersion(), cached.getState());
+        }
+        cache.put(deviceCode, new DeviceStateNearCache.Entry(read.getState(), read.getVersion(), read.getExpiration(),
+                now), generation);
+        return new Pair<>(read.getVersion(), read.getState());
+    }
+
+    /**
+     * Get DeviceStateObject, keyed by device code, waiting for it to leave the pending state.
+     * 
+     * <p>
+     * If the state is pending, the call blocks until the state is updated through this instance or the timeout
+     * passes, and then reads the state again. The call does not wait if the maximum number of waiting readers has
+     * been reached.
+     * </p>
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @param timeout maximum time to wait in milliseconds
+     * @return DeviceStateObject keyed with device code. Null if not located.
+     * @throws IOException if something went wrong with storage.
+     * @throws ParseException if DeviceCodeObject was not parsed successfully.
+     */
+    @Nullable
+    public DeviceStateObject awaitDeviceState(@Nonnull final String deviceCode, @NonNegative final long timeout)
+            throws IOException, ParseException {
+        if (timeout <= 0 || stateWaiterCount.incrementAndGet() > maxStateWaiters) {
+            if (timeout > 0) {
+                stateWaiterCount.decrementAndGet();
+                log.debug("Maximum number of state waiters reached, not waiting for device code {}", deviceCode);
+            }
+            return getDeviceState(deviceCode);
+        }
+        // Registered before the read, so an update between the read and the wait is not missed
+        final StateChange change =
+                stateChanges.compute(deviceCode, (k, v) -> (v == null ? new StateChange() : v).register());
+        try {
+            final DeviceStateObject state = getDeviceState(deviceCode);
+            if (state == null || state.getState() != DeviceStateObject.State.PENDING) {
+                return state;
+            }
+            if (!change.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                log.debug("No state change for device code {} in {} ms", deviceCode, timeout);
+                return state;
+            }
+            return getDeviceState(deviceCode);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return getDeviceState(deviceCode);
+        } finally {
+            stateChanges.computeIfPresent(deviceCode, (k, v) -> v == change && v.deregister() ? null : v);
+            stateWaiterCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake up the readers waiting for a state change of the device code.
+     * 
+     * @param deviceCode device code
+     */
+    private void signalStateChange(@Nonnull final String deviceCode) {
+        final StateChange change = stateChanges.remove(deviceCode);
+        if (change != null) {
+            change.latch.countDown();
         }
-        throw new IOException("Storage record could not be parsed as a JSONObject");
     }
 
     /**
@@ -196,11 +749,199 @@ public class DeviceCodesCache extends AbstractIdentifiableInitializableComponent
      * @throws IOException if something went wrong with storage.
      * @throws ParseException if DeviceCodeObject was not parsed successfully.
      */
-    public synchronized boolean updateDeviceState(@Nonnull String deviceCode,
-            @Nonnull DeviceStateObject deviceStateObject, long expiration) throws IOException, ParseException {
-        String deviceStateKey = adjustKey(deviceCode);
-        return storage.update(CONTEXT_STATE, deviceStateKey, deviceStateObject.toJSONObject().toJSONString(),
-                System.currentTimeMillis() + expiration);
+    public boolean updateDeviceState(@Nonnull String deviceCode, @Nonnull DeviceStateObject deviceStateObject,
+            long expiration) throws IOException, ParseException {
+        final long start = System.nanoTime();
+        final Lock lock = getLock(deviceCode);
+        lock.lock();
+        try {
+            final boolean updated = store.transitionState(deviceCode, deviceStateObject,
+                    System.currentTimeMillis() + expiration);
+            if (nearCache != null) {
+                nearCache.invalidate(deviceCode);
+            }
+            if (updated) {
+                if (deviceStateObject.getState() != DeviceStateObject.State.PENDING) {
+                    releaseOutstanding(deviceCode);
+                }
+                signalStateChange(deviceCode);
+            }
+            return updated;
+        } finally {
+            lock.unlock();
+            observe(DeviceCodesCacheObserver.Operation.UPDATE_STATE, start);
+        }
+    }
+
+    /**
+     * Get DeviceStateObject, keyed by device code, and delete it if the user has made a decision.
+     * 
+     * <p>
+     * A pending state is returned as is. An approved or denied state is consumed conditionally on the version read,
+     * so across all nodes sharing the store exactly one caller receives it, and the others get null as for an expired
+     * device code. This makes the access token of an approved state retrievable only once.
+     * </p>
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @return DeviceStateObject keyed with device code. Null if not located or already consumed.
+     * @throws IOException if something went wrong with storage.
+     * @throws ParseException if DeviceCodeObject was not parsed successfully.
+     */
+    @Nullable
+    public DeviceStateObject consumeDeviceState(@Nonnull final String deviceCode)
+            throws IOException, ParseException {
+        final long start = System.nanoTime();
+        final Lock lock = getLock(deviceCode);
+        lock.lock();
+        try {
+            final VersionedDeviceState read = store.getByDeviceCode(deviceCode, 0);
+            if (read == null) {
+                return null;
+            }
+            final DeviceStateObject state = read.getState();
+            if (state.getState() == DeviceStateObject.State.PENDING) {
+                return state;
+            }
+            return deleteWithVersion(deviceCode, read.getVersion()) ? state : null;
+        } finally {
+            lock.unlock();
+            observe(DeviceCodesCacheObserver.Operation.DELETE_STATE, start);
+        }
+    }
+
+    /**
+     * Delete DeviceStateObject keyed by device code, if it still has the given version.
+     * 
+     * <p>
+     * This is the conditional delete of {@link #consumeDeviceState(String)} for callers already holding the state
+     * and its version, for instance from {@link #getDeviceStateIfChanged(String, long)}.
+     * </p>
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @param version version of the state known to the caller
+     * @return true if the state was deleted by this call, false if it did not exist or had another version
+     * @throws IOException if something went wrong with storage.
+     */
+    public boolean deleteDeviceState(@Nonnull final String deviceCode, @Positive final long version)
+            throws IOException {
+        final long start = System.nanoTime();
+        final Lock lock = getLock(deviceCode);
+        lock.lock();
+        try {
+            return deleteWithVersion(deviceCode, version);
+        } finally {
+            lock.unlock();
+            observe(DeviceCodesCacheObserver.Operation.DELETE_STATE, start);
+        }
+    }
+
+    /**
+     * Delete DeviceStateObject keyed by device code, if it still has the given version. The caller holds the lock of
+     * the device code.
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @param version version of the state known to the caller
+     * @return true if the state was deleted by this call, false if it did not exist or had another version
+     * @throws IOException if something went wrong with storage.
+     */
+    private boolean deleteWithVersion(@Nonnull final String deviceCode, final long version) throws IOException {
+        try {
+            if (!store.consume(deviceCode, version)) {
+                return false;
+            }
+        } finally {
+            if (nearCache != null) {
+                nearCache.invalidate(deviceCode);
+            }
+        }
+        releaseOutstanding(deviceCode);
+        log.debug("Device state of device code {} deleted", deviceCode);
+        return true;
+    }
+
+    /**
+     * Delete DeviceCodeObject keyed with user code, so that the user code cannot be used again.
+     * 
+     * @param userCode key to DeviceCodeObject
+     * @return true if the record was deleted, false if it did not exist
+     * @throws IOException if something went wrong with storage.
+     */
+    public boolean deleteDeviceCode(@Nonnull final String userCode) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return store.deleteUserCode(userCode);
+        } finally {
+            observe(DeviceCodesCacheObserver.Operation.DELETE_DEVICE_CODE, start);
+        }
+    }
+
+    /**
+     * Delete DeviceStateObject keyed by device code, and the DeviceCodeObject of its user code if not deleted already.
+     * 
+     * <p>
+     * Readers waiting for a state change of the device code are woken and find it expired. States stored after the
+     * user's decision no longer refer to the user code, which is deleted at that point.
+     * </p>
+     * 
+     * @param deviceCode key to DeviceStateObject
+     * @return true if the device state existed and was deleted
+     * @throws IOException if something went wrong with storage.
+     */
+    public boolean deleteByDeviceCode(@Nonnull final String deviceCode) throws IOException {
+        final long start = System.nanoTime();
+        final Lock lock = getLock(deviceCode);
+        lock.lock();
+        try {
+            final boolean deleted;
+            try {
+                deleted = store.expire(deviceCode);
+            } finally {
+                if (nearCache != null) {
+                    nearCache.invalidate(deviceCode);
+                }
+            }
+            if (!deleted) {
+                return false;
+            }
+            releaseOutstanding(deviceCode);
+            signalStateChange(deviceCode);
+            log.debug("Deleted device state of device code {}", deviceCode);
+            return true;
+        } finally {
+            lock.unlock();
+            observe(DeviceCodesCacheObserver.Operation.DELETE_DEVICE_CODE, start);
+        }
+    }
+
+    /** Notification of a state change shared by the readers waiting for the same device code. */
+    private static final class StateChange {
+
+        /** Latch released on the state change. */
+        @Nonnull
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        /** Number of registered readers, only accessed while computing the map entry. */
+        private int waiters;
+
+        /**
+         * Register a reader.
+         * 
+         * @return this notification
+         */
+        @Nonnull
+        private StateChange register() {
+            waiters++;
+            return this;
+        }
+
+        /**
+         * Deregister a reader.
+         * 
+         * @return true if no readers remain
+         */
+        private boolean deregister() {
+            return --waiters == 0;
+        }
     }
 
 }
\ No newline at end of file
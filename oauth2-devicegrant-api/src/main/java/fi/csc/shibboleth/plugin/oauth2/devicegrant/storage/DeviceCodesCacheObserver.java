@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Observer of the operations of a {@link DeviceCodesCache}, for instance to record their latency. The observer is
+ * called on the thread making the operation once it has completed, successfully or not, so implementations must be
+ * thread-safe and fast.
+ */
+public interface DeviceCodesCacheObserver {
+
+    /** Operations of the cache. */
+    enum Operation {
+        /** Store of a new device code and its initial state. */
+        STORE,
+        /** Read of a device code by user code. */
+        READ_DEVICE_CODE,
+        /** Read of a device state, including reads answered by the near cache. */
+        READ_STATE,
+        /** Update of a device state. */
+        UPDATE_STATE,
+        /** Consumption or deletion of a device state. */
+        DELETE_STATE,
+        /** Deletion of a user code, or of both records of a device code. */
+        DELETE_DEVICE_CODE
+    }
+
+    /**
+     * Called when an operation has completed.
+     * 
+     * @param operation the operation
+     * @param durationNanos duration of the operation in nanoseconds
+     */
+    void operationCompleted(@Nonnull Operation operation, long durationNanos);
+
+}
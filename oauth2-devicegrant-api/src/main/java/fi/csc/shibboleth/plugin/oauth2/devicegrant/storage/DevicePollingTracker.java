@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Tracks the token polls of devices to enforce the polling interval as described in RFC 8628 section 3.5.
+ *
+ * <p>
+ * A poll arriving before the interval has passed since the previous poll of the same device code is rejected, and the
+ * interval of the device code is raised by {@link #getSlowDownIncrement()} for all subsequent polls. The poll times are
+ * kept in memory of this node only. Device codes that have not been polled for {@link #getIdleLifetime()} are
+ * forgotten.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class DevicePollingTracker extends AbstractIdentifiableInitializableComponent {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(DevicePollingTracker.class);
+
+    /** Polls of device codes keyed by device code. */
+    @Nonnull
+    private final ConcurrentMap<String, Poll> polls;
+
+    /** Time of the next purge of idle device codes, in milliseconds. */
+    @Nonnull
+    private final AtomicLong nextPurge;
+
+    /** Amount the interval is raised by on each too early poll. */
+    @Nonnull
+    private Duration slowDownIncrement;
+
+    /** Amount a poll may arrive early without being rejected. */
+    @Nonnull
+    private Duration tolerance;
+
+    /** Time after which a device code that has not been polled is forgotten. */
+    @Nonnull
+    private Duration idleLifetime;
+
+    /**
+     * Constructor.
+     */
+    public DevicePollingTracker() {
+        polls = new ConcurrentHashMap<>();
+        nextPurge = new AtomicLong();
+        slowDownIncrement = Duration.ofSeconds(5);
+        tolerance = Duration.ofMillis(500);
+        idleLifetime = Duration.ofMinutes(10);
+    }
+
+    /**
+     * Get the amount the interval is raised by on each too early poll.
+     *
+     * @return amount the interval is raised by
+     */
+    @Nonnull
+    public Duration getSlowDownIncrement() {
+        return slowDownIncrement;
+    }
+
+    /**
+     * Set the amount the interval is raised by on each too early poll.
+     *
+     * <p>
+     * Defaults to 5 seconds, as mandated by RFC 8628.
+     * </p>
+     *
+     * @param increment amount the interval is raised by
+     */
+    public void setSlowDownIncrement(@Nonnull final Duration increment) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(increment != null && !increment.isNegative(), "Slow down increment cannot be negative");
+        slowDownIncrement = increment;
+    }
+
+    /**
+     * Get the amount a poll may arrive early without being rejected.
+     *
+     * @return amount a poll may arrive early
+     */
+    @Nonnull
+    public Duration getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Set the amount a poll may arrive early without being rejected, to accommodate network latency jitter.
+     *
+     * <p>
+     * Defaults to 500 milliseconds.
+     * </p>
+     *
+     * @param value amount a poll may arrive early
+     */
+    public void setTolerance(@Nonnull final Duration value) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(value != null && !value.isNegative(), "Tolerance cannot be negative");
+        tolerance = value;
+    }
+
+    /**
+     * Get the time after which a device code that has not been polled is forgotten.
+     *
+     * @return time after which an idle device code is forgotten
+     */
+    @Nonnull
+    public Duration getIdleLifetime() {
+        return idleLifetime;
+    }
+
+    /**
+     * Set the time after which a device code that has not been polled is forgotten.
+     *
+     * <p>
+     * Defaults to 10 minutes, the default device code lifetime.
+     * </p>
+     *
+     * @param lifetime time after which an idle device code is forgotten
+     */
+    public void setIdleLifetime(@Positive @Nonnull final Duration lifetime) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(lifetime != null && !lifetime.isZero() && !lifetime.isNegative(),
+                "Idle lifetime must be greater than 0");
+        idleLifetime = lifetime;
+    }
+
+    /**
+     * Record a poll of the device code.
+     *
+     * @param deviceCode device code being polled
+     * @param interval polling interval given to the device, in milliseconds
+     * @return 0 if the poll is accepted, otherwise the raised polling interval in milliseconds
+     */
+    @NonNegative
+    public long poll(@Nonnull final String deviceCode, @Positive final long interval) {
+        final long now = System.currentTimeMillis();
+        purgeIdle(now);
+        final long[] result = new long[1];
+        polls.compute(deviceCode, (k, poll) -> {
+            if (poll == null) {
+                return new Poll(now, interval);
+            }
+            if (now - poll.lastPoll < poll.interval - tolerance.toMillis()) {
+                poll.interval += slowDownIncrement.toMillis();
+                result[0] = poll.interval;
+            }
+            poll.lastPoll = now;
+            return poll;
+        });
+        if (result[0] > 0) {
+            log.debug("Device code {} polled too early, interval raised to {} ms", deviceCode, result[0]);
+        }
+        return result[0];
+    }
+
+    /**
+     * Forget the polls of the device code.
+     *
+     * @param deviceCode device code
+     */
+    public void remove(@Nonnull final String deviceCode) {
+        polls.remove(deviceCode);
+    }
+
+    /**
+     * Remove the device codes that have been idle longer than the idle lifetime, at most once per idle lifetime.
+     *
+     * @param now current time in milliseconds
+     */
+    private void purgeIdle(final long now) {
+        final long next = nextPurge.get();
+        if (now < next || !nextPurge.compareAndSet(next, now + idleLifetime.toMillis())) {
+            return;
+        }
+        final long oldest = now - idleLifetime.toMillis();
+        polls.values().removeIf(poll -> poll.lastPoll < oldest);
+    }
+
+    /** Polls of a single device code, only updated while computing the map entry. */
+    private static final class Poll {
+
+        /** Time of the last poll in milliseconds, also read by the purge. */
+        private volatile long lastPoll;
+
+        /** Current polling interval in milliseconds. */
+        private long interval;
+
+        /**
+         * Constructor.
+         *
+         * @param time time of the first poll
+         * @param pollingInterval initial polling interval
+         */
+        private Poll(final long time, final long pollingInterval) {
+            lastPoll = time;
+            interval = pollingInterval;
+        }
+    }
+
+}
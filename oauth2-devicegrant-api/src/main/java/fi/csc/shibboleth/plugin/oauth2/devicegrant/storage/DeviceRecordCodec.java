@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+
+/**
+ * Codec turning {@link DeviceCodeObject}s and {@link DeviceStateObject}s to storage record values and back.
+ */
+@ThreadSafe
+public interface DeviceRecordCodec {
+
+    /**
+     * Encode device code object to a storage record value.
+     *
+     * @param deviceCodeObject object to encode
+     * @return storage record value
+     */
+    @Nonnull
+    @NotEmpty
+    String encode(@Nonnull DeviceCodeObject deviceCodeObject);
+
+    /**
+     * Encode device state object to a storage record value.
+     *
+     * @param deviceStateObject object to encode
+     * @return storage record value
+     */
+    @Nonnull
+    @NotEmpty
+    String encode(@Nonnull DeviceStateObject deviceStateObject);
+
+    /**
+     * Decode device code object from a storage record value.
+     *
+     * @param value storage record value
+     * @return decoded device code object
+     * @throws IOException if the value could not be decoded
+     */
+    @Nonnull
+    DeviceCodeObject decodeDeviceCode(@Nonnull String value) throws IOException;
+
+    /**
+     * Decode device state object from a storage record value.
+     *
+     * @param value storage record value
+     * @return decoded device state object
+     * @throws IOException if the value could not be decoded
+     */
+    @Nonnull
+    DeviceStateObject decodeDeviceState(@Nonnull String value) throws IOException;
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Deletes expired device code records from the storage service in batches, without waiting for the storage service's
+ * own cleanup.
+ *
+ * <p>
+ * The {@link StorageService} interface cannot list the records of a context, so the records to delete are tracked in
+ * an in-memory index ordered by expiration, fed by the {@link DeviceCodesCache} this sweeper is set to. A node
+ * therefore sweeps the records written through it. A record is forgotten when it is deleted through the cache, and
+ * tracked with its new expiration when it is updated. Before an expired record is deleted it is read, so a record
+ * whose expiration has been extended by another node is left in place and tracked again.
+ * </p>
+ *
+ * <p>
+ * The sweep runs every {@link #getCleanupInterval()} on a timer, or when {@link #sweep()} is called. A zero interval
+ * disables both the timer and the tracking.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class DeviceRecordExpirySweeper extends AbstractIdentifiableInitializableComponent {
+
+    /** Default maximum number of records handled per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(DeviceRecordExpirySweeper.class);
+
+    /** Storage service the records are in, null if sharded. */
+    @Nullable
+    private StorageService storage;
+
+    /** Shards of the storage service the records are in, null if not sharded. */
+    @Nullable
+    private StorageServiceShards shards;
+
+    /** Interval of the sweeps, zero to disable. */
+    @Nonnull
+    private Duration cleanupInterval;
+
+    /** Timer running the sweeps, null to create one. */
+    @Nullable
+    private Timer cleanupTaskTimer;
+
+    /** Timer created by this instance, cancelled on destroy. */
+    @Nullable
+    private Timer ownTimer;
+
+    /** The scheduled sweep task. */
+    @Nullable
+    private TimerTask cleanupTask;
+
+    /** Maximum number of records handled per batch. */
+    @Positive
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Tracked records in expiration order, possibly including outdated entries. */
+    @Nonnull
+    private final DelayQueue<TrackedRecord> expirations;
+
+    /** Current expiration of the tracked records, keyed by context and key. */
+    @Nonnull
+    private final ConcurrentMap<Pair<String, String>, Long> tracked;
+
+    /** Number of records deleted by the sweeps. */
+    @Nonnull
+    private final AtomicLong removedRecords;
+
+    /**
+     * Constructor.
+     */
+    public DeviceRecordExpirySweeper() {
+        cleanupInterval = Duration.ZERO;
+        expirations = new DelayQueue<>();
+        tracked = new ConcurrentHashMap<>();
+        removedRecords = new AtomicLong();
+    }
+
+    /**
+     * Set the storage service the records are in.
+     *
+     * @param storageService storage service the records are in
+     */
+    public void setStorage(@Nonnull final StorageService storageService) {
+        checkSetterPreconditions();
+
+        storage = Constraint.isNotNull(storageService, "StorageService cannot be null");
+    }
+
+    /**
+     * Set the shards of the storage service the records are in, instead of a single storage service.
+     *
+     * @param storageShards shards of the storage service the records are in
+     */
+    public void setShards(@Nonnull final StorageServiceShards storageShards) {
+        checkSetterPreconditions();
+
+        shards = Constraint.isNotNull(storageShards, "StorageServiceShards cannot be null");
+    }
+
+    /**
+     * Get the interval of the sweeps.
+     *
+     * @return interval of the sweeps, zero if disabled
+     */
+    @Nonnull
+    public Duration getCleanupInterval() {
+        return cleanupInterval;
+    }
+
+    /**
+     * Set the interval of the sweeps.
+     *
+     * <p>
+     * Defaults to zero, the sweeper is disabled. Worth enabling only if the storage service's own cleanup leaves
+     * expired records in place for long, since every record written is then also tracked in memory and read once
+     * more before it is deleted.
+     * </p>
+     *
+     * @param interval interval of the sweeps
+     */
+    public void setCleanupInterval(@Nonnull final Duration interval) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(interval != null && !interval.isNegative(), "Cleanup interval cannot be negative");
+        cleanupInterval = interval;
+    }
+
+    /**
+     * Set the timer running the sweeps.
+     *
+     * @param timer timer running the sweeps, null to create a daemon timer of this instance
+     */
+    public void setCleanupTaskTimer(@Nullable final Timer timer) {
+        checkSetterPreconditions();
+
+        cleanupTaskTimer = timer;
+    }
+
+    /**
+     * Set the maximum number of records handled per batch.
+     *
+     * @param size maximum number of records handled per batch
+     */
+    public void setBatchSize(@Positive final int size) {
+        checkSetterPreconditions();
+
+        batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+    }
+
+    /**
+     * Get the number of records deleted by the sweeps.
+     *
+     * @return number of records deleted
+     */
+    @NonNegative
+    public long getRemovedRecords() {
+        return removedRecords.get();
+    }
+
+    /**
+     * Get the number of records currently tracked.
+     *
+     * @return number of records tracked
+     */
+    @NonNegative
+    public int getTrackedRecords() {
+        return tracked.size();
+    }
+
+    /**
+     * Whether the sweeper is enabled.
+     *
+     * @return whether the cleanup interval is positive
+     */
+    public boolean isEnabled() {
+        return !cleanupInterval.isZero();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (storage == null && shards == null) {
+            throw new ComponentInitializationException("StorageService cannot be null");
+        }
+        if (storage != null && shards != null) {
+            throw new ComponentInitializationException("Either StorageService or StorageServiceShards can be set");
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        if (cleanupTaskTimer == null) {
+            ownTimer = new Timer("devicegrant-expiry-sweeper", true);
+        }
+        cleanupTask = new TimerTask() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        };
+        final long interval = cleanupInterval.toMillis();
+        (ownTimer != null ? ownTimer : cleanupTaskTimer).schedule(cleanupTask, interval, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (cleanupTask != null) {
+            cleanupTask.cancel();
+            cleanupTask = null;
+        }
+        if (ownTimer != null) {
+            ownTimer.cancel();
+            ownTimer = null;
+        }
+        expirations.clear();
+        tracked.clear();
+        super.doDestroy();
+    }
+
+    /**
+     * Track a record written to the storage service, replacing an earlier expiration of the same record.
+     *
+     * @param context storage context of the record
+     * @param key storage key of the record
+     * @param expiration expiration of the record, from EPOCH in milliseconds
+     */
+    public void track(@Nonnull final String context, @Nonnull final String key, final long expiration) {
+        if (!isEnabled()) {
+            return;
+        }
+        tracked.put(new Pair<>(context, key), expiration);
+        expirations.add(new TrackedRecord(context, key, expiration));
+    }
+
+    /**
+     * Stop tracking a record deleted from the storage service.
+     *
+     * @param context storage context of the record
+     * @param key storage key of the record
+     */
+    public void forget(@Nonnull final String context, @Nonnull final String key) {
+        tracked.remove(new Pair<>(context, key));
+    }
+
+    /**
+     * Delete the expired tracked records, in batches of at most the batch size.
+     *
+     * @return number of records deleted
+     */
+    @NonNegative
+    public int sweep() {
+        final List<TrackedRecord> batch = new ArrayList<>(batchSize);
+        int removed = 0;
+        while (expirations.drainTo(batch, batchSize) > 0) {
+            for (final TrackedRecord record : batch) {
+                if (tracked.remove(new Pair<>(record.context, record.key), record.expiration)
+                        && deleteIfExpired(record)) {
+                    removed++;
+                }
+            }
+            batch.clear();
+        }
+        if (removed > 0) {
+            removedRecords.addAndGet(removed);
+            log.debug("Deleted {} expired device records, {} records tracked", removed, tracked.size());
+        }
+        return removed;
+    }
+
+    /**
+     * Delete a tracked record unless another writer has extended its expiration.
+     *
+     * @param record the tracked record, no longer tracked
+     * @return whether the record was deleted
+     */
+    private boolean deleteIfExpired(@Nonnull final TrackedRecord record) {
+        final StorageService shard = shards != null ? shards.route(record.context, record.key) : storage;
+        try {
+            final StorageRecord<?> current = shard.read(record.context, record.key);
+            if (current != null) {
+                final Long expiration = current.getExpiration();
+                if (expiration == null) {
+                    return false;
+                }
+                if (expiration > System.currentTimeMillis()) {
+                    track(record.context, record.key, expiration);
+                    return false;
+                }
+            }
+            return shard.delete(record.context, record.key);
+        } catch (final IOException e) {
+            log.warn("Unable to delete expired device record {} in context {}, left to the storage service",
+                    record.key, record.context, e);
+            return false;
+        }
+    }
+
+    /** A record in the expiration order. */
+    private static final class TrackedRecord implements Delayed {
+
+        /** Storage context of the record. */
+        @Nonnull
+        private final String context;
+
+        /** Storage key of the record. */
+        @Nonnull
+        private final String key;
+
+        /** Expiration of the record, from EPOCH in milliseconds. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param ctx storage context of the record
+         * @param recordKey storage key of the record
+         * @param expiresAt expiration of the record, from EPOCH in milliseconds
+         */
+        private TrackedRecord(@Nonnull final String ctx, @Nonnull final String recordKey, final long expiresAt) {
+            context = ctx;
+            key = recordKey;
+            expiration = expiresAt;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public long getDelay(@Nonnull final TimeUnit unit) {
+            return unit.convert(expiration - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int compareTo(@Nonnull final Delayed other) {
+            return Long.compare(expiration, ((TrackedRecord) other).expiration);
+        }
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Token bucket rate limiter of device grant requests, keyed by an arbitrary string such as the client ID or the
+ * source address of the request.
+ *
+ * <p>
+ * A bucket holds up to the limit of tokens and is refilled at the limit per period, so a key may make a burst of the
+ * limit of requests and then one request per period divided by the limit. By default the buckets are kept in memory
+ * of this node, and buckets that have been full for a period are forgotten. If a {@link StorageService} is set, the
+ * buckets are kept in it instead and shared by the nodes using the same storage. A stored bucket is updated with a
+ * versioned update, retried up to {@link #getMaxAttempts()} times, and a request still losing the race is rejected.
+ * If the storage fails, the in-memory bucket of the key is used instead.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class DeviceRequestRateLimiter extends AbstractIdentifiableInitializableComponent {
+
+    /** Storage context of the buckets. */
+    @Nonnull
+    @NotEmpty
+    public static final String CONTEXT = DeviceRequestRateLimiter.class.getName();
+
+    /** Default number of attempts to update a stored bucket. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /** Interval of forgetting the full in-memory buckets, in milliseconds. */
+    private static final long PURGE_INTERVAL = 60000L;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(DeviceRequestRateLimiter.class);
+
+    /** Storage of the buckets shared by the nodes, null to keep the buckets in memory. */
+    @Nullable
+    private StorageService storage;
+
+    /** Number of attempts to update a stored bucket. */
+    @Positive
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** In-memory buckets keyed by key. */
+    @Nonnull
+    private final ConcurrentMap<String, Bucket> buckets;
+
+    /** Time of the next purge of full buckets, in milliseconds. */
+    @Nonnull
+    private final AtomicLong nextPurge;
+
+    /**
+     * Constructor.
+     */
+    public DeviceRequestRateLimiter() {
+        buckets = new ConcurrentHashMap<>();
+        nextPurge = new AtomicLong();
+    }
+
+    /**
+     * Set the storage of the buckets shared by the nodes.
+     *
+     * @param storageService storage of the buckets, null to keep the buckets in memory of this node
+     */
+    public void setStorage(@Nullable final StorageService storageService) {
+        checkSetterPreconditions();
+
+        storage = storageService;
+    }
+
+    /**
+     * Get the number of attempts to update a stored bucket.
+     *
+     * @return number of attempts
+     */
+    @Positive
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the number of attempts to update a stored bucket before rejecting the request.
+     *
+     * <p>
+     * Defaults to 3.
+     * </p>
+     *
+     * @param attempts number of attempts
+     */
+    public void setMaxAttempts(@Positive final int attempts) {
+        checkSetterPreconditions();
+
+        maxAttempts = (int) Constraint.isGreaterThan(0, attempts, "Number of attempts must be greater than 0");
+    }
+
+    /**
+     * Take a token from the bucket of the key.
+     *
+     * @param key key of the bucket
+     * @param limit size of the bucket and number of tokens refilled per period, 0 for no limit
+     * @param period period the limit applies to
+     * @return true if the request is allowed, false if the bucket is empty
+     */
+    public boolean tryAcquire(@Nonnull final String key, @NonNegative final int limit,
+            @Nonnull final Duration period) {
+        checkComponentActive();
+        if (limit <= 0) {
+            return true;
+        }
+        final long periodMillis = Math.max(1, period.toMillis());
+        final long now = System.currentTimeMillis();
+        final boolean allowed;
+        if (storage != null) {
+            allowed = tryAcquireStored(storage, key, limit, periodMillis, now);
+        } else {
+            allowed = tryAcquireLocal(key, limit, periodMillis, now);
+        }
+        if (!allowed) {
+            log.debug("Rate limit of {} requests per {} exceeded for {}", limit, period, key);
+        }
+        return allowed;
+    }
+
+    /**
+     * Take a token from the in-memory bucket of the key.
+     *
+     * @param key key of the bucket
+     * @param limit size of the bucket
+     * @param periodMillis refill period in milliseconds
+     * @param now current time in milliseconds
+     * @return true if a token was taken
+     */
+    private boolean tryAcquireLocal(@Nonnull final String key, final int limit, final long periodMillis,
+            final long now) {
+        purgeFull(now);
+        final boolean[] allowed = new boolean[1];
+        buckets.compute(key, (k, bucket) -> {
+            final Bucket current = bucket != null ? bucket : new Bucket(limit, now, periodMillis);
+            current.tokens = refill(current.tokens, current.updated, limit, periodMillis, now);
+            current.updated = now;
+            current.period = periodMillis;
+            if (current.tokens >= 1) {
+                current.tokens--;
+                allowed[0] = true;
+            }
+            return current;
+        });
+        return allowed[0];
+    }
+
+    /**
+     * Take a token from the stored bucket of the key.
+     *
+     * @param storageService storage of the buckets
+     * @param key key of the bucket
+     * @param limit size of the bucket
+     * @param periodMillis refill period in milliseconds
+     * @param now current time in milliseconds
+     * @return true if a token was taken
+     */
+    private boolean tryAcquireStored(@Nonnull final StorageService storageService, @Nonnull final String key,
+            final int limit, final long periodMillis, final long now) {
+        final String storageKey = key.length() > storageService.getCapabilities().getKeySize()
+                ? DigestUtils.sha1Hex(key) : key;
+        // A bucket is full again once a period has passed since it was last updated
+        final long expiration = now + periodMillis;
+        try {
+            for (int attempt = 0; attempt < maxAttempts; attempt++) {
+                final StorageRecord<?> record = storageService.read(CONTEXT, storageKey);
+                if (record == null) {
+                    if (storageService.create(CONTEXT, storageKey, encode(limit - 1, now), expiration)) {
+                        return true;
+                    }
+                    continue;
+                }
+                final double[] bucket = decode(record.getValue());
+                final double tokens = refill(bucket[0], (long) bucket[1], limit, periodMillis, now);
+                if (tokens < 1) {
+                    return false;
+                }
+                try {
+                    if (storageService.updateWithVersion(record.getVersion(), CONTEXT, storageKey,
+                            encode(tokens - 1, now), expiration) != null) {
+                        return true;
+                    }
+                } catch (final VersionMismatchException e) {
+                    log.trace("Bucket of {} updated concurrently, retrying", key);
+                }
+            }
+            log.debug("Bucket of {} could not be updated in {} attempts", key, maxAttempts);
+            return false;
+        } catch (final IOException e) {
+            log.warn("Unable to use the stored bucket of {}, using the bucket of this node", key, e);
+            return tryAcquireLocal(key, limit, periodMillis, now);
+        }
+    }
+
+    /**
+     * Refill a bucket for the time passed since its last update.
+     *
+     * @param tokens tokens in the bucket at the last update
+     * @param updated time of the last update in milliseconds
+     * @param limit size of the bucket
+     * @param periodMillis refill period in milliseconds
+     * @param now current time in milliseconds
+     * @return tokens in the bucket now
+     */
+    private static double refill(final double tokens, final long updated, final int limit, final long periodMillis,
+            final long now) {
+        final long elapsed = Math.max(0, now - updated);
+        return Math.min(limit, tokens + (double) elapsed * limit / periodMillis);
+    }
+
+    /**
+     * Encode a stored bucket.
+     *
+     * @param tokens tokens in the bucket
+     * @param updated time of the update in milliseconds
+     * @return the storage record value
+     */
+    @Nonnull
+    private static String encode(final double tokens, final long updated) {
+        return tokens + ":" + updated;
+    }
+
+    /**
+     * Decode a stored bucket.
+     *
+     * @param value the storage record value
+     * @return the tokens in the bucket and the time of its update, an empty bucket if the value is not valid
+     */
+    @Nonnull
+    private double[] decode(@Nonnull final String value) {
+        final int separator = value.indexOf(':');
+        try {
+            return new double[] {Double.parseDouble(value.substring(0, separator)),
+                    Long.parseLong(value.substring(separator + 1))};
+        } catch (final RuntimeException e) {
+            log.debug("Invalid stored bucket {}, treating it as empty", value);
+            return new double[] {0, System.currentTimeMillis()};
+        }
+    }
+
+    /**
+     * Forget the in-memory buckets that have refilled completely, at most once per minute.
+     *
+     * @param now current time in milliseconds
+     */
+    private void purgeFull(final long now) {
+        final long next = nextPurge.get();
+        if (now < next || !nextPurge.compareAndSet(next, now + PURGE_INTERVAL)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> now - bucket.updated >= bucket.period);
+    }
+
+    /** In-memory bucket of a key, only updated while computing the map entry. */
+    private static final class Bucket {
+
+        /** Tokens in the bucket at the last update. */
+        private double tokens;
+
+        /** Time of the last update in milliseconds, also read by the purge. */
+        private volatile long updated;
+
+        /** Refill period in milliseconds, also read by the purge. */
+        private volatile long period;
+
+        /**
+         * Constructor.
+         *
+         * @param initialTokens tokens in the new bucket
+         * @param time time of the creation in milliseconds
+         * @param periodMillis refill period in milliseconds
+         */
+        private Bucket(final double initialTokens, final long time, final long periodMillis) {
+            tokens = initialTokens;
+            updated = time;
+            period = periodMillis;
+        }
+    }
+
+}
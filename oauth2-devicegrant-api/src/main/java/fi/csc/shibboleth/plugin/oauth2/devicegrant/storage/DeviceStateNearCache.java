@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
+
+/**
+ * Bounded in-process cache of decoded device states in front of the device code store.
+ *
+ * <p>
+ * An entry answers reads from memory for the time-to-live after it was read from storage. After that it is kept so
+ * that the next read only needs to check whether the storage record version has moved, and is dropped when the storage
+ * record expires or when the cache is full. Entries are keyed by device code.
+ * </p>
+ *
+ * <p>
+ * Invalidation and population race when a reader loads a record while a writer updates it. Each key maps to a
+ * generation counter that the writer increments before removing the entry, and a reader only stores what it loaded if
+ * the generation has not moved since it started reading.
+ * </p>
+ */
+@ThreadSafe
+final class DeviceStateNearCache {
+
+    /** Number of generation counters. */
+    private static final int GENERATIONS = 64;
+
+    /** Cached entries keyed by device code. */
+    @Nonnull
+    private final ConcurrentMap<String, Entry> entries;
+
+    /** Generation counters incremented on invalidation. */
+    @Nonnull
+    private final AtomicLongArray generations;
+
+    /** Whether a thread is currently evicting entries. */
+    @Nonnull
+    private final AtomicBoolean evicting;
+
+    /** Time an entry answers reads without checking storage, in milliseconds. */
+    @Positive
+    private final long timeToLive;
+
+    /** Maximum number of entries. */
+    @Positive
+    private final int maxEntries;
+
+    /** Reads answered from memory. */
+    @Nonnull
+    private final LongAdder hits;
+
+    /** Reads that went to storage. */
+    @Nonnull
+    private final LongAdder misses;
+
+    /** Entries evicted to keep the cache within its size. */
+    @Nonnull
+    private final LongAdder evictions;
+
+    /**
+     * Constructor.
+     *
+     * @param ttl time an entry answers reads without checking storage, in milliseconds
+     * @param maxSize maximum number of entries
+     */
+    DeviceStateNearCache(@Positive final long ttl, @Positive final int maxSize) {
+        entries = new ConcurrentHashMap<>();
+        generations = new AtomicLongArray(GENERATIONS);
+        evicting = new AtomicBoolean();
+        timeToLive = ttl;
+        maxEntries = maxSize;
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+    }
+
+    /**
+     * Get the entry of the key, counting a hit if it is fresh and a miss otherwise.
+     *
+     * <p>
+     * An entry whose storage record has expired is removed and not returned.
+     * </p>
+     *
+     * @param key device code
+     * @param now current time in milliseconds
+     * @return the entry, null if there is none
+     */
+    @Nullable
+    Entry get(@Nonnull final String key, final long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.recordExpiration != null && entry.recordExpiration <= now) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry != null && now - entry.loaded < timeToLive) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Check whether the entry still answers reads without checking storage.
+     *
+     * @param entry entry
+     * @param now current time in milliseconds
+     * @return true if the entry is fresh
+     */
+    boolean isFresh(@Nonnull final Entry entry, final long now) {
+        return now - entry.loaded < timeToLive;
+    }
+
+    /**
+     * Get the current generation of the key, to be passed to {@link #put(String, Entry, long)} after reading storage.
+     *
+     * @param key device code
+     * @return generation of the key
+     */
+    long generation(@Nonnull final String key) {
+        return generations.get(slot(key));
+    }
+
+    /**
+     * Store an entry loaded from storage, unless the key has been invalidated since the read started.
+     *
+     * @param key device code
+     * @param entry entry to store
+     * @param generation generation of the key before the read started
+     */
+    void put(@Nonnull final String key, @Nonnull final Entry entry, final long generation) {
+        final int slot = slot(key);
+        entries.compute(key, (k, current) -> generations.get(slot) == generation ? entry : current);
+        if (entries.size() > maxEntries) {
+            evict(entry.loaded);
+        }
+    }
+
+    /**
+     * Drop the entry of the key, also discarding concurrent reads that started before.
+     *
+     * @param key device code
+     */
+    void invalidate(@Nonnull final String key) {
+        generations.incrementAndGet(slot(key));
+        entries.remove(key);
+    }
+
+    /**
+     * Drop the entry of the key if it is still the given one.
+     *
+     * @param key device code
+     * @param entry entry to drop
+     */
+    void remove(@Nonnull final String key, @Nonnull final Entry entry) {
+        entries.remove(key, entry);
+    }
+
+    /**
+     * Get the number of reads answered from memory.
+     *
+     * @return number of hits
+     */
+    @NonNegative
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of reads that went to storage.
+     *
+     * @return number of misses
+     */
+    @NonNegative
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of entries evicted to keep the cache within its size.
+     *
+     * @return number of evictions
+     */
+    @NonNegative
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return number of entries
+     */
+    @NonNegative
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove entries until the cache is back to nine tenths of its size, expired storage records first. Only one thread
+     * evicts at a time, the others carry on.
+     *
+     * @param now current time in milliseconds
+     */
+    private void evict(final long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final int target = maxEntries - maxEntries / 10 - 1;
+            entries.values().removeIf(e -> e.recordExpiration != null && e.recordExpiration <= now);
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (entries.size() > target && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Get the generation counter slot of the key.
+     *
+     * @param key device code
+     * @return slot index
+     */
+    private static int slot(@Nonnull final String key) {
+        final int hash = key.hashCode();
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % GENERATIONS;
+    }
+
+    /** Decoded device state and the version of the storage record it was decoded from. */
+    static final class Entry {
+
+        /** Decoded device state, shared by all readers and not to be modified. */
+        @Nonnull
+        private final DeviceStateObject state;
+
+        /** Version of the storage record. */
+        private final long version;
+
+        /** Expiration of the storage record in milliseconds, null if it does not expire. */
+        @Nullable
+        private final Long recordExpiration;
+
+        /** Time the entry was loaded or last found unchanged in storage, in milliseconds. */
+        private final long loaded;
+
+        /**
+         * Constructor.
+         *
+         * @param deviceState decoded device state
+         * @param recordVersion version of the storage record
+         * @param expiration expiration of the storage record
+         * @param time time the entry was loaded
+         */
+        Entry(@Nonnull final DeviceStateObject deviceState, final long recordVersion, @Nullable final Long expiration,
+                final long time) {
+            state = deviceState;
+            version = recordVersion;
+            recordExpiration = expiration;
+            loaded = time;
+        }
+
+        /**
+         * Get the decoded device state.
+         *
+         * @return decoded device state
+         */
+        @Nonnull
+        DeviceStateObject getState() {
+            return state;
+        }
+
+        /**
+         * Get the version of the storage record.
+         *
+         * @return version of the storage record
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the same entry, loaded again at the given time.
+         *
+         * @param time time the storage record was found unchanged
+         * @return refreshed entry
+         */
+        @Nonnull
+        Entry refresh(final long time) {
+            return new Entry(state, version, recordExpiration, time);
+        }
+    }
+
+}
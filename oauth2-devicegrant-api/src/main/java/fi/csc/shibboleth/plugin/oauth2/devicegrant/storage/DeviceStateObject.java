@@ -44,6 +44,22 @@ public class DeviceStateObject {
     @Nullable
     private Long expiresAt;
 
+    /** Minimum interval between polls of the device, in milliseconds. */
+    @Nullable
+    private Long pollingInterval;
+
+    /** Client the device code was issued to. */
+    @Nullable
+    private String clientID;
+
+    /** Maximum time a poll waits for the user's decision, in milliseconds. */
+    @Nullable
+    private Long longPollingTimeout;
+
+    /** Storage key of the user code record of the device code. */
+    @Nullable
+    private String userCodeKey;
+
     /**
      * Constructor.
      * 
@@ -111,7 +127,83 @@ public class DeviceStateObject {
     }
 
     /**
-     * Wraps State, Access Token and Expires At to a JSON Object.
+     * Get minimum interval between polls of the device, in milliseconds.
+     * 
+     * @return minimum interval between polls, null if not enforced.
+     */
+    @Nullable
+    public Long getPollingInterval() {
+        return pollingInterval;
+    }
+
+    /**
+     * Set minimum interval between polls of the device, in milliseconds.
+     * 
+     * @param interval minimum interval between polls, null if not enforced.
+     */
+    public void setPollingInterval(@Nullable final Long interval) {
+        pollingInterval = interval;
+    }
+
+    /**
+     * Get client the device code was issued to.
+     * 
+     * @return client the device code was issued to, null if not known.
+     */
+    @Nullable
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * Set client the device code was issued to.
+     * 
+     * @param id client the device code was issued to, null if not known.
+     */
+    public void setClientID(@Nullable final String id) {
+        clientID = id;
+    }
+
+    /**
+     * Get maximum time a poll waits for the user's decision, in milliseconds.
+     * 
+     * @return maximum time a poll waits, null if polls do not wait.
+     */
+    @Nullable
+    public Long getLongPollingTimeout() {
+        return longPollingTimeout;
+    }
+
+    /**
+     * Set maximum time a poll waits for the user's decision, in milliseconds.
+     * 
+     * @param timeout maximum time a poll waits, null if polls do not wait.
+     */
+    public void setLongPollingTimeout(@Nullable final Long timeout) {
+        longPollingTimeout = timeout;
+    }
+
+    /**
+     * Get storage key of the user code record of the device code.
+     * 
+     * @return storage key of the user code record, null if not known.
+     */
+    @Nullable
+    public String getUserCodeKey() {
+        return userCodeKey;
+    }
+
+    /**
+     * Set storage key of the user code record of the device code.
+     * 
+     * @param key storage key of the user code record, null if not known.
+     */
+    public void setUserCodeKey(@Nullable final String key) {
+        userCodeKey = key;
+    }
+
+    /**
+     * Wraps the state information to a JSON Object.
      * 
      * @return JSON Object representing the class information.
      */
@@ -123,6 +215,18 @@ public class DeviceStateObject {
             object.put("expires_in", expiresAt);
 
         }
+        if (pollingInterval != null) {
+            object.put("polling_interval", pollingInterval);
+        }
+        if (clientID != null) {
+            object.put("client_id", clientID);
+        }
+        if (longPollingTimeout != null) {
+            object.put("long_polling_timeout", longPollingTimeout);
+        }
+        if (userCodeKey != null) {
+            object.put("user_code_key", userCodeKey);
+        }
         return object;
     }
 
@@ -136,9 +240,18 @@ public class DeviceStateObject {
         if (deviceStateObject == null) {
             throw new IllegalArgumentException("device state object must not be null");
         }
-        return new DeviceStateObject(State.valueOf(deviceStateObject.getAsString("state")),
+        final DeviceStateObject object = new DeviceStateObject(State.valueOf(deviceStateObject.getAsString("state")),
                 deviceStateObject.getAsString("access_token"), deviceStateObject.getAsNumber("expires_in") == null
                         ? null : deviceStateObject.getAsNumber("expires_in").longValue());
+        if (deviceStateObject.getAsNumber("polling_interval") != null) {
+            object.setPollingInterval(deviceStateObject.getAsNumber("polling_interval").longValue());
+        }
+        object.setClientID(deviceStateObject.getAsString("client_id"));
+        if (deviceStateObject.getAsNumber("long_polling_timeout") != null) {
+            object.setLongPollingTimeout(deviceStateObject.getAsNumber("long_polling_timeout").longValue());
+        }
+        object.setUserCodeKey(deviceStateObject.getAsString("user_code_key"));
+        return object;
     }
 
 }
@@ -0,0 +1,1066 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * {@link DeviceCodeStore} keeping the device codes in the memory of this node.
+ *
+ * <p>
+ * The device code objects and the device states are kept in two open addressing hash tables with linear probing,
+ * keyed by the UTF-8 bytes of the user code and the device code. Each slot holds an immutable entry with a fixed set
+ * of primitive fields, and a write replaces the whole entry. Reads, including the polling of the device states, do
+ * not take locks: they probe the current table and see either the old or the new entry of a slot. Writes are
+ * serialised by a single lock, and a table is rebuilt at twice the size once three quarters of its slots are used.
+ * </p>
+ *
+ * <p>
+ * Expired entries are never returned, and are deleted by an expiry timing wheel instead of scanning the tables. Each
+ * write schedules the entry into the wheel bucket of its expiration, and every {@link #getExpiryTick()} the buckets
+ * of the passed ticks are emptied of their due entries. Entries rescheduled by a later write are only deleted once
+ * their current expiration has passed.
+ * </p>
+ *
+ * <p>
+ * The device codes are lost on restart and are not shared between nodes, so this store is only suitable for a
+ * single node or for nodes sending the polling of a device code to the node that issued it.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class InMemoryDeviceCodeStore extends AbstractIdentifiableInitializableComponent implements DeviceCodeStore {
+
+    /** Default initial number of slots of each table. */
+    public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    /** Default number of buckets of the expiry timing wheel. */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /** Value of an absent optional field of a device state entry. */
+    private static final long NONE = Long.MIN_VALUE;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(InMemoryDeviceCodeStore.class);
+
+    /** Lock serialising the writes to both tables. */
+    @Nonnull
+    private final ReentrantLock writeLock;
+
+    /** Initial number of slots of each table. */
+    @Positive
+    private int initialCapacity;
+
+    /** Number of buckets of the expiry timing wheel. */
+    @Positive
+    private int wheelSize;
+
+    /** Length of a tick of the expiry timing wheel. */
+    @Nonnull
+    private Duration expiryTick;
+
+    /** Timer advancing the expiry timing wheel, null to create one. */
+    @Nullable
+    private Timer expiryTaskTimer;
+
+    /** Timer created by this instance, cancelled on destroy. */
+    @Nullable
+    private Timer ownTimer;
+
+    /** The scheduled task advancing the expiry timing wheel. */
+    @Nullable
+    private TimerTask expiryTask;
+
+    /** Device code objects keyed by user code. */
+    @NonnullAfterInit
+    private CodeTable<UserCodeEntry> userCodes;
+
+    /** Device states keyed by device code. */
+    @NonnullAfterInit
+    private CodeTable<StateEntry> states;
+
+    /** The expiry timing wheel. */
+    @NonnullAfterInit
+    private ExpiryWheel wheel;
+
+    /** Version of the last written device state, guarded by the write lock. */
+    private long lastVersion;
+
+    /**
+     * Constructor.
+     */
+    public InMemoryDeviceCodeStore() {
+        writeLock = new ReentrantLock();
+        initialCapacity = DEFAULT_INITIAL_CAPACITY;
+        wheelSize = DEFAULT_WHEEL_SIZE;
+        expiryTick = Duration.ofSeconds(1);
+    }
+
+    /**
+     * Set the initial number of slots of each table.
+     *
+     * <p>
+     * Defaults to {@value #DEFAULT_INITIAL_CAPACITY}. Rounded up to a power of two. Sizing the tables for the
+     * expected number of outstanding device codes avoids rebuilding them under load.
+     * </p>
+     *
+     * @param capacity initial number of slots
+     */
+    public void setInitialCapacity(@Positive final int capacity) {
+        checkSetterPreconditions();
+
+        initialCapacity = (int) Constraint.isGreaterThan(0, capacity, "Initial capacity must be greater than 0");
+    }
+
+    /**
+     * Set the number of buckets of the expiry timing wheel.
+     *
+     * <p>
+     * Defaults to {@value #DEFAULT_WHEEL_SIZE}. Rounded up to a power of two. Entries expiring more than a full turn
+     * of the wheel ahead stay in their bucket for the following turns.
+     * </p>
+     *
+     * @param size number of buckets
+     */
+    public void setWheelSize(@Positive final int size) {
+        checkSetterPreconditions();
+
+        wheelSize = (int) Constraint.isGreaterThan(0, size, "Wheel size must be greater than 0");
+    }
+
+    /**
+     * Get the length of a tick of the expiry timing wheel.
+     *
+     * @return length of a tick
+     */
+    @Nonnull
+    public Duration getExpiryTick() {
+        return expiryTick;
+    }
+
+    /**
+     * Set the length of a tick of the expiry timing wheel.
+     *
+     * <p>
+     * Defaults to 1 second. Expired entries are never returned, the tick only bounds how long they use memory.
+     * </p>
+     *
+     * @param tick length of a tick
+     */
+    public void setExpiryTick(@Nonnull final Duration tick) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(tick != null && tick.toMillis() > 0, "Expiry tick must be at least 1 millisecond");
+        expiryTick = tick;
+    }
+
+    /**
+     * Set the timer advancing the expiry timing wheel.
+     *
+     * @param timer timer advancing the wheel, null to create a daemon timer of this instance
+     */
+    public void setExpiryTaskTimer(@Nullable final Timer timer) {
+        checkSetterPreconditions();
+
+        expiryTaskTimer = timer;
+    }
+
+    /**
+     * Get the number of device states held, including expired ones not yet deleted.
+     *
+     * @return number of device states
+     */
+    @NonNegative
+    public int getDeviceStateCount() {
+        checkComponentActive();
+        return states.size();
+    }
+
+    /**
+     * Get the number of device code objects held, including expired ones not yet deleted.
+     *
+     * @return number of device code objects
+     */
+    @NonNegative
+    public int getUserCodeCount() {
+        checkComponentActive();
+        return userCodes.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        userCodes = new CodeTable<>(initialCapacity);
+        states = new CodeTable<>(initialCapacity);
+        wheel = new ExpiryWheel(expiryTick.toMillis(), wheelSize, System.currentTimeMillis());
+        if (expiryTaskTimer == null) {
+            ownTimer = new Timer("devicegrant-memory-store-expiry", true);
+        }
+        expiryTask = new TimerTask() {
+            @Override
+            public void run() {
+                expireEntries(System.currentTimeMillis());
+            }
+        };
+        final long tick = expiryTick.toMillis();
+        (ownTimer != null ? ownTimer : expiryTaskTimer).schedule(expiryTask, tick, tick);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (expiryTask != null) {
+            expiryTask.cancel();
+            expiryTask = null;
+        }
+        if (ownTimer != null) {
+            ownTimer.cancel();
+            ownTimer = null;
+        }
+        userCodes = null;
+        states = null;
+        wheel = null;
+        super.doDestroy();
+    }
+
+    /**
+     * Pack a code into the bytes it is keyed by.
+     *
+     * @param code user code or device code
+     * @return the packed code
+     */
+    @Nonnull
+    private static byte[] pack(@Nonnull final String code) {
+        return code.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash packed code bytes, spreading the bits over the whole value.
+     *
+     * @param key packed code
+     * @return the hash
+     */
+    private static int hash(@Nonnull final byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean issue(@Nonnull final DeviceCodeObject deviceCodeObject, @Nonnull final String userCode,
+            @Nonnull final DeviceStateObject initialState, final long expiresAt) {
+        checkComponentActive();
+        final byte[] userCodeKey = pack(userCode);
+        final byte[] deviceCodeKey = pack(deviceCodeObject.getDeviceCode());
+        final long now = System.currentTimeMillis();
+        writeLock.lock();
+        try {
+            final UserCodeEntry existingUserCode = userCodes.get(userCodeKey, hash(userCodeKey));
+            if (existingUserCode != null && !existingUserCode.isExpired(now)) {
+                log.debug("User code collision for code {}", userCode);
+                return false;
+            }
+            final StateEntry existingState = states.get(deviceCodeKey, hash(deviceCodeKey));
+            if (existingState != null && !existingState.isExpired(now)) {
+                log.debug("Device code collision for code {}", deviceCodeObject.getDeviceCode());
+                return false;
+            }
+            // Expired entries not yet reached by the wheel are replaced in place
+            final UserCodeEntry userCodeEntry = new UserCodeEntry(userCodeKey, deviceCodeObject, expiresAt);
+            if (existingUserCode != null) {
+                userCodes.replace(existingUserCode, userCodeEntry);
+            } else {
+                userCodes.add(userCodeEntry);
+            }
+            final StateEntry stateEntry =
+                    new StateEntry(deviceCodeKey, initialState, ++lastVersion, expiresAt, userCodeKey);
+            if (existingState != null) {
+                states.replace(existingState, stateEntry);
+            } else {
+                states.add(stateEntry);
+            }
+            wheel.schedule(userCodeEntry);
+            wheel.schedule(stateEntry);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public DeviceCodeObject getByUserCode(@Nonnull final String userCode) {
+        checkComponentActive();
+        final byte[] key = pack(userCode);
+        final UserCodeEntry entry = userCodes.get(key, hash(key));
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry.toDeviceCodeObject();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public VersionedDeviceState getByDeviceCode(@Nonnull final String deviceCode, final long knownVersion) {
+        checkComponentActive();
+        final byte[] key = pack(deviceCode);
+        final StateEntry entry = states.get(key, hash(key));
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        if (knownVersion > 0 && entry.version == knownVersion) {
+            log.trace("Device state of device code {} unchanged at version {}", deviceCode, knownVersion);
+            return new VersionedDeviceState(null, entry.version, null);
+        }
+        return new VersionedDeviceState(entry.toDeviceStateObject(), entry.version, entry.expiresAt);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean transitionState(@Nonnull final String deviceCode, @Nonnull final DeviceStateObject state,
+            final long expiresAt) {
+        checkComponentActive();
+        final byte[] key = pack(deviceCode);
+        final int hash = hash(key);
+        writeLock.lock();
+        try {
+            final StateEntry current = states.get(key, hash);
+            if (current == null || current.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+            final StateEntry update = new StateEntry(current.key, state, ++lastVersion, expiresAt, current.userCode);
+            states.replace(current, update);
+            if (update.expiresAt != current.expiresAt) {
+                wheel.schedule(update);
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean consume(@Nonnull final String deviceCode, final long version) {
+        checkComponentActive();
+        final byte[] key = pack(deviceCode);
+        final int hash = hash(key);
+        writeLock.lock();
+        try {
+            final StateEntry current = states.get(key, hash);
+            if (current == null || current.isExpired(System.currentTimeMillis())) {
+                log.debug("Device state of device code {} already deleted", deviceCode);
+                return false;
+            }
+            if (current.version != version) {
+                log.debug("Device state of device code {} changed since version {}", deviceCode, version);
+                return false;
+            }
+            states.remove(current);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean deleteUserCode(@Nonnull final String userCode) {
+        checkComponentActive();
+        final byte[] key = pack(userCode);
+        final int hash = hash(key);
+        writeLock.lock();
+        try {
+            final UserCodeEntry current = userCodes.get(key, hash);
+            if (current == null) {
+                return false;
+            }
+            userCodes.remove(current);
+            return !current.isExpired(System.currentTimeMillis());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean expire(@Nonnull final String deviceCode) {
+        checkComponentActive();
+        final byte[] key = pack(deviceCode);
+        final int hash = hash(key);
+        writeLock.lock();
+        try {
+            final StateEntry current = states.get(key, hash);
+            if (current == null) {
+                return false;
+            }
+            states.remove(current);
+            deleteUserCodeOf(current);
+            return !current.isExpired(System.currentTimeMillis());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete the device code object of the user code of a device state, if it still belongs to the device code.
+     *
+     * <p>
+     * The write lock must be held.
+     * </p>
+     *
+     * @param stateEntry device state entry
+     */
+    private void deleteUserCodeOf(@Nonnull final StateEntry stateEntry) {
+        if (stateEntry.userCode == null) {
+            return;
+        }
+        final UserCodeEntry userCodeEntry = userCodes.get(stateEntry.userCode, hash(stateEntry.userCode));
+        if (userCodeEntry != null && Arrays.equals(userCodeEntry.deviceCode, stateEntry.key)) {
+            userCodes.remove(userCodeEntry);
+            log.debug("Deleted user code of device code {}",
+                    new String(stateEntry.key, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Visit the entries that have not expired, for taking a snapshot of the store.
+     *
+     * <p>
+     * The visit is not atomic: entries written during it may or may not be visited.
+     * </p>
+     *
+     * @param visitor visitor of the entries
+     * @throws IOException if the visitor fails
+     */
+    void visitEntries(@Nonnull final EntryVisitor visitor) throws IOException {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        final AtomicReferenceArray<PackedEntry> userCodeSlots = userCodes.slots;
+        for (int i = 0; i < userCodeSlots.length(); i++) {
+            final PackedEntry entry = userCodeSlots.get(i);
+            if (entry instanceof UserCodeEntry && !entry.isExpired(now)) {
+                visitor.visitDeviceCode(new String(entry.key, StandardCharsets.UTF_8),
+                        ((UserCodeEntry) entry).toDeviceCodeObject(), entry.expiresAt);
+            }
+        }
+        final AtomicReferenceArray<PackedEntry> stateSlots = states.slots;
+        for (int i = 0; i < stateSlots.length(); i++) {
+            final PackedEntry entry = stateSlots.get(i);
+            if (entry instanceof StateEntry && !entry.isExpired(now)) {
+                final StateEntry stateEntry = (StateEntry) entry;
+                visitor.visitDeviceState(new String(entry.key, StandardCharsets.UTF_8),
+                        stateEntry.toDeviceStateObject(), entry.expiresAt,
+                        stateEntry.userCode != null ? new String(stateEntry.userCode, StandardCharsets.UTF_8) : null);
+            }
+        }
+    }
+
+    /**
+     * Put the device code object of a user code, replacing any existing one.
+     *
+     * @param userCode user code
+     * @param deviceCodeObject device code object
+     * @param expiresAt expiration, from EPOCH in milliseconds
+     */
+    void restoreDeviceCode(@Nonnull final String userCode, @Nonnull final DeviceCodeObject deviceCodeObject,
+            final long expiresAt) {
+        checkComponentActive();
+        final UserCodeEntry update = new UserCodeEntry(pack(userCode), deviceCodeObject, expiresAt);
+        writeLock.lock();
+        try {
+            final UserCodeEntry current = userCodes.get(update.key, update.hash);
+            if (current != null) {
+                userCodes.replace(current, update);
+            } else {
+                userCodes.add(update);
+            }
+            wheel.schedule(update);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Put the state of a device code with a new version, replacing any existing one.
+     *
+     * @param deviceCode device code
+     * @param state device state
+     * @param expiresAt expiration, from EPOCH in milliseconds
+     * @param userCode user code the device code was issued with, null if unknown
+     */
+    void restoreDeviceState(@Nonnull final String deviceCode, @Nonnull final DeviceStateObject state,
+            final long expiresAt, @Nullable final String userCode) {
+        checkComponentActive();
+        writeLock.lock();
+        try {
+            final StateEntry update = new StateEntry(pack(deviceCode), state, ++lastVersion, expiresAt,
+                    userCode != null ? pack(userCode) : null);
+            final StateEntry current = states.get(update.key, update.hash);
+            if (current != null) {
+                states.replace(current, update);
+            } else {
+                states.add(update);
+            }
+            wheel.schedule(update);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete the state of a device code regardless of its version.
+     *
+     * @param deviceCode device code
+     * @return true if the state was found and deleted
+     */
+    boolean deleteDeviceState(@Nonnull final String deviceCode) {
+        checkComponentActive();
+        final byte[] key = pack(deviceCode);
+        writeLock.lock();
+        try {
+            final StateEntry current = states.get(key, hash(key));
+            if (current == null) {
+                return false;
+            }
+            states.remove(current);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Advance the expiry timing wheel, deleting the entries expired by the given time.
+     *
+     * @param now current time, from EPOCH in milliseconds
+     * @return number of entries deleted
+     */
+    protected int expireEntries(final long now) {
+        if (!isInitialized() || isDestroyed()) {
+            return 0;
+        }
+        final List<PackedEntry> due = wheel.advance(now);
+        if (due.isEmpty()) {
+            return 0;
+        }
+        int removed = 0;
+        writeLock.lock();
+        try {
+            for (final PackedEntry scheduled : due) {
+                // The slot may hold a later entry of the same code, which is rescheduled by its own write
+                if (scheduled instanceof StateEntry) {
+                    final StateEntry current = states.get(scheduled.key, scheduled.hash);
+                    if (current != null && current.isExpired(now)) {
+                        states.remove(current);
+                        removed++;
+                    }
+                } else {
+                    final UserCodeEntry current = userCodes.get(scheduled.key, scheduled.hash);
+                    if (current != null && current.isExpired(now)) {
+                        userCodes.remove(current);
+                        removed++;
+                    }
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        log.trace("Deleted {} expired entries", removed);
+        return removed;
+    }
+
+    /**
+     * Visitor of the entries of the store.
+     */
+    interface EntryVisitor {
+
+        /**
+         * Visit the device code object of a user code.
+         *
+         * @param userCode user code
+         * @param deviceCodeObject device code object
+         * @param expiresAt expiration, from EPOCH in milliseconds
+         * @throws IOException if the visit fails
+         */
+        void visitDeviceCode(@Nonnull String userCode, @Nonnull DeviceCodeObject deviceCodeObject, long expiresAt)
+                throws IOException;
+
+        /**
+         * Visit the state of a device code.
+         *
+         * @param deviceCode device code
+         * @param state device state
+         * @param expiresAt expiration, from EPOCH in milliseconds
+         * @param userCode user code the device code was issued with, null if unknown
+         * @throws IOException if the visit fails
+         */
+        void visitDeviceState(@Nonnull String deviceCode, @Nonnull DeviceStateObject state, long expiresAt,
+                @Nullable String userCode) throws IOException;
+    }
+
+    /**
+     * An immutable table entry keyed by packed code bytes.
+     */
+    private abstract static class PackedEntry {
+
+        /** Packed code. */
+        @Nonnull
+        final byte[] key;
+
+        /** Hash of the packed code. */
+        final int hash;
+
+        /** Expiration of the entry, from EPOCH in milliseconds. */
+        final long expiresAt;
+
+        /**
+         * Constructor.
+         *
+         * @param packedKey packed code
+         * @param expiration expiration of the entry
+         */
+        PackedEntry(@Nonnull final byte[] packedKey, final long expiration) {
+            key = packedKey;
+            hash = hash(packedKey);
+            expiresAt = expiration;
+        }
+
+        /**
+         * Whether the entry has expired.
+         *
+         * @param now current time, from EPOCH in milliseconds
+         * @return whether the entry has expired
+         */
+        boolean isExpired(final long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    /**
+     * Entry of a device code object, keyed by user code.
+     */
+    private static final class UserCodeEntry extends PackedEntry {
+
+        /** Packed device code. */
+        @Nonnull
+        final byte[] deviceCode;
+
+        /** Client ID. */
+        @Nonnull
+        final String clientID;
+
+        /** Scope, null if none. */
+        @Nullable
+        final String scope;
+
+        /** Time the device code was issued, {@link #NONE} if unknown. */
+        final long issuedAt;
+
+        /**
+         * Constructor.
+         *
+         * @param userCode packed user code
+         * @param object device code object
+         * @param expiration expiration of the entry
+         */
+        UserCodeEntry(@Nonnull final byte[] userCode, @Nonnull final DeviceCodeObject object,
+                final long expiration) {
+            super(userCode, expiration);
+            deviceCode = pack(object.getDeviceCode());
+            clientID = object.getClientID().getValue();
+            scope = object.getScope() != null ? object.getScope().toString() : null;
+            issuedAt = object.getIssuedAt() != null ? object.getIssuedAt() : NONE;
+        }
+
+        /**
+         * Build a new device code object from the entry.
+         *
+         * @return the device code object
+         */
+        @Nonnull
+        DeviceCodeObject toDeviceCodeObject() {
+            final DeviceCodeObject object = new DeviceCodeObject(new String(deviceCode, StandardCharsets.UTF_8),
+                    new ClientID(clientID), scope != null ? Scope.parse(scope) : null);
+            if (issuedAt != NONE) {
+                object.setIssuedAt(issuedAt);
+            }
+            return object;
+        }
+    }
+
+    /**
+     * Entry of a device state, keyed by device code.
+     */
+    private static final class StateEntry extends PackedEntry {
+
+        /** Ordinal of the state. */
+        final byte state;
+
+        /** Version of the state. */
+        final long version;
+
+        /** Expiration of the access token, {@link #NONE} if none. */
+        final long tokenExpiresAt;
+
+        /** Polling interval, {@link #NONE} if none. */
+        final long pollingInterval;
+
+        /** Long polling timeout, {@link #NONE} if none. */
+        final long longPollingTimeout;
+
+        /** Access token, null if none. */
+        @Nullable
+        final String accessToken;
+
+        /** Client ID, null if none. */
+        @Nullable
+        final String clientID;
+
+        /** Packed user code the device code was issued with, null if unknown. */
+        @Nullable
+        final byte[] userCode;
+
+        /**
+         * Constructor.
+         *
+         * @param deviceCode packed device code
+         * @param object device state object
+         * @param stateVersion version of the state
+         * @param expiration expiration of the entry
+         * @param packedUserCode packed user code the device code was issued with
+         */
+        StateEntry(@Nonnull final byte[] deviceCode, @Nonnull final DeviceStateObject object,
+                final long stateVersion, final long expiration, @Nullable final byte[] packedUserCode) {
+            super(deviceCode, expiration);
+            state = (byte) object.getState().ordinal();
+            version = stateVersion;
+            tokenExpiresAt = object.getExpiresAt() != null ? object.getExpiresAt() : NONE;
+            pollingInterval = object.getPollingInterval() != null ? object.getPollingInterval() : NONE;
+            longPollingTimeout = object.getLongPollingTimeout() != null ? object.getLongPollingTimeout() : NONE;
+            accessToken = object.getAccessToken();
+            clientID = object.getClientID();
+            userCode = packedUserCode;
+        }
+
+        /**
+         * Build a new device state object from the entry.
+         *
+         * @return the device state object
+         */
+        @Nonnull
+        DeviceStateObject toDeviceStateObject() {
+            final DeviceStateObject object = new DeviceStateObject(DeviceStateObject.State.values()[state],
+                    accessToken, tokenExpiresAt != NONE ? tokenExpiresAt : null);
+            if (pollingInterval != NONE) {
+                object.setPollingInterval(pollingInterval);
+            }
+            if (longPollingTimeout != NONE) {
+                object.setLongPollingTimeout(longPollingTimeout);
+            }
+            object.setClientID(clientID);
+            return object;
+        }
+    }
+
+    /**
+     * Open addressing hash table with linear probing.
+     *
+     * <p>
+     * Lookups are lock-free. All other methods must be called holding the write lock of the store. Removed entries
+     * leave a tombstone behind so that probing continues past them, and the tombstones are dropped when the table is
+     * rebuilt.
+     * </p>
+     *
+     * @param <E> type of the entries
+     */
+    private static final class CodeTable<E extends PackedEntry> {
+
+        /** Marker of a removed entry. */
+        @Nonnull
+        private static final PackedEntry TOMBSTONE = new PackedEntry(new byte[0], 0) {
+        };
+
+        /** The slots, replaced as a whole when the table is rebuilt. */
+        @Nonnull
+        private volatile AtomicReferenceArray<PackedEntry> slots;
+
+        /** Number of entries. */
+        private volatile int size;
+
+        /** Number of tombstones. */
+        private int tombstones;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity initial number of slots, rounded up to a power of two
+         */
+        CodeTable(final int capacity) {
+            final int length = Integer.highestOneBit(Math.min(Math.max(capacity, 16), 1 << 30) - 1) << 1;
+            slots = new AtomicReferenceArray<>(length);
+        }
+
+        /**
+         * Get the number of entries.
+         *
+         * @return number of entries
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Find the entry of a packed code.
+         *
+         * @param key packed code
+         * @param hash hash of the packed code
+         * @return the entry, null if none
+         */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        E get(@Nonnull final byte[] key, final int hash) {
+            final AtomicReferenceArray<PackedEntry> table = slots;
+            final int mask = table.length() - 1;
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                final PackedEntry entry = table.get(i);
+                if (entry == null) {
+                    return null;
+                }
+                if (entry != TOMBSTONE && entry.hash == hash && Arrays.equals(entry.key, key)) {
+                    return (E) entry;
+                }
+            }
+        }
+
+        /**
+         * Add an entry whose code is not in the table.
+         *
+         * @param entry entry to add
+         */
+        void add(@Nonnull final E entry) {
+            if ((size + tombstones + 1) * 4L > slots.length() * 3L) {
+                rebuild();
+            }
+            final AtomicReferenceArray<PackedEntry> table = slots;
+            final int mask = table.length() - 1;
+            for (int i = entry.hash & mask;; i = (i + 1) & mask) {
+                final PackedEntry current = table.get(i);
+                if (current == null || current == TOMBSTONE) {
+                    if (current == TOMBSTONE) {
+                        tombstones--;
+                    }
+                    table.set(i, entry);
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Replace an entry in the table with another entry of the same code.
+         *
+         * @param current entry in the table
+         * @param update entry replacing it
+         */
+        void replace(@Nonnull final E current, @Nonnull final E update) {
+            final AtomicReferenceArray<PackedEntry> table = slots;
+            table.set(indexOf(table, current), update);
+        }
+
+        /**
+         * Remove an entry from the table.
+         *
+         * @param current entry in the table
+         */
+        void remove(@Nonnull final E current) {
+            final AtomicReferenceArray<PackedEntry> table = slots;
+            table.set(indexOf(table, current), TOMBSTONE);
+            size--;
+            tombstones++;
+        }
+
+        /**
+         * Find the slot of an entry in the table.
+         *
+         * @param table the slots
+         * @param entry entry in the table
+         * @return index of the slot
+         */
+        private static int indexOf(@Nonnull final AtomicReferenceArray<PackedEntry> table,
+                @Nonnull final PackedEntry entry) {
+            final int mask = table.length() - 1;
+            for (int i = entry.hash & mask;; i = (i + 1) & mask) {
+                final PackedEntry current = table.get(i);
+                if (current == entry) {
+                    return i;
+                }
+                if (current == null) {
+                    throw new IllegalStateException("Entry is not in the table");
+                }
+            }
+        }
+
+        /**
+         * Rebuild the table without tombstones, doubling the number of slots if more than half are in use.
+         */
+        private void rebuild() {
+            final AtomicReferenceArray<PackedEntry> table = slots;
+            final int length = (size + 1) * 2L > table.length() ? table.length() << 1 : table.length();
+            final AtomicReferenceArray<PackedEntry> rebuilt = new AtomicReferenceArray<>(length);
+            final int mask = length - 1;
+            for (int j = 0; j < table.length(); j++) {
+                final PackedEntry entry = table.get(j);
+                if (entry != null && entry != TOMBSTONE) {
+                    int i = entry.hash & mask;
+                    while (rebuilt.get(i) != null) {
+                        i = (i + 1) & mask;
+                    }
+                    rebuilt.set(i, entry);
+                }
+            }
+            tombstones = 0;
+            // Readers still probing the old slots find the entries as they were before the rebuild
+            slots = rebuilt;
+        }
+    }
+
+    /**
+     * Hashed timing wheel of the entry expirations.
+     *
+     * <p>
+     * An entry is scheduled into the bucket of the tick its expiration falls in. Advancing the wheel empties the
+     * buckets of the ticks passed since the previous advance of the entries that are due, leaving the entries of
+     * later turns of the wheel in place. The bucket of the current tick may still hold entries coming due later in
+     * the tick, so it is visited again by the next advance.
+     * </p>
+     */
+    private static final class ExpiryWheel {
+
+        /** Length of a tick in milliseconds. */
+        private final long tickMillis;
+
+        /** The buckets, each guarded by itself. */
+        @Nonnull
+        private final List<List<PackedEntry>> buckets;
+
+        /** Mask of the bucket index. */
+        private final int mask;
+
+        /** The last tick fully passed, whose bucket holds no entries due in the current turn. */
+        private long lastTick;
+
+        /**
+         * Constructor.
+         *
+         * @param tick length of a tick in milliseconds
+         * @param size number of buckets, rounded up to a power of two
+         * @param now current time, from EPOCH in milliseconds
+         */
+        ExpiryWheel(final long tick, final int size, final long now) {
+            tickMillis = tick;
+            final int length = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+            buckets = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                buckets.add(new ArrayList<>());
+            }
+            mask = length - 1;
+            lastTick = now / tickMillis - 1;
+        }
+
+        /**
+         * Schedule an entry into the bucket of its expiration.
+         *
+         * @param entry entry to schedule
+         */
+        void schedule(@Nonnull final PackedEntry entry) {
+            final List<PackedEntry> bucket = buckets.get((int) (entry.expiresAt / tickMillis) & mask);
+            synchronized (bucket) {
+                bucket.add(entry);
+            }
+        }
+
+        /**
+         * Advance the wheel to the current time, collecting the due entries of the buckets passed.
+         *
+         * @param now current time, from EPOCH in milliseconds
+         * @return the due entries
+         */
+        @Nonnull
+        synchronized List<PackedEntry> advance(final long now) {
+            final long currentTick = now / tickMillis;
+            if (currentTick <= lastTick) {
+                return List.of();
+            }
+            // Past a full turn every bucket is visited once
+            final long ticks = Math.min(currentTick - lastTick, mask + 1L);
+            final List<PackedEntry> due = new ArrayList<>();
+            for (long tick = currentTick - ticks + 1; tick <= currentTick; tick++) {
+                final List<PackedEntry> bucket = buckets.get((int) tick & mask);
+                synchronized (bucket) {
+                    int kept = 0;
+                    for (int i = 0; i < bucket.size(); i++) {
+                        final PackedEntry entry = bucket.get(i);
+                        if (entry.isExpired(now)) {
+                            due.add(entry);
+                        } else {
+                            bucket.set(kept++, entry);
+                        }
+                    }
+                    bucket.subList(kept, bucket.size()).clear();
+                }
+            }
+            // The current tick has not passed yet, its bucket is scanned again by the next advance
+            lastTick = currentTick - 1;
+            return due;
+        }
+    }
+
+}
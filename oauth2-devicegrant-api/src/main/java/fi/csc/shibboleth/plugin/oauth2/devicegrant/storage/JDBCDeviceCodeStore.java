@@ -0,0 +1,608 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * {@link DeviceCodeStore} keeping the device codes in a dedicated database table through JDBC.
+ *
+ * <p>
+ * Each device code is a single row, keyed by the device code and indexed by a unique user code column, holding both
+ * the device code object and the device state. Each call is a single statement in the database's own transaction: a
+ * device code is issued by one insert, state transitions are conditional updates checking the expiration, a state is
+ * consumed by a conditional delete of the whole row checking the expiration and the version, and the user code is
+ * deleted by clearing its columns. Only an insert colliding with an expired row that has not been deleted yet takes
+ * further statements, to release the codes of that row. A poll is answered by one query, which leaves out the state
+ * if its version is the one the caller knows. The table is created with:
+ * </p>
+ *
+ * <pre>
+ * CREATE TABLE devicegrant_codes (
+ *   device_code VARCHAR(255) NOT NULL,
+ *   user_code VARCHAR(255),
+ *   device_code_object VARCHAR(2048),
+ *   user_code_expires BIGINT NOT NULL,
+ *   state VARCHAR(8000),
+ *   version BIGINT NOT NULL,
+ *   expires BIGINT NOT NULL,
+ *   PRIMARY KEY (device_code),
+ *   CONSTRAINT devicegrant_codes_user_code UNIQUE (user_code));
+ * CREATE INDEX devicegrant_codes_expires ON devicegrant_codes (expires);
+ * </pre>
+ *
+ * <p>
+ * A deleted user code is cleared to NULL, so the unique constraint must allow any number of NULL values. Microsoft
+ * SQL Server allows only one, and there the constraint is replaced by a filtered unique index:
+ * </p>
+ *
+ * <pre>
+ * CREATE UNIQUE INDEX devicegrant_codes_user_code ON devicegrant_codes (user_code) WHERE user_code IS NOT NULL;
+ * </pre>
+ *
+ * <p>
+ * Rows whose device state and user code have both expired are deleted every {@link #getCleanupInterval()} by a
+ * single set-based delete. Expired rows are never returned before that.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class JDBCDeviceCodeStore extends AbstractIdentifiableInitializableComponent implements DeviceCodeStore {
+
+    /** Default name of the table. */
+    @Nonnull
+    public static final String DEFAULT_TABLE_NAME = "devicegrant_codes";
+
+    /** Allowed table names. */
+    @Nonnull
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(JDBCDeviceCodeStore.class);
+
+    /** Source of the database connections. */
+    @NonnullAfterInit
+    private DataSource dataSource;
+
+    /** Name of the table. */
+    @Nonnull
+    private String tableName;
+
+    /** Whether the table is created on initialization if missing. */
+    private boolean createTable;
+
+    /** Codec of the device code objects and device states in the table. */
+    @Nonnull
+    private DeviceRecordCodec recordCodec;
+
+    /** Interval of deleting the expired rows, zero to disable. */
+    @Nonnull
+    private Duration cleanupInterval;
+
+    /** Timer deleting the expired rows, null to create one. */
+    @Nullable
+    private Timer cleanupTaskTimer;
+
+    /** Timer created by this instance, cancelled on destroy. */
+    @Nullable
+    private Timer ownTimer;
+
+    /** The scheduled cleanup task. */
+    @Nullable
+    private TimerTask cleanupTask;
+
+    /** Statement inserting an issued device code. */
+    @NonnullAfterInit
+    private String insertSql;
+
+    /** Statement releasing an expired user code for reuse. */
+    @NonnullAfterInit
+    private String releaseUserCodeSql;
+
+    /** Statement deleting an expired device code for reuse. */
+    @NonnullAfterInit
+    private String releaseDeviceCodeSql;
+
+    /** Query of the device code object of a user code. */
+    @NonnullAfterInit
+    private String selectByUserCodeSql;
+
+    /** Query of the device state of a device code. */
+    @NonnullAfterInit
+    private String selectByDeviceCodeSql;
+
+    /** Statement replacing a device state. */
+    @NonnullAfterInit
+    private String transitionSql;
+
+    /** Statement consuming a device state. */
+    @NonnullAfterInit
+    private String consumeSql;
+
+    /** Statement deleting a user code. */
+    @NonnullAfterInit
+    private String deleteUserCodeSql;
+
+    /** Statement expiring a device code. */
+    @NonnullAfterInit
+    private String expireSql;
+
+    /** Statement deleting the expired rows. */
+    @NonnullAfterInit
+    private String cleanupSql;
+
+    /**
+     * Constructor.
+     */
+    public JDBCDeviceCodeStore() {
+        tableName = DEFAULT_TABLE_NAME;
+        recordCodec = new CompactDeviceRecordCodec();
+        cleanupInterval = Duration.ofMinutes(1);
+    }
+
+    /**
+     * Set the source of the database connections.
+     *
+     * @param source source of the database connections
+     */
+    public void setDataSource(@Nonnull final DataSource source) {
+        checkSetterPreconditions();
+
+        dataSource = Constraint.isNotNull(source, "DataSource cannot be null");
+    }
+
+    /**
+     * Set the name of the table.
+     *
+     * <p>
+     * Defaults to {@value #DEFAULT_TABLE_NAME}. Only letters, digits and underscores are allowed.
+     * </p>
+     *
+     * @param name name of the table
+     */
+    public void setTableName(@Nonnull final String name) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(name != null && TABLE_NAME.matcher(name).matches(), "Invalid table name " + name);
+        tableName = name;
+    }
+
+    /**
+     * Set whether the table is created on initialization if missing.
+     *
+     * <p>
+     * Defaults to false.
+     * </p>
+     *
+     * @param flag whether the table is created
+     */
+    public void setCreateTable(final boolean flag) {
+        checkSetterPreconditions();
+
+        createTable = flag;
+    }
+
+    /**
+     * Set the codec of the device code objects and device states in the table.
+     *
+     * <p>
+     * Defaults to {@link CompactDeviceRecordCodec}. All codecs read values written by any of the bundled codecs.
+     * </p>
+     *
+     * @param codec codec of the values
+     */
+    public void setRecordCodec(@Nonnull final DeviceRecordCodec codec) {
+        checkSetterPreconditions();
+
+        recordCodec = Constraint.isNotNull(codec, "DeviceRecordCodec cannot be null");
+    }
+
+    /**
+     * Get the interval of deleting the expired rows.
+     *
+     * @return interval of the cleanups, zero if disabled
+     */
+    @Nonnull
+    public Duration getCleanupInterval() {
+        return cleanupInterval;
+    }
+
+    /**
+     * Set the interval of deleting the expired rows.
+     *
+     * <p>
+     * Defaults to 1 minute. A zero interval disables the scheduled cleanups.
+     * </p>
+     *
+     * @param interval interval of the cleanups
+     */
+    public void setCleanupInterval(@Nonnull final Duration interval) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(interval != null && !interval.isNegative(), "Cleanup interval cannot be negative");
+        cleanupInterval = interval;
+    }
+
+    /**
+     * Set the timer deleting the expired rows.
+     *
+     * @param timer timer of the cleanups, null to create a daemon timer of this instance
+     */
+    public void setCleanupTaskTimer(@Nullable final Timer timer) {
+        checkSetterPreconditions();
+
+        cleanupTaskTimer = timer;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (dataSource == null) {
+            throw new ComponentInitializationException("DataSource cannot be null");
+        }
+        insertSql = "INSERT INTO " + tableName + " (device_code, user_code, device_code_object, user_code_expires,"
+                + " state, version, expires) VALUES (?, ?, ?, ?, ?, 1, ?)";
+        releaseUserCodeSql = "UPDATE " + tableName + " SET user_code = NULL, device_code_object = NULL"
+                + " WHERE user_code = ? AND user_code_expires <= ?";
+        releaseDeviceCodeSql = "DELETE FROM " + tableName + " WHERE device_code = ? AND expires <= ?";
+        selectByUserCodeSql = "SELECT device_code_object FROM " + tableName
+                + " WHERE user_code = ? AND user_code_expires > ?";
+        selectByDeviceCodeSql = "SELECT version, expires, CASE WHEN version = ? THEN NULL ELSE state END FROM "
+                + tableName + " WHERE device_code = ? AND state IS NOT NULL AND expires > ?";
+        transitionSql = "UPDATE " + tableName + " SET state = ?, version = version + 1, expires = ?"
+                + " WHERE device_code = ? AND state IS NOT NULL AND expires > ?";
+        consumeSql = "DELETE FROM " + tableName
+                + " WHERE device_code = ? AND version = ? AND state IS NOT NULL AND expires > ?";
+        deleteUserCodeSql = "UPDATE " + tableName + " SET user_code = NULL, device_code_object = NULL"
+                + " WHERE user_code = ?";
+        expireSql = "DELETE FROM " + tableName + " WHERE device_code = ? AND state IS NOT NULL AND expires > ?";
+        cleanupSql = "DELETE FROM " + tableName + " WHERE expires <= ? AND user_code_expires <= ?";
+        if (createTable) {
+            try {
+                createTableIfMissing();
+            } catch (final SQLException e) {
+                throw new ComponentInitializationException("Unable to create table " + tableName, e);
+            }
+        }
+        if (cleanupInterval.isZero()) {
+            return;
+        }
+        if (cleanupTaskTimer == null) {
+            ownTimer = new Timer("devicegrant-jdbc-store-cleanup", true);
+        }
+        cleanupTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    removeExpired();
+                } catch (final IOException e) {
+                    log.error("Deleting the expired device codes from {} failed", tableName, e);
+                }
+            }
+        };
+        final long interval = cleanupInterval.toMillis();
+        (ownTimer != null ? ownTimer : cleanupTaskTimer).schedule(cleanupTask, interval, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (cleanupTask != null) {
+            cleanupTask.cancel();
+            cleanupTask = null;
+        }
+        if (ownTimer != null) {
+            ownTimer.cancel();
+            ownTimer = null;
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Create the table and its expiration index, unless the table can already be queried. On Microsoft SQL Server the
+     * user codes are kept unique by a filtered index, as a unique constraint there allows only one NULL value.
+     *
+     * @throws SQLException if the table cannot be created
+     */
+    private void createTableIfMissing() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            try {
+                statement.executeQuery("SELECT device_code FROM " + tableName + " WHERE 1 = 0").close();
+                return;
+            } catch (final SQLException e) {
+                log.info("Creating table {} for device codes", tableName);
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+            }
+            final boolean filteredIndex =
+                    connection.getMetaData().getDatabaseProductName().startsWith("Microsoft SQL Server");
+            statement.executeUpdate("CREATE TABLE " + tableName + " (device_code VARCHAR(255) NOT NULL,"
+                    + " user_code VARCHAR(255), device_code_object VARCHAR(2048), user_code_expires BIGINT NOT NULL,"
+                    + " state VARCHAR(8000), version BIGINT NOT NULL, expires BIGINT NOT NULL,"
+                    + " PRIMARY KEY (device_code)"
+                    + (filteredIndex ? ")" : ", CONSTRAINT " + tableName + "_user_code UNIQUE (user_code))"));
+            if (filteredIndex) {
+                statement.executeUpdate("CREATE UNIQUE INDEX " + tableName + "_user_code ON " + tableName
+                        + " (user_code) WHERE user_code IS NOT NULL");
+            }
+            statement.executeUpdate("CREATE INDEX " + tableName + "_expires ON " + tableName + " (expires)");
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean issue(@Nonnull final DeviceCodeObject deviceCodeObject, @Nonnull final String userCode,
+            @Nonnull final DeviceStateObject initialState, final long expiresAt) throws IOException {
+        checkComponentActive();
+        final String deviceCode = deviceCodeObject.getDeviceCode();
+        final String deviceCodeValue = recordCodec.encode(deviceCodeObject);
+        final String stateValue = recordCodec.encode(initialState);
+        final StatementBinder insert = statement -> {
+            statement.setString(1, deviceCode);
+            statement.setString(2, userCode);
+            statement.setString(3, deviceCodeValue);
+            statement.setLong(4, expiresAt);
+            statement.setString(5, stateValue);
+            statement.setLong(6, expiresAt);
+        };
+        try {
+            if (insert(insert)) {
+                return true;
+            }
+            // Expired rows not yet cleaned up still hold their codes
+            final long now = System.currentTimeMillis();
+            final int released = update(releaseUserCodeSql, statement -> {
+                statement.setString(1, userCode);
+                statement.setLong(2, now);
+            }) + update(releaseDeviceCodeSql, statement -> {
+                statement.setString(1, deviceCode);
+                statement.setLong(2, now);
+            });
+            if (released > 0 && insert(insert)) {
+                return true;
+            }
+            log.debug("User code {} or device code {} already in use", userCode, deviceCode);
+            return false;
+        } catch (final SQLException e) {
+            throw new IOException("Unable to issue device code " + deviceCode, e);
+        }
+    }
+
+    /**
+     * Insert an issued device code.
+     *
+     * @param binder binder of the insert parameters
+     * @return true if inserted, false if the user code or the device code is in use
+     * @throws SQLException if the insert fails for another reason
+     */
+    private boolean insert(@Nonnull final StatementBinder binder) throws SQLException {
+        try {
+            return update(insertSql, binder) == 1;
+        } catch (final SQLException e) {
+            if (e instanceof SQLIntegrityConstraintViolationException
+                    || (e.getSQLState() != null && e.getSQLState().startsWith("23"))) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public DeviceCodeObject getByUserCode(@Nonnull final String userCode) throws IOException {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(selectByUserCodeSql)) {
+            statement.setString(1, userCode);
+            statement.setLong(2, now);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? recordCodec.decodeDeviceCode(result.getString(1)) : null;
+            }
+        } catch (final SQLException e) {
+            throw new IOException("Unable to read user code " + userCode, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public VersionedDeviceState getByDeviceCode(@Nonnull final String deviceCode, final long knownVersion)
+            throws IOException {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(selectByDeviceCodeSql)) {
+            statement.setLong(1, Math.max(knownVersion, 0));
+            statement.setString(2, deviceCode);
+            statement.setLong(3, now);
+            try (ResultSet result = statement.executeQuery()) {
+                if (!result.next()) {
+                    return null;
+                }
+                final long version = result.getLong(1);
+                final long expiration = result.getLong(2);
+                final String value = result.getString(3);
+                if (value == null) {
+                    log.trace("Device state of device code {} unchanged at version {}", deviceCode, knownVersion);
+                    return new VersionedDeviceState(null, version, null);
+                }
+                return new VersionedDeviceState(recordCodec.decodeDeviceState(value), version, expiration);
+            }
+        } catch (final SQLException e) {
+            throw new IOException("Unable to read device state of device code " + deviceCode, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean transitionState(@Nonnull final String deviceCode, @Nonnull final DeviceStateObject state,
+            final long expiresAt) throws IOException {
+        checkComponentActive();
+        final String stateValue = recordCodec.encode(state);
+        final long now = System.currentTimeMillis();
+        try {
+            return update(transitionSql, statement -> {
+                statement.setString(1, stateValue);
+                statement.setLong(2, expiresAt);
+                statement.setString(3, deviceCode);
+                statement.setLong(4, now);
+            }) == 1;
+        } catch (final SQLException e) {
+            throw new IOException("Unable to update device state of device code " + deviceCode, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean consume(@Nonnull final String deviceCode, final long version) throws IOException {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        try {
+            if (update(consumeSql, statement -> {
+                statement.setString(1, deviceCode);
+                statement.setLong(2, version);
+                statement.setLong(3, now);
+            }) == 1) {
+                return true;
+            }
+            log.debug("Device state of device code {} deleted or changed since version {}", deviceCode, version);
+            return false;
+        } catch (final SQLException e) {
+            throw new IOException("Unable to consume device state of device code " + deviceCode, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean deleteUserCode(@Nonnull final String userCode) throws IOException {
+        checkComponentActive();
+        try {
+            return update(deleteUserCodeSql, statement -> statement.setString(1, userCode)) == 1;
+        } catch (final SQLException e) {
+            throw new IOException("Unable to delete user code " + userCode, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean expire(@Nonnull final String deviceCode) throws IOException {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        try {
+            return update(expireSql, statement -> {
+                statement.setString(1, deviceCode);
+                statement.setLong(2, now);
+            }) == 1;
+        } catch (final SQLException e) {
+            throw new IOException("Unable to expire device code " + deviceCode, e);
+        }
+    }
+
+    /**
+     * Delete the rows whose device state and user code have both expired.
+     *
+     * @return number of rows deleted
+     * @throws IOException if the delete fails
+     */
+    public int removeExpired() throws IOException {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        try {
+            final int removed = update(cleanupSql, statement -> {
+                statement.setLong(1, now);
+                statement.setLong(2, now);
+            });
+            log.debug("Deleted {} expired device codes from {}", removed, tableName);
+            return removed;
+        } catch (final SQLException e) {
+            throw new IOException("Unable to delete expired device codes from " + tableName, e);
+        }
+    }
+
+    /**
+     * Execute an update statement, committing it if the connection is not in auto-commit mode.
+     *
+     * @param sql the statement
+     * @param binder binder of the statement parameters
+     * @return number of rows updated
+     * @throws SQLException if the statement fails
+     */
+    private int update(@Nonnull final String sql, @Nonnull final StatementBinder binder) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            binder.bind(statement);
+            try {
+                final int count = statement.executeUpdate();
+                if (!connection.getAutoCommit()) {
+                    connection.commit();
+                }
+                return count;
+            } catch (final SQLException e) {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Binder of the parameters of a statement.
+     */
+    @FunctionalInterface
+    private interface StatementBinder {
+
+        /**
+         * Bind the parameters.
+         *
+         * @param statement the statement
+         * @throws SQLException if binding fails
+         */
+        void bind(@Nonnull PreparedStatement statement) throws SQLException;
+    }
+
+}
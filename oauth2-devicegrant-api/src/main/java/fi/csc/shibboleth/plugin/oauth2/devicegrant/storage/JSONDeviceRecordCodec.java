@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+
+/**
+ * {@link DeviceRecordCodec} encoding records as JSON objects. This is the default format.
+ */
+public class JSONDeviceRecordCodec extends AbstractDeviceRecordCodec {
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String encode(@Nonnull final DeviceCodeObject deviceCodeObject) {
+        return deviceCodeObject.toJSONObject().toJSONString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String encode(@Nonnull final DeviceStateObject deviceStateObject) {
+        return deviceStateObject.toJSONObject().toJSONString();
+    }
+
+}
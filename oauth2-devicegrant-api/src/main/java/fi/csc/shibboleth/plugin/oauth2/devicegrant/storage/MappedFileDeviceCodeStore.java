@@ -0,0 +1,907 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * {@link DeviceCodeStore} keeping the device codes in the memory of this node and journaling every write to
+ * memory-mapped segment files on local disk, so that the device codes survive a restart of the node.
+ *
+ * <p>
+ * All reads are answered by an {@link InMemoryDeviceCodeStore} index. A successful write is appended as a record to
+ * the current segment file before it is applied to the index, and a new segment is started when the current one is
+ * full. On initialization the segments are replayed in order into the index, stopping at the first incomplete or
+ * corrupted record of a segment. Every {@link #getCompactionInterval()} the device codes that have not expired are
+ * written into a new segment and the older segments are deleted, if there is more than one segment.
+ * </p>
+ *
+ * <p>
+ * The records reach the disk when the operating system writes back the mapped pages, which survives a restart of the
+ * process but not of the host. See {@link #setForceWrites(boolean)} for forcing each record to disk. The directory
+ * must not be shared with another instance, and the device codes are not shared with other nodes.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class MappedFileDeviceCodeStore extends AbstractIdentifiableInitializableComponent implements DeviceCodeStore {
+
+    /** Default size of a segment file in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Prefix of the segment file names. */
+    @Nonnull
+    private static final String SEGMENT_PREFIX = "devicecodes-";
+
+    /** Suffix of the segment file names. */
+    @Nonnull
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /** Size of the record header: payload length and checksum. */
+    private static final int HEADER_SIZE = 8;
+
+    /** Record of an issued device code. */
+    private static final byte ISSUE = 1;
+
+    /** Record of a device state transition. */
+    private static final byte TRANSITION = 2;
+
+    /** Record of a consumed device state. */
+    private static final byte CONSUME = 3;
+
+    /** Record of a deleted user code. */
+    private static final byte DELETE_USER_CODE = 4;
+
+    /** Record of an expired device code. */
+    private static final byte EXPIRE = 5;
+
+    /** Snapshot record of a device code object. */
+    private static final byte SNAPSHOT_DEVICE_CODE = 6;
+
+    /** Snapshot record of a device state. */
+    private static final byte SNAPSHOT_DEVICE_STATE = 7;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(MappedFileDeviceCodeStore.class);
+
+    /** Lock serialising the writes, keeping the journal in the order of the index. */
+    @Nonnull
+    private final ReentrantLock journalLock;
+
+    /** Directory of the segment files. */
+    @NonnullAfterInit
+    private Path directory;
+
+    /** Size of a segment file in bytes. */
+    @Positive
+    private int segmentSize;
+
+    /** Whether each record is forced to disk. */
+    private boolean forceWrites;
+
+    /** Interval of the compactions, zero to disable. */
+    @Nonnull
+    private Duration compactionInterval;
+
+    /** Timer running the compactions, null to create one. */
+    @Nullable
+    private Timer compactionTaskTimer;
+
+    /** Timer created by this instance, cancelled on destroy. */
+    @Nullable
+    private Timer ownTimer;
+
+    /** The scheduled compaction task. */
+    @Nullable
+    private TimerTask compactionTask;
+
+    /** Codec of the device code objects and device states in the records. */
+    @Nonnull
+    private DeviceRecordCodec recordCodec;
+
+    /** Index answering the reads. */
+    @Nonnull
+    private final InMemoryDeviceCodeStore index;
+
+    /** Segments in order, the last one being written. */
+    @Nonnull
+    private final List<Segment> segments;
+
+    /**
+     * Constructor.
+     */
+    public MappedFileDeviceCodeStore() {
+        journalLock = new ReentrantLock();
+        segmentSize = DEFAULT_SEGMENT_SIZE;
+        compactionInterval = Duration.ofMinutes(10);
+        recordCodec = new CompactDeviceRecordCodec();
+        index = new InMemoryDeviceCodeStore();
+        segments = new ArrayList<>();
+    }
+
+    /**
+     * Set the directory of the segment files, created if missing.
+     *
+     * @param path directory of the segment files
+     */
+    public void setDirectory(@Nonnull final Path path) {
+        checkSetterPreconditions();
+
+        directory = Constraint.isNotNull(path, "Directory cannot be null");
+    }
+
+    /**
+     * Set the size of a segment file.
+     *
+     * <p>
+     * Defaults to 64 MiB. A record cannot be larger than a segment.
+     * </p>
+     *
+     * @param size size of a segment file in bytes
+     */
+    public void setSegmentSize(@Positive final int size) {
+        checkSetterPreconditions();
+
+        segmentSize = (int) Constraint.isGreaterThanOrEqual(4096, size, "Segment size must be at least 4096 bytes");
+    }
+
+    /**
+     * Set whether each record is forced to disk before the write returns.
+     *
+     * <p>
+     * Defaults to false, leaving the write back of the mapped pages to the operating system.
+     * </p>
+     *
+     * @param flag whether each record is forced to disk
+     */
+    public void setForceWrites(final boolean flag) {
+        checkSetterPreconditions();
+
+        forceWrites = flag;
+    }
+
+    /**
+     * Get the interval of the compactions.
+     *
+     * @return interval of the compactions, zero if disabled
+     */
+    @Nonnull
+    public Duration getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * Set the interval of the compactions.
+     *
+     * <p>
+     * Defaults to 10 minutes. A zero interval disables the scheduled compactions.
+     * </p>
+     *
+     * @param interval interval of the compactions
+     */
+    public void setCompactionInterval(@Nonnull final Duration interval) {
+        checkSetterPreconditions();
+
+        Constraint.isTrue(interval != null && !interval.isNegative(), "Compaction interval cannot be negative");
+        compactionInterval = interval;
+    }
+
+    /**
+     * Set the timer running the compactions.
+     *
+     * @param timer timer running the compactions, null to create a daemon timer of this instance
+     */
+    public void setCompactionTaskTimer(@Nullable final Timer timer) {
+        checkSetterPreconditions();
+
+        compactionTaskTimer = timer;
+    }
+
+    /**
+     * Set the codec of the device code objects and device states in the records.
+     *
+     * <p>
+     * Defaults to {@link CompactDeviceRecordCodec}. All codecs read records written by any of the bundled codecs.
+     * </p>
+     *
+     * @param codec codec of the records
+     */
+    public void setRecordCodec(@Nonnull final DeviceRecordCodec codec) {
+        checkSetterPreconditions();
+
+        recordCodec = Constraint.isNotNull(codec, "DeviceRecordCodec cannot be null");
+    }
+
+    /**
+     * Set the initial number of slots of each table of the index.
+     *
+     * @param capacity initial number of slots
+     */
+    public void setInitialCapacity(@Positive final int capacity) {
+        checkSetterPreconditions();
+
+        index.setInitialCapacity(capacity);
+    }
+
+    /**
+     * Get the number of segment files.
+     *
+     * @return number of segment files
+     */
+    @NonNegative
+    public int getSegmentCount() {
+        journalLock.lock();
+        try {
+            return segments.size();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (directory == null) {
+            throw new ComponentInitializationException("Directory cannot be null");
+        }
+        index.initialize();
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (final IOException e) {
+            closeSegments();
+            index.destroy();
+            throw new ComponentInitializationException("Unable to recover device codes from " + directory, e);
+        }
+        if (compactionInterval.isZero()) {
+            return;
+        }
+        if (compactionTaskTimer == null) {
+            ownTimer = new Timer("devicegrant-mapped-store-compaction", true);
+        }
+        compactionTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (final IOException e) {
+                    log.error("Compaction of the device code segments in {} failed", directory, e);
+                }
+            }
+        };
+        final long interval = compactionInterval.toMillis();
+        (ownTimer != null ? ownTimer : compactionTaskTimer).schedule(compactionTask, interval, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (compactionTask != null) {
+            compactionTask.cancel();
+            compactionTask = null;
+        }
+        if (ownTimer != null) {
+            ownTimer.cancel();
+            ownTimer = null;
+        }
+        journalLock.lock();
+        try {
+            closeSegments();
+        } finally {
+            journalLock.unlock();
+        }
+        index.destroy();
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean issue(@Nonnull final DeviceCodeObject deviceCodeObject, @Nonnull final String userCode,
+            @Nonnull final DeviceStateObject initialState, final long expiresAt) throws IOException {
+        checkComponentActive();
+        journalLock.lock();
+        try {
+            if (index.getByUserCode(userCode) != null
+                    || index.getByDeviceCode(deviceCodeObject.getDeviceCode(), 0) != null) {
+                log.debug("User code {} or device code {} already in use", userCode,
+                        deviceCodeObject.getDeviceCode());
+                return false;
+            }
+            append(new RecordWriter(ISSUE).putString(userCode).putString(recordCodec.encode(deviceCodeObject))
+                    .putString(recordCodec.encode(initialState)).putLong(expiresAt));
+            return index.issue(deviceCodeObject, userCode, initialState, expiresAt);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public DeviceCodeObject getByUserCode(@Nonnull final String userCode) {
+        checkComponentActive();
+        return index.getByUserCode(userCode);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public VersionedDeviceState getByDeviceCode(@Nonnull final String deviceCode, final long knownVersion) {
+        checkComponentActive();
+        return index.getByDeviceCode(deviceCode, knownVersion);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean transitionState(@Nonnull final String deviceCode, @Nonnull final DeviceStateObject state,
+            final long expiresAt) throws IOException {
+        checkComponentActive();
+        journalLock.lock();
+        try {
+            if (index.getByDeviceCode(deviceCode, 0) == null) {
+                return false;
+            }
+            append(new RecordWriter(TRANSITION).putString(deviceCode).putString(recordCodec.encode(state))
+                    .putLong(expiresAt));
+            return index.transitionState(deviceCode, state, expiresAt);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean consume(@Nonnull final String deviceCode, final long version) throws IOException {
+        checkComponentActive();
+        journalLock.lock();
+        try {
+            final VersionedDeviceState current = index.getByDeviceCode(deviceCode, version);
+            if (current == null || current.getVersion() != version) {
+                log.debug("Device state of device code {} deleted or changed since version {}", deviceCode,
+                        version);
+                return false;
+            }
+            append(new RecordWriter(CONSUME).putString(deviceCode));
+            return index.consume(deviceCode, version);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean deleteUserCode(@Nonnull final String userCode) throws IOException {
+        checkComponentActive();
+        journalLock.lock();
+        try {
+            if (index.getByUserCode(userCode) == null) {
+                return false;
+            }
+            append(new RecordWriter(DELETE_USER_CODE).putString(userCode));
+            return index.deleteUserCode(userCode);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean expire(@Nonnull final String deviceCode) throws IOException {
+        checkComponentActive();
+        journalLock.lock();
+        try {
+            if (index.getByDeviceCode(deviceCode, 0) == null) {
+                return false;
+            }
+            append(new RecordWriter(EXPIRE).putString(deviceCode));
+            return index.expire(deviceCode);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Write the device codes that have not expired into a new segment and delete the older segments, if there is
+     * more than one segment.
+     *
+     * @return whether the segments were compacted
+     * @throws IOException if writing the new segment fails, the older segments are kept in that case
+     */
+    public boolean compact() throws IOException {
+        checkComponentActive();
+        journalLock.lock();
+        try {
+            if (segments.size() <= 1) {
+                return false;
+            }
+            final int obsolete = segments.size();
+            startSegment();
+            index.visitEntries(new InMemoryDeviceCodeStore.EntryVisitor() {
+                @Override
+                public void visitDeviceCode(@Nonnull final String userCode,
+                        @Nonnull final DeviceCodeObject deviceCodeObject, final long expiresAt) throws IOException {
+                    append(new RecordWriter(SNAPSHOT_DEVICE_CODE).putString(userCode)
+                            .putString(recordCodec.encode(deviceCodeObject)).putLong(expiresAt));
+                }
+
+                @Override
+                public void visitDeviceState(@Nonnull final String deviceCode,
+                        @Nonnull final DeviceStateObject state, final long expiresAt,
+                        @Nullable final String userCode) throws IOException {
+                    append(new RecordWriter(SNAPSHOT_DEVICE_STATE).putString(deviceCode)
+                            .putString(recordCodec.encode(state)).putLong(expiresAt).putString(userCode));
+                }
+            });
+            for (int i = segments.size() - 1; i >= obsolete; i--) {
+                segments.get(i).buffer.force();
+            }
+            // Oldest first, so that a crash leaves a suffix of the journal followed by the snapshot
+            for (int i = 0; i < obsolete; i++) {
+                final Segment segment = segments.remove(0);
+                segment.close();
+                Files.delete(segment.path);
+            }
+            log.debug("Compacted the device code segments in {} to {} segments", directory, segments.size());
+            return true;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Replay the existing segments into the index and open the segment to write to.
+     *
+     * @throws IOException if the segments cannot be read
+     */
+    private void recover() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+        int records = 0;
+        for (final Path path : paths) {
+            final Segment segment = new Segment(path, sequenceOf(path), (int) Files.size(path));
+            segments.add(segment);
+            records += replay(segment);
+        }
+        if (segments.isEmpty() || segments.get(segments.size() - 1).buffer.remaining() < HEADER_SIZE) {
+            startSegment();
+        }
+        log.info("Recovered {} device code records from {} segments in {}", records, paths.size(), directory);
+    }
+
+    /**
+     * Parse the sequence number of a segment file.
+     *
+     * @param path segment file
+     * @return the sequence number
+     * @throws IOException if the name is not of a segment file
+     */
+    private static long sequenceOf(@Nonnull final Path path) throws IOException {
+        final String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            throw new IOException("Unexpected segment file " + path, e);
+        }
+    }
+
+    /**
+     * Replay the records of a segment into the index, leaving the segment positioned after the last valid record.
+     *
+     * <p>
+     * Only the header after the last valid record is cleared, so that replay keeps stopping there once the records
+     * written after it are partially overwritten. The rest of the segment is left untouched, as every appended record
+     * clears the header following it.
+     * </p>
+     *
+     * @param segment segment to replay
+     * @return number of records replayed
+     * @throws IOException if a record cannot be decoded
+     */
+    private int replay(@Nonnull final Segment segment) throws IOException {
+        final ByteBuffer buffer = segment.buffer;
+        final long now = System.currentTimeMillis();
+        int records = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            final ByteBuffer payload = buffer.slice(buffer.position(), length);
+            final CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Corrupted device code record at {} of {}, ignoring the rest of the segment", start,
+                        segment.path);
+                buffer.position(start);
+                break;
+            }
+            apply(new RecordReader(payload), now);
+            buffer.position(start + HEADER_SIZE + length);
+            records++;
+        }
+        clearHeader(buffer, buffer.position());
+        return records;
+    }
+
+    /**
+     * Clear the part of the record header at the given position that fits in the segment. Bytes that are already
+     * clear are not written, to avoid dirtying the mapped page.
+     *
+     * @param buffer mapped segment
+     * @param position position of the header
+     */
+    private static void clearHeader(@Nonnull final ByteBuffer buffer, final int position) {
+        final int end = Math.min(position + HEADER_SIZE, buffer.limit());
+        for (int i = position; i < end; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Apply a replayed record to the index.
+     *
+     * @param record the record
+     * @param now current time, from EPOCH in milliseconds
+     * @throws IOException if the record cannot be decoded
+     */
+    private void apply(@Nonnull final RecordReader record, final long now) throws IOException {
+        final byte type = record.getType();
+        switch (type) {
+            case ISSUE:
+                final String userCode = record.getString();
+                final DeviceCodeObject deviceCodeObject = recordCodec.decodeDeviceCode(record.getString());
+                final DeviceStateObject initialState = recordCodec.decodeDeviceState(record.getString());
+                final long issueExpiresAt = record.getLong();
+                if (issueExpiresAt > now) {
+                    index.issue(deviceCodeObject, userCode, initialState, issueExpiresAt);
+                }
+                break;
+            case TRANSITION:
+                final String transitionCode = record.getString();
+                final DeviceStateObject state = recordCodec.decodeDeviceState(record.getString());
+                index.transitionState(transitionCode, state, record.getLong());
+                break;
+            case CONSUME:
+                index.deleteDeviceState(record.getString());
+                break;
+            case DELETE_USER_CODE:
+                index.deleteUserCode(record.getString());
+                break;
+            case EXPIRE:
+                index.expire(record.getString());
+                break;
+            case SNAPSHOT_DEVICE_CODE:
+                final String snapshotUserCode = record.getString();
+                final DeviceCodeObject snapshotObject = recordCodec.decodeDeviceCode(record.getString());
+                final long codeExpiresAt = record.getLong();
+                if (codeExpiresAt > now) {
+                    index.restoreDeviceCode(snapshotUserCode, snapshotObject, codeExpiresAt);
+                }
+                break;
+            case SNAPSHOT_DEVICE_STATE:
+                final String snapshotDeviceCode = record.getString();
+                final DeviceStateObject snapshotState = recordCodec.decodeDeviceState(record.getString());
+                final long stateExpiresAt = record.getLong();
+                final String linkedUserCode = record.getString();
+                if (stateExpiresAt > now) {
+                    index.restoreDeviceState(snapshotDeviceCode, snapshotState, stateExpiresAt, linkedUserCode);
+                }
+                break;
+            default:
+                throw new IOException("Unknown device code record type " + type);
+        }
+    }
+
+    /**
+     * Append a record to the current segment, starting a new segment if it does not fit.
+     *
+     * <p>
+     * The journal lock must be held. The header following the record is cleared and the length of the record is
+     * written last, so that a record interrupted by a crash is seen as the end of the segment and a record left from
+     * before a recovery is never reached.
+     * </p>
+     *
+     * @param record the record
+     * @throws IOException if the record is larger than a segment or a new segment cannot be created
+     */
+    private void append(@Nonnull final RecordWriter record) throws IOException {
+        final byte[] payload = record.toByteArray();
+        if (HEADER_SIZE + payload.length > segmentSize) {
+            throw new IOException("Device code record of " + payload.length + " bytes is larger than a segment");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.buffer.remaining() < HEADER_SIZE + payload.length) {
+            segment = startSegment();
+        }
+        final MappedByteBuffer buffer = segment.buffer;
+        final int start = buffer.position();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final int next = start + HEADER_SIZE + payload.length;
+        clearHeader(buffer, next);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.put(start + HEADER_SIZE, payload);
+        buffer.putInt(start, payload.length);
+        buffer.position(next);
+        if (forceWrites) {
+            buffer.force(start, Math.min(next + HEADER_SIZE, buffer.limit()) - start);
+        }
+    }
+
+    /**
+     * Create and map a new segment after the current one.
+     *
+     * <p>
+     * The journal lock must be held.
+     * </p>
+     *
+     * @return the new segment
+     * @throws IOException if the segment cannot be created
+     */
+    @Nonnull
+    private Segment startSegment() throws IOException {
+        final long sequence = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).sequence + 1;
+        final Path path = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        final Segment segment = new Segment(path, sequence, segmentSize);
+        segments.add(segment);
+        log.debug("Started device code segment {}", path);
+        return segment;
+    }
+
+    /**
+     * Close all segments.
+     */
+    private void closeSegments() {
+        for (final Segment segment : segments) {
+            try {
+                segment.close();
+            } catch (final IOException e) {
+                log.warn("Unable to close device code segment {}", segment.path, e);
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static final class Segment {
+
+        /** The segment file. */
+        @Nonnull
+        private final Path path;
+
+        /** Sequence number of the segment. */
+        private final long sequence;
+
+        /** Channel of the segment file. */
+        @Nonnull
+        private final FileChannel channel;
+
+        /** The mapped segment file, positioned at the end of the written records. */
+        @Nonnull
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param file the segment file, created if missing
+         * @param number sequence number of the segment
+         * @param size size to map
+         * @throws IOException if the file cannot be mapped
+         */
+        Segment(@Nonnull final Path file, final long number, final int size) throws IOException {
+            path = file;
+            sequence = number;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (final IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Flush and close the segment.
+         *
+         * @throws IOException if closing the file fails
+         */
+        void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Builder of a record payload.
+     */
+    private static final class RecordWriter {
+
+        /** The payload. */
+        @Nonnull
+        private ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param type type of the record
+         */
+        RecordWriter(final byte type) {
+            buffer = ByteBuffer.allocate(256);
+            buffer.put(type);
+        }
+
+        /**
+         * Append a string, null allowed.
+         *
+         * @param value the string
+         * @return this writer
+         */
+        @Nonnull
+        RecordWriter putString(@Nullable final String value) {
+            if (value == null) {
+                ensure(4).putInt(-1);
+                return this;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        /**
+         * Append a long.
+         *
+         * @param value the long
+         * @return this writer
+         */
+        @Nonnull
+        RecordWriter putLong(final long value) {
+            ensure(8).putLong(value);
+            return this;
+        }
+
+        /**
+         * Get the payload.
+         *
+         * @return the payload bytes
+         */
+        @Nonnull
+        byte[] toByteArray() {
+            final byte[] bytes = new byte[buffer.position()];
+            buffer.get(0, bytes);
+            return bytes;
+        }
+
+        /**
+         * Grow the buffer to fit the given number of bytes.
+         *
+         * @param bytes number of bytes to fit
+         * @return the buffer
+         */
+        @Nonnull
+        private ByteBuffer ensure(final int bytes) {
+            if (buffer.remaining() < bytes) {
+                final ByteBuffer grown =
+                        ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Reader of a record payload.
+     */
+    private static final class RecordReader {
+
+        /** The payload. */
+        @Nonnull
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param payload the payload
+         */
+        RecordReader(@Nonnull final ByteBuffer payload) {
+            buffer = payload;
+        }
+
+        /**
+         * Read the type of the record.
+         *
+         * @return the type
+         */
+        byte getType() {
+            return buffer.get();
+        }
+
+        /**
+         * Read a string.
+         *
+         * @return the string, null if null was written
+         * @throws IOException if the payload is truncated
+         */
+        @Nullable
+        String getString() throws IOException {
+            final int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > buffer.remaining()) {
+                throw new IOException("Truncated device code record");
+            }
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read a long.
+         *
+         * @return the long
+         */
+        long getLong() {
+            return buffer.getLong();
+        }
+    }
+
+}
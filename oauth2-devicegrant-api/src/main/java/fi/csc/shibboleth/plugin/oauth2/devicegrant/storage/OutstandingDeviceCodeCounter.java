@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+
+/**
+ * Counts the pending device codes of each client, to bound the number of device codes a client may hold at once.
+ *
+ * <p>
+ * A device authorization request first reserves a slot with {@link #tryReserve(String, int)}, which fails once the
+ * pending device codes and reservations of the client reach the limit. Storing the device code turns the reservation
+ * into a pending device code with {@link #track(String, String, long)}, and a request failing before that returns the
+ * slot with {@link #cancel(String)}. Device codes stored without a reservation, i.e. of clients without a limit, are
+ * not counted. A device code stops counting when the user approves or denies it, when it is consumed or deleted, see
+ * {@link #release(String)}, or when it expires.
+ * </p>
+ *
+ * <p>
+ * The counts are kept in memory of this node and cover only the device codes issued by it, so the limit applies per
+ * node: in a cluster a client may hold up to the limit times the number of nodes. A device code decided on another
+ * node keeps counting here until it expires. Expired device codes are dropped when the client is counted, and from
+ * all clients at most once per minute.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class OutstandingDeviceCodeCounter extends AbstractIdentifiableInitializableComponent {
+
+    /** Interval of dropping the expired device codes of all clients, in milliseconds. */
+    private static final long PURGE_INTERVAL = 60000L;
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(OutstandingDeviceCodeCounter.class);
+
+    /** Pending device codes keyed by client ID. */
+    @Nonnull
+    private final ConcurrentMap<String, ClientDeviceCodes> clients;
+
+    /** Pending device codes of the clients keyed by device code. */
+    @Nonnull
+    private final ConcurrentMap<String, ClientDeviceCodes> deviceCodes;
+
+    /** Time of the next purge of expired device codes, in milliseconds. */
+    @Nonnull
+    private final AtomicLong nextPurge;
+
+    /**
+     * Constructor.
+     */
+    public OutstandingDeviceCodeCounter() {
+        clients = new ConcurrentHashMap<>();
+        deviceCodes = new ConcurrentHashMap<>();
+        nextPurge = new AtomicLong();
+    }
+
+    /**
+     * Reserve a slot for a new device code of the client.
+     *
+     * @param clientId client ID
+     * @param limit maximum number of pending device codes of the client, 0 for no limit
+     * @return true if the slot was reserved, false if the client has reached the limit
+     */
+    public boolean tryReserve(@Nonnull final String clientId, @NonNegative final int limit) {
+        checkComponentActive();
+        final long now = System.currentTimeMillis();
+        purgeExpired(now);
+        final ClientDeviceCodes codes = clients.computeIfAbsent(clientId, k -> new ClientDeviceCodes());
+        synchronized (codes) {
+            codes.dropExpired(now);
+            if (limit > 0 && codes.expirations.size() + codes.reserved >= limit) {
+                log.debug("Client {} has reached the limit of {} pending device codes", clientId, limit);
+                return false;
+            }
+            codes.reserved++;
+            return true;
+        }
+    }
+
+    /**
+     * Return a slot reserved for a device code that was not stored.
+     *
+     * @param clientId client ID
+     */
+    public void cancel(@Nonnull final String clientId) {
+        final ClientDeviceCodes codes = clients.get(clientId);
+        if (codes != null) {
+            synchronized (codes) {
+                if (codes.reserved > 0) {
+                    codes.reserved--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count a stored device code of the client as pending, using up a slot reserved for it. A device code of a client
+     * without a reserved slot is not counted.
+     *
+     * @param clientId client ID
+     * @param deviceCode device code
+     * @param expiresAt expiration of the device code, from EPOCH in milliseconds
+     */
+    public void track(@Nonnull final String clientId, @Nonnull final String deviceCode, final long expiresAt) {
+        final ClientDeviceCodes codes = clients.get(clientId);
+        if (codes == null) {
+            return;
+        }
+        synchronized (codes) {
+            if (codes.reserved == 0) {
+                return;
+            }
+            codes.reserved--;
+            codes.expirations.put(deviceCode, expiresAt);
+            deviceCodes.put(deviceCode, codes);
+        }
+    }
+
+    /**
+     * Stop counting the device code as pending. Releasing a device code not counted has no effect.
+     *
+     * @param deviceCode device code
+     */
+    public void release(@Nonnull final String deviceCode) {
+        final ClientDeviceCodes codes = deviceCodes.remove(deviceCode);
+        if (codes != null) {
+            synchronized (codes) {
+                codes.expirations.remove(deviceCode);
+            }
+        }
+    }
+
+    /**
+     * Get the number of pending device codes of the client, including the reserved slots.
+     *
+     * @param clientId client ID
+     * @return number of pending device codes
+     */
+    @NonNegative
+    public int getOutstanding(@Nonnull final String clientId) {
+        final ClientDeviceCodes codes = clients.get(clientId);
+        if (codes == null) {
+            return 0;
+        }
+        synchronized (codes) {
+            codes.dropExpired(System.currentTimeMillis());
+            return codes.expirations.size() + codes.reserved;
+        }
+    }
+
+    /**
+     * Get the number of pending device codes of all clients. Device codes that have expired since the last purge may
+     * be included.
+     *
+     * @return number of pending device codes
+     */
+    @NonNegative
+    public int getTrackedDeviceCodes() {
+        return deviceCodes.size();
+    }
+
+    /**
+     * Drop the expired device codes of all clients, at most once per minute.
+     *
+     * @param now current time in milliseconds
+     */
+    private void purgeExpired(final long now) {
+        final long next = nextPurge.get();
+        if (now < next || !nextPurge.compareAndSet(next, now + PURGE_INTERVAL)) {
+            return;
+        }
+        for (final ClientDeviceCodes codes : clients.values()) {
+            synchronized (codes) {
+                codes.dropExpired(now);
+            }
+        }
+    }
+
+    /** Pending device codes and reserved slots of a client, guarded by the instance itself. */
+    private final class ClientDeviceCodes {
+
+        /** Expirations of the pending device codes keyed by device code. */
+        @Nonnull
+        private final Map<String, Long> expirations = new HashMap<>();
+
+        /** Number of reserved slots. */
+        private int reserved;
+
+        /**
+         * Drop the expired device codes. The caller holds the lock of this instance.
+         *
+         * @param now current time in milliseconds
+         */
+        private void dropExpired(final long now) {
+            expirations.entrySet().removeIf(entry -> {
+                if (entry.getValue() <= now) {
+                    deviceCodes.remove(entry.getKey(), this);
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * {@link DeviceCodeStore} keeping the device codes in an OpenSAML {@link StorageService}.
+ *
+ * <p>
+ * Device code objects are stored in the {@link DeviceCodesCache#CONTEXT_DEVICECODE} context keyed by user code, and
+ * device states in the {@link DeviceCodesCache#CONTEXT_STATE} context keyed by device code. Keys longer than the
+ * storage service allows are replaced by their SHA-1 hash. Record values are encoded with a
+ * {@link DeviceRecordCodec}, and the storage record versions are the versions of the device states.
+ * </p>
+ *
+ * <p>
+ * The two records of a device code are created one after the other, and the user code record is deleted again if
+ * the device state record cannot be created. The key of the user code record is kept in the device state, so that
+ * {@link #expire(String)} finds both records from the device code.
+ * </p>
+ *
+ * <p>
+ * The records may be sharded over several storage services instead of a single one, see
+ * {@link #setShards(StorageServiceShards)}. The two records of a device code are then usually in different shards.
+ * </p>
+ *
+ * <p>
+ * Expired records written through this instance may be deleted ahead of the storage service's own cleanup by a
+ * {@link DeviceRecordExpirySweeper}, see {@link #setExpirySweeper(DeviceRecordExpirySweeper)}.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class StorageServiceDeviceCodeStore extends AbstractIdentifiableInitializableComponent
+        implements DeviceCodeStore {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(StorageServiceDeviceCodeStore.class);
+
+    /** Backing storage, null if sharded. */
+    @Nullable
+    private StorageService storage;
+
+    /** Shards of the backing storage, a single shard of {@link #storage} if not sharded. */
+    @NonnullAfterInit
+    private StorageServiceShards shards;
+
+    /** Whether {@link #shards} was created by this instance. */
+    private boolean ownShards;
+
+    /** Codec for storage record values. */
+    @Nonnull
+    private DeviceRecordCodec recordCodec;
+
+    /** Sweeper of the expired records written through this instance, null if none. */
+    @Nullable
+    private DeviceRecordExpirySweeper expirySweeper;
+
+    /**
+     * Constructor.
+     */
+    public StorageServiceDeviceCodeStore() {
+        recordCodec = new JSONDeviceRecordCodec();
+    }
+
+    /**
+     * Get the backing storage.
+     * 
+     * @return the backing storage, null if sharded
+     */
+    @Nullable
+    public StorageService getStorage() {
+        return storage;
+    }
+
+    /**
+     * Set the backing storage.
+     * 
+     * @param storageService backing storage to use
+     */
+    public void setStorage(@Nonnull final StorageService storageService) {
+        checkSetterPreconditions();
+
+        storage = Constraint.isNotNull(storageService, "StorageService cannot be null");
+        final StorageCapabilities caps = storage.getCapabilities();
+        Constraint.isTrue(caps.isServerSide(), "StorageService cannot be client-side");
+        Constraint.isTrue(DeviceCodesCache.CONTEXT_DEVICECODE.length() <= caps.getContextSize(),
+                "Context " + DeviceCodesCache.CONTEXT_DEVICECODE.length() + " too long for StorageService "
+                        + caps.getContextSize());
+        Constraint.isTrue(DeviceCodesCache.CONTEXT_STATE.length() <= caps.getContextSize(),
+                "Context " + DeviceCodesCache.CONTEXT_STATE.length() + " too long for StorageService "
+                        + caps.getContextSize());
+    }
+
+    /**
+     * Get the shards of the backing storage.
+     * 
+     * @return the shards of the backing storage
+     */
+    @NonnullAfterInit
+    public StorageServiceShards getShards() {
+        return shards;
+    }
+
+    /**
+     * Set the shards of the backing storage, instead of a single backing storage.
+     * 
+     * @param storageShards shards of the backing storage to use
+     */
+    public void setShards(@Nonnull final StorageServiceShards storageShards) {
+        checkSetterPreconditions();
+
+        shards = Constraint.isNotNull(storageShards, "StorageServiceShards cannot be null");
+    }
+
+    /**
+     * Get the codec for storage record values.
+     * 
+     * @return the codec for storage record values
+     */
+    @Nonnull
+    public DeviceRecordCodec getRecordCodec() {
+        return recordCodec;
+    }
+
+    /**
+     * Set the codec for storage record values.
+     * 
+     * <p>
+     * Defaults to {@link JSONDeviceRecordCodec}. All codecs read records written by any of the bundled codecs.
+     * </p>
+     * 
+     * @param codec codec for storage record values
+     */
+    public void setRecordCodec(@Nonnull final DeviceRecordCodec codec) {
+        checkSetterPreconditions();
+
+        recordCodec = Constraint.isNotNull(codec, "DeviceRecordCodec cannot be null");
+    }
+
+    /**
+     * Set the sweeper deleting the expired records written through this instance.
+     * 
+     * @param sweeper sweeper of the expired records, null if none
+     */
+    public void setExpirySweeper(@Nullable final DeviceRecordExpirySweeper sweeper) {
+        checkSetterPreconditions();
+
+        expirySweeper = sweeper;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (storage != null && shards != null) {
+            throw new ComponentInitializationException("Either StorageService or StorageServiceShards can be set");
+        }
+        if (shards == null) {
+            if (storage == null) {
+                throw new ComponentInitializationException("StorageService cannot be null");
+            }
+            shards = new StorageServiceShards();
+            shards.setId(getId() != null ? getId() : StorageServiceDeviceCodeStore.class.getName());
+            shards.setShards(List.of(storage));
+            shards.initialize();
+            ownShards = true;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (ownShards) {
+            shards.destroy();
+            shards = null;
+            ownShards = false;
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Track a written record in the expiry sweeper, if any.
+     * 
+     * @param context storage context of the record
+     * @param key storage key of the record
+     * @param expiresAt expiration of the record, from EPOCH in milliseconds
+     */
+    private void trackExpiration(@Nonnull final String context, @Nonnull final String key, final long expiresAt) {
+        if (expirySweeper != null) {
+            expirySweeper.track(context, key, expiresAt);
+        }
+    }
+
+    /**
+     * Stop tracking a deleted record in the expiry sweeper, if any.
+     * 
+     * @param context storage context of the record
+     * @param key storage key of the record
+     */
+    private void forgetExpiration(@Nonnull final String context, @Nonnull final String key) {
+        if (expirySweeper != null) {
+            expirySweeper.forget(context, key);
+        }
+    }
+
+    /**
+     * Adjusts the key to smaller size if needed.
+     * 
+     * @param key key to adjust
+     * @return key, either original or adjusted.
+     */
+    @Nonnull
+    private String adjustKey(@Nonnull final String key) {
+        return key.length() > shards.getKeySize() ? DigestUtils.sha1Hex(key) : key;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean issue(@Nonnull final DeviceCodeObject deviceCodeObject, @Nonnull final String userCode,
+            @Nonnull final DeviceStateObject initialState, final long expiresAt) throws IOException {
+        checkComponentActive();
+        final String deviceCodeKey = adjustKey(userCode);
+        final StorageService deviceCodeStorage = shards.locate(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey);
+        if (!deviceCodeStorage.create(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey,
+                recordCodec.encode(deviceCodeObject), expiresAt)) {
+            log.debug("User code collision for code {}", userCode);
+            return false;
+        }
+        final String deviceStateKey = adjustKey(deviceCodeObject.getDeviceCode());
+        initialState.setUserCodeKey(deviceCodeKey);
+        boolean created = false;
+        try {
+            created = shards.locate(DeviceCodesCache.CONTEXT_STATE, deviceStateKey).create(
+                    DeviceCodesCache.CONTEXT_STATE, deviceStateKey, recordCodec.encode(initialState), expiresAt);
+            if (!created) {
+                log.debug("Device code collision for code {}", deviceCodeObject.getDeviceCode());
+            } else {
+                trackExpiration(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey, expiresAt);
+                trackExpiration(DeviceCodesCache.CONTEXT_STATE, deviceStateKey, expiresAt);
+            }
+            return created;
+        } finally {
+            if (!created) {
+                rollbackDeviceCode(deviceCodeStorage, deviceCodeKey, userCode);
+            }
+        }
+    }
+
+    /**
+     * Deletes a user code record whose device state record could not be created.
+     * 
+     * <p>
+     * Failures are only logged, the record is left to expire in that case.
+     * </p>
+     * 
+     * @param deviceCodeStorage storage service the user code record is in
+     * @param deviceCodeKey adjusted key of the user code record
+     * @param userCode user code, for logging
+     */
+    private void rollbackDeviceCode(@Nonnull final StorageService deviceCodeStorage,
+            @Nonnull final String deviceCodeKey, @Nonnull final String userCode) {
+        try {
+            deviceCodeStorage.delete(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey);
+            log.debug("Removed user code {} after failing to create its device state", userCode);
+        } catch (final IOException e) {
+            log.error("Unable to remove user code {} after failing to create its device state", userCode, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public DeviceCodeObject getByUserCode(@Nonnull final String userCode) throws IOException {
+        checkComponentActive();
+        final String deviceCodeKey = adjustKey(userCode);
+        final StorageRecord<?> record = shards.locate(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey)
+                .read(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey);
+        if (record == null) {
+            return null;
+        }
+        return recordCodec.decodeDeviceCode(record.getValue());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public VersionedDeviceState getByDeviceCode(@Nonnull final String deviceCode, final long knownVersion)
+            throws IOException {
+        checkComponentActive();
+        final String deviceStateKey = adjustKey(deviceCode);
+        final StorageService stateStorage = shards.locate(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+        if (knownVersion <= 0) {
+            final StorageRecord<?> record = stateStorage.read(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+            if (record == null) {
+                return null;
+            }
+            return new VersionedDeviceState(recordCodec.decodeDeviceState(record.getValue()), record.getVersion(),
+                    record.getExpiration());
+        }
+        // The storage service only returns the record if its version has moved
+        final Pair<Long, StorageRecord<?>> read =
+                stateStorage.read(DeviceCodesCache.CONTEXT_STATE, deviceStateKey, knownVersion);
+        if (read.getFirst() == null) {
+            return null;
+        }
+        if (read.getSecond() == null) {
+            log.trace("Device state of device code {} unchanged at version {}", deviceCode, knownVersion);
+            return new VersionedDeviceState(null, read.getFirst(), null);
+        }
+        return new VersionedDeviceState(recordCodec.decodeDeviceState(read.getSecond().getValue()), read.getFirst(),
+                read.getSecond().getExpiration());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean transitionState(@Nonnull final String deviceCode, @Nonnull final DeviceStateObject state,
+            final long expiresAt) throws IOException {
+        checkComponentActive();
+        final String deviceStateKey = adjustKey(deviceCode);
+        final boolean updated = shards.locate(DeviceCodesCache.CONTEXT_STATE, deviceStateKey)
+                .update(DeviceCodesCache.CONTEXT_STATE, deviceStateKey, recordCodec.encode(state), expiresAt);
+        if (updated) {
+            trackExpiration(DeviceCodesCache.CONTEXT_STATE, deviceStateKey, expiresAt);
+        }
+        return updated;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean consume(@Nonnull final String deviceCode, final long version) throws IOException {
+        checkComponentActive();
+        final String deviceStateKey = adjustKey(deviceCode);
+        try {
+            if (!shards.locate(DeviceCodesCache.CONTEXT_STATE, deviceStateKey).deleteWithVersion(version,
+                    DeviceCodesCache.CONTEXT_STATE, deviceStateKey)) {
+                log.debug("Device state of device code {} already deleted", deviceCode);
+                return false;
+            }
+        } catch (final VersionMismatchException e) {
+            log.debug("Device state of device code {} changed since version {}", deviceCode, version);
+            return false;
+        }
+        forgetExpiration(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean deleteUserCode(@Nonnull final String userCode) throws IOException {
+        checkComponentActive();
+        final String deviceCodeKey = adjustKey(userCode);
+        forgetExpiration(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey);
+        return shards.locate(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey)
+                .delete(DeviceCodesCache.CONTEXT_DEVICECODE, deviceCodeKey);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean expire(@Nonnull final String deviceCode) throws IOException {
+        checkComponentActive();
+        final String deviceStateKey = adjustKey(deviceCode);
+        final StorageService stateStorage = shards.locate(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+        final StorageRecord<?> record = stateStorage.read(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+        if (record == null) {
+            return false;
+        }
+        final String userCodeKey = recordCodec.decodeDeviceState(record.getValue()).getUserCodeKey();
+        if (userCodeKey != null) {
+            forgetExpiration(DeviceCodesCache.CONTEXT_DEVICECODE, userCodeKey);
+            if (shards.locate(DeviceCodesCache.CONTEXT_DEVICECODE, userCodeKey)
+                    .delete(DeviceCodesCache.CONTEXT_DEVICECODE, userCodeKey)) {
+                log.debug("Deleted user code record of device code {}", deviceCode);
+            }
+        }
+        forgetExpiration(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+        return stateStorage.delete(DeviceCodesCache.CONTEXT_STATE, deviceStateKey);
+    }
+
+}
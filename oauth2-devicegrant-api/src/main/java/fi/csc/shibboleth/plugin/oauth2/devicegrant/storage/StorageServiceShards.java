@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Storage services the device code records are sharded over, each record belonging to one shard by consistent
+ * hashing of its context and key.
+ *
+ * <p>
+ * The shards are identified by their component identifiers, which therefore must be unique and stable. Adding a shard
+ * moves about one in the new number of shards of the records to it. To keep the moved records readable while they
+ * are still live, the shards before the change can be set with {@link #setPreviousShards(List)}: a record not found
+ * in its shard is then moved there from its previous shard on first access. Once the moved records have expired the
+ * previous shards can be unset again.
+ * </p>
+ *
+ * <p>
+ * The number of record operations routed to each shard and the number of records moved are counted, see
+ * {@link #getOperations(String)} and {@link #getMovedRecords()}.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class StorageServiceShards extends AbstractIdentifiableInitializableComponent {
+
+    /** Logger. */
+    private final Logger log = LoggerFactory.getLogger(StorageServiceShards.class);
+
+    /** The shards keyed by identifier. */
+    @Nonnull
+    private Map<String, StorageService> shards;
+
+    /** The shards before the latest change keyed by identifier, empty if none. */
+    @Nonnull
+    private Map<String, StorageService> previousShards;
+
+    /** Number of points of each shard on the ring. */
+    @Positive
+    private int virtualNodes;
+
+    /** Ring of the shards, null if there is a single shard. */
+    @Nullable
+    private ConsistentHashRing<StorageService> ring;
+
+    /** Ring of the previous shards, null if there are none. */
+    @Nullable
+    private ConsistentHashRing<StorageService> previousRing;
+
+    /** Number of operations routed to each shard, keyed by identifier. */
+    @Nonnull
+    private Map<String, AtomicLong> operations;
+
+    /** Number of records moved from their previous shard. */
+    @Nonnull
+    private final AtomicLong movedRecords;
+
+    /** Smallest key size of the shards. */
+    private int keySize;
+
+    /**
+     * Constructor.
+     */
+    public StorageServiceShards() {
+        shards = Collections.emptyMap();
+        previousShards = Collections.emptyMap();
+        virtualNodes = ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+        operations = Collections.emptyMap();
+        movedRecords = new AtomicLong();
+    }
+
+    /**
+     * Set the shards.
+     *
+     * @param storageServices the shards, with unique identifiers
+     */
+    public void setShards(@Nonnull final List<StorageService> storageServices) {
+        checkSetterPreconditions();
+
+        shards = toShardMap(storageServices);
+    }
+
+    /**
+     * Set the shards before the latest change, for moving the records to their current shard.
+     *
+     * @param storageServices the previous shards, null or empty if none
+     */
+    public void setPreviousShards(@Nullable final List<StorageService> storageServices) {
+        checkSetterPreconditions();
+
+        previousShards = storageServices == null || storageServices.isEmpty() ? Collections.emptyMap()
+                : toShardMap(storageServices);
+    }
+
+    /**
+     * Set the number of points of each shard on the ring.
+     *
+     * <p>
+     * Defaults to {@value ConsistentHashRing#DEFAULT_VIRTUAL_NODES}. More points spread the records more evenly. The
+     * number must not change while the shards hold live records.
+     * </p>
+     *
+     * @param points number of points of each shard
+     */
+    public void setVirtualNodes(@Positive final int points) {
+        checkSetterPreconditions();
+
+        virtualNodes = (int) Constraint.isGreaterThan(0, points, "Virtual nodes must be greater than 0");
+    }
+
+    /**
+     * Check the shards and key them by identifier.
+     *
+     * @param storageServices the shards
+     * @return the shards keyed by identifier
+     */
+    @Nonnull
+    private static Map<String, StorageService> toShardMap(@Nonnull final List<StorageService> storageServices) {
+        Constraint.isTrue(storageServices != null && !storageServices.isEmpty(),
+                "StorageService shards cannot be null or empty");
+        final Map<String, StorageService> shardMap = new LinkedHashMap<>();
+        for (final StorageService storage : storageServices) {
+            Constraint.isNotNull(storage, "StorageService shard cannot be null");
+            Constraint.isNotNull(storage.getId(), "StorageService shard must have an identifier");
+            final StorageCapabilities caps = storage.getCapabilities();
+            Constraint.isTrue(caps.isServerSide(), "StorageService cannot be client-side");
+            Constraint.isTrue(DeviceCodesCache.CONTEXT_DEVICECODE.length() <= caps.getContextSize(),
+                    "Context " + DeviceCodesCache.CONTEXT_DEVICECODE.length() + " too long for StorageService "
+                            + caps.getContextSize());
+            Constraint.isTrue(DeviceCodesCache.CONTEXT_STATE.length() <= caps.getContextSize(),
+                    "Context " + DeviceCodesCache.CONTEXT_STATE.length() + " too long for StorageService "
+                            + caps.getContextSize());
+            Constraint.isTrue(shardMap.put(storage.getId(), storage) == null,
+                    "Duplicate StorageService shard " + storage.getId());
+        }
+        return shardMap;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (shards.isEmpty()) {
+            throw new ComponentInitializationException("StorageService shards cannot be empty");
+        }
+        ring = shards.size() > 1 ? new ConsistentHashRing<>(shards, virtualNodes) : null;
+        if (!previousShards.isEmpty() && !previousShards.equals(shards)) {
+            previousRing = new ConsistentHashRing<>(previousShards, virtualNodes);
+        }
+        final Map<String, AtomicLong> counters = new LinkedHashMap<>();
+        keySize = Integer.MAX_VALUE;
+        for (final Map.Entry<String, StorageService> shard : shards.entrySet()) {
+            counters.put(shard.getKey(), new AtomicLong());
+            keySize = Math.min(keySize, shard.getValue().getCapabilities().getKeySize());
+        }
+        operations = Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * Get the identifiers of the shards.
+     *
+     * @return identifiers of the shards
+     */
+    @Nonnull
+    public Set<String> getShardIds() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    /**
+     * Get the smallest key size of the shards.
+     *
+     * @return smallest key size
+     */
+    @Positive
+    public int getKeySize() {
+        checkComponentActive();
+        return keySize;
+    }
+
+    /**
+     * Get the number of record operations routed to a shard.
+     *
+     * @param shardId identifier of the shard
+     * @return number of operations, 0 if no such shard
+     */
+    @NonNegative
+    public long getOperations(@Nonnull final String shardId) {
+        final AtomicLong counter = operations.get(shardId);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Get the number of records moved from their previous shard.
+     *
+     * @return number of records moved
+     */
+    @NonNegative
+    public long getMovedRecords() {
+        return movedRecords.get();
+    }
+
+    /**
+     * Get the shard of a record.
+     *
+     * @param context context of the record
+     * @param key key of the record
+     * @return the shard of the record
+     */
+    @Nonnull
+    public StorageService route(@Nonnull final String context, @Nonnull final String key) {
+        checkComponentActive();
+        final StorageService shard =
+                ring != null ? ring.locate(context + ':' + key) : shards.values().iterator().next();
+        operations.get(shard.getId()).incrementAndGet();
+        return shard;
+    }
+
+    /**
+     * Get the shard of a record, first moving the record there from its previous shard if it is only found in
+     * the previous shard.
+     *
+     * <p>
+     * Without previous shards this is the same as {@link #route(String, String)}.
+     * </p>
+     *
+     * @param context context of the record
+     * @param key key of the record
+     * @return the shard of the record
+     * @throws IOException if reading or moving the record fails
+     */
+    @Nonnull
+    public StorageService locate(@Nonnull final String context, @Nonnull final String key) throws IOException {
+        final StorageService shard = route(context, key);
+        if (previousRing == null) {
+            return shard;
+        }
+        final StorageService previous = previousRing.locate(context + ':' + key);
+        if (previous == shard || shard.read(context, key) != null) {
+            return shard;
+        }
+        final StorageRecord<?> record = previous.read(context, key);
+        if (record == null) {
+            return shard;
+        }
+        // The record is deleted from the previous shard only once it is in its shard
+        if (shard.create(context, key, record.getValue(), record.getExpiration())) {
+            movedRecords.incrementAndGet();
+            log.debug("Moved record {} of context {} from shard {} to shard {}", key, context, previous.getId(),
+                    shard.getId());
+        }
+        previous.delete(context, key);
+        return shard;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A device state read from a {@link DeviceCodeStore} with the version and the expiration it is stored with.
+ */
+@Immutable
+public final class VersionedDeviceState {
+
+    /** The device state, null if unchanged since the version known to the reader. */
+    @Nullable
+    private final DeviceStateObject state;
+
+    /** Version of the stored state. */
+    private final long version;
+
+    /** Expiration of the stored state in milliseconds, null if it does not expire. */
+    @Nullable
+    private final Long expiration;
+
+    /**
+     * Constructor.
+     *
+     * @param deviceState the device state, null if unchanged since the version known to the reader
+     * @param stateVersion version of the stored state
+     * @param stateExpiration expiration of the stored state in milliseconds, null if it does not expire
+     */
+    public VersionedDeviceState(@Nullable final DeviceStateObject deviceState, final long stateVersion,
+            @Nullable final Long stateExpiration) {
+        state = deviceState;
+        version = stateVersion;
+        expiration = stateExpiration;
+    }
+
+    /**
+     * Get the device state.
+     *
+     * @return the device state, null if unchanged since the version known to the reader
+     */
+    @Nullable
+    public DeviceStateObject getState() {
+        return state;
+    }
+
+    /**
+     * Get the version of the stored state.
+     *
+     * @return version of the stored state
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the expiration of the stored state.
+     *
+     * @return expiration in milliseconds, null if it does not expire
+     */
+    @Nullable
+    public Long getExpiration() {
+        return expiration;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/** Unit tests for {@link DeviceStateContext}. */
+public class DeviceStateContextTest {
+
+    private DeviceStateContext deviceStateContext;
+
+    @BeforeMethod
+    public void setup() {
+        deviceStateContext = new DeviceStateContext();
+    }
+
+    @Test
+    public void testInitialState() {
+        Assert.assertNull(deviceStateContext.getDeviceCode());
+        Assert.assertNull(deviceStateContext.getDeviceStateObject());
+        Assert.assertEquals(deviceStateContext.getVersion(), 0);
+    }
+
+    @Test
+    public void testSetters() {
+        final DeviceStateObject state = new DeviceStateObject();
+        deviceStateContext.setDeviceState("device_code", state, 2);
+        Assert.assertEquals(deviceStateContext.getDeviceCode(), "device_code");
+        Assert.assertSame(deviceStateContext.getDeviceStateObject(), state);
+        Assert.assertEquals(deviceStateContext.getVersion(), 2);
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testNullDeviceCode() {
+        deviceStateContext.setDeviceState(null, new DeviceStateObject(), 1);
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidVersion() {
+        deviceStateContext.setDeviceState("device_code", new DeviceStateObject(), 0);
+    }
+
+}
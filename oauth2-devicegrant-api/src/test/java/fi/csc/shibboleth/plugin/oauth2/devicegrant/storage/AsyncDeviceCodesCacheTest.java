@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Tests for {@link AsyncDeviceCodesCache}.
+ */
+public class AsyncDeviceCodesCacheTest {
+
+    private MemoryStorageService storageService;
+
+    private DeviceCodesCache deviceCodesCache;
+
+    private AsyncDeviceCodesCache asyncCache;
+
+    private DeviceCodeObject deviceCodeObject;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.initialize();
+        asyncCache = new AsyncDeviceCodesCache();
+        asyncCache.setDeviceCodesCache(deviceCodesCache);
+        asyncCache.initialize();
+        deviceCodeObject = new DeviceCodeObject("device_code_XYZ", new ClientID("client_id_XYZ"), null);
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        asyncCache.destroy();
+        deviceCodesCache.destroy();
+        storageService.destroy();
+    }
+
+    @Test
+    public void testStoreAndRead() throws Exception {
+        Assert.assertTrue(
+                asyncCache.storeDeviceCodeAsync(deviceCodeObject, "user_code_XYZ", new DeviceStateObject(), 20000)
+                        .get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(asyncCache.getDeviceCodeAsync("user_code_XYZ").get(5, TimeUnit.SECONDS).getDeviceCode(),
+                "device_code_XYZ");
+        Assert.assertEquals(asyncCache.getDeviceStateAsync("device_code_XYZ").get(5, TimeUnit.SECONDS).getState(),
+                DeviceStateObject.State.PENDING);
+        final long version =
+                asyncCache.getDeviceStateIfChangedAsync("device_code_XYZ", 0).get(5, TimeUnit.SECONDS).getFirst();
+        Assert.assertNull(asyncCache.getDeviceStateIfChangedAsync("device_code_XYZ", version)
+                .get(5, TimeUnit.SECONDS).getSecond());
+        Assert.assertNull(asyncCache.getDeviceStateAsync("unknown").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAwaitCompletedByUpdate() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, "user_code_XYZ", 20000));
+        final CompletableFuture<DeviceStateObject> await = asyncCache.awaitDeviceStateAsync("device_code_XYZ", 10000);
+        Thread.sleep(100);
+        Assert.assertFalse(await.isDone());
+        Assert.assertTrue(asyncCache.updateDeviceStateAsync("device_code_XYZ",
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(await.get(5, TimeUnit.SECONDS).getState(), DeviceStateObject.State.DENIED);
+        Assert.assertEquals(asyncCache.consumeDeviceStateAsync("device_code_XYZ").get(5, TimeUnit.SECONDS)
+                .getState(), DeviceStateObject.State.DENIED);
+        Assert.assertNull(asyncCache.consumeDeviceStateAsync("device_code_XYZ").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeleteByDeviceCode() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, "user_code_XYZ", 20000));
+        Assert.assertTrue(asyncCache.deleteByDeviceCodeAsync("device_code_XYZ").get(5, TimeUnit.SECONDS));
+        Assert.assertNull(deviceCodesCache.getDeviceCode("user_code_XYZ"));
+    }
+
+    @Test
+    public void testFailureCompletesExceptionally() throws Exception {
+        storageService.create(DeviceCodesCache.CONTEXT_STATE, "device_code_XYZ", "not a record", null);
+        try {
+            asyncCache.getDeviceStateAsync("device_code_XYZ").get(5, TimeUnit.SECONDS);
+            Assert.fail("Unparseable record should have failed the future");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testProvidedExecutor() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AsyncDeviceCodesCache cache = new AsyncDeviceCodesCache();
+            cache.setDeviceCodesCache(deviceCodesCache);
+            cache.setExecutor(executor);
+            cache.initialize();
+            Assert.assertNull(cache.getDeviceStateAsync("unknown").get(5, TimeUnit.SECONDS));
+            cache.destroy();
+            // Not owned, so not shut down
+            Assert.assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoCache() throws ComponentInitializationException {
+        new AsyncDeviceCodesCache().initialize();
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testInvalidPlatformThreads() {
+        new AsyncDeviceCodesCache().setPlatformThreads(0);
+    }
+
+}
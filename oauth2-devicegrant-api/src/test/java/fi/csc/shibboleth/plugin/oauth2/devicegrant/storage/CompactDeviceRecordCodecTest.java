@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject.State;
+
+/**
+ * Tests for {@link CompactDeviceRecordCodec}
+ */
+public class CompactDeviceRecordCodecTest {
+
+    private CompactDeviceRecordCodec codec;
+
+    @BeforeMethod
+    protected void setUp() {
+        codec = new CompactDeviceRecordCodec();
+    }
+
+    @Test
+    public void testDeviceCodeRoundTrip() throws IOException {
+        DeviceCodeObject object = new DeviceCodeObject("device|code:1", new ClientID("client:id"),
+                new Scope("openid", "profile"));
+        String value = codec.encode(object);
+        Assert.assertEquals(value, "C113:device|code:19:client:id14:openid profile");
+        DeviceCodeObject decoded = codec.decodeDeviceCode(value);
+        Assert.assertEquals(decoded.getDeviceCode(), "device|code:1");
+        Assert.assertEquals(decoded.getClientID().getValue(), "client:id");
+        Assert.assertEquals(decoded.getScope(), new Scope("openid", "profile"));
+    }
+
+    @Test
+    public void testDeviceCodeNoScope() throws IOException {
+        String value = codec.encode(new DeviceCodeObject("deviceCode", new ClientID("clientID"), null));
+        Assert.assertEquals(value, "C110:deviceCode8:clientID-");
+        Assert.assertNull(codec.decodeDeviceCode(value).getScope());
+        Assert.assertNull(codec.decodeDeviceCode("C110:deviceCode8:clientID").getScope());
+    }
+
+    @Test
+    public void testDeviceCodeIssuedAt() throws IOException {
+        DeviceCodeObject object = new DeviceCodeObject("deviceCode", new ClientID("clientID"), null);
+        object.setIssuedAt(1700000000000L);
+        String value = codec.encode(object);
+        Assert.assertEquals(value, "C110:deviceCode8:clientID-13:1700000000000");
+        Assert.assertEquals(codec.decodeDeviceCode(value).getIssuedAt(), (Long) 1700000000000L);
+        Assert.assertNull(codec.decodeDeviceCode("C110:deviceCode8:clientID-").getIssuedAt());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testDeviceCodeInvalidIssuedAt() throws IOException {
+        codec.decodeDeviceCode("C110:deviceCode8:clientID-3:abc");
+    }
+
+    @Test
+    public void testDeviceStateRoundTrip() throws IOException {
+        String value = codec.encode(new DeviceStateObject(State.APPROVED, "accessToken", 1000000L));
+        Assert.assertEquals(value, "S11:A11:accessToken7:1000000");
+        DeviceStateObject decoded = codec.decodeDeviceState(value);
+        Assert.assertEquals(decoded.getState(), State.APPROVED);
+        Assert.assertEquals(decoded.getAccessToken(), "accessToken");
+        Assert.assertEquals(decoded.getExpiresAt(), (Long) 1000000L);
+        decoded = codec.decodeDeviceState(codec.encode(new DeviceStateObject()));
+        Assert.assertEquals(decoded.getState(), State.PENDING);
+        Assert.assertNull(decoded.getAccessToken());
+        Assert.assertNull(decoded.getExpiresAt());
+        Assert.assertEquals(codec.decodeDeviceState(codec.encode(new DeviceStateObject(State.DENIED))).getState(),
+                State.DENIED);
+    }
+
+    @Test
+    public void testDeviceStatePollingInterval() throws IOException {
+        DeviceStateObject object = new DeviceStateObject();
+        object.setPollingInterval(5000L);
+        String value = codec.encode(object);
+        Assert.assertEquals(value, "S11:P--45000");
+        Assert.assertEquals(codec.decodeDeviceState(value).getPollingInterval(), (Long) 5000L);
+        Assert.assertNull(codec.decodeDeviceState("S11:P--").getPollingInterval());
+    }
+
+    @Test
+    public void testDeviceStateIssueTimeAttributes() throws IOException {
+        DeviceStateObject object = new DeviceStateObject();
+        object.setClientID("clientID");
+        String value = codec.encode(object);
+        Assert.assertEquals(value, "S11:P---8:clientID");
+        object.setLongPollingTimeout(30000L);
+        DeviceStateObject decoded = codec.decodeDeviceState(codec.encode(object));
+        Assert.assertNull(decoded.getPollingInterval());
+        Assert.assertEquals(decoded.getClientID(), "clientID");
+        Assert.assertEquals(decoded.getLongPollingTimeout(), (Long) 30000L);
+        Assert.assertNull(decoded.getUserCodeKey());
+    }
+
+    @Test
+    public void testDeviceStateUserCodeKey() throws IOException {
+        DeviceStateObject object = new DeviceStateObject();
+        object.setUserCodeKey("UC123456");
+        String value = codec.encode(object);
+        Assert.assertEquals(value, "S11:P-----8:UC123456");
+        Assert.assertEquals(codec.decodeDeviceState(value).getUserCodeKey(), "UC123456");
+    }
+
+    @Test
+    public void testDecodeJSON() throws IOException {
+        DeviceCodeObject object = new DeviceCodeObject("deviceCode", new ClientID("clientID"), new Scope("openid"));
+        Assert.assertEquals(codec.decodeDeviceCode(object.toJSONObject().toJSONString()).getDeviceCode(),
+                "deviceCode");
+        DeviceStateObject state = new DeviceStateObject(State.APPROVED, "accessToken", 1000000L);
+        Assert.assertEquals(codec.decodeDeviceState(state.toJSONObject().toJSONString()).getAccessToken(),
+                "accessToken");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testDecodeUnknownVersion() throws IOException {
+        codec.decodeDeviceCode("C910:deviceCode8:clientID-");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testDecodeWrongType() throws IOException {
+        codec.decodeDeviceState("C110:deviceCode8:clientID-");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testDecodeTruncated() throws IOException {
+        codec.decodeDeviceCode("C110:device");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testDecodeUnknownState() throws IOException {
+        codec.decodeDeviceState("S11:X");
+    }
+
+}
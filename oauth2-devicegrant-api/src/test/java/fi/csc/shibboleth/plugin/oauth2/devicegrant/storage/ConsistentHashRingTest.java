@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link ConsistentHashRing}.
+ */
+public class ConsistentHashRingTest {
+
+    private static Map<String, String> nodes(final int count) {
+        final Map<String, String> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            nodes.put("node" + i, "node" + i);
+        }
+        return nodes;
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testNoNodes() {
+        new ConsistentHashRing<>(new HashMap<String, String>(), 10);
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testNoVirtualNodes() {
+        new ConsistentHashRing<>(nodes(2), 0);
+    }
+
+    @Test
+    public void testSingleNode() {
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes(1), 4);
+        Assert.assertEquals(ring.locate("a"), "node0");
+        Assert.assertEquals(ring.locate("b"), "node0");
+    }
+
+    @Test
+    public void testIndependentOfOrder() {
+        final Map<String, String> reversed = new LinkedHashMap<>();
+        reversed.put("node2", "node2");
+        reversed.put("node1", "node1");
+        reversed.put("node0", "node0");
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes(3), 16);
+        final ConsistentHashRing<String> reversedRing = new ConsistentHashRing<>(reversed, 16);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(reversedRing.locate("key" + i), ring.locate("key" + i));
+        }
+    }
+
+    @Test
+    public void testBalance() {
+        final ConsistentHashRing<String> ring =
+                new ConsistentHashRing<>(nodes(4), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            counts.merge(ring.locate("key" + i), 1, Integer::sum);
+        }
+        Assert.assertEquals(counts.size(), 4);
+        for (final int count : counts.values()) {
+            Assert.assertTrue(count > 1500 && count < 3500, "Unbalanced count " + count);
+        }
+    }
+
+    @Test
+    public void testAddNodeMovesOnlyToNewNode() {
+        final ConsistentHashRing<String> before =
+                new ConsistentHashRing<>(nodes(3), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        final ConsistentHashRing<String> after =
+                new ConsistentHashRing<>(nodes(4), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            final String owner = after.locate("key" + i);
+            if (!owner.equals(before.locate("key" + i))) {
+                Assert.assertEquals(owner, "node3");
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 1500 && moved < 3500, "Moved " + moved);
+    }
+
+}
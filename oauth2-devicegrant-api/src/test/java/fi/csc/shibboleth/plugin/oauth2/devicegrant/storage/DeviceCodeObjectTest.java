@@ -38,6 +38,15 @@ public class DeviceCodeObjectTest {
         Assert.assertTrue(newDeviceCodeObject.getScope().contains("scope_XYZ"));
     }
 
+    @Test
+    public void testIssuedAtSerialization() {
+        deviceCodeObject = new DeviceCodeObject("deviceCode_XYZ", new ClientID("clientID_XYZ"), null);
+        Assert.assertNull(DeviceCodeObject.fromJSONObject(deviceCodeObject.toJSONObject()).getIssuedAt());
+        deviceCodeObject.setIssuedAt(1700000000000L);
+        Assert.assertEquals(DeviceCodeObject.fromJSONObject(deviceCodeObject.toJSONObject()).getIssuedAt(),
+                (Long) 1700000000000L);
+    }
+
     @Test(expectedExceptions = IllegalArgumentException.class)
     public void testConstructorNullArgument() {
         new DeviceCodeObject(null, new ClientID("clientID_XYZ"), new Scope("scope_XYZ"));
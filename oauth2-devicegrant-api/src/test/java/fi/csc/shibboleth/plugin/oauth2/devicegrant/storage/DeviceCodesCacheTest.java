@@ -17,6 +17,17 @@
 package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.impl.client.ClientStorageService;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
@@ -25,6 +36,7 @@ import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 
 import net.minidev.json.parser.ParseException;
+import net.shibboleth.shared.collection.Pair;
 import net.shibboleth.shared.component.ComponentInitializationException;
 
 import org.testng.annotations.BeforeMethod;
@@ -90,6 +102,35 @@ public class DeviceCodesCacheTest {
         Assert.assertEquals(storageService, deviceCodesCache.getStorage());
     }
 
+    @Test
+    public void testStoreSet() throws Exception {
+        deviceCodesCache.destroy();
+        final StorageServiceDeviceCodeStore store = new StorageServiceDeviceCodeStore();
+        store.setStorage(storageService);
+        store.initialize();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStore(store);
+        deviceCodesCache.initialize();
+        Assert.assertSame(deviceCodesCache.getStore(), store);
+        Assert.assertNull(deviceCodesCache.getStorage());
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertEquals(store.getByUserCode(userCode).getDeviceCode(), deviceCodeObject.getDeviceCode());
+        store.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testStoreAndStorageSet() throws ComponentInitializationException {
+        final DeviceCodesCache cache = new DeviceCodesCache();
+        cache.setStorage(storageService);
+        cache.setStore(new StorageServiceDeviceCodeStore());
+        cache.initialize();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoStoreOrStorage() throws ComponentInitializationException {
+        new DeviceCodesCache().initialize();
+    }
+
     @Test
     public void testStore() throws ComponentInitializationException, IOException, ParseException {
         Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 200));
@@ -101,6 +142,50 @@ public class DeviceCodesCacheTest {
         Assert.assertFalse(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 200));
     }
 
+    @Test
+    public void testStoreRollbackOnDeviceCodeCollision() throws IOException, ParseException {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 200));
+        Assert.assertFalse(deviceCodesCache.storeDeviceCode(deviceCodeObject, "user_code_other", 200));
+        Assert.assertNull(deviceCodesCache.getDeviceCode("user_code_other"));
+        Assert.assertNotNull(deviceCodesCache.getDeviceCode(userCode));
+    }
+
+    @Test
+    public void testStoreRollbackOnStorageFailure() throws Exception {
+        final FailingStateStorageService failingStorage = new FailingStateStorageService();
+        failingStorage.setId("failing");
+        failingStorage.initialize();
+        final DeviceCodesCache cache = new DeviceCodesCache();
+        cache.setStorage(failingStorage);
+        cache.initialize();
+        try {
+            cache.storeDeviceCode(deviceCodeObject, userCode, 200);
+            Assert.fail("Storage failure should have been propagated");
+        } catch (final IOException e) {
+            // expected
+        }
+        Assert.assertNull(cache.getDeviceCode(userCode));
+        cache.destroy();
+        failingStorage.destroy();
+    }
+
+    @Test
+    public void testCompactCodecReadsJSONRecords() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 2000));
+        final DeviceCodesCache compactCache = new DeviceCodesCache();
+        compactCache.setStorage(storageService);
+        compactCache.setRecordCodec(new CompactDeviceRecordCodec());
+        compactCache.initialize();
+        Assert.assertEquals(compactCache.getDeviceCode(userCode).getDeviceCode(), deviceCodeObject.getDeviceCode());
+        Assert.assertTrue(compactCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 2000));
+        Assert.assertTrue(storageService.read(DeviceCodesCache.CONTEXT_STATE, deviceCodeObject.getDeviceCode())
+                .getValue().startsWith("S1"));
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.DENIED);
+        compactCache.destroy();
+    }
+
     @Test
     public void testStaleObject()
             throws ComponentInitializationException, IOException, ParseException, InterruptedException {
@@ -110,6 +195,59 @@ public class DeviceCodesCacheTest {
         Assert.assertNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
     }
 
+    @Test
+    public void testConcurrentStores() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final int index = i;
+                results.add(executor.submit(() -> deviceCodesCache.storeDeviceCode(
+                        new DeviceCodeObject("device_code_" + index, new ClientID("client_id_XYZ"), null),
+                        "user_code_" + index, 2000)));
+            }
+            for (final Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals(deviceCodesCache.getDeviceCode("user_code_" + i).getDeviceCode(), "device_code_" + i);
+            Assert.assertEquals(deviceCodesCache.getDeviceState("device_code_" + i).getState(),
+                    DeviceStateObject.State.PENDING);
+        }
+    }
+
+    @Test
+    public void testStateReadsOverlap() throws Exception {
+        final BlockingStorageService blockingStorage = new BlockingStorageService();
+        blockingStorage.setId("blocking");
+        blockingStorage.initialize();
+        final DeviceCodesCache cache = new DeviceCodesCache();
+        cache.setStorage(blockingStorage);
+        cache.initialize();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Assert.assertTrue(cache.storeDeviceCode(deviceCodeObject, userCode, 10000));
+            final CountDownLatch readers = blockingStorage.blockStateReads(2);
+            final List<Callable<DeviceStateObject>> tasks = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                tasks.add(() -> cache.getDeviceState(deviceCodeObject.getDeviceCode()));
+            }
+            for (final Future<DeviceStateObject> result : executor.invokeAll(tasks)) {
+                Assert.assertEquals(result.get().getState(), DeviceStateObject.State.PENDING);
+            }
+            // Reads used to queue on the cache monitor, the second reader could not enter the storage read
+            Assert.assertEquals(readers.getCount(), 0);
+            Assert.assertTrue(blockingStorage.overlapped);
+        } finally {
+            executor.shutdown();
+            cache.destroy();
+            blockingStorage.destroy();
+        }
+    }
+
     @Test
     public void testUpdate() throws ComponentInitializationException, IOException, ParseException {
         Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 200));
@@ -124,4 +262,412 @@ public class DeviceCodesCacheTest {
                 "accessToken");
     }
 
+    @Test
+    public void testAwaitWokenByUpdate() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<DeviceStateObject> waiter =
+                    executor.submit(() -> deviceCodesCache.awaitDeviceState(deviceCodeObject.getDeviceCode(), 10000));
+            Thread.sleep(200);
+            Assert.assertFalse(waiter.isDone());
+            final long start = System.currentTimeMillis();
+            deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                    new DeviceStateObject(DeviceStateObject.State.APPROVED, "accessToken", 171717171L), 20000);
+            Assert.assertEquals(waiter.get().getState(), DeviceStateObject.State.APPROVED);
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAwaitTimeout() throws IOException, ParseException {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final long start = System.currentTimeMillis();
+        Assert.assertEquals(deviceCodesCache.awaitDeviceState(deviceCodeObject.getDeviceCode(), 100).getState(),
+                DeviceStateObject.State.PENDING);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    @Test
+    public void testAwaitNotPending() throws IOException, ParseException {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000);
+        final long start = System.currentTimeMillis();
+        Assert.assertEquals(deviceCodesCache.awaitDeviceState(deviceCodeObject.getDeviceCode(), 10000).getState(),
+                DeviceStateObject.State.DENIED);
+        Assert.assertNull(deviceCodesCache.awaitDeviceState("unknown", 10000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testAwaitWaiterLimit() throws Exception {
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.setMaxStateWaiters(0);
+        deviceCodesCache.initialize();
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final long start = System.currentTimeMillis();
+        Assert.assertEquals(deviceCodesCache.awaitDeviceState(deviceCodeObject.getDeviceCode(), 10000).getState(),
+                DeviceStateObject.State.PENDING);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testConsumePending() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertEquals(deviceCodesCache.consumeDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.PENDING);
+        Assert.assertNotNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
+        Assert.assertNull(deviceCodesCache.consumeDeviceState("unknown"));
+    }
+
+    @Test
+    public void testConsumeApprovedOnce() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "access_token", 20000L), 20000));
+        Assert.assertEquals(deviceCodesCache.consumeDeviceState(deviceCodeObject.getDeviceCode()).getAccessToken(),
+                "access_token");
+        Assert.assertNull(deviceCodesCache.consumeDeviceState(deviceCodeObject.getDeviceCode()));
+        Assert.assertNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
+    }
+
+    @Test
+    public void testConsumeConcurrently() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "access_token", 20000L), 20000));
+        // Another node sharing the storage polls at the same time
+        final DeviceCodesCache otherNode = new DeviceCodesCache();
+        otherNode.setStorage(storageService);
+        otherNode.initialize();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<DeviceStateObject>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final DeviceCodesCache cache = i % 2 == 0 ? deviceCodesCache : otherNode;
+                results.add(executor.submit(() -> cache.consumeDeviceState(deviceCodeObject.getDeviceCode())));
+            }
+            int consumed = 0;
+            for (final Future<DeviceStateObject> result : results) {
+                if (result.get() != null) {
+                    consumed++;
+                }
+            }
+            Assert.assertEquals(consumed, 1);
+        } finally {
+            executor.shutdown();
+            otherNode.destroy();
+        }
+    }
+
+    @Test
+    public void testDeleteDeviceStateVersion() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final long version = deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), 0).getFirst();
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        Assert.assertFalse(deviceCodesCache.deleteDeviceState(deviceCodeObject.getDeviceCode(), version));
+        Assert.assertNotNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
+        Assert.assertTrue(deviceCodesCache.deleteDeviceState(deviceCodeObject.getDeviceCode(), version + 1));
+        Assert.assertFalse(deviceCodesCache.deleteDeviceState(deviceCodeObject.getDeviceCode(), version + 1));
+    }
+
+    @Test
+    public void testConsumeInvalidatesNearCache() throws Exception {
+        deviceCodesCache = initializeNearCache(Duration.ofMinutes(1), 100);
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.DENIED);
+        Assert.assertNotNull(deviceCodesCache.consumeDeviceState(deviceCodeObject.getDeviceCode()));
+        Assert.assertNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
+    }
+
+    @Test
+    public void testDeleteDeviceCode() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertTrue(deviceCodesCache.deleteDeviceCode(userCode));
+        Assert.assertNull(deviceCodesCache.getDeviceCode(userCode));
+        Assert.assertFalse(deviceCodesCache.deleteDeviceCode(userCode));
+        Assert.assertNotNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
+    }
+
+    @Test
+    public void testDeleteByDeviceCode() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getUserCodeKey(),
+                userCode);
+        Assert.assertTrue(deviceCodesCache.deleteByDeviceCode(deviceCodeObject.getDeviceCode()));
+        Assert.assertNull(deviceCodesCache.getDeviceCode(userCode));
+        Assert.assertNull(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()));
+        Assert.assertFalse(deviceCodesCache.deleteByDeviceCode(deviceCodeObject.getDeviceCode()));
+    }
+
+    @Test
+    public void testDeleteByDeviceCodeAdjustedKey() throws Exception {
+        final String longUserCode = "u".repeat(storageService.getCapabilities().getKeySize() + 1);
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, longUserCode, 20000));
+        Assert.assertNotEquals(
+                deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getUserCodeKey(), longUserCode);
+        Assert.assertTrue(deviceCodesCache.deleteByDeviceCode(deviceCodeObject.getDeviceCode()));
+        Assert.assertNull(deviceCodesCache.getDeviceCode(longUserCode));
+    }
+
+    @Test
+    public void testDeleteByDeviceCodeWakesWaiters() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<DeviceStateObject> waiter =
+                    executor.submit(() -> deviceCodesCache.awaitDeviceState(deviceCodeObject.getDeviceCode(), 10000));
+            Thread.sleep(200);
+            final long start = System.currentTimeMillis();
+            Assert.assertTrue(deviceCodesCache.deleteByDeviceCode(deviceCodeObject.getDeviceCode()));
+            Assert.assertNull(waiter.get());
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testObserver() throws Exception {
+        final List<DeviceCodesCacheObserver.Operation> observed = new ArrayList<>();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.setObserver((operation, durationNanos) -> {
+            Assert.assertTrue(durationNanos >= 0);
+            observed.add(operation);
+        });
+        deviceCodesCache.initialize();
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        deviceCodesCache.getDeviceCode(userCode);
+        deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode());
+        deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED, null, null), 20000);
+        deviceCodesCache.deleteDeviceCode(userCode);
+        deviceCodesCache.consumeDeviceState(deviceCodeObject.getDeviceCode());
+        Assert.assertEquals(observed,
+                List.of(DeviceCodesCacheObserver.Operation.STORE, DeviceCodesCacheObserver.Operation.READ_DEVICE_CODE,
+                        DeviceCodesCacheObserver.Operation.READ_STATE, DeviceCodesCacheObserver.Operation.UPDATE_STATE,
+                        DeviceCodesCacheObserver.Operation.DELETE_DEVICE_CODE,
+                        DeviceCodesCacheObserver.Operation.DELETE_STATE));
+    }
+
+    @Test
+    public void testGetDeviceStateIfChanged() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Pair<Long, DeviceStateObject> read = deviceCodesCache.getDeviceStateIfChanged("unknown", 0);
+        Assert.assertNull(read.getFirst());
+        Assert.assertNull(read.getSecond());
+        read = deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), 0);
+        Assert.assertEquals(read.getSecond().getState(), DeviceStateObject.State.PENDING);
+        final long version = read.getFirst();
+        read = deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), version);
+        Assert.assertEquals(read.getFirst(), Long.valueOf(version));
+        Assert.assertNull(read.getSecond());
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        read = deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), version);
+        Assert.assertTrue(read.getFirst() > version);
+        Assert.assertEquals(read.getSecond().getState(), DeviceStateObject.State.DENIED);
+    }
+
+    @Test
+    public void testGetDeviceStateIfChangedNearCache() throws Exception {
+        deviceCodesCache = initializeNearCache(Duration.ofMinutes(1), 100);
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final long version = deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), 0).getFirst();
+        Assert.assertNull(deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), version)
+                .getSecond());
+        Assert.assertEquals(deviceCodesCache.getNearCacheHits(), 1);
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        Assert.assertEquals(deviceCodesCache.getDeviceStateIfChanged(deviceCodeObject.getDeviceCode(), version)
+                .getSecond().getState(), DeviceStateObject.State.DENIED);
+        Assert.assertNull(deviceCodesCache.getDeviceStateIfChanged("unknown", version).getFirst());
+    }
+
+    @Test
+    public void testNearCacheHit() throws Exception {
+        deviceCodesCache = initializeNearCache(Duration.ofMinutes(1), 100);
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final DeviceStateObject first = deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode());
+        Assert.assertSame(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()), first);
+        Assert.assertEquals(deviceCodesCache.getNearCacheMisses(), 1);
+        Assert.assertEquals(deviceCodesCache.getNearCacheHits(), 1);
+        Assert.assertNull(deviceCodesCache.getDeviceState("unknown"));
+        Assert.assertEquals(deviceCodesCache.getNearCacheMisses(), 2);
+    }
+
+    @Test
+    public void testNearCacheInvalidatedByUpdate() throws Exception {
+        deviceCodesCache = initializeNearCache(Duration.ofMinutes(1), 100);
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.PENDING);
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.DENIED);
+        Assert.assertEquals(deviceCodesCache.getNearCacheHits(), 0);
+    }
+
+    @Test
+    public void testNearCacheRevalidatesVersion() throws Exception {
+        deviceCodesCache = initializeNearCache(Duration.ofMillis(50), 100);
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final DeviceStateObject first = deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode());
+        Thread.sleep(100);
+        // Unchanged record, the decoded state is reused
+        Assert.assertSame(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()), first);
+        // Update by another node sharing the storage
+        final DeviceCodesCache otherNode = new DeviceCodesCache();
+        otherNode.setStorage(storageService);
+        otherNode.initialize();
+        Assert.assertTrue(otherNode.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        otherNode.destroy();
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.PENDING);
+        Thread.sleep(100);
+        Assert.assertEquals(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()).getState(),
+                DeviceStateObject.State.DENIED);
+    }
+
+    @Test
+    public void testNearCacheEviction() throws Exception {
+        deviceCodesCache = initializeNearCache(Duration.ofMinutes(1), 10);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(deviceCodesCache.storeDeviceCode(
+                    new DeviceCodeObject("device_code_" + i, new ClientID("client_id_XYZ"), null), "user_code_" + i,
+                    20000));
+            Assert.assertEquals(deviceCodesCache.getDeviceState("device_code_" + i).getState(),
+                    DeviceStateObject.State.PENDING);
+        }
+        Assert.assertTrue(deviceCodesCache.getNearCacheEvictions() >= 10);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(deviceCodesCache.getDeviceState("device_code_" + i).getState(),
+                    DeviceStateObject.State.PENDING);
+        }
+    }
+
+    @Test
+    public void testNearCacheDisabled() throws Exception {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        final DeviceStateObject first = deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode());
+        Assert.assertNotSame(deviceCodesCache.getDeviceState(deviceCodeObject.getDeviceCode()), first);
+        Assert.assertEquals(deviceCodesCache.getNearCacheHits(), 0);
+        Assert.assertEquals(deviceCodesCache.getNearCacheMisses(), 0);
+    }
+
+    @Test
+    public void testOutstandingCounter() throws Exception {
+        deviceCodesCache.destroy();
+        final OutstandingDeviceCodeCounter counter = new OutstandingDeviceCodeCounter();
+        counter.initialize();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.setOutstandingCounter(counter);
+        deviceCodesCache.initialize();
+        Assert.assertSame(deviceCodesCache.getOutstandingCounter(), counter);
+        final ClientID clientID = deviceCodeObject.getClientID();
+        // Only device codes with a reserved slot are counted
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(new DeviceCodeObject("DC0", clientID, null), "UC0", 20000));
+        Assert.assertEquals(counter.getOutstanding(clientID.getValue()), 0);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(counter.tryReserve(clientID.getValue(), 3));
+        }
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, 20000));
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(new DeviceCodeObject("DC2", clientID, null), "UC2", 20000));
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(new DeviceCodeObject("DC3", clientID, null), "UC3", 20000));
+        Assert.assertEquals(counter.getOutstanding(clientID.getValue()), 3);
+        // Approval, consumption and deletion each stop counting, a repeated release has no effect
+        Assert.assertTrue(deviceCodesCache.updateDeviceState(deviceCodeObject.getDeviceCode(),
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "accessToken", 171717171L), 20000));
+        Assert.assertEquals(counter.getOutstanding(clientID.getValue()), 2);
+        Assert.assertNotNull(deviceCodesCache.consumeDeviceState(deviceCodeObject.getDeviceCode()));
+        Assert.assertEquals(counter.getOutstanding(clientID.getValue()), 2);
+        Assert.assertTrue(deviceCodesCache.deleteByDeviceCode("DC2"));
+        Assert.assertEquals(counter.getOutstanding(clientID.getValue()), 1);
+        Assert.assertTrue(deviceCodesCache.updateDeviceState("DC3",
+                new DeviceStateObject(DeviceStateObject.State.DENIED), 20000));
+        Assert.assertEquals(counter.getOutstanding(clientID.getValue()), 0);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 0);
+        counter.destroy();
+    }
+
+    private DeviceCodesCache initializeNearCache(final Duration ttl, final int maxSize)
+            throws ComponentInitializationException {
+        deviceCodesCache.destroy();
+        final DeviceCodesCache cache = new DeviceCodesCache();
+        cache.setStorage(storageService);
+        cache.setNearCacheTimeToLive(ttl);
+        cache.setNearCacheMaxSize(maxSize);
+        cache.initialize();
+        return cache;
+    }
+
+    /**
+     * Memory storage service holding device state reads until a number of readers are inside the read at once.
+     */
+    private static class BlockingStorageService extends MemoryStorageService {
+
+        /** Readers still expected, null if reads are not held. */
+        private volatile CountDownLatch readers;
+
+        /** Whether the expected readers were all inside the read at once. */
+        private volatile boolean overlapped;
+
+        /**
+         * Hold the following device state reads until the given number of readers are inside the read.
+         * 
+         * @param count number of readers
+         * @return latch counting down the readers
+         */
+        CountDownLatch blockStateReads(final int count) {
+            readers = new CountDownLatch(count);
+            return readers;
+        }
+
+        /** {@inheritDoc} */
+        @SuppressWarnings("rawtypes")
+        @Override
+        public StorageRecord read(final String context, final String key) throws IOException {
+            final CountDownLatch latch = readers;
+            if (latch != null && DeviceCodesCache.CONTEXT_STATE.equals(context)) {
+                latch.countDown();
+                try {
+                    if (latch.await(10, TimeUnit.SECONDS)) {
+                        overlapped = true;
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.read(context, key);
+        }
+    }
+
+    /**
+     * Memory storage service failing to create device state records.
+     */
+    private static class FailingStateStorageService extends MemoryStorageService {
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean create(final String context, final String key, final String value, final Long expiration)
+                throws IOException {
+            if (DeviceCodesCache.CONTEXT_STATE.equals(context)) {
+                throw new IOException("Simulated storage failure");
+            }
+            return super.create(context, key, value, expiration);
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.time.Duration;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Tests for {@link DevicePollingTracker}
+ */
+public class DevicePollingTrackerTest {
+
+    private DevicePollingTracker tracker;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        tracker = new DevicePollingTracker();
+        tracker.setTolerance(Duration.ZERO);
+        tracker.initialize();
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        tracker.destroy();
+        tracker = null;
+    }
+
+    @Test
+    public void testFirstPollAccepted() {
+        Assert.assertEquals(tracker.poll("deviceCode", 10000), 0);
+        Assert.assertEquals(tracker.poll("otherDeviceCode", 10000), 0);
+    }
+
+    @Test
+    public void testTooEarlyPollRaisesInterval() {
+        Assert.assertEquals(tracker.poll("deviceCode", 10000), 0);
+        Assert.assertEquals(tracker.poll("deviceCode", 10000), 15000);
+        Assert.assertEquals(tracker.poll("deviceCode", 10000), 20000);
+    }
+
+    @Test
+    public void testPollAfterInterval() throws InterruptedException {
+        Assert.assertEquals(tracker.poll("deviceCode", 50), 0);
+        Thread.sleep(100);
+        Assert.assertEquals(tracker.poll("deviceCode", 50), 0);
+    }
+
+    @Test
+    public void testTolerance() throws ComponentInitializationException {
+        tracker = new DevicePollingTracker();
+        tracker.setTolerance(Duration.ofSeconds(10));
+        tracker.initialize();
+        Assert.assertEquals(tracker.poll("deviceCode", 5000), 0);
+        Assert.assertEquals(tracker.poll("deviceCode", 5000), 0);
+    }
+
+    @Test
+    public void testRemove() {
+        Assert.assertEquals(tracker.poll("deviceCode", 10000), 0);
+        tracker.remove("deviceCode");
+        Assert.assertEquals(tracker.poll("deviceCode", 10000), 0);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testNegativeTolerance() {
+        new DevicePollingTracker().setTolerance(Duration.ofSeconds(-1));
+    }
+
+}
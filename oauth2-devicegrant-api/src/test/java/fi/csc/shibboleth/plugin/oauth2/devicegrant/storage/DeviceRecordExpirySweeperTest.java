@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.minidev.json.parser.ParseException;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Unit tests for {@link DeviceRecordExpirySweeper}.
+ */
+public class DeviceRecordExpirySweeperTest {
+
+    private DeleteCountingStorageService storageService;
+
+    private DeviceRecordExpirySweeper sweeper;
+
+    private DeviceCodesCache deviceCodesCache;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        storageService = new DeleteCountingStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        sweeper = new DeviceRecordExpirySweeper();
+        sweeper.setStorage(storageService);
+        sweeper.setCleanupInterval(Duration.ofHours(1));
+        sweeper.setBatchSize(2);
+        sweeper.initialize();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.setExpirySweeper(sweeper);
+        deviceCodesCache.initialize();
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        deviceCodesCache.destroy();
+        sweeper.destroy();
+        storageService.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoStorage() throws ComponentInitializationException {
+        new DeviceRecordExpirySweeper().initialize();
+    }
+
+    @Test
+    public void testSweepExpired() throws Exception {
+        store("DC1", "UC1", 50);
+        store("DC2", "UC2", 50);
+        store("DC3", "UC3", 100000);
+        Assert.assertEquals(sweeper.getTrackedRecords(), 6);
+        Assert.assertEquals(sweeper.sweep(), 0);
+        Thread.sleep(100);
+        Assert.assertEquals(sweeper.sweep(), 4);
+        Assert.assertEquals(sweeper.getRemovedRecords(), 4);
+        Assert.assertEquals(sweeper.getTrackedRecords(), 2);
+        Assert.assertEquals(storageService.deletes.get(), 4);
+        Assert.assertNotNull(deviceCodesCache.getDeviceCode("UC3"));
+    }
+
+    @Test
+    public void testDeletedRecordsForgotten() throws Exception {
+        store("DC1", "UC1", 50);
+        Assert.assertTrue(deviceCodesCache.deleteByDeviceCode("DC1"));
+        Assert.assertEquals(sweeper.getTrackedRecords(), 0);
+        final int deletes = storageService.deletes.get();
+        Thread.sleep(100);
+        Assert.assertEquals(sweeper.sweep(), 0);
+        Assert.assertEquals(storageService.deletes.get(), deletes);
+    }
+
+    @Test
+    public void testUpdatedRecordKept() throws Exception {
+        store("DC1", "UC1", 50);
+        Assert.assertTrue(deviceCodesCache.updateDeviceState("DC1", new DeviceStateObject(), 100000));
+        Thread.sleep(100);
+        Assert.assertEquals(sweeper.sweep(), 1);
+        Assert.assertNull(deviceCodesCache.getDeviceCode("UC1"));
+        Assert.assertNotNull(deviceCodesCache.getDeviceState("DC1"));
+        Assert.assertEquals(sweeper.getTrackedRecords(), 1);
+    }
+
+    @Test
+    public void testExtendedElsewhereKept() throws Exception {
+        store("DC1", "UC1", 50);
+        // Updated by another node, bypassing the cache of this node
+        storageService.updateExpiration(DeviceCodesCache.CONTEXT_STATE, "DC1", System.currentTimeMillis() + 100000);
+        Thread.sleep(100);
+        Assert.assertEquals(sweeper.sweep(), 1);
+        Assert.assertNotNull(deviceCodesCache.getDeviceState("DC1"));
+        Assert.assertEquals(sweeper.getTrackedRecords(), 1);
+    }
+
+    @Test
+    public void testScheduled() throws Exception {
+        final DeviceRecordExpirySweeper scheduled = new DeviceRecordExpirySweeper();
+        scheduled.setStorage(storageService);
+        scheduled.setCleanupInterval(Duration.ofMillis(50));
+        scheduled.initialize();
+        try {
+            scheduled.track(DeviceCodesCache.CONTEXT_STATE, "DC1", System.currentTimeMillis());
+            final long start = System.currentTimeMillis();
+            while (scheduled.getTrackedRecords() > 0 && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(scheduled.getTrackedRecords(), 0);
+        } finally {
+            scheduled.destroy();
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertTrue(new DeviceRecordExpirySweeper().getCleanupInterval().isZero());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final DeviceRecordExpirySweeper disabled = new DeviceRecordExpirySweeper();
+        disabled.setStorage(storageService);
+        disabled.setCleanupInterval(Duration.ZERO);
+        disabled.initialize();
+        Assert.assertFalse(disabled.isEnabled());
+        disabled.track(DeviceCodesCache.CONTEXT_STATE, "DC1", System.currentTimeMillis());
+        Assert.assertEquals(disabled.getTrackedRecords(), 0);
+        disabled.destroy();
+    }
+
+    private void store(final String deviceCode, final String userCode, final long lifetime)
+            throws IOException, ParseException {
+        Assert.assertTrue(deviceCodesCache.storeDeviceCode(new DeviceCodeObject(deviceCode, new ClientID("client"),
+                null), userCode, lifetime));
+    }
+
+    /**
+     * Memory storage service counting the deletes.
+     */
+    private static class DeleteCountingStorageService extends MemoryStorageService {
+
+        private final AtomicInteger deletes = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean delete(final String context, final String key) throws IOException {
+            deletes.incrementAndGet();
+            return super.delete(context, key);
+        }
+    }
+
+}
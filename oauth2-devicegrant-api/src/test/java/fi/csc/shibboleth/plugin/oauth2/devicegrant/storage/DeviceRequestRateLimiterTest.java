@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.component.UnmodifiableComponentException;
+
+/**
+ * Unit tests for {@link DeviceRequestRateLimiter}.
+ */
+public class DeviceRequestRateLimiterTest {
+
+    private MemoryStorageService storageService;
+
+    private DeviceRequestRateLimiter limiter;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        limiter = new DeviceRequestRateLimiter();
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        limiter.destroy();
+        storageService.destroy();
+    }
+
+    @Test(expectedExceptions = UnmodifiableComponentException.class)
+    public void testSetAfterInit() throws ComponentInitializationException {
+        limiter.initialize();
+        limiter.setMaxAttempts(1);
+    }
+
+    @Test
+    public void testUnlimited() throws ComponentInitializationException {
+        limiter.initialize();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(limiter.tryAcquire("client:c1", 0, Duration.ofMinutes(1)));
+        }
+    }
+
+    @Test
+    public void testLimitInMemory() throws ComponentInitializationException, InterruptedException {
+        limiter.initialize();
+        assertLimit();
+    }
+
+    @Test
+    public void testLimitInStorage() throws ComponentInitializationException, InterruptedException, IOException {
+        limiter.setStorage(storageService);
+        limiter.initialize();
+        assertLimit();
+        Assert.assertNotNull(storageService.read(DeviceRequestRateLimiter.CONTEXT, "client:c1"));
+    }
+
+    @Test
+    public void testStorageSharedByNodes() throws ComponentInitializationException {
+        limiter.setStorage(storageService);
+        limiter.initialize();
+        final DeviceRequestRateLimiter otherNode = new DeviceRequestRateLimiter();
+        otherNode.setStorage(storageService);
+        otherNode.initialize();
+        try {
+            Assert.assertTrue(limiter.tryAcquire("client:c1", 2, Duration.ofMinutes(1)));
+            Assert.assertTrue(otherNode.tryAcquire("client:c1", 2, Duration.ofMinutes(1)));
+            Assert.assertFalse(limiter.tryAcquire("client:c1", 2, Duration.ofMinutes(1)));
+            Assert.assertFalse(otherNode.tryAcquire("client:c1", 2, Duration.ofMinutes(1)));
+        } finally {
+            otherNode.destroy();
+        }
+    }
+
+    @Test
+    public void testInvalidStoredBucket() throws ComponentInitializationException, IOException {
+        storageService.create(DeviceRequestRateLimiter.CONTEXT, "client:c1", "invalid",
+                System.currentTimeMillis() + 60000);
+        limiter.setStorage(storageService);
+        limiter.initialize();
+        Assert.assertFalse(limiter.tryAcquire("client:c1", 2, Duration.ofMinutes(1)));
+    }
+
+    @Test
+    public void testLongKeyInStorage() throws ComponentInitializationException {
+        limiter.setStorage(storageService);
+        limiter.initialize();
+        final String key = "address:" + "a".repeat(storageService.getCapabilities().getKeySize());
+        Assert.assertTrue(limiter.tryAcquire(key, 1, Duration.ofMinutes(1)));
+        Assert.assertFalse(limiter.tryAcquire(key, 1, Duration.ofMinutes(1)));
+    }
+
+    /**
+     * Assert a bucket of two tokens is emptied, refilled and independent of other keys.
+     */
+    private void assertLimit() throws InterruptedException {
+        final Duration period = Duration.ofMillis(200);
+        Assert.assertTrue(limiter.tryAcquire("client:c1", 2, period));
+        Assert.assertTrue(limiter.tryAcquire("client:c1", 2, period));
+        Assert.assertFalse(limiter.tryAcquire("client:c1", 2, period));
+        Assert.assertTrue(limiter.tryAcquire("client:c2", 2, period));
+        Thread.sleep(150);
+        Assert.assertTrue(limiter.tryAcquire("client:c1", 2, period));
+        Assert.assertFalse(limiter.tryAcquire("client:c1", 2, period));
+    }
+
+}
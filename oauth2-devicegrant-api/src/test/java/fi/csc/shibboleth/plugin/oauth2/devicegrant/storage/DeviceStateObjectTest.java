@@ -38,6 +38,38 @@ public class DeviceStateObjectTest {
         Assert.assertEquals(newDeviceStateObject.getExpiresAt(), (Long) 1000000L);
     }
 
+    @Test
+    public void testPollingIntervalSerialization() {
+        deviceStateObject = new DeviceStateObject();
+        Assert.assertNull(deviceStateObject.getPollingInterval());
+        Assert.assertNull(DeviceStateObject.fromJSONObject(deviceStateObject.toJSONObject()).getPollingInterval());
+        deviceStateObject.setPollingInterval(5000L);
+        Assert.assertEquals(DeviceStateObject.fromJSONObject(deviceStateObject.toJSONObject()).getPollingInterval(),
+                (Long) 5000L);
+    }
+
+    @Test
+    public void testIssueTimeAttributesSerialization() {
+        deviceStateObject = new DeviceStateObject();
+        deviceStateObject.setClientID("clientID_XYZ");
+        deviceStateObject.setLongPollingTimeout(30000L);
+        DeviceStateObject newDeviceStateObject = DeviceStateObject.fromJSONObject(deviceStateObject.toJSONObject());
+        Assert.assertEquals(newDeviceStateObject.getClientID(), "clientID_XYZ");
+        Assert.assertEquals(newDeviceStateObject.getLongPollingTimeout(), (Long) 30000L);
+        newDeviceStateObject = DeviceStateObject.fromJSONObject(new DeviceStateObject().toJSONObject());
+        Assert.assertNull(newDeviceStateObject.getClientID());
+        Assert.assertNull(newDeviceStateObject.getLongPollingTimeout());
+        Assert.assertNull(newDeviceStateObject.getUserCodeKey());
+    }
+
+    @Test
+    public void testUserCodeKeySerialization() {
+        deviceStateObject = new DeviceStateObject();
+        deviceStateObject.setUserCodeKey("userCode_XYZ");
+        Assert.assertEquals(DeviceStateObject.fromJSONObject(deviceStateObject.toJSONObject()).getUserCodeKey(),
+                "userCode_XYZ");
+    }
+
     @Test(expectedExceptions = IllegalArgumentException.class)
     public void testConstructorNullArgument() {
         new DeviceStateObject(State.APPROVED, null, null);
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.time.Duration;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link InMemoryDeviceCodeStore}.
+ */
+public class InMemoryDeviceCodeStoreTest {
+
+    private InMemoryDeviceCodeStore store;
+
+    private DeviceCodeObject deviceCodeObject;
+
+    private long expiresAt;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        store = new InMemoryDeviceCodeStore();
+        store.setInitialCapacity(16);
+        store.setWheelSize(8);
+        store.setExpiryTick(Duration.ofHours(1));
+        store.initialize();
+        deviceCodeObject = new DeviceCodeObject("DC1", new ClientID("client"), new Scope("device", "openid"));
+        deviceCodeObject.setIssuedAt(1000L);
+        expiresAt = System.currentTimeMillis() + 60000;
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        store.destroy();
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidTick() {
+        new InMemoryDeviceCodeStore().setExpiryTick(Duration.ZERO);
+    }
+
+    @Test
+    public void testIssueAndLookup() {
+        final DeviceStateObject initialState = new DeviceStateObject();
+        initialState.setClientID("client");
+        initialState.setPollingInterval(5000L);
+        initialState.setLongPollingTimeout(20000L);
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", initialState, expiresAt));
+        final DeviceCodeObject read = store.getByUserCode("UC1");
+        Assert.assertEquals(read.getDeviceCode(), "DC1");
+        Assert.assertEquals(read.getClientID().getValue(), "client");
+        Assert.assertEquals(read.getScope(), new Scope("device", "openid"));
+        Assert.assertEquals(read.getIssuedAt(), (Long) 1000L);
+        final VersionedDeviceState state = store.getByDeviceCode("DC1", 0);
+        Assert.assertEquals(state.getState().getState(), DeviceStateObject.State.PENDING);
+        Assert.assertEquals(state.getState().getClientID(), "client");
+        Assert.assertEquals(state.getState().getPollingInterval(), (Long) 5000L);
+        Assert.assertEquals(state.getState().getLongPollingTimeout(), (Long) 20000L);
+        Assert.assertNull(state.getState().getAccessToken());
+        Assert.assertEquals(state.getExpiration(), (Long) expiresAt);
+        Assert.assertNull(store.getByUserCode("UC2"));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertEquals(store.getUserCodeCount(), 1);
+        Assert.assertEquals(store.getDeviceStateCount(), 1);
+    }
+
+    @Test
+    public void testIssueCollisions() {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertFalse(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC1",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertFalse(store.issue(deviceCodeObject, "UC2", new DeviceStateObject(), expiresAt));
+        Assert.assertNull(store.getByUserCode("UC2"));
+    }
+
+    @Test
+    public void testIssueOverExpired() {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), 1L));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertNotNull(store.getByUserCode("UC1"));
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertEquals(store.getDeviceStateCount(), 1);
+    }
+
+    @Test
+    public void testGetUnchanged() {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        final VersionedDeviceState unchanged = store.getByDeviceCode("DC1", version);
+        Assert.assertEquals(unchanged.getVersion(), version);
+        Assert.assertNull(unchanged.getState());
+        Assert.assertTrue(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        final VersionedDeviceState changed = store.getByDeviceCode("DC1", version);
+        Assert.assertTrue(changed.getVersion() > version);
+        Assert.assertEquals(changed.getState().getState(), DeviceStateObject.State.DENIED);
+    }
+
+    @Test
+    public void testTransitionState() {
+        Assert.assertFalse(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.transitionState("DC1",
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "token", 171717171L), expiresAt + 1000));
+        final VersionedDeviceState read = store.getByDeviceCode("DC1", 0);
+        Assert.assertEquals(read.getState().getState(), DeviceStateObject.State.APPROVED);
+        Assert.assertEquals(read.getState().getAccessToken(), "token");
+        Assert.assertEquals(read.getState().getExpiresAt(), (Long) 171717171L);
+        Assert.assertEquals(read.getExpiration(), (Long) (expiresAt + 1000));
+    }
+
+    @Test
+    public void testConsume() {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        Assert.assertFalse(store.consume("DC1", version + 1));
+        Assert.assertTrue(store.consume("DC1", version));
+        Assert.assertFalse(store.consume("DC1", version));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertEquals(store.getDeviceStateCount(), 0);
+    }
+
+    @Test
+    public void testDeleteUserCode() {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.deleteUserCode("UC1"));
+        Assert.assertFalse(store.deleteUserCode("UC1"));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testExpire() {
+        Assert.assertFalse(store.expire("DC1"));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        Assert.assertTrue(store.expire("DC1"));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertEquals(store.getUserCodeCount(), 0);
+        Assert.assertEquals(store.getDeviceStateCount(), 0);
+    }
+
+    @Test
+    public void testExpireKeepsReissuedUserCode() {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.deleteUserCode("UC1"));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC1",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.expire("DC1"));
+        Assert.assertEquals(store.getByUserCode("UC1").getDeviceCode(), "DC2");
+    }
+
+    @Test
+    public void testGrowth() {
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(store.issue(new DeviceCodeObject("DC" + i, new ClientID("client"), null), "UC" + i,
+                    new DeviceStateObject(), expiresAt));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            Assert.assertTrue(store.expire("DC" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(store.getByDeviceCode("DC" + i, 0) != null, i % 2 == 1);
+            Assert.assertEquals(store.getByUserCode("UC" + i) != null, i % 2 == 1);
+        }
+        Assert.assertEquals(store.getDeviceStateCount(), 500);
+        Assert.assertEquals(store.getUserCodeCount(), 500);
+    }
+
+    @Test
+    public void testExpiryWheel() {
+        final long now = System.currentTimeMillis();
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), now + 1000));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), now + 1000));
+        // Moved past the first expiration by a later write
+        Assert.assertTrue(store.transitionState("DC2", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                now + Duration.ofHours(30).toMillis()));
+        Assert.assertEquals(store.expireEntries(now + Duration.ofHours(2).toMillis()), 3);
+        Assert.assertEquals(store.getUserCodeCount(), 0);
+        Assert.assertEquals(store.getDeviceStateCount(), 1);
+        Assert.assertEquals(store.expireEntries(now + Duration.ofHours(2).toMillis()), 0);
+        Assert.assertEquals(store.expireEntries(now + Duration.ofHours(31).toMillis()), 1);
+        Assert.assertEquals(store.getDeviceStateCount(), 0);
+    }
+
+    @Test
+    public void testExpiryWheelWithinTick() {
+        final long tick = Duration.ofHours(1).toMillis();
+        final long start = (System.currentTimeMillis() / tick + 1) * tick;
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), start + 600000));
+        // Advancing repeatedly within the tick keeps revisiting its bucket
+        Assert.assertEquals(store.expireEntries(start + 60000), 0);
+        Assert.assertEquals(store.expireEntries(start + 300000), 0);
+        Assert.assertEquals(store.expireEntries(start + 600000), 2);
+        Assert.assertEquals(store.getUserCodeCount(), 0);
+        Assert.assertEquals(store.getDeviceStateCount(), 0);
+    }
+
+}
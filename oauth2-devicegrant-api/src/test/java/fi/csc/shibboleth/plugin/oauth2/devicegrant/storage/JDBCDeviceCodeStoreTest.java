@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link JDBCDeviceCodeStore}.
+ */
+public class JDBCDeviceCodeStoreTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private JDBCDataSource dataSource;
+
+    private JDBCDeviceCodeStore store;
+
+    private DeviceCodeObject deviceCodeObject;
+
+    private long expiresAt;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:mem:devicecodes" + DATABASES.incrementAndGet());
+        dataSource.setUser("SA");
+        dataSource.setPassword("");
+        store = new JDBCDeviceCodeStore();
+        store.setDataSource(dataSource);
+        store.setCreateTable(true);
+        store.setCleanupInterval(Duration.ZERO);
+        store.initialize();
+        deviceCodeObject = new DeviceCodeObject("DC1", new ClientID("client"), new Scope("device"));
+        expiresAt = System.currentTimeMillis() + 60000;
+    }
+
+    @AfterMethod
+    protected void tearDown() throws SQLException {
+        store.destroy();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    private int countRows() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM devicegrant_codes")) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoDataSource() throws ComponentInitializationException {
+        new JDBCDeviceCodeStore().initialize();
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidTableName() {
+        new JDBCDeviceCodeStore().setTableName("codes; DROP TABLE users");
+    }
+
+    @Test
+    public void testExistingTable() throws ComponentInitializationException, IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final JDBCDeviceCodeStore second = new JDBCDeviceCodeStore();
+        second.setDataSource(dataSource);
+        second.setCreateTable(true);
+        second.setCleanupInterval(Duration.ZERO);
+        second.initialize();
+        Assert.assertEquals(second.getByUserCode("UC1").getDeviceCode(), "DC1");
+        second.destroy();
+    }
+
+    @Test
+    public void testIssueAndLookup() throws IOException, SQLException {
+        final DeviceStateObject initialState = new DeviceStateObject();
+        initialState.setClientID("client");
+        initialState.setPollingInterval(5000L);
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", initialState, expiresAt));
+        final DeviceCodeObject read = store.getByUserCode("UC1");
+        Assert.assertEquals(read.getDeviceCode(), "DC1");
+        Assert.assertEquals(read.getScope(), new Scope("device"));
+        final VersionedDeviceState state = store.getByDeviceCode("DC1", 0);
+        Assert.assertEquals(state.getState().getState(), DeviceStateObject.State.PENDING);
+        Assert.assertEquals(state.getState().getClientID(), "client");
+        Assert.assertEquals(state.getState().getPollingInterval(), (Long) 5000L);
+        Assert.assertEquals(state.getExpiration(), (Long) expiresAt);
+        Assert.assertNull(store.getByUserCode("UC2"));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertEquals(countRows(), 1);
+    }
+
+    @Test
+    public void testIssueCollisions() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertFalse(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC1",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertFalse(store.issue(deviceCodeObject, "UC2", new DeviceStateObject(), expiresAt));
+        Assert.assertNull(store.getByUserCode("UC2"));
+    }
+
+    @Test
+    public void testIssueOverExpired() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), 1L));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC1",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertEquals(store.getByUserCode("UC1").getDeviceCode(), "DC2");
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC3", new DeviceStateObject(), expiresAt));
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testGetUnchanged() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        final VersionedDeviceState unchanged = store.getByDeviceCode("DC1", version);
+        Assert.assertEquals(unchanged.getVersion(), version);
+        Assert.assertNull(unchanged.getState());
+        Assert.assertTrue(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        final VersionedDeviceState changed = store.getByDeviceCode("DC1", version);
+        Assert.assertTrue(changed.getVersion() > version);
+        Assert.assertEquals(changed.getState().getState(), DeviceStateObject.State.DENIED);
+    }
+
+    @Test
+    public void testTransitionState() throws IOException {
+        Assert.assertFalse(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.transitionState("DC1",
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "token", 171717171L), expiresAt + 1000));
+        final VersionedDeviceState read = store.getByDeviceCode("DC1", 0);
+        Assert.assertEquals(read.getState().getAccessToken(), "token");
+        Assert.assertEquals(read.getExpiration(), (Long) (expiresAt + 1000));
+    }
+
+    @Test
+    public void testConsume() throws IOException, SQLException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        Assert.assertFalse(store.consume("DC1", version + 1));
+        Assert.assertTrue(store.consume("DC1", version));
+        Assert.assertEquals(countRows(), 0);
+        Assert.assertFalse(store.consume("DC1", version));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertFalse(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+    }
+
+    @Test
+    public void testDeleteUserCode() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.deleteUserCode("UC1"));
+        Assert.assertFalse(store.deleteUserCode("UC1"));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testDeleteUserCodes() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), expiresAt));
+        // The deleted user codes leave several NULL values under the unique index
+        Assert.assertTrue(store.deleteUserCode("UC1"));
+        Assert.assertTrue(store.deleteUserCode("UC2"));
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertNotNull(store.getByDeviceCode("DC2", 0));
+    }
+
+    @Test
+    public void testExpire() throws IOException, SQLException {
+        Assert.assertFalse(store.expire("DC1"));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.expire("DC1"));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertEquals(countRows(), 0);
+    }
+
+    @Test
+    public void testRemoveExpired() throws IOException, SQLException {
+        final long past = System.currentTimeMillis() - 1000;
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), past));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC3", new ClientID("client"), null), "UC3",
+                new DeviceStateObject(), past));
+        Assert.assertEquals(store.removeExpired(), 2);
+        Assert.assertEquals(countRows(), 1);
+        Assert.assertNotNull(store.getByDeviceCode("DC2", 0));
+    }
+
+}
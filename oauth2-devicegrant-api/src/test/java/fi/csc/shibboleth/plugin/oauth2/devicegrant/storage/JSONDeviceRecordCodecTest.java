@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject.State;
+
+/**
+ * Tests for {@link JSONDeviceRecordCodec}
+ */
+public class JSONDeviceRecordCodecTest {
+
+    private JSONDeviceRecordCodec codec;
+
+    @BeforeMethod
+    protected void setUp() {
+        codec = new JSONDeviceRecordCodec();
+    }
+
+    @Test
+    public void testDeviceCodeRoundTrip() throws IOException {
+        DeviceCodeObject object = new DeviceCodeObject("deviceCode", new ClientID("clientID"), new Scope("openid"));
+        String value = codec.encode(object);
+        Assert.assertEquals(value, object.toJSONObject().toJSONString());
+        DeviceCodeObject decoded = codec.decodeDeviceCode(value);
+        Assert.assertEquals(decoded.getDeviceCode(), "deviceCode");
+        Assert.assertEquals(decoded.getClientID().getValue(), "clientID");
+        Assert.assertEquals(decoded.getScope(), new Scope("openid"));
+    }
+
+    @Test
+    public void testDeviceStateRoundTrip() throws IOException {
+        DeviceStateObject object = new DeviceStateObject(State.APPROVED, "accessToken", 1000000L);
+        String value = codec.encode(object);
+        Assert.assertEquals(value, object.toJSONObject().toJSONString());
+        DeviceStateObject decoded = codec.decodeDeviceState(value);
+        Assert.assertEquals(decoded.getState(), State.APPROVED);
+        Assert.assertEquals(decoded.getAccessToken(), "accessToken");
+        Assert.assertEquals(decoded.getExpiresAt(), (Long) 1000000L);
+    }
+
+    @Test
+    public void testDecodeCompact() throws IOException {
+        Assert.assertEquals(codec.decodeDeviceCode("C110:deviceCode8:clientID-").getDeviceCode(), "deviceCode");
+        Assert.assertEquals(codec.decodeDeviceState("S11:P--").getState(), State.PENDING);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testDecodeNotObject() throws IOException {
+        codec.decodeDeviceCode("{not json");
+    }
+
+}
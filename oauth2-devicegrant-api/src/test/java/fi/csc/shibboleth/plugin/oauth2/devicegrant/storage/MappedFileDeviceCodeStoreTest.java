@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Unit tests for {@link MappedFileDeviceCodeStore}.
+ */
+public class MappedFileDeviceCodeStoreTest {
+
+    private Path directory;
+
+    private MappedFileDeviceCodeStore store;
+
+    private DeviceCodeObject deviceCodeObject;
+
+    private long expiresAt;
+
+    @BeforeMethod
+    protected void setUp() throws IOException, ComponentInitializationException {
+        directory = Files.createTempDirectory("devicecodes");
+        store = newStore();
+        deviceCodeObject = new DeviceCodeObject("DC1", new ClientID("client"), new Scope("device"));
+        expiresAt = System.currentTimeMillis() + 60000;
+    }
+
+    @AfterMethod
+    protected void tearDown() throws IOException {
+        store.destroy();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private MappedFileDeviceCodeStore newStore() throws ComponentInitializationException {
+        final MappedFileDeviceCodeStore newStore = new MappedFileDeviceCodeStore();
+        newStore.setDirectory(directory);
+        newStore.setSegmentSize(4096);
+        newStore.setCompactionInterval(Duration.ZERO);
+        newStore.initialize();
+        return newStore;
+    }
+
+    private void restart() throws ComponentInitializationException {
+        store.destroy();
+        store = newStore();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoDirectory() throws ComponentInitializationException {
+        new MappedFileDeviceCodeStore().initialize();
+    }
+
+    @Test
+    public void testIssueAndLookup() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertFalse(store.issue(deviceCodeObject, "UC2", new DeviceStateObject(), expiresAt));
+        Assert.assertEquals(store.getByUserCode("UC1").getDeviceCode(), "DC1");
+        final VersionedDeviceState read = store.getByDeviceCode("DC1", 0);
+        Assert.assertEquals(read.getState().getState(), DeviceStateObject.State.PENDING);
+        Assert.assertEquals(read.getExpiration(), (Long) expiresAt);
+        Assert.assertNull(store.getByUserCode("UC2"));
+        Assert.assertEquals(store.getSegmentCount(), 1);
+    }
+
+    @Test
+    public void testRecoverPendingAndApproved() throws Exception {
+        final DeviceStateObject pending = new DeviceStateObject();
+        pending.setClientID("client");
+        pending.setPollingInterval(5000L);
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", pending, expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.transitionState("DC2",
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "token", 171717171L), expiresAt + 1000));
+        Assert.assertTrue(store.deleteUserCode("UC2"));
+        restart();
+        Assert.assertEquals(store.getByUserCode("UC1").getDeviceCode(), "DC1");
+        final DeviceStateObject recovered = store.getByDeviceCode("DC1", 0).getState();
+        Assert.assertEquals(recovered.getState(), DeviceStateObject.State.PENDING);
+        Assert.assertEquals(recovered.getClientID(), "client");
+        Assert.assertEquals(recovered.getPollingInterval(), (Long) 5000L);
+        Assert.assertNull(store.getByUserCode("UC2"));
+        final VersionedDeviceState approved = store.getByDeviceCode("DC2", 0);
+        Assert.assertEquals(approved.getState().getAccessToken(), "token");
+        Assert.assertEquals(approved.getExpiration(), (Long) (expiresAt + 1000));
+    }
+
+    @Test
+    public void testRecoverDeletions() throws Exception {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        Assert.assertFalse(store.consume("DC1", version + 1));
+        Assert.assertTrue(store.consume("DC1", version));
+        Assert.assertTrue(store.expire("DC2"));
+        Assert.assertFalse(store.expire("DC2"));
+        restart();
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertNotNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertNull(store.getByUserCode("UC2"));
+    }
+
+    @Test
+    public void testRecoverSkipsExpired() throws Exception {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(),
+                System.currentTimeMillis() + 50));
+        Thread.sleep(100);
+        restart();
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Assert.assertFalse(store.compact());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(store.issue(new DeviceCodeObject("DC" + i, new ClientID("client"), null), "UC" + i,
+                    new DeviceStateObject(), expiresAt));
+            if (i > 0) {
+                Assert.assertTrue(store.expire("DC" + i));
+            }
+        }
+        Assert.assertTrue(store.getSegmentCount() > 1);
+        Assert.assertTrue(store.transitionState("DC0", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        Assert.assertTrue(store.compact());
+        Assert.assertEquals(store.getSegmentCount(), 1);
+        restart();
+        Assert.assertEquals(store.getByUserCode("UC0").getDeviceCode(), "DC0");
+        Assert.assertEquals(store.getByDeviceCode("DC0", 0).getState().getState(), DeviceStateObject.State.DENIED);
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+        // The link from the device code to its user code survives the compaction
+        Assert.assertTrue(store.expire("DC0"));
+        Assert.assertNull(store.getByUserCode("UC0"));
+    }
+
+    @Test
+    public void testCorruptedTail() throws Exception {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), expiresAt));
+        store.destroy();
+        final Path segment;
+        try (Stream<Path> paths = Files.list(directory)) {
+            segment = paths.findFirst().get();
+        }
+        // Damage the payload of the second record
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            final long second = 8 + header.flip().getInt();
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), second + 12);
+        }
+        store = newStore();
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC3", new ClientID("client"), null), "UC3",
+                new DeviceStateObject(), expiresAt));
+        restart();
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertNotNull(store.getByDeviceCode("DC3", 0));
+    }
+
+    @Test
+    public void testRecordAfterCorruptionNotReplayed() throws Exception {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC2",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC3", new ClientID("client"), null), "UC3",
+                new DeviceStateObject(), expiresAt));
+        store.destroy();
+        final Path segment;
+        try (Stream<Path> paths = Files.list(directory)) {
+            segment = paths.findFirst().get();
+        }
+        // Damage the payload of the second record, and mark the end of the segment
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            final long second = 8 + header.flip().getInt();
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), second + 12);
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), 4095);
+        }
+        store = newStore();
+        Assert.assertNull(store.getByDeviceCode("DC3", 0));
+        // Written over the damaged record with the same length, followed by the header of the third one
+        Assert.assertTrue(store.issue(new DeviceCodeObject("DC4", new ClientID("client"), null), "UC4",
+                new DeviceStateObject(), expiresAt));
+        restart();
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+        Assert.assertNotNull(store.getByDeviceCode("DC4", 0));
+        Assert.assertNull(store.getByDeviceCode("DC3", 0));
+        // The unused remainder of the segment is not rewritten on recovery
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, 4095);
+            Assert.assertEquals(last.get(0), (byte) 0x7f);
+        }
+    }
+
+}
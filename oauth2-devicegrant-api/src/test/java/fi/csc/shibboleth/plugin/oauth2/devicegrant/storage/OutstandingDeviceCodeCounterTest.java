@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Unit tests for {@link OutstandingDeviceCodeCounter}.
+ */
+public class OutstandingDeviceCodeCounterTest {
+
+    private OutstandingDeviceCodeCounter counter;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        counter = new OutstandingDeviceCodeCounter();
+        counter.initialize();
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        counter.destroy();
+    }
+
+    @Test
+    public void testLimit() {
+        final long expiresAt = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(counter.tryReserve("client1", 2));
+        counter.track("client1", "DC1", expiresAt);
+        Assert.assertTrue(counter.tryReserve("client1", 2));
+        // The reservation counts until the device code is stored
+        Assert.assertFalse(counter.tryReserve("client1", 2));
+        counter.track("client1", "DC2", expiresAt);
+        Assert.assertFalse(counter.tryReserve("client1", 2));
+        Assert.assertTrue(counter.tryReserve("client2", 2));
+        Assert.assertEquals(counter.getOutstanding("client1"), 2);
+        Assert.assertEquals(counter.getOutstanding("client2"), 1);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 2);
+    }
+
+    @Test
+    public void testUnlimited() {
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(counter.tryReserve("client1", 0));
+        }
+        Assert.assertEquals(counter.getOutstanding("client1"), 100);
+    }
+
+    @Test
+    public void testTrackNotReserved() {
+        counter.track("client1", "DC1", System.currentTimeMillis() + 60000);
+        Assert.assertEquals(counter.getOutstanding("client1"), 0);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 0);
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+        counter.track("client1", "DC2", System.currentTimeMillis() + 60000);
+        counter.track("client1", "DC3", System.currentTimeMillis() + 60000);
+        Assert.assertEquals(counter.getOutstanding("client1"), 1);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 1);
+    }
+
+    @Test
+    public void testCancel() {
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+        Assert.assertFalse(counter.tryReserve("client1", 1));
+        counter.cancel("client1");
+        Assert.assertEquals(counter.getOutstanding("client1"), 0);
+        counter.cancel("client1");
+        counter.cancel("unknown");
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+    }
+
+    @Test
+    public void testRelease() {
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+        counter.track("client1", "DC1", System.currentTimeMillis() + 60000);
+        Assert.assertFalse(counter.tryReserve("client1", 1));
+        counter.release("DC1");
+        counter.release("DC1");
+        counter.release("unknown");
+        Assert.assertEquals(counter.getOutstanding("client1"), 0);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 0);
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+        counter.track("client1", "DC1", System.currentTimeMillis() + 20);
+        Thread.sleep(50);
+        Assert.assertEquals(counter.getOutstanding("client1"), 0);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 0);
+        Assert.assertTrue(counter.tryReserve("client1", 1));
+    }
+
+}
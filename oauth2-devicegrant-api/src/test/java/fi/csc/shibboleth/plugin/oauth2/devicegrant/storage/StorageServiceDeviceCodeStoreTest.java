@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Unit tests for {@link StorageServiceDeviceCodeStore}.
+ */
+public class StorageServiceDeviceCodeStoreTest {
+
+    private MemoryStorageService storageService;
+
+    private StorageServiceDeviceCodeStore store;
+
+    private DeviceCodeObject deviceCodeObject;
+
+    private long expiresAt;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        store = new StorageServiceDeviceCodeStore();
+        store.setStorage(storageService);
+        store.initialize();
+        deviceCodeObject = new DeviceCodeObject("DC1", new ClientID("client"), new Scope("device"));
+        expiresAt = System.currentTimeMillis() + 60000;
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        store.destroy();
+        storageService.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoStorage() throws ComponentInitializationException {
+        new StorageServiceDeviceCodeStore().initialize();
+    }
+
+    @Test
+    public void testIssueAndLookup() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertEquals(store.getByUserCode("UC1").getDeviceCode(), "DC1");
+        final VersionedDeviceState read = store.getByDeviceCode("DC1", 0);
+        Assert.assertEquals(read.getState().getState(), DeviceStateObject.State.PENDING);
+        Assert.assertEquals(read.getExpiration(), (Long) expiresAt);
+        Assert.assertNotNull(storageService.read(DeviceCodesCache.CONTEXT_DEVICECODE, "UC1"));
+        Assert.assertNotNull(storageService.read(DeviceCodesCache.CONTEXT_STATE, "DC1"));
+        Assert.assertNull(store.getByUserCode("UC2"));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+    }
+
+    @Test
+    public void testIssueCollisions() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertFalse(store.issue(new DeviceCodeObject("DC2", new ClientID("client"), null), "UC1",
+                new DeviceStateObject(), expiresAt));
+        Assert.assertNull(store.getByDeviceCode("DC2", 0));
+        Assert.assertFalse(store.issue(deviceCodeObject, "UC2", new DeviceStateObject(), expiresAt));
+        Assert.assertNull(store.getByUserCode("UC2"));
+    }
+
+    @Test
+    public void testGetUnchanged() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        final VersionedDeviceState unchanged = store.getByDeviceCode("DC1", version);
+        Assert.assertEquals(unchanged.getVersion(), version);
+        Assert.assertNull(unchanged.getState());
+        Assert.assertTrue(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        final VersionedDeviceState changed = store.getByDeviceCode("DC1", version);
+        Assert.assertTrue(changed.getVersion() > version);
+        Assert.assertEquals(changed.getState().getState(), DeviceStateObject.State.DENIED);
+    }
+
+    @Test
+    public void testTransitionState() throws IOException {
+        Assert.assertFalse(store.transitionState("DC1", new DeviceStateObject(DeviceStateObject.State.DENIED),
+                expiresAt));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.transitionState("DC1",
+                new DeviceStateObject(DeviceStateObject.State.APPROVED, "token", expiresAt), expiresAt));
+        Assert.assertEquals(store.getByDeviceCode("DC1", 0).getState().getAccessToken(), "token");
+    }
+
+    @Test
+    public void testConsume() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        final long version = store.getByDeviceCode("DC1", 0).getVersion();
+        Assert.assertFalse(store.consume("DC1", version + 1));
+        Assert.assertTrue(store.consume("DC1", version));
+        Assert.assertFalse(store.consume("DC1", version));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testDeleteUserCode() throws IOException {
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.deleteUserCode("UC1"));
+        Assert.assertFalse(store.deleteUserCode("UC1"));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNotNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testExpire() throws IOException {
+        Assert.assertFalse(store.expire("DC1"));
+        Assert.assertTrue(store.issue(deviceCodeObject, "UC1", new DeviceStateObject(), expiresAt));
+        Assert.assertTrue(store.expire("DC1"));
+        Assert.assertNull(store.getByUserCode("UC1"));
+        Assert.assertNull(store.getByDeviceCode("DC1", 0));
+    }
+
+    @Test
+    public void testLongKeys() throws IOException {
+        final String longCode = "d".repeat(storageService.getCapabilities().getKeySize() + 1);
+        final String longUserCode = "u".repeat(storageService.getCapabilities().getKeySize() + 1);
+        Assert.assertTrue(store.issue(new DeviceCodeObject(longCode, new ClientID("client"), null), longUserCode,
+                new DeviceStateObject(), expiresAt));
+        Assert.assertEquals(store.getByUserCode(longUserCode).getDeviceCode(), longCode);
+        Assert.assertTrue(store.expire(longCode));
+        Assert.assertNull(store.getByUserCode(longUserCode));
+    }
+
+    @Test
+    public void testSharded() throws ComponentInitializationException, IOException {
+        final MemoryStorageService otherStorageService = new MemoryStorageService();
+        otherStorageService.setId("other");
+        otherStorageService.initialize();
+        final StorageServiceShards shards = new StorageServiceShards();
+        shards.setId("shards");
+        shards.setShards(List.of(storageService, otherStorageService));
+        shards.initialize();
+        final StorageServiceDeviceCodeStore shardedStore = new StorageServiceDeviceCodeStore();
+        shardedStore.setShards(shards);
+        shardedStore.initialize();
+        try {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(shardedStore.issue(new DeviceCodeObject("DC" + i, new ClientID("client"), null),
+                        "UC" + i, new DeviceStateObject(), expiresAt));
+            }
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(shardedStore.getByUserCode("UC" + i).getDeviceCode(), "DC" + i);
+                Assert.assertTrue(shardedStore.transitionState("DC" + i,
+                        new DeviceStateObject(DeviceStateObject.State.DENIED), expiresAt));
+                Assert.assertTrue(shardedStore.expire("DC" + i));
+                Assert.assertNull(shardedStore.getByUserCode("UC" + i));
+            }
+            Assert.assertTrue(shards.getOperations("test") > 0);
+            Assert.assertTrue(shards.getOperations("other") > 0);
+        } finally {
+            shardedStore.destroy();
+            shards.destroy();
+            otherStorageService.destroy();
+        }
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testStorageAndShards() throws ComponentInitializationException {
+        final StorageServiceShards shards = new StorageServiceShards();
+        shards.setShards(List.of(storageService));
+        final StorageServiceDeviceCodeStore both = new StorageServiceDeviceCodeStore();
+        both.setStorage(storageService);
+        both.setShards(shards);
+        both.initialize();
+    }
+
+}
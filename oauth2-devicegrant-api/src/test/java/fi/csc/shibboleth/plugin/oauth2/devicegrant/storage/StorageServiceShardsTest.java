@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link StorageServiceShards}.
+ */
+public class StorageServiceShardsTest {
+
+    private MemoryStorageService shard1;
+
+    private MemoryStorageService shard2;
+
+    private MemoryStorageService shard3;
+
+    private StorageServiceShards shards;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        shard1 = newShard("shard1");
+        shard2 = newShard("shard2");
+        shard3 = newShard("shard3");
+        shards = new StorageServiceShards();
+        shards.setId("test");
+        shards.setShards(List.of(shard1, shard2));
+        shards.initialize();
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        shards.destroy();
+        shard1.destroy();
+        shard2.destroy();
+        shard3.destroy();
+    }
+
+    private static MemoryStorageService newShard(final String id) throws ComponentInitializationException {
+        final MemoryStorageService shard = new MemoryStorageService();
+        shard.setId(id);
+        shard.initialize();
+        return shard;
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoShards() throws ComponentInitializationException {
+        final StorageServiceShards empty = new StorageServiceShards();
+        empty.setId("empty");
+        empty.initialize();
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testDuplicateShards() {
+        new StorageServiceShards().setShards(List.of(shard1, shard1));
+    }
+
+    @Test
+    public void testRoute() {
+        Assert.assertEquals(List.copyOf(shards.getShardIds()), List.of("shard1", "shard2"));
+        Assert.assertEquals(shards.getKeySize(), shard1.getCapabilities().getKeySize());
+        int first = 0;
+        for (int i = 0; i < 100; i++) {
+            final StorageService shard = shards.route(DeviceCodesCache.CONTEXT_STATE, "DC" + i);
+            Assert.assertSame(shards.route(DeviceCodesCache.CONTEXT_STATE, "DC" + i), shard);
+            if (shard == shard1) {
+                first++;
+            }
+        }
+        Assert.assertTrue(first > 0 && first < 100);
+        Assert.assertEquals(shards.getOperations("shard1") + shards.getOperations("shard2"), 200);
+        Assert.assertEquals(shards.getOperations("shard1"), 2 * first);
+        Assert.assertEquals(shards.getOperations("unknown"), 0);
+    }
+
+    @Test
+    public void testMoveToAddedShard() throws ComponentInitializationException, IOException {
+        for (int i = 0; i < 50; i++) {
+            final String key = "DC" + i;
+            shards.locate(DeviceCodesCache.CONTEXT_STATE, key).create(DeviceCodesCache.CONTEXT_STATE, key, "value" + i,
+                    System.currentTimeMillis() + 60000);
+        }
+        final StorageServiceShards added = new StorageServiceShards();
+        added.setId("added");
+        added.setShards(List.of(shard1, shard2, shard3));
+        added.setPreviousShards(List.of(shard1, shard2));
+        added.initialize();
+        try {
+            int moved = 0;
+            for (int i = 0; i < 50; i++) {
+                final String key = "DC" + i;
+                final StorageService previous = shards.route(DeviceCodesCache.CONTEXT_STATE, key);
+                final StorageService shard = added.locate(DeviceCodesCache.CONTEXT_STATE, key);
+                Assert.assertEquals(shard.read(DeviceCodesCache.CONTEXT_STATE, key).getValue(), "value" + i);
+                if (shard != previous) {
+                    Assert.assertSame(shard, shard3);
+                    Assert.assertNull(previous.read(DeviceCodesCache.CONTEXT_STATE, key));
+                    moved++;
+                }
+            }
+            Assert.assertTrue(moved > 0);
+            Assert.assertEquals(added.getMovedRecords(), moved);
+            for (int i = 0; i < 50; i++) {
+                added.locate(DeviceCodesCache.CONTEXT_STATE, "DC" + i);
+            }
+            Assert.assertEquals(added.getMovedRecords(), moved);
+        } finally {
+            added.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.bench;
+
+import java.security.KeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.openid.connect.sdk.claims.ACR;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.PooledSecureRandomIdentifierGenerationStrategy;
+import net.shibboleth.idp.plugin.oidc.op.token.support.AccessTokenClaimsSet;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.security.DataSealer;
+import net.shibboleth.shared.security.DataSealerException;
+import net.shibboleth.shared.security.DataSealerKeyStrategy;
+import net.shibboleth.shared.security.IdentifierGenerationStrategy;
+
+/**
+ * Measures building and sealing the access token of an approved device, as done by
+ * {@link fi.csc.shibboleth.plugin.oauth2.profile.impl.StoreDeviceState}. The sealer uses a generated AES key instead
+ * of a keystore.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessTokenSealingBenchmark {
+
+    /** Sealer of the access tokens. */
+    private DataSealer dataSealer;
+
+    /** Generator of the token identifiers. */
+    private IdentifierGenerationStrategy idGenerator;
+
+    /**
+     * Prepare the sealer.
+     * 
+     * @throws NoSuchAlgorithmException if AES keys are not supported
+     * @throws ComponentInitializationException if the sealer could not be initialized
+     */
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException, ComponentInitializationException {
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        dataSealer = new DataSealer();
+        dataSealer.setKeyStrategy(new FixedKeyStrategy(generator.generateKey()));
+        dataSealer.initialize();
+        idGenerator = new PooledSecureRandomIdentifierGenerationStrategy();
+    }
+
+    /**
+     * Build and seal an access token.
+     * 
+     * @return the sealed access token
+     * @throws DataSealerException if sealing failed
+     */
+    @Benchmark
+    public String sealAccessToken() throws DataSealerException {
+        final Instant now = Instant.now();
+        final AccessTokenClaimsSet claimsSet = new AccessTokenClaimsSet.Builder().setJWTID(idGenerator)
+                .setClientID(new ClientID("demo_rp_client")).setIssuer("https://idp.example.org")
+                .setPrincipal("principal").setSubject("subject").setIssuedAt(now)
+                .setExpiresAt(now.plusSeconds(600)).setACR(new ACR("password")).setAuthenticationTime(now)
+                .setScope(com.nimbusds.oauth2.sdk.Scope.parse("openid profile")).build();
+        return claimsSet.serialize(dataSealer);
+    }
+
+    /** Key strategy with a single fixed key, also used by {@link DeviceFlowLoadTest}. */
+    static final class FixedKeyStrategy implements DataSealerKeyStrategy {
+
+        /** The key. */
+        @Nonnull
+        private final Pair<String, SecretKey> key;
+
+        /**
+         * Constructor.
+         * 
+         * @param secretKey the key
+         */
+        FixedKeyStrategy(@Nonnull final SecretKey secretKey) {
+            key = new Pair<>("bench", secretKey);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        @Nonnull
+        public Pair<String, SecretKey> getDefaultKey() {
+            return key;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        @Nonnull
+        public SecretKey getKey(@Nonnull final String name) throws KeyException {
+            if (!key.getFirst().equals(name)) {
+                throw new KeyException("Unknown key " + name);
+            }
+            return key.getSecond();
+        }
+    }
+
+}
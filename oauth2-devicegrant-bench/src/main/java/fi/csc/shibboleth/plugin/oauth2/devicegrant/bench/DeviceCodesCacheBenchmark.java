@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.bench;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.storage.impl.MemoryStorageService;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.CompactDeviceRecordCodec;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.JSONDeviceRecordCodec;
+import net.minidev.json.parser.ParseException;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Measures the {@link DeviceCodesCache} operations of the device flow against a {@link MemoryStorageService}, so the
+ * numbers are the cost of the cache itself and of the record format rather than of a remote backend. Reads pick a
+ * random device code of a pre-stored working set. Run with {@code -t} to measure under contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceCodesCacheBenchmark {
+
+    /** Lifetime of the records stored by the benchmark, in milliseconds. */
+    private static final long LIFETIME = 600000L;
+
+    /** Lifetime of the records stored by the store benchmark, in milliseconds, so the store does not grow. */
+    private static final long STORE_LIFETIME = 2000L;
+
+    /** Record format under benchmark. */
+    @Param({"json", "compact"})
+    private String codecName;
+
+    /** Near cache time-to-live as a duration string, PT0S disables the near cache. */
+    @Param({"PT0S", "PT1S"})
+    private String nearCacheTimeToLive;
+
+    /** Number of device codes in the working set. */
+    @Param({"10000"})
+    private int workingSet;
+
+    /** Backing storage. */
+    private MemoryStorageService storage;
+
+    /** Cache under benchmark. */
+    private DeviceCodesCache cache;
+
+    /** Device codes of the working set. */
+    private String[] deviceCodes;
+
+    /** Versions of the state records of the working set. */
+    private long[] versions;
+
+    /** Sequence of the codes stored by the store benchmark. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Prepare the cache and the working set.
+     * 
+     * @throws ComponentInitializationException if the storage or the cache could not be initialized
+     * @throws IOException if the working set could not be stored
+     * @throws ParseException if a stored state could not be read
+     */
+    @Setup
+    public void setUp() throws ComponentInitializationException, IOException, ParseException {
+        storage = new MemoryStorageService();
+        storage.setId("bench");
+        storage.setCleanupInterval(Duration.ofSeconds(1));
+        storage.initialize();
+        cache = new DeviceCodesCache();
+        cache.setId("bench");
+        cache.setStorage(storage);
+        cache.setRecordCodec(
+                "compact".equals(codecName) ? new CompactDeviceRecordCodec() : new JSONDeviceRecordCodec());
+        cache.setNearCacheTimeToLive(Duration.parse(nearCacheTimeToLive));
+        cache.initialize();
+        deviceCodes = new String[workingSet];
+        versions = new long[workingSet];
+        for (int i = 0; i < workingSet; i++) {
+            deviceCodes[i] = "ezfnWaQbJmnfyfEZ9qFkgPtUfX" + i;
+            cache.storeDeviceCode(new DeviceCodeObject(deviceCodes[i], new ClientID("demo_rp_client"), null),
+                    "uc" + i, LIFETIME);
+            versions[i] = cache.getDeviceStateIfChanged(deviceCodes[i], 0).getFirst();
+        }
+    }
+
+    /** Release the cache and the storage. */
+    @TearDown
+    public void tearDown() {
+        cache.destroy();
+        storage.destroy();
+    }
+
+    /**
+     * Store a new device code, as done once per device authorization request.
+     * 
+     * @return whether the code was stored
+     * @throws IOException if something went wrong with storage
+     */
+    @Benchmark
+    public boolean storeDeviceCode() throws IOException {
+        final long n = sequence.incrementAndGet();
+        return cache.storeDeviceCode(new DeviceCodeObject("store_" + n, new ClientID("demo_rp_client"), null),
+                "store_uc_" + n, STORE_LIFETIME);
+    }
+
+    /**
+     * Read a device code by user code, as done when the user enters the code.
+     * 
+     * @return the device code
+     * @throws IOException if something went wrong with storage
+     * @throws ParseException if the record could not be decoded
+     */
+    @Benchmark
+    public DeviceCodeObject getDeviceCode() throws IOException, ParseException {
+        return cache.getDeviceCode("uc" + ThreadLocalRandom.current().nextInt(workingSet));
+    }
+
+    /**
+     * Read a device state, as done on every token poll.
+     * 
+     * @return the device state
+     * @throws IOException if something went wrong with storage
+     * @throws ParseException if the record could not be decoded
+     */
+    @Benchmark
+    public DeviceStateObject getDeviceState() throws IOException, ParseException {
+        return cache.getDeviceState(deviceCodes[ThreadLocalRandom.current().nextInt(workingSet)]);
+    }
+
+    /**
+     * Read a device state whose version is already known and unchanged.
+     * 
+     * @return the version and no state
+     * @throws IOException if something went wrong with storage
+     * @throws ParseException if the record could not be decoded
+     */
+    @Benchmark
+    public Pair<Long, DeviceStateObject> getDeviceStateUnchanged() throws IOException, ParseException {
+        final int i = ThreadLocalRandom.current().nextInt(workingSet);
+        return cache.getDeviceStateIfChanged(deviceCodes[i], versions[i]);
+    }
+
+    /**
+     * Update a device state, as done when the user makes the decision. The state stays pending so the working set
+     * is unchanged.
+     * 
+     * @return whether the state was updated
+     * @throws IOException if something went wrong with storage
+     * @throws ParseException if the record could not be decoded
+     */
+    @Benchmark
+    public boolean updateDeviceState() throws IOException, ParseException {
+        return cache.updateDeviceState(deviceCodes[ThreadLocalRandom.current().nextInt(workingSet)],
+                new DeviceStateObject(), LIFETIME);
+    }
+
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.bench;
+
+import java.io.PrintStream;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.KeyGenerator;
+
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.config.impl.DefaultOAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceUserAuthenticationContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.UserCodeCollisionMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DevicePollingTracker;
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationRequest;
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationSuccessResponse;
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceTokenRequest;
+import fi.csc.shibboleth.plugin.oauth2.profile.impl.FormOutboundDeviceAuthorizationResponseMessage;
+import fi.csc.shibboleth.plugin.oauth2.profile.impl.FormOutboundDeviceTokenResponseMessage;
+import fi.csc.shibboleth.plugin.oauth2.profile.impl.PreCheckDeviceState;
+import fi.csc.shibboleth.plugin.oauth2.profile.impl.StoreDeviceState;
+import jakarta.servlet.http.HttpServletRequest;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.idp.plugin.oidc.op.messaging.context.OIDCAuthenticationResponseContext;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+import net.shibboleth.oidc.metadata.context.OIDCMetadataContext;
+import net.shibboleth.profile.context.RelyingPartyContext;
+import net.shibboleth.profile.relyingparty.BasicRelyingPartyConfiguration;
+import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.primitive.NonnullSupplier;
+import net.shibboleth.shared.security.DataSealer;
+
+/**
+ * Load generator simulating devices going through the device flow on one node.
+ * 
+ * <p>
+ * Each simulated device asks for a device code with {@link FormOutboundDeviceAuthorizationResponseMessage}, its user
+ * approves it after the approval delay with {@link StoreDeviceState}, and meanwhile the device polls at the polling
+ * interval with {@link PreCheckDeviceState} and {@link FormOutboundDeviceTokenResponseMessage} until it receives the
+ * access token or its device code expires. The actions are executed directly, as new prototype instances per request
+ * like in the flows, without client authentication or the HTTP layer. The device starts are spread over one polling
+ * interval.
+ * </p>
+ * 
+ * <p>
+ * Run with {@code java -cp target/benchmarks.jar fi.csc.shibboleth.plugin.oauth2.devicegrant.bench.DeviceFlowLoadTest}
+ * and the system properties below. The p50/p99 latencies of the three endpoints and the device code cache operations
+ * per second are printed at the end.
+ * </p>
+ * 
+ * <ul>
+ * <li>{@code load.devices}: number of simulated devices, default 1000.</li>
+ * <li>{@code load.pollingInterval}: polling interval as a duration, default PT5S.</li>
+ * <li>{@code load.approvalDelay}: time from issuing the device code to the user's approval, default PT30S.</li>
+ * <li>{@code load.deviceCodeLifetime}: lifetime of the device codes, default PT10M.</li>
+ * <li>{@code load.threads}: number of threads executing the requests, default twice the processors.</li>
+ * <li>{@code load.storageService}: class name of the {@link StorageService} to use, default
+ * {@link MemoryStorageService}. The class must have a no-argument constructor and is initialized with the id
+ * {@code load}.</li>
+ * </ul>
+ */
+public final class DeviceFlowLoadTest {
+
+    /** Client identifier of the simulated devices. */
+    @Nonnull
+    private static final String CLIENT_ID = "load_test_client";
+
+    /** Number of simulated devices. */
+    private final int devices;
+
+    /** Polling interval of the devices. */
+    @Nonnull
+    private final Duration pollingInterval;
+
+    /** Time from issuing the device code to the approval. */
+    @Nonnull
+    private final Duration approvalDelay;
+
+    /** Lifetime of the device codes. */
+    @Nonnull
+    private final Duration deviceCodeLifetime;
+
+    /** The storage service under load. */
+    @Nonnull
+    private final StorageService storageService;
+
+    /** The device code cache shared by the actions. */
+    @Nonnull
+    private final DeviceCodesCache deviceCodesCache;
+
+    /** The polling tracker shared by the token actions. */
+    @Nonnull
+    private final DevicePollingTracker pollingTracker;
+
+    /** Sealer of the access tokens. */
+    @Nonnull
+    private final DataSealer dataSealer;
+
+    /** Registry of the measurements. */
+    @Nonnull
+    private final MetricRegistry registry;
+
+    /** Device flow metrics, also observing the device code cache. */
+    @Nonnull
+    private final DeviceGrantMetrics metrics;
+
+    /** Counts of user codes issued. */
+    @Nonnull
+    private final UserCodeCollisionMetrics userCodeMetrics;
+
+    /** Latency of the device authorization requests. */
+    @Nonnull
+    private final Timer authorizeTimer;
+
+    /** Latency of the approvals. */
+    @Nonnull
+    private final Timer approveTimer;
+
+    /** Latency of the token requests. */
+    @Nonnull
+    private final Timer tokenTimer;
+
+    /** Devices that received the access token. */
+    @Nonnull
+    private final AtomicLong completed = new AtomicLong();
+
+    /** Devices that did not receive the access token. */
+    @Nonnull
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Executor of the simulated requests. */
+    @Nonnull
+    private final ScheduledExecutorService executor;
+
+    /** Counted down when a device is done. */
+    @Nonnull
+    private final CountDownLatch done;
+
+    /**
+     * Constructor.
+     * 
+     * @throws ReflectiveOperationException if the storage service could not be instantiated
+     * @throws ComponentInitializationException if a component could not be initialized
+     * @throws NoSuchAlgorithmException if AES keys are not supported
+     */
+    private DeviceFlowLoadTest()
+            throws ReflectiveOperationException, ComponentInitializationException, NoSuchAlgorithmException {
+        devices = Integer.getInteger("load.devices", 1000);
+        pollingInterval = Duration.parse(System.getProperty("load.pollingInterval", "PT5S"));
+        approvalDelay = Duration.parse(System.getProperty("load.approvalDelay", "PT30S"));
+        deviceCodeLifetime = Duration.parse(System.getProperty("load.deviceCodeLifetime", "PT10M"));
+        final int threads = Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors() * 2);
+
+        registry = new MetricRegistry();
+        metrics = new DeviceGrantMetrics(registry);
+        userCodeMetrics = new UserCodeCollisionMetrics();
+        metrics.setUserCodeMetrics(userCodeMetrics);
+        authorizeTimer = registry.timer("load.authorize");
+        approveTimer = registry.timer("load.approve");
+        tokenTimer = registry.timer("load.token");
+
+        storageService = newStorageService(System.getProperty("load.storageService",
+                MemoryStorageService.class.getName()));
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.setObserver(metrics);
+        deviceCodesCache.initialize();
+        pollingTracker = new DevicePollingTracker();
+        pollingTracker.setIdleLifetime(deviceCodeLifetime);
+        pollingTracker.initialize();
+
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        dataSealer = new DataSealer();
+        dataSealer.setKeyStrategy(new AccessTokenSealingBenchmark.FixedKeyStrategy(generator.generateKey()));
+        dataSealer.initialize();
+
+        final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads);
+        pool.setRemoveOnCancelPolicy(true);
+        executor = pool;
+        done = new CountDownLatch(devices);
+    }
+
+    /**
+     * Run the load test.
+     * 
+     * @param args not used, see the system properties in the class description
+     * @throws Exception if the test could not be set up
+     */
+    public static void main(final String[] args) throws Exception {
+        new DeviceFlowLoadTest().run(System.out);
+    }
+
+    /**
+     * Start the devices, wait for all of them to finish and print the report.
+     * 
+     * @param out where to print the report
+     * @throws InterruptedException if interrupted while waiting for the devices
+     */
+    private void run(@Nonnull final PrintStream out) throws InterruptedException {
+        out.printf(Locale.ROOT, "%d devices, polling interval %s, approval delay %s, storage %s%n", devices,
+                pollingInterval, approvalDelay, storageService.getClass().getSimpleName());
+        final long start = System.nanoTime();
+        for (int i = 0; i < devices; i++) {
+            final long startDelay = ThreadLocalRandom.current().nextLong(Math.max(1, pollingInterval.toMillis()));
+            executor.schedule(this::startDevice, startDelay, TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        report(out, seconds);
+        pollingTracker.destroy();
+        deviceCodesCache.destroy();
+        if (storageService instanceof AbstractIdentifiableInitializableComponent) {
+            ((AbstractIdentifiableInitializableComponent) storageService).destroy();
+        }
+    }
+
+    /** Ask for a device code and schedule the approval and the polls. */
+    private void startDevice() {
+        OAuth2DeviceAuthorizationSuccessResponse response;
+        try (Timer.Context timing = authorizeTimer.time()) {
+            response = authorize();
+        } catch (final RuntimeException e) {
+            response = null;
+        }
+        if (response == null) {
+            finish(false);
+            return;
+        }
+        executor.schedule(() -> approve(response.getUserCode()), approvalDelay.toMillis(), TimeUnit.MILLISECONDS);
+        final long interval = response.getInterval() != null ? response.getInterval() * 1000L
+                : pollingInterval.toMillis();
+        executor.schedule(() -> poll(response.getDeviceCode(), interval), interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Poll for the access token, and schedule the next poll unless the device is done.
+     * 
+     * @param deviceCode the device code
+     * @param interval polling interval in milliseconds
+     */
+    private void poll(@Nonnull final String deviceCode, final long interval) {
+        String outcome;
+        try (Timer.Context timing = tokenTimer.time()) {
+            outcome = token(deviceCode);
+        } catch (final RuntimeException e) {
+            outcome = EventIds.RUNTIME_EXCEPTION;
+        }
+        if (EventIds.PROCEED_EVENT_ID.equals(outcome)) {
+            finish(true);
+        } else if (DeviceEventIds.AUTHORIZATION_PENDING.equals(outcome) || DeviceEventIds.SLOW_DOWN.equals(outcome)) {
+            executor.schedule(() -> poll(deviceCode, interval), interval, TimeUnit.MILLISECONDS);
+        } else {
+            finish(false);
+        }
+    }
+
+    /**
+     * Record the result of a device.
+     * 
+     * @param success whether the device received the access token
+     */
+    private void finish(final boolean success) {
+        (success ? completed : failed).incrementAndGet();
+        done.countDown();
+    }
+
+    /**
+     * Execute the device authorization endpoint.
+     * 
+     * @return the response, null if the request failed
+     */
+    @Nullable
+    private OAuth2DeviceAuthorizationSuccessResponse authorize() {
+        try {
+            final RequestContext requestCtx = new RequestContextBuilder().buildRequestContext();
+            final ProfileRequestContext prc = newProfileRequestContext(requestCtx,
+                    new OAuth2DeviceAuthorizationRequest(null, new ClientID(CLIENT_ID), new Scope("openid")));
+            final FormOutboundDeviceAuthorizationResponseMessage action =
+                    new FormOutboundDeviceAuthorizationResponseMessage();
+            action.setHttpServletRequestSupplier(newHttpServletRequestSupplier());
+            action.setDeviceCodesCache(deviceCodesCache);
+            action.setUserCodeMetrics(userCodeMetrics);
+            action.initialize();
+            if (isError(action.execute(requestCtx))) {
+                return null;
+            }
+            return (OAuth2DeviceAuthorizationSuccessResponse) prc.getOutboundMessageContext().getMessage();
+        } catch (final ComponentInitializationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Execute the approval of the user at the end of the authentication flow.
+     * 
+     * @param userCode the user code
+     */
+    private void approve(@Nonnull final String userCode) {
+        try (Timer.Context timing = approveTimer.time()) {
+            final RequestContext requestCtx = new RequestContextBuilder().buildRequestContext();
+            final ProfileRequestContext prc = newProfileRequestContext(requestCtx, null);
+            final DeviceUserAuthenticationContext userCtx =
+                    prc.getInboundMessageContext().ensureSubcontext(DeviceUserAuthenticationContext.class);
+            userCtx.setUserCode(userCode);
+            userCtx.setUserApproved(true);
+            final OIDCAuthenticationResponseContext responseCtx =
+                    prc.getOutboundMessageContext().ensureSubcontext(OIDCAuthenticationResponseContext.class);
+            responseCtx.setSubject("subject");
+            responseCtx.setScope(new Scope("openid"));
+            responseCtx.setAuthTime(Instant.now());
+            responseCtx.setAcr("password");
+            prc.ensureSubcontext(SubjectContext.class).setPrincipalName("principal");
+            final StoreDeviceState action = new StoreDeviceState(dataSealer);
+            action.setDeviceCodesCache(deviceCodesCache);
+            action.setMetrics(metrics);
+            action.initialize();
+            action.execute(requestCtx);
+        } catch (final ComponentInitializationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Execute the token endpoint.
+     * 
+     * @param deviceCode the device code
+     * @return the event of the request, {@link EventIds#PROCEED_EVENT_ID} if the access token was returned
+     */
+    @Nonnull
+    private String token(@Nonnull final String deviceCode) {
+        try {
+            final RequestContext requestCtx = new RequestContextBuilder().buildRequestContext();
+            final ProfileRequestContext prc = newProfileRequestContext(requestCtx, new OAuth2DeviceTokenRequest(null,
+                    new ClientID(CLIENT_ID), OAuth2DeviceTokenRequest.grantTypeValue, deviceCode));
+            final PreCheckDeviceState preCheck = new PreCheckDeviceState();
+            preCheck.setDeviceCodesCache(deviceCodesCache);
+            preCheck.setPollingTracker(pollingTracker);
+            preCheck.setMetrics(metrics);
+            preCheck.initialize();
+            Event event = preCheck.execute(requestCtx);
+            if (isError(event)) {
+                return event.getId();
+            }
+            final FormOutboundDeviceTokenResponseMessage action = new FormOutboundDeviceTokenResponseMessage();
+            action.setHttpServletRequestSupplier(newHttpServletRequestSupplier());
+            action.setDeviceCodesCache(deviceCodesCache);
+            action.setMetrics(metrics);
+            action.initialize();
+            event = action.execute(requestCtx);
+            if (isError(event)) {
+                return event.getId();
+            }
+            return prc.getOutboundMessageContext().getMessage() instanceof AccessTokenResponse
+                    ? EventIds.PROCEED_EVENT_ID : EventIds.INVALID_MSG_CTX;
+        } catch (final ComponentInitializationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Build the profile request context of a request, as populated by the earlier actions of the flows.
+     * 
+     * @param requestCtx the Spring Web Flow request context
+     * @param message the inbound message, may be null
+     * @return the profile request context
+     */
+    @Nonnull
+    private ProfileRequestContext newProfileRequestContext(@Nonnull final RequestContext requestCtx,
+            @Nullable final Object message) {
+        final ProfileRequestContext prc = new WebflowRequestContextProfileRequestContextLookup().apply(requestCtx);
+        prc.setInboundMessageContext(new MessageContext());
+        prc.getInboundMessageContext().setMessage(message);
+        prc.getInboundMessageContext().addSubcontext(new OIDCMetadataContext());
+        prc.setOutboundMessageContext(new MessageContext());
+        prc.getOutboundMessageContext().addSubcontext(new OIDCAuthenticationResponseContext());
+        final DefaultOAuth2DeviceGrantConfiguration profileConfig = new DefaultOAuth2DeviceGrantConfiguration();
+        profileConfig.setPollingInterval(pollingInterval);
+        profileConfig.setDeviceCodeLifetime(deviceCodeLifetime);
+        final RelyingPartyContext rpCtx = prc.ensureSubcontext(RelyingPartyContext.class);
+        rpCtx.setProfileConfig(profileConfig);
+        rpCtx.setRelyingPartyId(CLIENT_ID);
+        final BasicRelyingPartyConfiguration rpConfig = new BasicRelyingPartyConfiguration();
+        rpConfig.setId("load");
+        rpConfig.setIssuer("https://idp.example.org");
+        try {
+            rpConfig.initialize();
+        } catch (final ComponentInitializationException e) {
+            throw new IllegalStateException(e);
+        }
+        rpCtx.setConfiguration(rpConfig);
+        return prc;
+    }
+
+    /**
+     * Print the latencies and the cache operation rates.
+     * 
+     * @param out where to print
+     * @param seconds duration of the test in seconds
+     */
+    private void report(@Nonnull final PrintStream out, final double seconds) {
+        out.printf(Locale.ROOT, "%d devices done in %.1f s: %d received the access token, %d failed%n", devices,
+                seconds, completed.get(), failed.get());
+        out.printf(Locale.ROOT, "%-28s %10s %10s %10s%n", "endpoint", "requests", "p50 ms", "p99 ms");
+        printTimer(out, "authorize", authorizeTimer);
+        printTimer(out, "approve", approveTimer);
+        printTimer(out, "token", tokenTimer);
+        out.printf(Locale.ROOT, "%-28s %10s %10s %10s %10s%n", "cache operation", "ops", "ops/s", "p50 ms",
+                "p99 ms");
+        long total = 0;
+        for (final Map.Entry<String, Timer> entry : registry.getTimers(
+                (name, metric) -> name.startsWith(DeviceGrantMetrics.PREFIX + ".storage.")).entrySet()) {
+            final Timer timer = entry.getValue();
+            final Snapshot snapshot = timer.getSnapshot();
+            total += timer.getCount();
+            out.printf(Locale.ROOT, "%-28s %10d %10.1f %10.3f %10.3f%n",
+                    entry.getKey().substring(DeviceGrantMetrics.PREFIX.length() + ".storage.".length()),
+                    timer.getCount(), timer.getCount() / seconds, toMillis(snapshot.getMedian()),
+                    toMillis(snapshot.get99thPercentile()));
+        }
+        out.printf(Locale.ROOT, "%-28s %10d %10.1f%n", "total", total, total / seconds);
+        out.printf(Locale.ROOT, "token requests per device: %.2f, user code collisions: %d%n",
+                tokenTimer.getCount() / (double) Math.max(1, devices), userCodeMetrics.getCollisions());
+    }
+
+    /**
+     * Print a line of endpoint latencies.
+     * 
+     * @param out where to print
+     * @param name name of the endpoint
+     * @param timer the timer of the endpoint
+     */
+    private static void printTimer(@Nonnull final PrintStream out, @Nonnull final String name,
+            @Nonnull final Timer timer) {
+        final Snapshot snapshot = timer.getSnapshot();
+        out.printf(Locale.ROOT, "%-28s %10d %10.3f %10.3f%n", name, timer.getCount(), toMillis(snapshot.getMedian()),
+                toMillis(snapshot.get99thPercentile()));
+    }
+
+    /**
+     * Convert nanoseconds to milliseconds.
+     * 
+     * @param nanos nanoseconds
+     * @return milliseconds
+     */
+    private static double toMillis(final double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Whether the event of an action is an error event rather than proceeding.
+     * 
+     * @param event the event, null if the action proceeded
+     * @return whether the event is an error
+     */
+    private static boolean isError(@Nullable final Event event) {
+        return event != null && !EventIds.PROCEED_EVENT_ID.equals(event.getId());
+    }
+
+    /**
+     * Build a supplier of a servlet request to the IdP.
+     * 
+     * @return the supplier
+     */
+    @Nonnull
+    private static NonnullSupplier<HttpServletRequest> newHttpServletRequestSupplier() {
+        final MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        httpRequest.setScheme("https");
+        httpRequest.setServerName("idp.example.org");
+        return () -> httpRequest;
+    }
+
+    /**
+     * Instantiate and initialize the storage service.
+     * 
+     * @param className class name of the storage service
+     * @return the storage service
+     * @throws ReflectiveOperationException if the class could not be instantiated
+     * @throws ComponentInitializationException if the storage service could not be initialized
+     */
+    @Nonnull
+    private static StorageService newStorageService(@Nonnull final String className)
+            throws ReflectiveOperationException, ComponentInitializationException {
+        final StorageService service =
+                (StorageService) Class.forName(className).getDeclaredConstructor().newInstance();
+        if (service instanceof AbstractIdentifiableInitializableComponent) {
+            ((AbstractIdentifiableInitializableComponent) service).setId("load");
+            ((AbstractIdentifiableInitializableComponent) service).initialize();
+        }
+        return service;
+    }
+
+}
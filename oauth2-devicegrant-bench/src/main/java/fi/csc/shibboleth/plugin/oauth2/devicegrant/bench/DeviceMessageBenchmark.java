@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.bench;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationSuccessResponse;
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceTokenRequest;
+
+/**
+ * Measures decoding of the device token request, received on every poll, and encoding of the device authorization
+ * response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceMessageBenchmark {
+
+    /** Device token request as received from the device. */
+    private HTTPRequest tokenRequest;
+
+    /** Device authorization response to encode. */
+    private OAuth2DeviceAuthorizationSuccessResponse authorizationResponse;
+
+    /** Prepare the messages. */
+    @Setup
+    public void setUp() {
+        tokenRequest = new OAuth2DeviceTokenRequest(URI.create("https://idp.example.org/idp/profile/oauth2/token"),
+                new ClientID("demo_rp_client"), OAuth2DeviceTokenRequest.grantTypeValue,
+                "ezfnWaQbJmnfyfEZ9qFkgPtUfX8u4B1G").toHTTPRequest();
+        final URI verificationURI = URI.create("https://idp.example.org/idp/profile/oauth2/devicegrant/authenticate");
+        authorizationResponse = new OAuth2DeviceAuthorizationSuccessResponse("ezfnWaQbJmnfyfEZ9qFkgPtUfX8u4B1G",
+                "a1b2c3d4", verificationURI, URI.create(verificationURI + "?user_code=a1b2c3d4"), 600, 5);
+    }
+
+    /**
+     * Parse the device token request.
+     * 
+     * @return the parsed request
+     * @throws ParseException if the request could not be parsed
+     */
+    @Benchmark
+    public OAuth2DeviceTokenRequest parseTokenRequest() throws ParseException {
+        return OAuth2DeviceTokenRequest.parse(tokenRequest);
+    }
+
+    /**
+     * Encode the device authorization response.
+     * 
+     * @return the HTTP response
+     */
+    @Benchmark
+    public HTTPResponse authorizationResponseToHTTPResponse() {
+        return authorizationResponse.toHTTPResponse();
+    }
+
+}
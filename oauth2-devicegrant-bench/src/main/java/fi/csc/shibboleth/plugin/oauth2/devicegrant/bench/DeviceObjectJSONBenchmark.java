@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+
+/**
+ * Measures the JSON object round-trips of {@link DeviceCodeObject} and {@link DeviceStateObject}, without the string
+ * serialisation measured by {@link DeviceRecordCodecBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceObjectJSONBenchmark {
+
+    /** Device code object. */
+    private DeviceCodeObject deviceCodeObject;
+
+    /** Pending device state object, as read on most polls. */
+    private DeviceStateObject pendingState;
+
+    /** Approved device state object. */
+    private DeviceStateObject approvedState;
+
+    /** Prepare the objects. */
+    @Setup
+    public void setUp() {
+        deviceCodeObject = new DeviceCodeObject("ezfnWaQbJmnfyfEZ9qFkgPtUfX8u4B1G",
+                new ClientID("demo_rp_client"), com.nimbusds.oauth2.sdk.Scope.parse("openid profile email"));
+        pendingState = new DeviceStateObject();
+        pendingState.setPollingInterval(5000L);
+        pendingState.setClientID("demo_rp_client");
+        final StringBuilder token = new StringBuilder();
+        while (token.length() < 600) {
+            token.append("AAdzZWNyZXQxYXvK3kWq9mJ1cZ0vXb2x7Yt6uP4sRr8n");
+        }
+        approvedState = new DeviceStateObject(DeviceStateObject.State.APPROVED, token.toString(),
+                System.currentTimeMillis() + 600000L);
+    }
+
+    /**
+     * Round-trip the device code object.
+     * 
+     * @return the copy
+     */
+    @Benchmark
+    public DeviceCodeObject deviceCodeRoundTrip() {
+        return DeviceCodeObject.fromJSONObject(deviceCodeObject.toJSONObject());
+    }
+
+    /**
+     * Round-trip the pending device state object.
+     * 
+     * @return the copy
+     */
+    @Benchmark
+    public DeviceStateObject pendingStateRoundTrip() {
+        return DeviceStateObject.fromJSONObject(pendingState.toJSONObject());
+    }
+
+    /**
+     * Round-trip the approved device state object.
+     * 
+     * @return the copy
+     */
+    @Benchmark
+    public DeviceStateObject approvedStateRoundTrip() {
+        return DeviceStateObject.fromJSONObject(approvedState.toJSONObject());
+    }
+
+}
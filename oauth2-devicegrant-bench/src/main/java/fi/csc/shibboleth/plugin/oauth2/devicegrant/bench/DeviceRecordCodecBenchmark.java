@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.CompactDeviceRecordCodec;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceRecordCodec;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.JSONDeviceRecordCodec;
+
+/**
+ * Compares the encoding and decoding cost of the {@link DeviceRecordCodec} implementations. The state record is
+ * benchmarked in its approved form, which carries the sealed access token and is the largest record read on the
+ * polling path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceRecordCodecBenchmark {
+
+    /** Codec under benchmark. */
+    @Param({"json", "compact"})
+    private String codecName;
+
+    /** Codec instance. */
+    private DeviceRecordCodec codec;
+
+    /** Device code object to encode. */
+    private DeviceCodeObject deviceCodeObject;
+
+    /** Device state object to encode. */
+    private DeviceStateObject deviceStateObject;
+
+    /** Encoded device code record. */
+    private String encodedDeviceCode;
+
+    /** Encoded device state record. */
+    private String encodedDeviceState;
+
+    /** Prepare the codec and the records. */
+    @Setup
+    public void setUp() {
+        codec = "compact".equals(codecName) ? new CompactDeviceRecordCodec() : new JSONDeviceRecordCodec();
+        deviceCodeObject = new DeviceCodeObject("ezfnWaQbJmnfyfEZ9qFkgPtUfX8u4B1G",
+                new ClientID("demo_rp_client"), com.nimbusds.oauth2.sdk.Scope.parse("openid profile email"));
+        // Sealed tokens are long base64url strings, the length here is in the range produced by the IdP.
+        final StringBuilder token = new StringBuilder();
+        while (token.length() < 600) {
+            token.append("AAdzZWNyZXQxYXvK3kWq9mJ1cZ0vXb2x7Yt6uP4sRr8n");
+        }
+        deviceStateObject = new DeviceStateObject(DeviceStateObject.State.APPROVED, token.toString(),
+                System.currentTimeMillis() + 600000L);
+        encodedDeviceCode = codec.encode(deviceCodeObject);
+        encodedDeviceState = codec.encode(deviceStateObject);
+    }
+
+    /**
+     * Encode device code record.
+     *
+     * @return encoded record
+     */
+    @Benchmark
+    public String encodeDeviceCode() {
+        return codec.encode(deviceCodeObject);
+    }
+
+    /**
+     * Decode device code record.
+     *
+     * @return decoded record
+     * @throws IOException if the record could not be decoded
+     */
+    @Benchmark
+    public DeviceCodeObject decodeDeviceCode() throws IOException {
+        return codec.decodeDeviceCode(encodedDeviceCode);
+    }
+
+    /**
+     * Encode device state record.
+     *
+     * @return encoded record
+     */
+    @Benchmark
+    public String encodeDeviceState() {
+        return codec.encode(deviceStateObject);
+    }
+
+    /**
+     * Decode device state record.
+     *
+     * @return decoded record
+     * @throws IOException if the record could not be decoded
+     */
+    @Benchmark
+    public DeviceStateObject decodeDeviceState() throws IOException {
+        return codec.decodeDeviceState(encodedDeviceState);
+    }
+
+}
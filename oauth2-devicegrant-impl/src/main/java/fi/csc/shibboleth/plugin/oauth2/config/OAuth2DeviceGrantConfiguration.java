@@ -25,6 +25,7 @@ import org.opensaml.profile.context.ProfileRequestContext;
 
 import net.shibboleth.profile.config.ConditionalProfileConfiguration;
 import net.shibboleth.shared.annotation.ConfigurationSetting;
+import net.shibboleth.shared.annotation.constraint.NonNegative;
 import net.shibboleth.shared.annotation.constraint.NotEmpty;
 import net.shibboleth.shared.annotation.constraint.Positive;
 
@@ -106,4 +107,86 @@ public interface OAuth2DeviceGrantConfiguration extends ConditionalProfileConfig
     @Positive
     @Nonnull
     Duration getDeviceCodeLifetime(@Nullable final ProfileRequestContext profileRequestContext);
+
+    /**
+     * Get the maximum time a token request for a pending device code is held waiting for the user's decision.
+     *
+     * <p>
+     * Defaults to 0, meaning the pending state is answered immediately.
+     * </p>
+     *
+     * @param profileRequestContext profile request context
+     *
+     * @return maximum time a token request is held
+     */
+    @ConfigurationSetting(name = "longPollingTimeout")
+    @NonNegative
+    @Nonnull
+    Duration getLongPollingTimeout(@Nullable final ProfileRequestContext profileRequestContext);
+
+    /**
+     * Get the number of device authorization requests a client may make per rate limit period.
+     *
+     * <p>
+     * Defaults to 0, meaning no limit.
+     * </p>
+     *
+     * @param profileRequestContext profile request context
+     *
+     * @return number of requests per client and period
+     */
+    @ConfigurationSetting(name = "clientRateLimit")
+    @NonNegative
+    @Nonnull
+    Integer getClientRateLimit(@Nullable final ProfileRequestContext profileRequestContext);
+
+    /**
+     * Get the number of device authorization requests a source address may make per rate limit period.
+     *
+     * <p>
+     * Defaults to 0, meaning no limit. The source address is the remote address of the servlet request, so the limit
+     * requires the real client address to be available when the IdP runs behind a load balancer or a reverse proxy.
+     * </p>
+     *
+     * @param profileRequestContext profile request context
+     *
+     * @return number of requests per source address and period
+     */
+    @ConfigurationSetting(name = "addressRateLimit")
+    @NonNegative
+    @Nonnull
+    Integer getAddressRateLimit(@Nullable final ProfileRequestContext profileRequestContext);
+
+    /**
+     * Get the period the rate limits of device authorization requests apply to.
+     *
+     * <p>
+     * Defaults to 1 minute.
+     * </p>
+     *
+     * @param profileRequestContext profile request context
+     *
+     * @return rate limit period
+     */
+    @ConfigurationSetting(name = "rateLimitPeriod")
+    @Positive
+    @Nonnull
+    Duration getRateLimitPeriod(@Nullable final ProfileRequestContext profileRequestContext);
+
+    /**
+     * Get the maximum number of pending device codes a client may hold at once on each node.
+     *
+     * <p>
+     * Defaults to 0, meaning no limit. Each node counts only the device codes it issued, so in a cluster a client may
+     * hold up to this many device codes per node.
+     * </p>
+     *
+     * @param profileRequestContext profile request context
+     *
+     * @return maximum number of pending device codes per client
+     */
+    @ConfigurationSetting(name = "maxOutstandingDeviceCodes")
+    @NonNegative
+    @Nonnull
+    Integer getMaxOutstandingDeviceCodes(@Nullable final ProfileRequestContext profileRequestContext);
 }
@@ -29,6 +29,7 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import fi.csc.shibboleth.plugin.oauth2.config.OAuth2DeviceGrantConfiguration;
 import net.shibboleth.oidc.profile.oauth2.config.OAuth2AccessTokenProducingProfileConfiguration;
 import net.shibboleth.profile.config.OverriddenIssuerProfileConfiguration;
+import net.shibboleth.shared.annotation.constraint.NonNegative;
 import net.shibboleth.shared.annotation.constraint.NotEmpty;
 import net.shibboleth.shared.annotation.constraint.Positive;
 import net.shibboleth.shared.logic.Constraint;
@@ -74,6 +75,26 @@ public class DefaultOAuth2DeviceGrantConfiguration extends AbstractOAuth2ClientA
     @Nonnull
     private Function<ProfileRequestContext, Duration> pollingIntervalLookupStrategy;
 
+    /** Lookup function to supply long polling timeout. */
+    @Nonnull
+    private Function<ProfileRequestContext, Duration> longPollingTimeoutLookupStrategy;
+
+    /** Lookup function to supply the rate limit per client. */
+    @Nonnull
+    private Function<ProfileRequestContext, Integer> clientRateLimitLookupStrategy;
+
+    /** Lookup function to supply the rate limit per source address. */
+    @Nonnull
+    private Function<ProfileRequestContext, Integer> addressRateLimitLookupStrategy;
+
+    /** Lookup function to supply the rate limit period. */
+    @Nonnull
+    private Function<ProfileRequestContext, Duration> rateLimitPeriodLookupStrategy;
+
+    /** Lookup function to supply the maximum number of pending device codes per client. */
+    @Nonnull
+    private Function<ProfileRequestContext, Integer> maxOutstandingDeviceCodesLookupStrategy;
+
     /**
      * Constructor.
      */
@@ -87,6 +108,11 @@ public class DefaultOAuth2DeviceGrantConfiguration extends AbstractOAuth2ClientA
         deviceCodeLengthLookupStrategy = FunctionSupport.constant(Integer.valueOf(16));
         userCodeLengthLookupStrategy = FunctionSupport.constant(Integer.valueOf(8));
         pollingIntervalLookupStrategy = FunctionSupport.constant(Duration.ofSeconds(5));
+        longPollingTimeoutLookupStrategy = FunctionSupport.constant(Duration.ZERO);
+        clientRateLimitLookupStrategy = FunctionSupport.constant(Integer.valueOf(0));
+        addressRateLimitLookupStrategy = FunctionSupport.constant(Integer.valueOf(0));
+        rateLimitPeriodLookupStrategy = FunctionSupport.constant(Duration.ofMinutes(1));
+        maxOutstandingDeviceCodesLookupStrategy = FunctionSupport.constant(Integer.valueOf(0));
     }
 
     @Override
@@ -305,6 +331,160 @@ public class DefaultOAuth2DeviceGrantConfiguration extends AbstractOAuth2ClientA
         pollingIntervalLookupStrategy = Constraint.isNotNull(strategy, "Lookup strategy cannot be null");
     }
 
+    @Override
+    @NonNegative
+    @Nonnull
+    public Duration getLongPollingTimeout(@Nullable final ProfileRequestContext profileRequestContext) {
+        final Duration timeout = longPollingTimeoutLookupStrategy.apply(profileRequestContext);
+
+        Constraint.isTrue(timeout != null && !timeout.isNegative(), "Long polling timeout cannot be negative");
+        return timeout;
+    }
+
+    /**
+     * Set the long polling timeout.
+     * 
+     * @param timeout long polling timeout, 0 to disable long polling
+     */
+    public void setLongPollingTimeout(@NonNegative @Nonnull final Duration timeout) {
+        Constraint.isTrue(timeout != null && !timeout.isNegative(), "Long polling timeout cannot be negative");
+
+        longPollingTimeoutLookupStrategy = FunctionSupport.constant(timeout);
+    }
+
+    /**
+     * Set a lookup strategy for long polling timeout.
+     *
+     * @param strategy lookup strategy
+     */
+    public void setLongPollingTimeoutLookupStrategy(
+            @Nullable final Function<ProfileRequestContext, Duration> strategy) {
+        longPollingTimeoutLookupStrategy = Constraint.isNotNull(strategy, "Lookup strategy cannot be null");
+    }
+
+    @Override
+    @NonNegative
+    @Nonnull
+    public Integer getClientRateLimit(@Nullable final ProfileRequestContext profileRequestContext) {
+        final Integer limit = clientRateLimitLookupStrategy.apply(profileRequestContext);
+
+        Constraint.isTrue(limit != null && limit >= 0, "Client rate limit cannot be negative");
+        return limit;
+    }
+
+    /**
+     * Set the number of device authorization requests a client may make per rate limit period.
+     * 
+     * @param limit number of requests, 0 for no limit
+     */
+    public void setClientRateLimit(@NonNegative @Nonnull final Integer limit) {
+        Constraint.isTrue(limit != null && limit >= 0, "Client rate limit cannot be negative");
+
+        clientRateLimitLookupStrategy = FunctionSupport.constant(limit);
+    }
+
+    /**
+     * Set a lookup strategy for the rate limit per client.
+     *
+     * @param strategy lookup strategy
+     */
+    public void setClientRateLimitLookupStrategy(@Nullable final Function<ProfileRequestContext, Integer> strategy) {
+        clientRateLimitLookupStrategy = Constraint.isNotNull(strategy, "Lookup strategy cannot be null");
+    }
+
+    @Override
+    @NonNegative
+    @Nonnull
+    public Integer getAddressRateLimit(@Nullable final ProfileRequestContext profileRequestContext) {
+        final Integer limit = addressRateLimitLookupStrategy.apply(profileRequestContext);
+
+        Constraint.isTrue(limit != null && limit >= 0, "Address rate limit cannot be negative");
+        return limit;
+    }
+
+    /**
+     * Set the number of device authorization requests a source address may make per rate limit period.
+     * 
+     * @param limit number of requests, 0 for no limit
+     */
+    public void setAddressRateLimit(@NonNegative @Nonnull final Integer limit) {
+        Constraint.isTrue(limit != null && limit >= 0, "Address rate limit cannot be negative");
+
+        addressRateLimitLookupStrategy = FunctionSupport.constant(limit);
+    }
+
+    /**
+     * Set a lookup strategy for the rate limit per source address.
+     *
+     * @param strategy lookup strategy
+     */
+    public void setAddressRateLimitLookupStrategy(@Nullable final Function<ProfileRequestContext, Integer> strategy) {
+        addressRateLimitLookupStrategy = Constraint.isNotNull(strategy, "Lookup strategy cannot be null");
+    }
+
+    @Override
+    @Positive
+    @Nonnull
+    public Duration getRateLimitPeriod(@Nullable final ProfileRequestContext profileRequestContext) {
+        final Duration period = rateLimitPeriodLookupStrategy.apply(profileRequestContext);
+
+        Constraint.isTrue(period != null && !period.isZero() && !period.isNegative(),
+                "Rate limit period must be greater than 0");
+        return period;
+    }
+
+    /**
+     * Set the period the rate limits apply to.
+     * 
+     * @param period rate limit period
+     */
+    public void setRateLimitPeriod(@Positive @Nonnull final Duration period) {
+        Constraint.isTrue(period != null && !period.isZero() && !period.isNegative(),
+                "Rate limit period must be greater than 0");
+
+        rateLimitPeriodLookupStrategy = FunctionSupport.constant(period);
+    }
+
+    /**
+     * Set a lookup strategy for the rate limit period.
+     *
+     * @param strategy lookup strategy
+     */
+    public void setRateLimitPeriodLookupStrategy(@Nullable final Function<ProfileRequestContext, Duration> strategy) {
+        rateLimitPeriodLookupStrategy = Constraint.isNotNull(strategy, "Lookup strategy cannot be null");
+    }
+
+    @Override
+    @NonNegative
+    @Nonnull
+    public Integer getMaxOutstandingDeviceCodes(@Nullable final ProfileRequestContext profileRequestContext) {
+        final Integer max = maxOutstandingDeviceCodesLookupStrategy.apply(profileRequestContext);
+
+        Constraint.isTrue(max != null && max >= 0, "Maximum number of pending device codes cannot be negative");
+        return max;
+    }
+
+    /**
+     * Set the maximum number of pending device codes a client may hold at once.
+     * 
+     * @param max maximum number of pending device codes, 0 for no limit
+     */
+    public void setMaxOutstandingDeviceCodes(@NonNegative @Nonnull final Integer max) {
+        Constraint.isTrue(max != null && max >= 0, "Maximum number of pending device codes cannot be negative");
+
+        maxOutstandingDeviceCodesLookupStrategy = FunctionSupport.constant(max);
+    }
+
+    /**
+     * Set a lookup strategy for the maximum number of pending device codes per client.
+     *
+     * @param strategy lookup strategy
+     */
+    public void setMaxOutstandingDeviceCodesLookupStrategy(
+            @Nullable final Function<ProfileRequestContext, Integer> strategy) {
+        maxOutstandingDeviceCodesLookupStrategy = Constraint.isNotNull(strategy, "Lookup strategy cannot be null");
+    }
+
     /** {@inheritDoc} */
     @Override
     @Nullable
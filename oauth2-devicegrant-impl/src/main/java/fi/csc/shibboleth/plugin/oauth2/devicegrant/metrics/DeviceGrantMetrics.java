@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.UserCodeCollisionMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCacheObserver;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceRecordExpirySweeper;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.StorageServiceShards;
+import net.shibboleth.shared.annotation.ParameterName;
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Metrics of the device flow, registered to a {@link MetricRegistry} under {@link #PREFIX}.
+ *
+ * <ul>
+ * <li>{@code userCodes.issued}, {@code userCodes.collisions}, {@code userCodes.exhausted}: gauges of the
+ * {@link UserCodeCollisionMetrics} set with {@link #setUserCodeMetrics(UserCodeCollisionMetrics)}.</li>
+ * <li>{@code decisions.approved}, {@code decisions.denied}: meters of the user decisions.</li>
+ * <li>{@code decisions.timeToApproval}: timer of the time from issuing the device code to its approval.</li>
+ * <li>{@code polls.pending}, {@code polls.slow_down}, {@code polls.approved}, {@code polls.denied},
+ * {@code polls.expired}: meters of the token polls by the answer given. Their sum divided by the issued user codes
+ * is the poll amplification.</li>
+ * <li>{@code expirySweeper.removed}, {@code expirySweeper.tracked}: gauges of the {@link DeviceRecordExpirySweeper}
+ * set with {@link #setExpirySweeper(DeviceRecordExpirySweeper)}.</li>
+ * <li>{@code storageShards.<shard>.operations}, {@code storageShards.moved}: gauges of the record operations routed
+ * to each shard and of the records moved to their shard, of the {@link StorageServiceShards} set with
+ * {@link #setStorageShards(StorageServiceShards)}.</li>
+ * <li>{@code storage.store}, {@code storage.read_device_code}, ...: timers of the operations of the device code
+ * cache, when this instance is set as its {@link DeviceCodesCacheObserver}.</li>
+ * </ul>
+ */
+@ThreadSafe
+public class DeviceGrantMetrics implements DeviceCodesCacheObserver {
+
+    /** Prefix of the metric names. */
+    @Nonnull
+    public static final String PREFIX = "fi.csc.shibboleth.plugin.oauth2.devicegrant";
+
+    /** Answers to a token poll. */
+    public enum PollOutcome {
+        /** The user has not made a decision yet. */
+        PENDING,
+        /** The device polled too fast. */
+        SLOW_DOWN,
+        /** The access token was returned. */
+        APPROVED,
+        /** The user denied the request. */
+        DENIED,
+        /** The device code was unknown, expired or already consumed. */
+        EXPIRED
+    }
+
+    /** The registry. */
+    @Nonnull
+    private final MetricRegistry registry;
+
+    /** Approvals by the user. */
+    @Nonnull
+    private final Meter approvals;
+
+    /** Denials by the user. */
+    @Nonnull
+    private final Meter denials;
+
+    /** Time from issuing the device code to its approval. */
+    @Nonnull
+    private final Timer timeToApproval;
+
+    /** Token polls by outcome. */
+    @Nonnull
+    private final Map<PollOutcome, Meter> polls;
+
+    /** Cache operation timers by operation. */
+    @Nonnull
+    private final Map<Operation, Timer> operations;
+
+    /**
+     * Constructor.
+     *
+     * @param metricRegistry registry to register the metrics to
+     */
+    public DeviceGrantMetrics(@Nonnull @ParameterName(name = "registry") final MetricRegistry metricRegistry) {
+        registry = Constraint.isNotNull(metricRegistry, "MetricRegistry cannot be null");
+        approvals = registry.meter(MetricRegistry.name(PREFIX, "decisions", "approved"));
+        denials = registry.meter(MetricRegistry.name(PREFIX, "decisions", "denied"));
+        timeToApproval = registry.timer(MetricRegistry.name(PREFIX, "decisions", "timeToApproval"));
+        polls = new EnumMap<>(PollOutcome.class);
+        for (final PollOutcome outcome : PollOutcome.values()) {
+            polls.put(outcome, registry.meter(MetricRegistry.name(PREFIX, "polls", toName(outcome))));
+        }
+        operations = new EnumMap<>(Operation.class);
+        for (final Operation operation : Operation.values()) {
+            operations.put(operation, registry.timer(MetricRegistry.name(PREFIX, "storage", toName(operation))));
+        }
+    }
+
+    /**
+     * Set the user code counters to expose as gauges.
+     *
+     * @param userCodeMetrics user code counters, null for none
+     */
+    public void setUserCodeMetrics(@Nullable final UserCodeCollisionMetrics userCodeMetrics) {
+        if (userCodeMetrics == null) {
+            return;
+        }
+        register("userCodes", "issued", userCodeMetrics::getIssued);
+        register("userCodes", "collisions", userCodeMetrics::getCollisions);
+        register("userCodes", "exhausted", userCodeMetrics::getExhausted);
+    }
+
+    /**
+     * Set the expiry sweeper whose counts to expose as gauges.
+     *
+     * @param sweeper the expiry sweeper, null for none
+     */
+    public void setExpirySweeper(@Nullable final DeviceRecordExpirySweeper sweeper) {
+        if (sweeper == null) {
+            return;
+        }
+        register("expirySweeper", "removed", sweeper::getRemovedRecords);
+        register("expirySweeper", "tracked", () -> (long) sweeper.getTrackedRecords());
+    }
+
+    /**
+     * Set the storage shards whose counts to expose as gauges.
+     *
+     * @param shards the storage shards, null for none
+     */
+    public void setStorageShards(@Nullable final StorageServiceShards shards) {
+        if (shards == null) {
+            return;
+        }
+        for (final String shardId : shards.getShardIds()) {
+            register(MetricRegistry.name("storageShards", shardId), "operations", () -> shards.getOperations(shardId));
+        }
+        register("storageShards", "moved", shards::getMovedRecords);
+    }
+
+    /**
+     * Record a decision of the user.
+     *
+     * @param approved whether the user approved the request
+     * @param issuedAt time the device code was issued, from EPOCH in milliseconds, null if not known
+     */
+    public void recordDecision(final boolean approved, @Nullable final Long issuedAt) {
+        if (!approved) {
+            denials.mark();
+            return;
+        }
+        approvals.mark();
+        if (issuedAt != null) {
+            timeToApproval.update(Math.max(0, System.currentTimeMillis() - issuedAt), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Record the answer given to a token poll.
+     *
+     * @param outcome the answer
+     */
+    public void recordPoll(@Nonnull final PollOutcome outcome) {
+        polls.get(outcome).mark();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void operationCompleted(@Nonnull final Operation operation, @NonNegative final long durationNanos) {
+        operations.get(operation).update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Register a gauge, replacing one registered earlier under the same name.
+     *
+     * @param group group of the gauge below the prefix
+     * @param name name of the gauge within the group
+     * @param gauge the gauge
+     */
+    private void register(@Nonnull final String group, @Nonnull final String name, @Nonnull final Gauge<Long> gauge) {
+        final String fullName = MetricRegistry.name(PREFIX, group, name);
+        registry.remove(fullName);
+        registry.register(fullName, gauge);
+    }
+
+    /**
+     * Get the metric name of an enum constant.
+     *
+     * @param value the constant
+     * @return lower case name of the constant
+     */
+    @Nonnull
+    private static String toName(@Nonnull final Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -39,8 +39,9 @@ import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 
 /**
- * Scope lookup function for Authentication end point. The lookup locates a {@link DeviceCodeObject} from
- * {@DeviceCodesCache} by user code and returns {@link DeviceCodeObject#getScope()}
+ * Scope lookup function for Authentication end point. The lookup locates a {@link DeviceCodeObject} attached to the
+ * inbound message context, or from {@DeviceCodesCache} by user code if none is attached, and returns
+ * {@link DeviceCodeObject#getScope()}
  */
 public class DeviceScopeLookupFunction extends AbstractInitializableComponent
         implements ContextDataLookupFunction<ProfileRequestContext, Scope> {
@@ -53,6 +54,10 @@ public class DeviceScopeLookupFunction extends AbstractInitializableComponent
     @Nonnull
     private Function<MessageContext, String> userCodeLookupStrategy;
 
+    /** Strategy to locate the device code object already read for the user code. */
+    @Nonnull
+    private Function<MessageContext, DeviceCodeObject> deviceCodeObjectLookupStrategy;
+
     /** Cache for device codes. */
     @NonnullAfterInit
     private DeviceCodesCache deviceCodesCache;
@@ -62,6 +67,7 @@ public class DeviceScopeLookupFunction extends AbstractInitializableComponent
      */
     public DeviceScopeLookupFunction() {
         userCodeLookupStrategy = new DeviceUserCodeLookupFunction();
+        deviceCodeObjectLookupStrategy = new DeviceCodeObjectLookupFunction();
     }
 
     /**
@@ -75,6 +81,17 @@ public class DeviceScopeLookupFunction extends AbstractInitializableComponent
                 Constraint.isNotNull(strategy, "DeviceUserCodeLookupStrategy lookup strategy cannot be null");
     }
 
+    /**
+     * Set strategy to locate the device code object already read for the user code.
+     * 
+     * @param strategy Strategy to locate the device code object
+     */
+    public void setDeviceCodeObjectLookupStrategy(@Nonnull final Function<MessageContext, DeviceCodeObject> strategy) {
+        checkSetterPreconditions();
+        deviceCodeObjectLookupStrategy =
+                Constraint.isNotNull(strategy, "DeviceCodeObjectLookupStrategy lookup strategy cannot be null");
+    }
+
     /**
      * Set cache for device codes.
      * 
@@ -98,11 +115,13 @@ public class DeviceScopeLookupFunction extends AbstractInitializableComponent
             return null;
         }
         String userCode = userCodeLookupStrategy.apply(input.getInboundMessageContext());
-        DeviceCodeObject obj = null;
-        try {
-            obj = deviceCodesCache.getDeviceCode(userCode);
-        } catch (IOException | ParseException e) {
-            log.error("Exception occurred while accessing Device Code Cache {}", e);
+        DeviceCodeObject obj = deviceCodeObjectLookupStrategy.apply(input.getInboundMessageContext());
+        if (obj == null) {
+            try {
+                obj = deviceCodesCache.getDeviceCode(userCode);
+            } catch (IOException | ParseException e) {
+                log.error("Exception occurred while accessing Device Code Cache {}", e);
+            }
         }
         if (obj == null) {
             log.warn("No device code matching user code {}", userCode);
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+
+/**
+ * Generates the user codes the end user enters on a secondary device, as described in RFC 8628 section 6.1.
+ *
+ * <p>
+ * Implementations must be thread-safe, a single instance is shared by all requests.
+ * </p>
+ */
+public interface UserCodeGenerator {
+
+    /**
+     * Generate a random user code.
+     *
+     * @param length number of characters in the user code
+     * @return user code
+     */
+    @Nonnull
+    @NotEmpty
+    String generateUserCode(@Positive int length);
+
+    /**
+     * Get the number of distinct user codes of the given length this generator can produce.
+     *
+     * @param length number of characters in the user code
+     * @return number of distinct user codes
+     */
+    double getKeyspaceSize(@Positive int length);
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl;
+
+import java.security.SecureRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.UserCodeGenerator;
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * {@link UserCodeGenerator} picking each character of the user code uniformly at random from an alphabet.
+ *
+ * <p>
+ * Defaults to {@link #HEX_ALPHABET}, the characters of the user codes previously cut from generated identifiers.
+ * {@link #BASE20_ALPHABET} is the set recommended by RFC 8628 section 6.1, it has no vowels or easily confused
+ * characters, so a code of 8 characters carries about 34.5 bits of entropy.
+ * </p>
+ */
+@ThreadSafe
+public class AlphabetUserCodeGenerator implements UserCodeGenerator {
+
+    /** Lower case hexadecimal digits. */
+    @Nonnull
+    @NotEmpty
+    public static final String HEX_ALPHABET = "0123456789abcdef";
+
+    /** Upper case consonants recommended by RFC 8628. */
+    @Nonnull
+    @NotEmpty
+    public static final String BASE20_ALPHABET = "BCDFGHJKLMNPQRSTVWXZ";
+
+    /** Characters of the user codes. */
+    @Nonnull
+    @NotEmpty
+    private final char[] alphabet;
+
+    /** Source of randomness. */
+    @Nonnull
+    private final SecureRandom random;
+
+    /**
+     * Constructor. User codes consist of {@link #HEX_ALPHABET} characters.
+     */
+    public AlphabetUserCodeGenerator() {
+        this(HEX_ALPHABET);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param characters characters of the user codes, at least two and each only once
+     */
+    public AlphabetUserCodeGenerator(@Nonnull @NotEmpty final String characters) {
+        Constraint.isNotNull(characters, "Alphabet cannot be null");
+        Constraint.isTrue(characters.length() >= 2, "Alphabet must have at least two characters");
+        Constraint.isTrue(characters.chars().distinct().count() == characters.length(),
+                "Alphabet cannot contain a character twice");
+        alphabet = characters.toCharArray();
+        random = new SecureRandom();
+    }
+
+    /**
+     * Get the characters of the user codes.
+     *
+     * @return characters of the user codes
+     */
+    @Nonnull
+    @NotEmpty
+    public String getAlphabet() {
+        return new String(alphabet);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String generateUserCode(@Positive final int length) {
+        Constraint.isGreaterThan(0, length, "User code length must be greater than 0");
+        final char[] code = new char[length];
+        for (int i = 0; i < length; i++) {
+            code[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return new String(code);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getKeyspaceSize(@Positive final int length) {
+        return Math.pow(alphabet.length, length);
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.security.IdentifierGenerationStrategy;
+
+/**
+ * Identifier generation strategy producing hex encoded random identifiers, in the same format as
+ * {@link net.shibboleth.shared.security.impl.SecureRandomIdentifierGenerationStrategy}.
+ *
+ * <p>
+ * Each thread has its own {@link SecureRandom}, seeded once on first use, and a pool of random bytes that is refilled
+ * with a single call to the generator when exhausted. A single instance is meant to be shared, so generating an
+ * identifier neither seeds a new generator nor contends on a shared one. Consumed bytes are cleared from the pool.
+ * </p>
+ */
+@ThreadSafe
+public class PooledSecureRandomIdentifierGenerationStrategy implements IdentifierGenerationStrategy {
+
+    /** Default number of random bytes in an identifier. */
+    public static final int DEFAULT_SIZE = 16;
+
+    /** Default number of random bytes in the pool of each thread. */
+    public static final int DEFAULT_POOL_SIZE = 512;
+
+    /** Number of random bytes in an identifier. */
+    @Positive
+    private final int size;
+
+    /** Number of random bytes in the pool of each thread. */
+    @Positive
+    private final int poolSize;
+
+    /** Random byte pools of the threads. */
+    @Nonnull
+    private final ThreadLocal<Pool> pools;
+
+    /**
+     * Constructor. Identifiers are {@link #DEFAULT_SIZE} bytes long.
+     */
+    public PooledSecureRandomIdentifierGenerationStrategy() {
+        this(DEFAULT_SIZE, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param identifierSize number of random bytes in an identifier
+     * @param bytesPooled number of random bytes in the pool of each thread, at least the identifier size
+     */
+    public PooledSecureRandomIdentifierGenerationStrategy(@Positive final int identifierSize,
+            @Positive final int bytesPooled) {
+        size = (int) Constraint.isGreaterThan(0, identifierSize, "Identifier size must be greater than 0");
+        Constraint.isTrue(bytesPooled >= identifierSize, "Pool size must be at least the identifier size");
+        poolSize = bytesPooled;
+        pools = ThreadLocal.withInitial(() -> new Pool(poolSize));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String generateIdentifier() {
+        return generateIdentifier(true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String generateIdentifier(final boolean xmlSafe) {
+        final byte[] buf = new byte[size];
+        pools.get().nextBytes(buf);
+        final String identifier = HexFormat.of().formatHex(buf);
+        Arrays.fill(buf, (byte) 0);
+        return xmlSafe ? "_".concat(identifier) : identifier;
+    }
+
+    /** Pool of random bytes of a single thread. */
+    private static final class Pool {
+
+        /** Source of the random bytes. */
+        @Nonnull
+        private final SecureRandom random;
+
+        /** Pooled random bytes. */
+        @Nonnull
+        private final byte[] bytes;
+
+        /** Position of the first unused byte. */
+        private int position;
+
+        /**
+         * Constructor.
+         *
+         * @param poolSize number of random bytes pooled
+         */
+        private Pool(final int poolSize) {
+            random = new SecureRandom();
+            bytes = new byte[poolSize];
+            position = poolSize;
+        }
+
+        /**
+         * Fill the buffer with random bytes from the pool, refilling the pool if needed.
+         *
+         * @param buf buffer to fill, not larger than the pool
+         */
+        private void nextBytes(@Nonnull final byte[] buf) {
+            if (bytes.length - position < buf.length) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            System.arraycopy(bytes, position, buf, 0, buf.length);
+            Arrays.fill(bytes, position, position + buf.length, (byte) 0);
+            position += buf.length;
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+
+/**
+ * Counts user code issuance attempts and collisions with user codes already in use.
+ *
+ * <p>
+ * A randomly generated user code collides with probability equal to the fraction of the keyspace occupied by
+ * outstanding user codes, so the collision rate estimates the occupancy and, multiplied by the keyspace size, the
+ * number of outstanding user codes. The counters are cumulative since startup; sample them periodically and compare
+ * the differences to follow the occupancy over time, and raise the user code length when it grows.
+ * </p>
+ */
+@ThreadSafe
+public class UserCodeCollisionMetrics {
+
+    /** Number of user codes issued. */
+    @Nonnull
+    private final LongAdder issued;
+
+    /** Number of generated user codes that were already in use. */
+    @Nonnull
+    private final LongAdder collisions;
+
+    /** Number of requests failed because every attempt collided. */
+    @Nonnull
+    private final LongAdder exhausted;
+
+    /** Keyspace size of the latest issuance. */
+    private volatile double keyspaceSize;
+
+    /** Constructor. */
+    public UserCodeCollisionMetrics() {
+        issued = new LongAdder();
+        collisions = new LongAdder();
+        exhausted = new LongAdder();
+    }
+
+    /**
+     * Record a user code issued after the given number of collisions.
+     *
+     * @param collisionCount number of collisions before the user code was issued
+     * @param keyspace keyspace size of the user code
+     */
+    public void recordIssued(@NonNegative final int collisionCount, final double keyspace) {
+        issued.increment();
+        collisions.add(collisionCount);
+        keyspaceSize = keyspace;
+    }
+
+    /**
+     * Record a request that failed because all of its attempts collided.
+     *
+     * @param collisionCount number of user code collisions, attempts failing on the device code not included
+     * @param keyspace keyspace size of the user codes
+     */
+    public void recordExhausted(@NonNegative final int collisionCount, final double keyspace) {
+        exhausted.increment();
+        collisions.add(collisionCount);
+        keyspaceSize = keyspace;
+    }
+
+    /**
+     * Get the number of user codes issued.
+     *
+     * @return number of user codes issued
+     */
+    @NonNegative
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    /**
+     * Get the number of generated user codes that were already in use.
+     *
+     * @return number of collisions
+     */
+    @NonNegative
+    public long getCollisions() {
+        return collisions.sum();
+    }
+
+    /**
+     * Get the number of requests failed because every attempt collided.
+     *
+     * @return number of exhausted requests
+     */
+    @NonNegative
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    /**
+     * Get the number of user codes tried, issued or collided.
+     *
+     * @return number of attempts
+     */
+    @NonNegative
+    public long getAttempts() {
+        return issued.sum() + collisions.sum();
+    }
+
+    /**
+     * Get the fraction of attempts that collided.
+     *
+     * @return collision rate between 0 and 1, 0 before the first attempt
+     */
+    public double getCollisionRate() {
+        final long attempts = getAttempts();
+        return attempts == 0 ? 0 : (double) getCollisions() / attempts;
+    }
+
+    /**
+     * Get the keyspace size of the latest attempt.
+     *
+     * @return keyspace size, 0 before the first attempt
+     */
+    public double getKeyspaceSize() {
+        return keyspaceSize;
+    }
+
+    /**
+     * Get the number of outstanding user codes estimated from the collision rate and the keyspace size.
+     *
+     * @return estimated number of outstanding user codes
+     */
+    public double getEstimatedOccupancy() {
+        return getCollisionRate() * keyspaceSize;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.profile.impl;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.shibboleth.plugin.oauth2.config.OAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceRequestRateLimiter;
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.idp.profile.IdPEventIds;
+import net.shibboleth.profile.config.ProfileConfiguration;
+import net.shibboleth.profile.context.RelyingPartyContext;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Action checking the rate of device authorization requests of the client and of the source address against the
+ * limits of the {@link OAuth2DeviceGrantConfiguration}. The action is run after client authentication, once the
+ * profile configuration of the client is known, and before anything is written to the device code storage.
+ *
+ * <p>
+ * The source address is the remote address of the servlet request. Behind a load balancer or a reverse proxy the
+ * container must be configured to expose the real client address, otherwise all requests share the same limit.
+ * </p>
+ *
+ * @event {@link org.opensaml.profile.action.EventIds#PROCEED_EVENT_ID}
+ * @event {@link DeviceEventIds#RATE_LIMITED}
+ * @event {@link IdPEventIds#INVALID_RELYING_PARTY_CTX}
+ * @event {@link EventIds#INVALID_PROFILE_CTX}
+ */
+public class CheckDeviceAuthorizationRate extends AbstractProfileAction {
+
+    /** Class logger. */
+    @Nonnull
+    private Logger log = LoggerFactory.getLogger(CheckDeviceAuthorizationRate.class);
+
+    /** Rate limiter of the requests. */
+    @NonnullAfterInit
+    private DeviceRequestRateLimiter rateLimiter;
+
+    /**
+     * Strategy used to locate the {@link RelyingPartyContext} associated with a given {@link ProfileRequestContext}.
+     */
+    @Nonnull
+    private Function<ProfileRequestContext, RelyingPartyContext> relyingPartyContextLookupStrategy;
+
+    /** Relying party context. Nonnull after pre-execute. */
+    @Nullable
+    private RelyingPartyContext rpCtx;
+
+    /** Profile configuration. Nonnull after pre-execute. */
+    @Nullable
+    private OAuth2DeviceGrantConfiguration config;
+
+    /**
+     * Constructor.
+     */
+    public CheckDeviceAuthorizationRate() {
+        relyingPartyContextLookupStrategy = new ChildContextLookup<>(RelyingPartyContext.class);
+    }
+
+    /**
+     * Set the rate limiter of the requests.
+     *
+     * @param limiter rate limiter
+     */
+    public void setRateLimiter(@Nonnull final DeviceRequestRateLimiter limiter) {
+        checkSetterPreconditions();
+        rateLimiter = Constraint.isNotNull(limiter, "DeviceRequestRateLimiter cannot be null");
+    }
+
+    /**
+     * Set the strategy used to locate the {@link RelyingPartyContext} associated with a given
+     * {@link ProfileRequestContext}.
+     *
+     * @param strategy strategy used to locate the {@link RelyingPartyContext}
+     */
+    public void setRelyingPartyContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, RelyingPartyContext> strategy) {
+        checkSetterPreconditions();
+        relyingPartyContextLookupStrategy = Constraint.isNotNull(strategy,
+                "RelyingPartyContext lookup strategy cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        Constraint.isNotNull(rateLimiter, "DeviceRequestRateLimiter cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        if (!super.doPreExecute(profileRequestContext)) {
+            return false;
+        }
+        if (getHttpServletRequest() == null) {
+            log.error("{} Profile action does not contain an HttpServletRequest", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
+            return false;
+        }
+        rpCtx = relyingPartyContextLookupStrategy.apply(profileRequestContext);
+        if (rpCtx == null || rpCtx.getRelyingPartyId() == null) {
+            log.error("{} No relying party context associated with this profile request", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, IdPEventIds.INVALID_RELYING_PARTY_CTX);
+            return false;
+        }
+        final ProfileConfiguration pc = rpCtx.getProfileConfig();
+        if (!(pc instanceof OAuth2DeviceGrantConfiguration)) {
+            log.error("{} No oauth2 device flow profile configuration associated with this profile request",
+                    getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, IdPEventIds.INVALID_RELYING_PARTY_CTX);
+            return false;
+        }
+        config = (OAuth2DeviceGrantConfiguration) pc;
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final Duration period = config.getRateLimitPeriod(profileRequestContext);
+        final String clientId = rpCtx.getRelyingPartyId();
+        if (!rateLimiter.tryAcquire("client:" + clientId, config.getClientRateLimit(profileRequestContext),
+                period)) {
+            log.info("{} Too many device authorization requests from client {}", getLogPrefix(), clientId);
+            ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.RATE_LIMITED);
+            return;
+        }
+        final String address = getHttpServletRequest().getRemoteAddr();
+        if (address != null && !rateLimiter.tryAcquire("address:" + address,
+                config.getAddressRateLimit(profileRequestContext), period)) {
+            log.info("{} Too many device authorization requests from address {}", getLogPrefix(), address);
+            ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.RATE_LIMITED);
+        }
+    }
+
+}
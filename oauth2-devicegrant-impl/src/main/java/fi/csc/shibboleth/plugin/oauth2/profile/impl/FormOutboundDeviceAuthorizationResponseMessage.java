@@ -23,6 +23,8 @@ import java.time.Duration;
 import java.util.function.Function;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.action.ActionSupport;
@@ -35,24 +37,40 @@ import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 
 import fi.csc.shibboleth.plugin.oauth2.config.OAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.UserCodeGenerator;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.AlphabetUserCodeGenerator;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.UserCodeCollisionMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.OutstandingDeviceCodeCounter;
 import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationRequest;
 import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationSuccessResponse;
+import net.minidev.json.parser.ParseException;
 import net.shibboleth.idp.profile.IdPEventIds;
 import net.shibboleth.profile.config.ProfileConfiguration;
 import net.shibboleth.profile.context.RelyingPartyContext;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.Positive;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.logic.FunctionSupport;
 import net.shibboleth.shared.security.IdentifierGenerationStrategy;
 import net.shibboleth.shared.security.impl.SecureRandomIdentifierGenerationStrategy;
 
 /**
  * Action forming device authorization response success message. Action
  * generates user and device codes, forms a {@link DeviceCodeObject} storing it
- * to {@link DeviceCodesCache} keyed with user code. Finally the action forms
- * {@link OAuth2DeviceAuthorizationSuccessResponse}
+ * to {@link DeviceCodesCache} keyed with user code. A user code or a device
+ * code already in use is replaced by a new pair, up to the maximum number of
+ * attempts. Only the user code collisions are counted in the
+ * {@link UserCodeCollisionMetrics}, as they alone reflect the occupancy of the
+ * user code keyspace. Finally the
+ * action forms {@link OAuth2DeviceAuthorizationSuccessResponse}. A client
+ * already holding the maximum number of pending device codes counted by the
+ * cache is answered with {@link DeviceEventIds#TOO_MANY_DEVICE_CODES} before
+ * anything is stored.
  */
 public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDCResponseAction {
 
@@ -67,6 +85,18 @@ public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDC
     @Nonnull
     private Function<ProfileRequestContext, IdentifierGenerationStrategy> idGeneratorLookupStrategy;
 
+    /** Generator of user codes. */
+    @Nonnull
+    private UserCodeGenerator userCodeGenerator;
+
+    /** Maximum number of user codes tried before giving up. */
+    @Positive
+    private int maxUserCodeAttempts;
+
+    /** Optional sink for user code collision counts. */
+    @Nullable
+    private UserCodeCollisionMetrics userCodeMetrics;
+
     /**
      * Strategy used to locate the {@link RelyingPartyContext} associated with a
      * given {@link ProfileRequestContext}.
@@ -92,6 +122,12 @@ public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDC
     /** Interval between polling requests. */
     private Duration interval;
 
+    /** Maximum time a polling request waits for the user's decision. */
+    private Duration longPollingTimeout;
+
+    /** Maximum number of pending device codes of the client, 0 for no limit. */
+    private int maxOutstandingDeviceCodes;
+
     /**
      * Inbound request. Nonnull after pre-execute.
      */
@@ -99,11 +135,9 @@ public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDC
     private OAuth2DeviceAuthorizationRequest request;
 
     public FormOutboundDeviceAuthorizationResponseMessage() {
-        idGeneratorLookupStrategy = new Function<ProfileRequestContext, IdentifierGenerationStrategy>() {
-            public IdentifierGenerationStrategy apply(ProfileRequestContext input) {
-                return new SecureRandomIdentifierGenerationStrategy();
-            }
-        };
+        idGeneratorLookupStrategy = FunctionSupport.constant(new SecureRandomIdentifierGenerationStrategy());
+        userCodeGenerator = new AlphabetUserCodeGenerator();
+        maxUserCodeAttempts = 5;
         relyingPartyContextLookupStrategy = new ChildContextLookup<>(RelyingPartyContext.class);
     }
 
@@ -131,6 +165,41 @@ public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDC
                 "IdentifierGenerationStrategy lookup strategy cannot be null");
     }
 
+    /**
+     * Set the generator of user codes.
+     * 
+     * @param generator generator of user codes
+     */
+    public void setUserCodeGenerator(@Nonnull final UserCodeGenerator generator) {
+        checkSetterPreconditions();
+
+        userCodeGenerator = Constraint.isNotNull(generator, "UserCodeGenerator cannot be null");
+    }
+
+    /**
+     * Set the maximum number of user codes tried when the generated ones are
+     * already in use. Defaults to 5.
+     * 
+     * @param attempts maximum number of user codes tried
+     */
+    public void setMaxUserCodeAttempts(@Positive final int attempts) {
+        checkSetterPreconditions();
+
+        maxUserCodeAttempts = (int) Constraint.isGreaterThan(0, attempts,
+                "Maximum number of user code attempts must be greater than 0");
+    }
+
+    /**
+     * Set the metrics the user code collisions are counted in.
+     * 
+     * @param metrics metrics the user code collisions are counted in
+     */
+    public void setUserCodeMetrics(@Nullable final UserCodeCollisionMetrics metrics) {
+        checkSetterPreconditions();
+
+        userCodeMetrics = metrics;
+    }
+
     /**
      * Set the strategy used to locate the {@link RelyingPartyContext} associated
      * with a given {@link ProfileRequestContext}.
@@ -188,6 +257,9 @@ public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDC
             userCodeLength = ((OAuth2DeviceGrantConfiguration) pc).getUserCodeLength(profileRequestContext);
             expiration = ((OAuth2DeviceGrantConfiguration) pc).getDeviceCodeLifetime(profileRequestContext);
             interval = ((OAuth2DeviceGrantConfiguration) pc).getPollingInterval(profileRequestContext);
+            longPollingTimeout = ((OAuth2DeviceGrantConfiguration) pc).getLongPollingTimeout(profileRequestContext);
+            maxOutstandingDeviceCodes = ((OAuth2DeviceGrantConfiguration) pc)
+                    .getMaxOutstandingDeviceCodes(profileRequestContext);
         } else {
             log.error("{} No oauth2 device flow profile configuration associated with this profile request",
                     getLogPrefix());
@@ -208,37 +280,82 @@ public class FormOutboundDeviceAuthorizationResponseMessage extends AbstractOIDC
     /** {@inheritDoc} */
     @Override
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-        String deviceCode = idGeneratorLookupStrategy.apply(profileRequestContext).generateIdentifier();
-        if (deviceCode.length() <= deviceCodeLength) {
-            log.error("{} Generated device code length is {}, expected length by profile config is {}+1",
-                    getLogPrefix(), deviceCode.length(), deviceCodeLength);
-            ActionSupport.buildEvent(profileRequestContext, IdPEventIds.INVALID_PROFILE_CONFIG);
+        final String rpId = rpCtx.getRelyingPartyId();
+        // The pending device codes are counted by the cache, a slot is reserved before anything is stored. Without a
+        // limit nothing is reserved, and the device codes of the client are not tracked.
+        final OutstandingDeviceCodeCounter outstandingCounter =
+                maxOutstandingDeviceCodes > 0 ? deviceCodesCache.getOutstandingCounter() : null;
+        if (outstandingCounter != null && !outstandingCounter.tryReserve(rpId, maxOutstandingDeviceCodes)) {
+            log.info("{} Client {} holds the maximum of {} pending device codes", getLogPrefix(), rpId,
+                    maxOutstandingDeviceCodes);
+            ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.TOO_MANY_DEVICE_CODES);
             return;
         }
-        deviceCode = deviceCode.substring(1, (int) deviceCodeLength + 1);
-        String userCode = idGeneratorLookupStrategy.apply(profileRequestContext).generateIdentifier();
-        if (userCode.length() <= userCodeLength) {
-            log.error("{} Generated user code length is {}, expected length by profile config is {}+1", getLogPrefix(),
-                    userCode.length(), userCodeLength);
-            ActionSupport.buildEvent(profileRequestContext, IdPEventIds.INVALID_PROFILE_CONFIG);
-            return;
+        final DeviceStateObject deviceStateObject = new DeviceStateObject();
+        deviceStateObject.setPollingInterval(interval.toMillis());
+        deviceStateObject.setClientID(rpId);
+        if (!longPollingTimeout.isZero()) {
+            deviceStateObject.setLongPollingTimeout(longPollingTimeout.toMillis());
         }
-        userCode = userCode.substring(1, (int) userCodeLength + 1);
-        String rpId = rpCtx.getRelyingPartyId();
-        DeviceCodeObject deviceCodeObject = new DeviceCodeObject(deviceCode, new ClientID(rpId),
-                new Scope(request.getScope()));
+        final double keyspaceSize = userCodeGenerator.getKeyspaceSize((int) userCodeLength);
+        String deviceCode = null;
+        String userCode = null;
+        int attempts = 0;
+        int collisions = 0;
         try {
-            log.debug("Storing device flow device code object {} per user code {}",
-                    deviceCodeObject.toJSONObject().toString(), userCode);
-            if (!deviceCodesCache.storeDeviceCode(deviceCodeObject, userCode, expiration.toMillis())) {
-                log.error("{} Failed to set device code to cache.", getLogPrefix());
-                ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
-                return;
+            while (userCode == null) {
+                deviceCode = idGeneratorLookupStrategy.apply(profileRequestContext).generateIdentifier();
+                if (deviceCode.length() <= deviceCodeLength) {
+                    log.error("{} Generated device code length is {}, expected length by profile config is {}+1",
+                            getLogPrefix(), deviceCode.length(), deviceCodeLength);
+                    ActionSupport.buildEvent(profileRequestContext, IdPEventIds.INVALID_PROFILE_CONFIG);
+                    return;
+                }
+                deviceCode = deviceCode.substring(1, (int) deviceCodeLength + 1);
+                final String candidate = userCodeGenerator.generateUserCode((int) userCodeLength);
+                final DeviceCodeObject deviceCodeObject = new DeviceCodeObject(deviceCode, new ClientID(rpId),
+                        new Scope(request.getScope()));
+                deviceCodeObject.setIssuedAt(System.currentTimeMillis());
+                try {
+                    log.debug("Storing device flow device code object {} per user code {}",
+                            deviceCodeObject.toJSONObject().toString(), candidate);
+                    if (deviceCodesCache.storeDeviceCode(deviceCodeObject, candidate, deviceStateObject,
+                            expiration.toMillis())) {
+                        userCode = candidate;
+                        continue;
+                    }
+                    // Only user code collisions reflect the keyspace occupancy, device code collisions are not counted
+                    final boolean userCodeInUse = deviceCodesCache.getDeviceCode(candidate) != null;
+                    if (userCodeInUse) {
+                        collisions++;
+                    }
+                    if (++attempts >= maxUserCodeAttempts) {
+                        log.error("{} Failed to set device code to cache, all {} generated codes were in use",
+                                getLogPrefix(), attempts);
+                        if (userCodeMetrics != null) {
+                            userCodeMetrics.recordExhausted(collisions, keyspaceSize);
+                        }
+                        ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+                        return;
+                    }
+                    if (userCodeInUse) {
+                        log.debug("{} User code {} already in use, generating a new one", getLogPrefix(), candidate);
+                    } else {
+                        log.debug("{} Device code already in use, generating a new one", getLogPrefix());
+                    }
+                } catch (IOException | ParseException e) {
+                    log.error("{} Failed to set device code to cache {}", getLogPrefix(), e);
+                    ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+                    return;
+                }
             }
-        } catch (IOException e) {
-            log.error("{} Failed to set device code to cache {}", getLogPrefix(), e);
-            ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
-            return;
+        } finally {
+            if (userCode == null && outstandingCounter != null) {
+                outstandingCounter.cancel(rpId);
+            }
+        }
+        if (userCodeMetrics != null) {
+            userCodeMetrics.recordIssued(collisions, keyspaceSize);
         }
         try {
             ((MessageContext) getOidcResponseContext().getParent())
@@ -17,13 +17,18 @@
 package fi.csc.shibboleth.plugin.oauth2.profile.impl;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.action.ActionSupport;
 import org.opensaml.profile.action.EventIds;
 import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.profile.context.navigate.InboundMessageContextLookup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.nimbusds.oauth2.sdk.AccessTokenResponse;
@@ -31,13 +36,20 @@ import com.nimbusds.oauth2.sdk.token.AccessToken;
 import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import com.nimbusds.oauth2.sdk.token.Tokens;
 
+import fi.csc.shibboleth.plugin.oauth2.config.OAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceStateContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics.PollOutcome;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject.State;
 import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceTokenRequest;
 import net.minidev.json.parser.ParseException;
+import net.shibboleth.profile.config.ProfileConfiguration;
+import net.shibboleth.profile.context.RelyingPartyContext;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.collection.Pair;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 
@@ -45,6 +57,32 @@ import net.shibboleth.shared.logic.Constraint;
  * Action forms Device Token Response {@link AccessToken} in the case user has
  * approved the action. Cases of expired token, user denied and user action
  * pending are handled with the events.
+ * 
+ * <p>
+ * A device code issued to another client than the authenticated one, the
+ * relying party of the request, is answered with
+ * {@link DeviceEventIds#INVALID_GRANT} and its state is left in place for the
+ * client it was issued to.
+ * </p>
+ * 
+ * <p>
+ * If the profile configuration has a positive long polling timeout, a request
+ * for a pending device code waits up to the timeout for the user's decision
+ * before answering.
+ * </p>
+ * 
+ * <p>
+ * If a {@link DeviceStateContext} for the device code has been attached by an
+ * earlier action, the state is only read again if its storage record has
+ * changed since.
+ * </p>
+ * 
+ * <p>
+ * Once the user has approved or denied the request, the state is consumed: the
+ * decision is answered to a single poll only and later polls are answered as
+ * for an expired device code. The state is deleted conditionally on the version
+ * of its record read, without reading it again.
+ * </p>
  */
 public class FormOutboundDeviceTokenResponseMessage extends AbstractOIDCResponseAction {
 
@@ -55,6 +93,61 @@ public class FormOutboundDeviceTokenResponseMessage extends AbstractOIDCResponse
     @NonnullAfterInit
     private DeviceCodesCache deviceCodesCache;
 
+    /**
+     * Strategy used to locate the {@link RelyingPartyContext} associated with a
+     * given {@link ProfileRequestContext}.
+     */
+    @Nonnull
+    private Function<ProfileRequestContext, RelyingPartyContext> relyingPartyContextLookupStrategy;
+
+    /**
+     * Strategy used to locate the {@link DeviceStateContext} associated with a
+     * given {@link ProfileRequestContext}.
+     */
+    @Nonnull
+    private Function<ProfileRequestContext, DeviceStateContext> deviceStateContextLookupStrategy;
+
+    /** Device flow metrics, null if not recorded. */
+    @Nullable
+    private DeviceGrantMetrics metrics;
+
+    /** Constructor. */
+    public FormOutboundDeviceTokenResponseMessage() {
+        relyingPartyContextLookupStrategy = new ChildContextLookup<>(RelyingPartyContext.class);
+        deviceStateContextLookupStrategy = new ChildContextLookup<>(DeviceStateContext.class)
+                .compose(new InboundMessageContextLookup());
+    }
+
+    /**
+     * Set the strategy used to locate the {@link DeviceStateContext} associated
+     * with a given {@link ProfileRequestContext}.
+     * 
+     * @param strategy strategy used to locate the {@link DeviceStateContext}
+     *                 associated with a given {@link ProfileRequestContext}
+     */
+    public void setDeviceStateContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, DeviceStateContext> strategy) {
+        checkSetterPreconditions();
+
+        deviceStateContextLookupStrategy = Constraint.isNotNull(strategy,
+                "DeviceStateContext lookup strategy cannot be null");
+    }
+
+    /**
+     * Set the strategy used to locate the {@link RelyingPartyContext} associated
+     * with a given {@link ProfileRequestContext}.
+     * 
+     * @param strategy strategy used to locate the {@link RelyingPartyContext}
+     *                 associated with a given {@link ProfileRequestContext}
+     */
+    public void setRelyingPartyContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, RelyingPartyContext> strategy) {
+        checkSetterPreconditions();
+
+        relyingPartyContextLookupStrategy = Constraint.isNotNull(strategy,
+                "RelyingPartyContext lookup strategy cannot be null");
+    }
+
     /**
      * Set the device code cache instance to use.
      * 
@@ -65,6 +158,16 @@ public class FormOutboundDeviceTokenResponseMessage extends AbstractOIDCResponse
         deviceCodesCache = Constraint.isNotNull(cache, "DeviceCodesCache cannot be null");
     }
 
+    /**
+     * Set the device flow metrics to record to.
+     * 
+     * @param deviceGrantMetrics device flow metrics, null to not record
+     */
+    public void setMetrics(@Nullable final DeviceGrantMetrics deviceGrantMetrics) {
+        checkSetterPreconditions();
+        metrics = deviceGrantMetrics;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -85,20 +188,43 @@ public class FormOutboundDeviceTokenResponseMessage extends AbstractOIDCResponse
                 .getMessage();
         String deviceCode = request.getDeviceCode();
         try {
-            DeviceStateObject stateObject = deviceCodesCache.getDeviceState(deviceCode);
+            final Duration timeout = getLongPollingTimeout(profileRequestContext);
+            final Pair<Long, DeviceStateObject> versioned = readDeviceState(profileRequestContext, deviceCode);
+            Long version = versioned.getFirst();
+            DeviceStateObject stateObject = versioned.getSecond();
+            if (stateObject != null && !isIssuedToRequester(profileRequestContext, stateObject)) {
+                log.warn("{} Device code {} was not issued to the authenticated client", getLogPrefix(), deviceCode);
+                ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.INVALID_GRANT);
+                return;
+            }
+            if (stateObject != null && stateObject.getState() == State.PENDING && !timeout.isZero()) {
+                stateObject = deviceCodesCache.awaitDeviceState(deviceCode, timeout.toMillis());
+                version = null;
+            }
             if (stateObject == null) {
                 log.debug("{} Device code {} has exipred", getLogPrefix(), deviceCode);
+                recordPoll(PollOutcome.EXPIRED);
                 ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.EXPIRED_TOKEN);
                 return;
             }
-            State state = stateObject.getState();
-            if (state == State.PENDING) {
+            if (stateObject.getState() == State.PENDING) {
                 log.debug("{} Request is still pending for device code {}", getLogPrefix(), deviceCode);
+                recordPoll(PollOutcome.PENDING);
                 ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.AUTHORIZATION_PENDING);
                 return;
             }
-            if (state == State.DENIED) {
+            if (version == null || !deviceCodesCache.deleteDeviceState(deviceCode, version)) {
+                stateObject = deviceCodesCache.consumeDeviceState(deviceCode);
+            }
+            if (stateObject == null || stateObject.getState() == State.PENDING) {
+                log.debug("{} Device code {} has already been consumed", getLogPrefix(), deviceCode);
+                recordPoll(PollOutcome.EXPIRED);
+                ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.EXPIRED_TOKEN);
+                return;
+            }
+            if (stateObject.getState() == State.DENIED) {
                 log.debug("{} User has denied request for device code {}", getLogPrefix(), deviceCode);
+                recordPoll(PollOutcome.DENIED);
                 ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.USER_DENIED);
                 return;
             }
@@ -108,10 +234,85 @@ public class FormOutboundDeviceTokenResponseMessage extends AbstractOIDCResponse
                     (stateObject.getExpiresAt() - System.currentTimeMillis()) / 1000, null);
             AccessTokenResponse response = new AccessTokenResponse(new Tokens(accesToken, null));
             ((MessageContext) getOidcResponseContext().getParent()).setMessage(response);
+            recordPoll(PollOutcome.APPROVED);
 
         } catch (IOException | ParseException e) {
             log.error("{} Error occurred while handling DeviceStateObject {}", getLogPrefix(), e);
             ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Record the answer given to the poll, if metrics are recorded.
+     * 
+     * @param outcome the answer
+     */
+    private void recordPoll(@Nonnull final PollOutcome outcome) {
+        if (metrics != null) {
+            metrics.recordPoll(outcome);
+        }
+    }
+
+    /**
+     * Whether the authenticated client of the request is the client the device code was issued to.
+     * 
+     * <p>
+     * States stored without the client are not bound to one.
+     * </p>
+     * 
+     * @param profileRequestContext profile request context
+     * @param stateObject state of the device code
+     * @return true if the clients match
+     */
+    private boolean isIssuedToRequester(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final DeviceStateObject stateObject) {
+        if (stateObject.getClientID() == null) {
+            return true;
+        }
+        final RelyingPartyContext rpCtx = relyingPartyContextLookupStrategy.apply(profileRequestContext);
+        return rpCtx != null && stateObject.getClientID().equals(rpCtx.getRelyingPartyId());
+    }
+
+    /**
+     * Read the state of the device code and the version of its record, skipping
+     * the transfer and decoding if an attached {@link DeviceStateContext} already
+     * has the current version.
+     * 
+     * @param profileRequestContext profile request context
+     * @param deviceCode device code
+     * @return version and state of the device code, both null if not located
+     * @throws IOException if something went wrong with storage
+     * @throws ParseException if the state was not parsed successfully
+     */
+    @Nonnull
+    private Pair<Long, DeviceStateObject> readDeviceState(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final String deviceCode) throws IOException, ParseException {
+        final DeviceStateContext stateCtx = deviceStateContextLookupStrategy.apply(profileRequestContext);
+        if (stateCtx == null || !deviceCode.equals(stateCtx.getDeviceCode())) {
+            return deviceCodesCache.getDeviceStateIfChanged(deviceCode, 0);
+        }
+        final Pair<Long, DeviceStateObject> versioned =
+                deviceCodesCache.getDeviceStateIfChanged(deviceCode, stateCtx.getVersion());
+        if (versioned.getFirst() != null && versioned.getSecond() == null) {
+            log.trace("{} Device state of device code {} unchanged", getLogPrefix(), deviceCode);
+            return new Pair<>(versioned.getFirst(), stateCtx.getDeviceStateObject());
+        }
+        return versioned;
+    }
+
+    /**
+     * Get the long polling timeout of the profile configuration.
+     * 
+     * @param profileRequestContext profile request context
+     * @return long polling timeout, zero if there is no device grant profile configuration
+     */
+    @Nonnull
+    private Duration getLongPollingTimeout(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final RelyingPartyContext rpCtx = relyingPartyContextLookupStrategy.apply(profileRequestContext);
+        final ProfileConfiguration pc = rpCtx != null ? rpCtx.getProfileConfig() : null;
+        if (pc instanceof OAuth2DeviceGrantConfiguration) {
+            return ((OAuth2DeviceGrantConfiguration) pc).getLongPollingTimeout(profileRequestContext);
+        }
+        return Duration.ZERO;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.profile.impl;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceStateContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics.PollOutcome;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.context.navigate.APIRequestClientIDLookupFunction;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DevicePollingTracker;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject.State;
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceTokenRequest;
+import net.minidev.json.parser.ParseException;
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Action checking the {@link DeviceStateObject} of the device token request
+ * before the metadata lookup and client authentication stages of the flow, so
+ * that the common polling answers are produced cheaply.
+ *
+ * <ul>
+ * <li>An unknown or expired device code is answered with
+ * {@link DeviceEventIds#EXPIRED_TOKEN}.</li>
+ * <li>A device polling faster than the polling interval stored with the device
+ * code is answered with {@link DeviceEventIds#SLOW_DOWN}.</li>
+ * <li>A pending device code polled by the client it was issued to is answered
+ * with {@link DeviceEventIds#AUTHORIZATION_PENDING}, after waiting for the
+ * user's decision if long polling was enabled when the device code was
+ * issued. The client is the one the request identifies, by its client
+ * authentication or its client_id parameter.</li>
+ * </ul>
+ *
+ * <p>
+ * In all other cases the action proceeds and the request is handled by the
+ * later stages of the flow, including client authentication, after which
+ * {@link FormOutboundDeviceTokenResponseMessage} only answers the
+ * authenticated client the device code was issued to. The answers given
+ * by this action reveal only whether the user has made a decision yet. The
+ * state read is attached to the inbound message context as a
+ * {@link DeviceStateContext}, so that the later stages only read it again if
+ * it has changed.
+ * </p>
+ */
+public class PreCheckDeviceState extends AbstractProfileAction {
+
+    /** Class logger. */
+    @Nonnull
+    private Logger log = LoggerFactory.getLogger(PreCheckDeviceState.class);
+
+    /** Device code cache. */
+    @NonnullAfterInit
+    private DeviceCodesCache deviceCodesCache;
+
+    /** Polling tracker. */
+    @NonnullAfterInit
+    private DevicePollingTracker pollingTracker;
+
+    /** Strategy used to locate the client identified by the request. */
+    @Nonnull
+    private Function<MessageContext, ClientID> clientIDLookupStrategy;
+
+    /** Device flow metrics, null if not recorded. */
+    @Nullable
+    private DeviceGrantMetrics metrics;
+
+    /** Inbound request. Nonnull after pre-execute. */
+    @NonnullAfterInit
+    private OAuth2DeviceTokenRequest request;
+
+    /** Constructor. */
+    public PreCheckDeviceState() {
+        clientIDLookupStrategy = new APIRequestClientIDLookupFunction();
+    }
+
+    /**
+     * Set the device code cache instance to use.
+     *
+     * @param cache The device code cache to set.
+     */
+    public void setDeviceCodesCache(@Nonnull final DeviceCodesCache cache) {
+        checkSetterPreconditions();
+        deviceCodesCache = Constraint.isNotNull(cache, "DeviceCodesCache cannot be null");
+    }
+
+    /**
+     * Set the polling tracker instance to use.
+     *
+     * @param tracker The polling tracker to set.
+     */
+    public void setPollingTracker(@Nonnull final DevicePollingTracker tracker) {
+        checkSetterPreconditions();
+        pollingTracker = Constraint.isNotNull(tracker, "DevicePollingTracker cannot be null");
+    }
+
+    /**
+     * Set the strategy used to locate the client identified by the request.
+     *
+     * @param strategy strategy used to locate the client identified by the request
+     */
+    public void setClientIDLookupStrategy(@Nonnull final Function<MessageContext, ClientID> strategy) {
+        checkSetterPreconditions();
+        clientIDLookupStrategy = Constraint.isNotNull(strategy, "ClientID lookup strategy cannot be null");
+    }
+
+    /**
+     * Set the device flow metrics to record to.
+     * 
+     * @param deviceGrantMetrics device flow metrics, null to not record
+     */
+    public void setMetrics(@Nullable final DeviceGrantMetrics deviceGrantMetrics) {
+        checkSetterPreconditions();
+        metrics = deviceGrantMetrics;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        Constraint.isNotNull(deviceCodesCache, "DeviceCodesCache cannot be null");
+        Constraint.isNotNull(pollingTracker, "DevicePollingTracker cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        if (!super.doPreExecute(profileRequestContext)) {
+            return false;
+        }
+        if (profileRequestContext.getInboundMessageContext() == null || !(profileRequestContext
+                .getInboundMessageContext().getMessage() instanceof OAuth2DeviceTokenRequest)) {
+            log.error("{} No OAuth2DeviceTokenRequest as inbound message", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_MSG_CTX);
+            return false;
+        }
+        request = (OAuth2DeviceTokenRequest) profileRequestContext.getInboundMessageContext().getMessage();
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final String deviceCode = request.getDeviceCode();
+        try {
+            final Pair<Long, DeviceStateObject> versioned = deviceCodesCache.getDeviceStateIfChanged(deviceCode, 0);
+            DeviceStateObject stateObject = versioned.getSecond();
+            if (stateObject == null) {
+                log.debug("{} Device code {} has expired", getLogPrefix(), deviceCode);
+                recordPoll(PollOutcome.EXPIRED);
+                ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.EXPIRED_TOKEN);
+                return;
+            }
+            if (stateObject.getPollingInterval() != null) {
+                final long interval = pollingTracker.poll(deviceCode, stateObject.getPollingInterval());
+                if (interval > 0) {
+                    log.debug("{} Device code {} polled too early, interval is now {} ms", getLogPrefix(),
+                            deviceCode, interval);
+                    recordPoll(PollOutcome.SLOW_DOWN);
+                    ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.SLOW_DOWN);
+                    return;
+                }
+            }
+            if (stateObject.getState() != State.PENDING
+                    || !isIssuedToRequester(profileRequestContext, stateObject)) {
+                profileRequestContext.getInboundMessageContext().ensureSubcontext(DeviceStateContext.class)
+                        .setDeviceState(deviceCode, stateObject, versioned.getFirst());
+                return;
+            }
+            if (stateObject.getLongPollingTimeout() != null && stateObject.getLongPollingTimeout() > 0) {
+                stateObject = deviceCodesCache.awaitDeviceState(deviceCode, stateObject.getLongPollingTimeout());
+                if (stateObject == null) {
+                    log.debug("{} Device code {} has expired", getLogPrefix(), deviceCode);
+                    recordPoll(PollOutcome.EXPIRED);
+                    ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.EXPIRED_TOKEN);
+                    return;
+                }
+                if (stateObject.getState() != State.PENDING) {
+                    return;
+                }
+            }
+            log.debug("{} Request is still pending for device code {}", getLogPrefix(), deviceCode);
+            recordPoll(PollOutcome.PENDING);
+            ActionSupport.buildEvent(profileRequestContext, DeviceEventIds.AUTHORIZATION_PENDING);
+        } catch (final IOException | ParseException e) {
+            log.error("{} Error occurred while handling DeviceStateObject {}", getLogPrefix(), e);
+            ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+        }
+    }
+
+    /**
+     * Record the answer given to the poll, if metrics are recorded.
+     *
+     * @param outcome the answer
+     */
+    private void recordPoll(@Nonnull final PollOutcome outcome) {
+        if (metrics != null) {
+            metrics.recordPoll(outcome);
+        }
+    }
+
+    /**
+     * Whether the client identified by the request is the client the device code was issued to.
+     *
+     * @param profileRequestContext profile request context
+     * @param stateObject state of the device code
+     * @return true if the clients match
+     */
+    private boolean isIssuedToRequester(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final DeviceStateObject stateObject) {
+        final ClientID clientID = clientIDLookupStrategy.apply(profileRequestContext.getInboundMessageContext());
+        return clientID != null && clientID.getValue().equals(stateObject.getClientID());
+    }
+}
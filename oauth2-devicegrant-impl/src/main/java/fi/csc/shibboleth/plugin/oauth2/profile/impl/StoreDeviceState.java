@@ -35,6 +35,8 @@ import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.openid.connect.sdk.claims.ClaimsSet;
 
 import fi.csc.shibboleth.plugin.oauth2.config.OAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.context.navigate.DeviceCodeObjectLookupFunction;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.context.navigate.DeviceUserApprovalLookupFunction;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.context.navigate.DeviceUserCodeLookupFunction;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
@@ -57,6 +59,7 @@ import net.shibboleth.shared.annotation.ParameterName;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.logic.FunctionSupport;
 import net.shibboleth.shared.security.DataSealer;
 import net.shibboleth.shared.security.DataSealerException;
 import net.shibboleth.shared.security.IdentifierGenerationStrategy;
@@ -70,7 +73,10 @@ import org.opensaml.profile.action.ActionSupport;
  * Action storing user approval action, approved or denied to
  * {@link DeviceCodesCache} as a {@link DeviceStateObject}. In the case user
  * approved the request the {@link DeviceStateObject} contains a access token
- * that may be queried by a trusted rp using Device Code.
+ * that may be queried by a trusted rp using Device Code. The state keeps the
+ * client the device code was issued to, so that only that client is answered
+ * with it. Once the state is stored the user code is deleted, so it cannot be
+ * entered again.
  */
 public class StoreDeviceState extends AbstractOIDCResponseAction {
 
@@ -81,10 +87,22 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
     /** Expiration of device/user codes in milliseconds. */
     private Duration expiration;
 
+    /** User code entered by the user. */
+    @Nullable
+    String userCode;
+
     /** Device code matching the user code. */
     @Nullable
     String deviceCode;
 
+    /** Time the device code was issued, from EPOCH in milliseconds. */
+    @Nullable
+    private Long issuedAt;
+
+    /** Client the device code was issued to. */
+    @Nullable
+    private String clientID;
+
     /** Cache for DeviceCodeObjects and DeviceStateObjects. */
     @NonnullAfterInit
     private DeviceCodesCache deviceCodesCache;
@@ -146,10 +164,18 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
     @Nonnull
     private Function<MessageContext, String> userCodeLookupStrategy;
 
+    /** Strategy to locate the device code object already read for the user code. */
+    @Nonnull
+    private Function<MessageContext, DeviceCodeObject> deviceCodeObjectLookupStrategy;
+
     /** Strategy to locate user approval. */
     @Nonnull
     private Function<MessageContext, Boolean> userApprovalLookupStrategy;
 
+    /** Device flow metrics, null if not recorded. */
+    @Nullable
+    private DeviceGrantMetrics metrics;
+
     /**
      * Constructor.
      * 
@@ -157,6 +183,7 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
      */
     public StoreDeviceState(@Nonnull @ParameterName(name = "sealer") final DataSealer sealer) {
         userCodeLookupStrategy = new DeviceUserCodeLookupFunction();
+        deviceCodeObjectLookupStrategy = new DeviceCodeObjectLookupFunction();
         userApprovalLookupStrategy = new DeviceUserApprovalLookupFunction();
 
         tokenClaimsContextLookupStrategy = new ChildContextLookup<>(OIDCAuthenticationResponseTokenClaimsContext.class)
@@ -167,11 +194,7 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
         consentEnabledPredicate = new AttributeConsentFlowEnabledPredicate();
         dataSealer = Constraint.isNotNull(sealer, "DataSealer cannot be null");
         issuerLookupStrategy = (Function<ProfileRequestContext, String>) new IssuerLookupFunction();
-        idGeneratorLookupStrategy = new Function<ProfileRequestContext, IdentifierGenerationStrategy>() {
-            public IdentifierGenerationStrategy apply(ProfileRequestContext input) {
-                return new SecureRandomIdentifierGenerationStrategy();
-            }
-        };
+        idGeneratorLookupStrategy = FunctionSupport.constant(new SecureRandomIdentifierGenerationStrategy());
     }
 
     /**
@@ -185,6 +208,17 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
                 "DeviceUserCodeLookupStrategy lookup strategy cannot be null");
     }
 
+    /**
+     * Set strategy to locate the device code object already read for the user code.
+     * 
+     * @param strategy Strategy to locate the device code object
+     */
+    public void setDeviceCodeObjectLookupStrategy(@Nonnull final Function<MessageContext, DeviceCodeObject> strategy) {
+        checkSetterPreconditions();
+        deviceCodeObjectLookupStrategy = Constraint.isNotNull(strategy,
+                "DeviceCodeObjectLookupStrategy lookup strategy cannot be null");
+    }
+
     /**
      * Set strategy to locate user approval.
      * 
@@ -206,6 +240,16 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
         deviceCodesCache = Constraint.isNotNull(cache, "DeviceCodesCache cannot be null");
     }
 
+    /**
+     * Set the device flow metrics to record to.
+     * 
+     * @param deviceGrantMetrics device flow metrics, null to not record
+     */
+    public void setMetrics(@Nullable final DeviceGrantMetrics deviceGrantMetrics) {
+        checkSetterPreconditions();
+        metrics = deviceGrantMetrics;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -300,25 +344,31 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
         if (!super.doPreExecute(profileRequestContext)) {
             return false;
         }
-        String userCode = userCodeLookupStrategy.apply(profileRequestContext.getInboundMessageContext());
+        userCode = userCodeLookupStrategy.apply(profileRequestContext.getInboundMessageContext());
         if (userCode == null || userCode.isEmpty()) {
             log.error("{} No user code", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_MESSAGE);
             return false;
         }
-        try {
-            DeviceCodeObject deviceCodeObject = deviceCodesCache.getDeviceCode(userCode);
-            if (deviceCodeObject == null || deviceCodeObject.getDeviceCode() == null) {
-                log.error("{} No device code for user code", getLogPrefix());
-                ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_MESSAGE);
+        DeviceCodeObject deviceCodeObject =
+                deviceCodeObjectLookupStrategy.apply(profileRequestContext.getInboundMessageContext());
+        if (deviceCodeObject == null) {
+            try {
+                deviceCodeObject = deviceCodesCache.getDeviceCode(userCode);
+            } catch (IOException | ParseException e) {
+                log.error("{} Error accessing device code cache", getLogPrefix(), e);
+                ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
                 return false;
             }
-            deviceCode = deviceCodeObject.getDeviceCode();
-        } catch (IOException | ParseException e) {
-            log.error("{} Error accessing device code cache", getLogPrefix(), e);
-            ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+        }
+        if (deviceCodeObject == null || deviceCodeObject.getDeviceCode() == null) {
+            log.error("{} No device code for user code", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_MESSAGE);
             return false;
         }
+        deviceCode = deviceCodeObject.getDeviceCode();
+        issuedAt = deviceCodeObject.getIssuedAt();
+        clientID = deviceCodeObject.getClientID() != null ? deviceCodeObject.getClientID().getValue() : null;
         rpCtx = relyingPartyContextLookupStrategy.apply(profileRequestContext);
         if (rpCtx == null) {
             log.error("{} No relying party context associated with this profile request", getLogPrefix());
@@ -393,6 +443,7 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
                 return;
             }
         }
+        deviceStateObject.setClientID(clientID);
         try {
             if (!deviceCodesCache.updateDeviceState(deviceCode, deviceStateObject, expiration.toMillis())) {
                 log.error("{} Unable to update device state object to approved ", getLogPrefix());
@@ -401,6 +452,15 @@ public class StoreDeviceState extends AbstractOIDCResponseAction {
             }
             log.debug("{} Device {} state updated as {}", getLogPrefix(), deviceCode,
                     deviceStateObject.getState().toString());
+            try {
+                deviceCodesCache.deleteDeviceCode(userCode);
+            } catch (final IOException e) {
+                log.warn("{} Unable to delete user code {}, it remains valid until it expires", getLogPrefix(),
+                        userCode, e);
+            }
+            if (metrics != null) {
+                metrics.recordDecision(deviceStateObject.getState() == DeviceStateObject.State.APPROVED, issuedAt);
+            }
         } catch (IOException | ParseException e) {
             log.error("{} Access Token generation failed {}", getLogPrefix(), e);
             ActionSupport.buildEvent(profileRequestContext, EventIds.UNABLE_TO_ENCRYPT);
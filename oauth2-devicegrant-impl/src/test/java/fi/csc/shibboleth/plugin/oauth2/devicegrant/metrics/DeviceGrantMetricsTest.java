@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics.PollOutcome;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.UserCodeCollisionMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCacheObserver.Operation;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceRecordExpirySweeper;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.StorageServiceShards;
+
+/**
+ * Unit tests for {@link DeviceGrantMetrics}.
+ */
+public class DeviceGrantMetricsTest {
+
+    private MetricRegistry registry;
+
+    private DeviceGrantMetrics metrics;
+
+    @BeforeMethod
+    public void setUp() {
+        registry = new MetricRegistry();
+        metrics = new DeviceGrantMetrics(registry);
+    }
+
+    @Test
+    public void testDecisions() {
+        metrics.recordDecision(true, System.currentTimeMillis() - 5000);
+        metrics.recordDecision(true, null);
+        metrics.recordDecision(false, System.currentTimeMillis());
+        Assert.assertEquals(registry.meter(DeviceGrantMetrics.PREFIX + ".decisions.approved").getCount(), 2);
+        Assert.assertEquals(registry.meter(DeviceGrantMetrics.PREFIX + ".decisions.denied").getCount(), 1);
+        final var timer = registry.timer(DeviceGrantMetrics.PREFIX + ".decisions.timeToApproval");
+        Assert.assertEquals(timer.getCount(), 1);
+        Assert.assertTrue(timer.getSnapshot().getMax() >= TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testPolls() {
+        metrics.recordPoll(PollOutcome.PENDING);
+        metrics.recordPoll(PollOutcome.PENDING);
+        metrics.recordPoll(PollOutcome.SLOW_DOWN);
+        metrics.recordPoll(PollOutcome.EXPIRED);
+        Assert.assertEquals(registry.meter(DeviceGrantMetrics.PREFIX + ".polls.pending").getCount(), 2);
+        Assert.assertEquals(registry.meter(DeviceGrantMetrics.PREFIX + ".polls.slow_down").getCount(), 1);
+        Assert.assertEquals(registry.meter(DeviceGrantMetrics.PREFIX + ".polls.expired").getCount(), 1);
+        Assert.assertEquals(registry.meter(DeviceGrantMetrics.PREFIX + ".polls.approved").getCount(), 0);
+    }
+
+    @Test
+    public void testOperations() {
+        metrics.operationCompleted(Operation.READ_STATE, 1000);
+        metrics.operationCompleted(Operation.READ_STATE, 3000);
+        final var timer = registry.timer(DeviceGrantMetrics.PREFIX + ".storage.read_state");
+        Assert.assertEquals(timer.getCount(), 2);
+        Assert.assertEquals(timer.getSnapshot().getMax(), 3000);
+        Assert.assertEquals(registry.timer(DeviceGrantMetrics.PREFIX + ".storage.store").getCount(), 0);
+    }
+
+    @Test
+    public void testUserCodeGauges() {
+        final UserCodeCollisionMetrics userCodeMetrics = new UserCodeCollisionMetrics();
+        metrics.setUserCodeMetrics(userCodeMetrics);
+        userCodeMetrics.recordIssued(1, 1000);
+        userCodeMetrics.recordExhausted(2, 1000);
+        Assert.assertEquals(registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".userCodes.issued").getValue(), 1L);
+        Assert.assertEquals(registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".userCodes.collisions").getValue(),
+                3L);
+        Assert.assertEquals(registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".userCodes.exhausted").getValue(),
+                1L);
+    }
+
+    @Test
+    public void testExpirySweeperGauges() throws Exception {
+        final MemoryStorageService storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        final DeviceRecordExpirySweeper sweeper = new DeviceRecordExpirySweeper();
+        sweeper.setStorage(storageService);
+        sweeper.setCleanupInterval(Duration.ofHours(1));
+        sweeper.initialize();
+        try {
+            metrics.setExpirySweeper(sweeper);
+            final long expiration = System.currentTimeMillis() + 20;
+            storageService.create(DeviceCodesCache.CONTEXT_STATE, "DC1", "value", expiration);
+            sweeper.track(DeviceCodesCache.CONTEXT_STATE, "DC1", expiration);
+            Assert.assertEquals(
+                    registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".expirySweeper.tracked").getValue(), 1L);
+            Thread.sleep(50);
+            Assert.assertEquals(sweeper.sweep(), 1);
+            Assert.assertEquals(
+                    registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".expirySweeper.tracked").getValue(), 0L);
+            Assert.assertEquals(
+                    registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".expirySweeper.removed").getValue(), 1L);
+        } finally {
+            sweeper.destroy();
+            storageService.destroy();
+        }
+    }
+
+    @Test
+    public void testStorageShardsGauges() throws Exception {
+        final MemoryStorageService storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        final StorageServiceShards shards = new StorageServiceShards();
+        shards.setId("shards");
+        shards.setShards(List.of(storageService));
+        shards.initialize();
+        try {
+            metrics.setStorageShards(shards);
+            shards.route(DeviceCodesCache.CONTEXT_STATE, "DC1");
+            shards.locate(DeviceCodesCache.CONTEXT_STATE, "DC2");
+            Assert.assertEquals(
+                    registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".storageShards.test.operations").getValue(),
+                    2L);
+            Assert.assertEquals(
+                    registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".storageShards.moved").getValue(), 0L);
+        } finally {
+            shards.destroy();
+            storageService.destroy();
+        }
+    }
+
+    @Test
+    public void testUserCodeGaugesReplaced() {
+        metrics.setUserCodeMetrics(new UserCodeCollisionMetrics());
+        final UserCodeCollisionMetrics userCodeMetrics = new UserCodeCollisionMetrics();
+        userCodeMetrics.recordIssued(0, 1000);
+        new DeviceGrantMetrics(registry).setUserCodeMetrics(userCodeMetrics);
+        Assert.assertEquals(registry.getGauges().get(DeviceGrantMetrics.PREFIX + ".userCodes.issued").getValue(), 1L);
+    }
+
+}
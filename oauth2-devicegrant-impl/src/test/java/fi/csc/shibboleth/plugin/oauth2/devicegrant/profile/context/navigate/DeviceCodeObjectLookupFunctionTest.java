@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.context.navigate;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceUserAuthenticationContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
+
+import org.opensaml.messaging.context.MessageContext;
+import org.testng.Assert;
+
+/**
+ * Unit tests for {@link DeviceCodeObjectLookupFunction}.
+ */
+public class DeviceCodeObjectLookupFunctionTest {
+
+    private DeviceCodeObjectLookupFunction lookup;
+
+    private MessageContext msgCtx;
+
+    private DeviceUserAuthenticationContext ctx;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        lookup = new DeviceCodeObjectLookupFunction();
+        msgCtx = new MessageContext();
+        ctx = (DeviceUserAuthenticationContext) msgCtx.addSubcontext(new DeviceUserAuthenticationContext());
+        ctx.setUserCode("userCode");
+    }
+
+    @Test
+    public void lookupSuccess() {
+        DeviceCodeObject obj = new DeviceCodeObject("deviceCode", new ClientID("clientID"), null);
+        ctx.setDeviceCodeObject(obj);
+        Assert.assertSame(lookup.apply(msgCtx), obj);
+    }
+
+    @Test
+    public void lookupNotAttached() {
+        Assert.assertNull(lookup.apply(msgCtx));
+    }
+
+    @Test
+    public void lookupNoContext() {
+        msgCtx.removeSubcontext(DeviceUserAuthenticationContext.class);
+        Assert.assertNull(lookup.apply(msgCtx));
+    }
+
+    @Test
+    public void lookupFailNoMessageContext() {
+        Assert.assertNull(lookup.apply(null));
+    }
+
+}
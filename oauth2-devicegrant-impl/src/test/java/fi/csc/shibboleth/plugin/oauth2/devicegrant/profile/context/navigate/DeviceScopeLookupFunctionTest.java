@@ -23,6 +23,7 @@ import org.testng.annotations.Test;
 import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceUserAuthenticationContext;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
 import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthenticationRequest;
@@ -87,6 +88,15 @@ public class DeviceScopeLookupFunctionTest {
         Assert.assertEquals(lookup.apply(prc), new Scope("device3"));
     }
 
+    @Test
+    public void lookupSuccessAttachedObject() {
+        DeviceUserAuthenticationContext ctx =
+                (DeviceUserAuthenticationContext) msgCtx.addSubcontext(new DeviceUserAuthenticationContext());
+        ctx.setUserCode("UC123456_NOTSTORED");
+        ctx.setDeviceCodeObject(new DeviceCodeObject("DC123456", new ClientID("clientID6"), new Scope("attached")));
+        Assert.assertEquals(lookup.apply(prc), new Scope("attached"));
+    }
+
     @Test
     public void lookupFailNoObjectForUserCode() {
         msgCtx.setMessage(new OAuth2DeviceAuthenticationRequest(null, "UC123456_NOTFOUND"));
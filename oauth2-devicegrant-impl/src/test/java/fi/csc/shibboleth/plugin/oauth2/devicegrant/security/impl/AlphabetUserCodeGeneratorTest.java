@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link AlphabetUserCodeGenerator}.
+ */
+public class AlphabetUserCodeGeneratorTest {
+
+    @Test
+    public void testDefaultAlphabet() {
+        AlphabetUserCodeGenerator generator = new AlphabetUserCodeGenerator();
+        Assert.assertEquals(generator.getAlphabet(), AlphabetUserCodeGenerator.HEX_ALPHABET);
+        Assert.assertTrue(generator.generateUserCode(6).matches("[0-9a-f]{6}"));
+        Assert.assertEquals(generator.getKeyspaceSize(6), 16777216.0);
+    }
+
+    @Test
+    public void testBase20Alphabet() {
+        AlphabetUserCodeGenerator generator =
+                new AlphabetUserCodeGenerator(AlphabetUserCodeGenerator.BASE20_ALPHABET);
+        Set<Character> seen = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            String userCode = generator.generateUserCode(8);
+            Assert.assertTrue(userCode.matches("[BCDFGHJKLMNPQRSTVWXZ]{8}"));
+            userCode.chars().forEach(c -> seen.add((char) c));
+        }
+        Assert.assertEquals(seen.size(), 20);
+        Assert.assertEquals(generator.getKeyspaceSize(8), 25600000000.0);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testDuplicateCharacters() {
+        new AlphabetUserCodeGenerator("ABCA");
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testSingleCharacter() {
+        new AlphabetUserCodeGenerator("A");
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testZeroLength() {
+        new AlphabetUserCodeGenerator().generateUserCode(0);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link PooledSecureRandomIdentifierGenerationStrategy}.
+ */
+public class PooledSecureRandomIdentifierGenerationStrategyTest {
+
+    @Test
+    public void testFormat() {
+        PooledSecureRandomIdentifierGenerationStrategy strategy = new PooledSecureRandomIdentifierGenerationStrategy();
+        String identifier = strategy.generateIdentifier();
+        Assert.assertEquals(identifier.length(), 33);
+        Assert.assertTrue(identifier.matches("_[0-9a-f]{32}"));
+        Assert.assertTrue(strategy.generateIdentifier(false).matches("[0-9a-f]{32}"));
+    }
+
+    @Test
+    public void testPoolRefill() {
+        PooledSecureRandomIdentifierGenerationStrategy strategy =
+                new PooledSecureRandomIdentifierGenerationStrategy(8, 20);
+        Set<String> identifiers = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 1000; i++) {
+            String identifier = strategy.generateIdentifier(false);
+            Assert.assertEquals(identifier.length(), 16);
+            Assert.assertTrue(identifiers.add(identifier));
+        }
+    }
+
+    @Test
+    public void testConcurrentUnique() throws Exception {
+        PooledSecureRandomIdentifierGenerationStrategy strategy = new PooledSecureRandomIdentifierGenerationStrategy();
+        Set<String> identifiers = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        if (!identifiers.add(strategy.generateIdentifier())) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(identifiers.size(), 8000);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testPoolSmallerThanIdentifier() {
+        new PooledSecureRandomIdentifierGenerationStrategy(16, 8);
+    }
+
+}
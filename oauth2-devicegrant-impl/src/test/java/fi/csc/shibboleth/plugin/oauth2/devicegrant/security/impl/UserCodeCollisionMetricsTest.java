@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link UserCodeCollisionMetrics}.
+ */
+public class UserCodeCollisionMetricsTest {
+
+    @Test
+    public void testInitial() {
+        UserCodeCollisionMetrics metrics = new UserCodeCollisionMetrics();
+        Assert.assertEquals(metrics.getAttempts(), 0);
+        Assert.assertEquals(metrics.getCollisionRate(), 0.0);
+        Assert.assertEquals(metrics.getEstimatedOccupancy(), 0.0);
+    }
+
+    @Test
+    public void testCollisionRate() {
+        UserCodeCollisionMetrics metrics = new UserCodeCollisionMetrics();
+        metrics.recordIssued(0, 1000);
+        metrics.recordIssued(1, 1000);
+        metrics.recordIssued(0, 1000);
+        metrics.recordExhausted(2, 1000);
+        Assert.assertEquals(metrics.getIssued(), 3);
+        Assert.assertEquals(metrics.getExhausted(), 1);
+        Assert.assertEquals(metrics.getCollisions(), 3);
+        Assert.assertEquals(metrics.getAttempts(), 6);
+        Assert.assertEquals(metrics.getCollisionRate(), 0.5);
+        Assert.assertEquals(metrics.getKeyspaceSize(), 1000.0);
+        Assert.assertEquals(metrics.getEstimatedOccupancy(), 500.0);
+    }
+
+}
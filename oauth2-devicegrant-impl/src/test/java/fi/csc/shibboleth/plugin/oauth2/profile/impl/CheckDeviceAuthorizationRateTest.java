@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.csc.shibboleth.plugin.oauth2.profile.impl;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.webflow.execution.RequestContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.shibboleth.plugin.oauth2.config.impl.DefaultOAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceRequestRateLimiter;
+import jakarta.servlet.http.HttpServletRequest;
+import net.shibboleth.idp.profile.IdPEventIds;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.ActionTestingSupport;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+import net.shibboleth.profile.context.RelyingPartyContext;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.primitive.NonnullSupplier;
+
+/**
+ * Unit tests for {@link CheckDeviceAuthorizationRate}.
+ */
+public class CheckDeviceAuthorizationRateTest {
+
+    protected RequestContext requestCtx;
+
+    protected ProfileRequestContext profileRequestCtx;
+
+    private DefaultOAuth2DeviceGrantConfiguration config;
+
+    private DeviceRequestRateLimiter rateLimiter;
+
+    private MockHttpServletRequest httpRequest;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        requestCtx = new RequestContextBuilder().buildRequestContext();
+        profileRequestCtx = new WebflowRequestContextProfileRequestContextLookup().apply(requestCtx);
+        config = new DefaultOAuth2DeviceGrantConfiguration();
+        final RelyingPartyContext rpCtx = (RelyingPartyContext) profileRequestCtx
+                .addSubcontext(new RelyingPartyContext(), true);
+        rpCtx.setProfileConfig(config);
+        rpCtx.setRelyingPartyId("clientID");
+        rateLimiter = new DeviceRequestRateLimiter();
+        rateLimiter.initialize();
+        httpRequest = new MockHttpServletRequest();
+        httpRequest.setRemoteAddr("192.0.2.1");
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        rateLimiter.destroy();
+    }
+
+    private CheckDeviceAuthorizationRate buildAction() throws ComponentInitializationException {
+        final CheckDeviceAuthorizationRate action = new CheckDeviceAuthorizationRate();
+        action.setHttpServletRequestSupplier(new NonnullSupplier<>() {
+            public HttpServletRequest get() {
+                return httpRequest;
+            }
+        });
+        action.setRateLimiter(rateLimiter);
+        action.initialize();
+        return action;
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoRateLimiter() throws ComponentInitializationException {
+        new CheckDeviceAuthorizationRate().initialize();
+    }
+
+    @Test
+    public void testNoLimits() throws ComponentInitializationException {
+        for (int i = 0; i < 10; i++) {
+            ActionTestingSupport.assertProceedEvent(buildAction().execute(requestCtx));
+        }
+    }
+
+    @Test
+    public void testClientLimit() throws ComponentInitializationException {
+        config.setClientRateLimit(2);
+        ActionTestingSupport.assertProceedEvent(buildAction().execute(requestCtx));
+        httpRequest.setRemoteAddr("192.0.2.2");
+        ActionTestingSupport.assertProceedEvent(buildAction().execute(requestCtx));
+        httpRequest.setRemoteAddr("192.0.2.3");
+        ActionTestingSupport.assertEvent(buildAction().execute(requestCtx), DeviceEventIds.RATE_LIMITED);
+    }
+
+    @Test
+    public void testAddressLimit() throws ComponentInitializationException {
+        config.setAddressRateLimit(1);
+        ActionTestingSupport.assertProceedEvent(buildAction().execute(requestCtx));
+        ActionTestingSupport.assertEvent(buildAction().execute(requestCtx), DeviceEventIds.RATE_LIMITED);
+        httpRequest.setRemoteAddr("192.0.2.2");
+        ActionTestingSupport.assertProceedEvent(buildAction().execute(requestCtx));
+    }
+
+    @Test
+    public void testNoRpCtx() throws ComponentInitializationException {
+        profileRequestCtx.removeSubcontext(RelyingPartyContext.class);
+        ActionTestingSupport.assertEvent(buildAction().execute(requestCtx), IdPEventIds.INVALID_RELYING_PARTY_CTX);
+    }
+
+    @Test
+    public void testNoProfileConfig() throws ComponentInitializationException {
+        profileRequestCtx.addSubcontext(new RelyingPartyContext(), true);
+        ActionTestingSupport.assertEvent(buildAction().execute(requestCtx), IdPEventIds.INVALID_RELYING_PARTY_CTX);
+    }
+
+}
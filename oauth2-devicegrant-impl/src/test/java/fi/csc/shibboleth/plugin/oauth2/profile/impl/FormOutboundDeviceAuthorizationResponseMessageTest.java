@@ -17,6 +17,9 @@
 package fi.csc.shibboleth.plugin.oauth2.profile.impl;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.profile.action.EventIds;
@@ -32,8 +35,12 @@ import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 
 import fi.csc.shibboleth.plugin.oauth2.config.impl.DefaultOAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.UserCodeGenerator;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.security.impl.UserCodeCollisionMetrics;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.OutstandingDeviceCodeCounter;
 import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationRequest;
 import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceAuthorizationSuccessResponse;
 import jakarta.servlet.http.HttpServletRequest;
@@ -45,7 +52,9 @@ import net.shibboleth.idp.profile.testing.RequestContextBuilder;
 import net.shibboleth.oidc.metadata.context.OIDCMetadataContext;
 import net.shibboleth.profile.context.RelyingPartyContext;
 import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.FunctionSupport;
 import net.shibboleth.shared.primitive.NonnullSupplier;
+import net.shibboleth.shared.security.IdentifierGenerationStrategy;
 import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
 
 /**
@@ -117,6 +126,11 @@ public class FormOutboundDeviceAuthorizationResponseMessageTest {
         Assert.assertEquals(resp.getDeviceCode(), object.getDeviceCode());
         Assert.assertEquals("clientID", object.getClientID().getValue());
         Assert.assertEquals("device", object.getScope().toString());
+        Assert.assertNotNull(object.getIssuedAt());
+        Assert.assertEquals(deviceCodesCache.getDeviceState(resp.getDeviceCode()).getPollingInterval(),
+                (Long) (resp.getInterval() * 1000L));
+        Assert.assertEquals(deviceCodesCache.getDeviceState(resp.getDeviceCode()).getClientID(), "clientID");
+        Assert.assertNull(deviceCodesCache.getDeviceState(resp.getDeviceCode()).getLongPollingTimeout());
     }
 
     @Test
@@ -165,4 +179,165 @@ public class FormOutboundDeviceAuthorizationResponseMessageTest {
         ActionTestingSupport.assertEvent(action.execute(requestCtx), EventIds.INVALID_MSG_CTX);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testUserCodeCollisionRetried() throws Exception {
+        deviceCodesCache.storeDeviceCode(new DeviceCodeObject("other", new ClientID("clientID"), null), "taken",
+                60000);
+        final UserCodeCollisionMetrics metrics = new UserCodeCollisionMetrics();
+        initializeAction(new SequenceUserCodeGenerator("taken", "taken", "free"), 5, metrics);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        OAuth2DeviceAuthorizationSuccessResponse resp = (OAuth2DeviceAuthorizationSuccessResponse) profileRequestCtx
+                .getOutboundMessageContext().getMessage();
+        Assert.assertEquals(resp.getUserCode(), "free");
+        Assert.assertEquals(deviceCodesCache.getDeviceCode("free").getDeviceCode(), resp.getDeviceCode());
+        Assert.assertEquals(deviceCodesCache.getDeviceCode("taken").getDeviceCode(), "other");
+        Assert.assertEquals(metrics.getIssued(), 1);
+        Assert.assertEquals(metrics.getCollisions(), 2);
+        Assert.assertEquals(metrics.getAttempts(), 3);
+    }
+
+    @Test
+    public void testUserCodeCollisionExhausted() throws Exception {
+        deviceCodesCache.storeDeviceCode(new DeviceCodeObject("other", new ClientID("clientID"), null), "taken",
+                60000);
+        final UserCodeCollisionMetrics metrics = new UserCodeCollisionMetrics();
+        initializeAction(new SequenceUserCodeGenerator("taken", "taken", "taken", "free"), 3, metrics);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), EventIds.IO_ERROR);
+        Assert.assertNull(deviceCodesCache.getDeviceCode("free"));
+        Assert.assertEquals(metrics.getIssued(), 0);
+        Assert.assertEquals(metrics.getExhausted(), 1);
+        Assert.assertEquals(metrics.getCollisions(), 3);
+    }
+
+    @Test
+    public void testDeviceCodeCollisionNotCounted() throws Exception {
+        final String takenDeviceCode = "D".repeat(16);
+        deviceCodesCache.storeDeviceCode(new DeviceCodeObject(takenDeviceCode, new ClientID("clientID"), null),
+                "other", 60000);
+        final UserCodeCollisionMetrics metrics = new UserCodeCollisionMetrics();
+        final Deque<String> deviceCodes = new ArrayDeque<>(List.of("_" + takenDeviceCode, "_" + "E".repeat(16)));
+        initializeAction(new SequenceUserCodeGenerator("first", "second"), 5, metrics,
+                new IdentifierGenerationStrategy() {
+                    public String generateIdentifier() {
+                        return deviceCodes.removeFirst();
+                    }
+
+                    public String generateIdentifier(final boolean xmlSafe) {
+                        return generateIdentifier();
+                    }
+                });
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        OAuth2DeviceAuthorizationSuccessResponse resp = (OAuth2DeviceAuthorizationSuccessResponse) profileRequestCtx
+                .getOutboundMessageContext().getMessage();
+        Assert.assertEquals(resp.getUserCode(), "second");
+        Assert.assertEquals(resp.getDeviceCode(), "E".repeat(16));
+        Assert.assertNull(deviceCodesCache.getDeviceCode("first"));
+        Assert.assertEquals(metrics.getIssued(), 1);
+        Assert.assertEquals(metrics.getCollisions(), 0);
+    }
+
+    @Test
+    public void testMaxOutstandingDeviceCodes() throws Exception {
+        final OutstandingDeviceCodeCounter counter = initializeCounter(1);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        Assert.assertEquals(counter.getOutstanding("clientID"), 1);
+        initializeAction(new SequenceUserCodeGenerator("second"), 5, null);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.TOO_MANY_DEVICE_CODES);
+        Assert.assertNull(deviceCodesCache.getDeviceCode("second"));
+        Assert.assertEquals(counter.getOutstanding("clientID"), 1);
+    }
+
+    @Test
+    public void testNoMaxOutstandingDeviceCodesNotTracked() throws Exception {
+        final OutstandingDeviceCodeCounter counter = initializeCounter(0);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        Assert.assertEquals(counter.getOutstanding("clientID"), 0);
+        Assert.assertEquals(counter.getTrackedDeviceCodes(), 0);
+    }
+
+    @Test
+    public void testMaxOutstandingDeviceCodesReservationCancelled() throws Exception {
+        final OutstandingDeviceCodeCounter counter = initializeCounter(1);
+        deviceCodesCache.storeDeviceCode(new DeviceCodeObject("other", new ClientID("otherClient"), null), "taken",
+                60000);
+        initializeAction(new SequenceUserCodeGenerator("taken"), 1, null);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), EventIds.IO_ERROR);
+        Assert.assertEquals(counter.getOutstanding("clientID"), 0);
+        initializeAction(new SequenceUserCodeGenerator("free"), 1, null);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+    }
+
+    private OutstandingDeviceCodeCounter initializeCounter(final int max) throws ComponentInitializationException {
+        final OutstandingDeviceCodeCounter counter = new OutstandingDeviceCodeCounter();
+        counter.initialize();
+        deviceCodesCache.destroy();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.setOutstandingCounter(counter);
+        deviceCodesCache.initialize();
+        final DefaultOAuth2DeviceGrantConfiguration config = new DefaultOAuth2DeviceGrantConfiguration();
+        config.setMaxOutstandingDeviceCodes(max);
+        profileRequestCtx.getSubcontext(RelyingPartyContext.class).setProfileConfig(config);
+        action = new FormOutboundDeviceAuthorizationResponseMessage();
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        action.setHttpServletRequestSupplier(new NonnullSupplier<>() {
+            public HttpServletRequest get() {
+                return httpRequest;
+            }
+        });
+        action.setDeviceCodesCache(deviceCodesCache);
+        action.initialize();
+        return counter;
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testInvalidMaxUserCodeAttempts() {
+        new FormOutboundDeviceAuthorizationResponseMessage().setMaxUserCodeAttempts(0);
+    }
+
+    private void initializeAction(final UserCodeGenerator generator, final int maxAttempts,
+            final UserCodeCollisionMetrics metrics) throws ComponentInitializationException {
+        initializeAction(generator, maxAttempts, metrics, null);
+    }
+
+    private void initializeAction(final UserCodeGenerator generator, final int maxAttempts,
+            final UserCodeCollisionMetrics metrics, final IdentifierGenerationStrategy idGenerator)
+            throws ComponentInitializationException {
+        action = new FormOutboundDeviceAuthorizationResponseMessage();
+        if (idGenerator != null) {
+            action.setIdentifierGeneratorLookupStrategy(FunctionSupport.constant(idGenerator));
+        }
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        action.setHttpServletRequestSupplier(new NonnullSupplier<>() {
+            public HttpServletRequest get() {
+                return httpRequest;
+            }
+        });
+        action.setDeviceCodesCache(deviceCodesCache);
+        action.setUserCodeGenerator(generator);
+        action.setMaxUserCodeAttempts(maxAttempts);
+        action.setUserCodeMetrics(metrics);
+        action.initialize();
+    }
+
+    /** Generator returning the given user codes in order. */
+    private static class SequenceUserCodeGenerator implements UserCodeGenerator {
+
+        private final Deque<String> userCodes;
+
+        SequenceUserCodeGenerator(final String... codes) {
+            userCodes = new ArrayDeque<>(List.of(codes));
+        }
+
+        @Override
+        public String generateUserCode(final int length) {
+            return userCodes.removeFirst();
+        }
+
+        @Override
+        public double getKeyspaceSize(final int length) {
+            return 100;
+        }
+    }
+
+}
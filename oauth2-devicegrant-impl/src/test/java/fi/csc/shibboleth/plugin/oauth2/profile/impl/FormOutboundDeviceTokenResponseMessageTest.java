@@ -17,6 +17,10 @@
 package fi.csc.shibboleth.plugin.oauth2.profile.impl;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.profile.action.EventIds;
@@ -28,9 +32,13 @@ import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import com.codahale.metrics.MetricRegistry;
 import com.nimbusds.oauth2.sdk.AccessTokenResponse;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 
+import fi.csc.shibboleth.plugin.oauth2.config.impl.DefaultOAuth2DeviceGrantConfiguration;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceStateContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
@@ -42,6 +50,7 @@ import net.minidev.json.parser.ParseException;
 import net.shibboleth.idp.profile.testing.ActionTestingSupport;
 import net.shibboleth.idp.profile.testing.RequestContextBuilder;
 import net.shibboleth.oidc.metadata.context.OIDCMetadataContext;
+import net.shibboleth.profile.context.RelyingPartyContext;
 import net.shibboleth.shared.primitive.NonnullSupplier;
 import net.shibboleth.idp.plugin.oidc.op.messaging.context.OIDCAuthenticationResponseContext;
 import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
@@ -63,6 +72,8 @@ public class FormOutboundDeviceTokenResponseMessageTest {
 
     private long expiresAt;
 
+    private MetricRegistry metricRegistry;
+
     @BeforeMethod
     protected void setUp() throws Exception {
         requestCtx = new RequestContextBuilder().buildRequestContext();
@@ -73,6 +84,7 @@ public class FormOutboundDeviceTokenResponseMessageTest {
         profileRequestCtx.getInboundMessageContext().addSubcontext(new OIDCMetadataContext());
         profileRequestCtx.setOutboundMessageContext(new MessageContext());
         profileRequestCtx.getOutboundMessageContext().addSubcontext(new OIDCAuthenticationResponseContext());
+        profileRequestCtx.ensureSubcontext(RelyingPartyContext.class).setRelyingPartyId("clientID");
         storageService = new MemoryStorageService();
         storageService.setId("test");
         storageService.initialize();
@@ -92,6 +104,8 @@ public class FormOutboundDeviceTokenResponseMessageTest {
             }
         });
         action.setDeviceCodesCache(deviceCodesCache);
+        metricRegistry = new MetricRegistry();
+        action.setMetrics(new DeviceGrantMetrics(metricRegistry));
         action.initialize();
     }
 
@@ -110,18 +124,33 @@ public class FormOutboundDeviceTokenResponseMessageTest {
         Assert.assertEquals("AT123456", resp.getTokens().getAccessToken().getValue());
         Assert.assertTrue(resp.getTokens().getAccessToken().getLifetime() <= 100
                 && resp.getTokens().getAccessToken().getLifetime() >= 98);
+        Assert.assertNull(deviceCodesCache.getDeviceState("DC123456"));
+    }
+
+    @Test
+    public void testConsumedOnce() throws IOException, ParseException {
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        profileRequestCtx.getOutboundMessageContext().setMessage(null);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.EXPIRED_TOKEN);
+        Assert.assertNull(profileRequestCtx.getOutboundMessageContext().getMessage());
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".polls.approved").getCount(), 1);
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".polls.expired").getCount(), 1);
     }
 
     @Test
     public void testPending() throws IOException, ParseException {
         deviceCodesCache.updateDeviceState("DC123456", new DeviceStateObject(State.PENDING, null, null), 100000);
         ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.AUTHORIZATION_PENDING);
+        Assert.assertNotNull(deviceCodesCache.getDeviceState("DC123456"));
     }
 
     @Test
     public void testDenied() throws IOException, ParseException {
         deviceCodesCache.updateDeviceState("DC123456", new DeviceStateObject(State.DENIED, null, null), 100000);
         ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.USER_DENIED);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.EXPIRED_TOKEN);
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".polls.denied").getCount(), 1);
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".polls.expired").getCount(), 1);
     }
 
     @Test
@@ -130,9 +159,104 @@ public class FormOutboundDeviceTokenResponseMessageTest {
         ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.EXPIRED_TOKEN);
     }
 
+    @Test
+    public void testLongPollingApproved() throws Exception {
+        deviceCodesCache.updateDeviceState("DC123456", new DeviceStateObject(State.PENDING, null, null), 100000);
+        setLongPollingTimeout(Duration.ofSeconds(10));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> approval = executor.submit(() -> {
+                Thread.sleep(200);
+                return deviceCodesCache.updateDeviceState("DC123456",
+                        new DeviceStateObject(State.APPROVED, "AT123456", expiresAt), 100000);
+            });
+            ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+            Assert.assertTrue(approval.get());
+        } finally {
+            executor.shutdown();
+        }
+        AccessTokenResponse resp = (AccessTokenResponse) profileRequestCtx.getOutboundMessageContext().getMessage();
+        Assert.assertEquals("AT123456", resp.getTokens().getAccessToken().getValue());
+    }
+
+    @Test
+    public void testLongPollingTimeout() throws IOException, ParseException {
+        deviceCodesCache.updateDeviceState("DC123456", new DeviceStateObject(State.PENDING, null, null), 100000);
+        setLongPollingTimeout(Duration.ofMillis(100));
+        final long start = System.currentTimeMillis();
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.AUTHORIZATION_PENDING);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    @Test
+    public void testKnownVersionUnchanged() throws IOException, ParseException {
+        // The attached state is used as such while the record version has not moved
+        final long version = storageService.read(DeviceCodesCache.CONTEXT_STATE, "DC123456").getVersion();
+        profileRequestCtx.getInboundMessageContext().ensureSubcontext(DeviceStateContext.class)
+                .setDeviceState("DC123456", new DeviceStateObject(State.APPROVED, "ATKNOWN", expiresAt), version);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        AccessTokenResponse resp = (AccessTokenResponse) profileRequestCtx.getOutboundMessageContext().getMessage();
+        Assert.assertEquals("ATKNOWN", resp.getTokens().getAccessToken().getValue());
+        Assert.assertNull(deviceCodesCache.getDeviceState("DC123456"));
+    }
+
+    @Test
+    public void testKnownVersionChanged() throws IOException, ParseException {
+        final long version = storageService.read(DeviceCodesCache.CONTEXT_STATE, "DC123456").getVersion();
+        profileRequestCtx.getInboundMessageContext().ensureSubcontext(DeviceStateContext.class)
+                .setDeviceState("DC123456", new DeviceStateObject(State.APPROVED, "ATKNOWN", expiresAt), version);
+        deviceCodesCache.updateDeviceState("DC123456", new DeviceStateObject(State.DENIED, null, null), 100000);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.USER_DENIED);
+    }
+
+    @Test
+    public void testKnownVersionOtherDeviceCode() throws IOException, ParseException {
+        profileRequestCtx.getInboundMessageContext().ensureSubcontext(DeviceStateContext.class)
+                .setDeviceState("DC654321", new DeviceStateObject(State.DENIED, null, null), 1);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        AccessTokenResponse resp = (AccessTokenResponse) profileRequestCtx.getOutboundMessageContext().getMessage();
+        Assert.assertEquals("AT123456", resp.getTokens().getAccessToken().getValue());
+    }
+
+    @Test
+    public void testIssuedToClient() throws IOException, ParseException {
+        deviceCodesCache.updateDeviceState("DC123456", approvedFor("clientID"), 100000);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        Assert.assertNull(deviceCodesCache.getDeviceState("DC123456"));
+    }
+
+    @Test
+    public void testIssuedToOtherClient() throws IOException, ParseException {
+        deviceCodesCache.updateDeviceState("DC123456", approvedFor("clientID"), 100000);
+        profileRequestCtx.getSubcontext(RelyingPartyContext.class).setRelyingPartyId("otherClientID");
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.INVALID_GRANT);
+        Assert.assertNull(profileRequestCtx.getOutboundMessageContext().getMessage());
+        Assert.assertEquals(deviceCodesCache.getDeviceState("DC123456").getState(), State.APPROVED);
+    }
+
+    @Test
+    public void testIssuedToClientNoRelyingParty() throws IOException, ParseException {
+        deviceCodesCache.updateDeviceState("DC123456", approvedFor("clientID"), 100000);
+        profileRequestCtx.removeSubcontext(RelyingPartyContext.class);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.INVALID_GRANT);
+        Assert.assertNotNull(deviceCodesCache.getDeviceState("DC123456"));
+    }
+
     @Test
     public void testNoMessage() throws IOException, ParseException {
         profileRequestCtx.getInboundMessageContext().setMessage(null);
         ActionTestingSupport.assertEvent(action.execute(requestCtx), EventIds.INVALID_MSG_CTX);
     }
-}
\ No newline at end of file
+
+    private void setLongPollingTimeout(final Duration timeout) {
+        final DefaultOAuth2DeviceGrantConfiguration config = new DefaultOAuth2DeviceGrantConfiguration();
+        config.setLongPollingTimeout(timeout);
+        profileRequestCtx.ensureSubcontext(RelyingPartyContext.class).setProfileConfig(config);
+    }
+
+    private DeviceStateObject approvedFor(final String clientID) {
+        final DeviceStateObject state = new DeviceStateObject(State.APPROVED, "AT123456", expiresAt);
+        state.setClientID(clientID);
+        return state;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2019-2024 CSC- IT Center for Science, www.csc.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.csc.shibboleth.plugin.oauth2.profile.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.springframework.webflow.execution.RequestContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.auth.Secret;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceStateContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.profile.DeviceEventIds;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DevicePollingTracker;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject.State;
+import fi.csc.shibboleth.plugin.oauth2.messaging.impl.OAuth2DeviceTokenRequest;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.ActionTestingSupport;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+
+/**
+ * Unit tests for {@link PreCheckDeviceState}.
+ */
+public class PreCheckDeviceStateTest {
+
+    protected RequestContext requestCtx;
+
+    protected ProfileRequestContext profileRequestCtx;
+
+    private PreCheckDeviceState action;
+
+    private MemoryStorageService storageService;
+
+    private DeviceCodesCache deviceCodesCache;
+
+    private DevicePollingTracker pollingTracker;
+
+    private MetricRegistry metricRegistry;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        requestCtx = new RequestContextBuilder().buildRequestContext();
+        profileRequestCtx = new WebflowRequestContextProfileRequestContextLookup().apply(requestCtx);
+        profileRequestCtx.setInboundMessageContext(new MessageContext());
+        profileRequestCtx.getInboundMessageContext().setMessage(new OAuth2DeviceTokenRequest(null,
+                new ClientID("clientID"), OAuth2DeviceTokenRequest.grantTypeValue, "DC123456"));
+        storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+        deviceCodesCache = new DeviceCodesCache();
+        deviceCodesCache.setStorage(storageService);
+        deviceCodesCache.initialize();
+        final DeviceStateObject state = new DeviceStateObject();
+        state.setPollingInterval(5000L);
+        state.setClientID("clientID");
+        deviceCodesCache.storeDeviceCode(new DeviceCodeObject("DC123456", new ClientID("clientID"), null), "UC123456",
+                state, 100000);
+        deviceCodesCache.storeDeviceCode(new DeviceCodeObject("DC654321", new ClientID("clientID"), null), "UC654321",
+                100000);
+        pollingTracker = new DevicePollingTracker();
+        pollingTracker.initialize();
+        action = new PreCheckDeviceState();
+        action.setDeviceCodesCache(deviceCodesCache);
+        action.setPollingTracker(pollingTracker);
+        metricRegistry = new MetricRegistry();
+        action.setMetrics(new DeviceGrantMetrics(metricRegistry));
+        action.initialize();
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        deviceCodesCache.destroy();
+        deviceCodesCache = null;
+        storageService.destroy();
+        storageService = null;
+        pollingTracker.destroy();
+        pollingTracker = null;
+    }
+
+    @Test
+    public void testPending() {
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.AUTHORIZATION_PENDING);
+        Assert.assertNull(profileRequestCtx.getInboundMessageContext().getSubcontext(DeviceStateContext.class));
+    }
+
+    @Test
+    public void testPendingAuthenticatedClient() {
+        profileRequestCtx.getInboundMessageContext().setMessage(new OAuth2DeviceTokenRequest(null,
+                new ClientSecretBasic(new ClientID("clientID"), new Secret("secret")),
+                OAuth2DeviceTokenRequest.grantTypeValue, "DC123456"));
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.AUTHORIZATION_PENDING);
+    }
+
+    @Test
+    public void testPendingOtherAuthenticatedClient() {
+        profileRequestCtx.getInboundMessageContext().setMessage(new OAuth2DeviceTokenRequest(null,
+                new ClientSecretBasic(new ClientID("otherClientID"), new Secret("secret")),
+                OAuth2DeviceTokenRequest.grantTypeValue, "DC123456"));
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+    }
+
+    @Test
+    public void testPendingOtherClient() {
+        profileRequestCtx.getInboundMessageContext().setMessage(new OAuth2DeviceTokenRequest(null,
+                new ClientID("otherClientID"), OAuth2DeviceTokenRequest.grantTypeValue, "DC123456"));
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+    }
+
+    @Test
+    public void testApproved() throws Exception {
+        deviceCodesCache.updateDeviceState("DC123456",
+                new DeviceStateObject(State.APPROVED, "AT123456", System.currentTimeMillis() + 100000), 100000);
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        final DeviceStateContext stateCtx =
+                profileRequestCtx.getInboundMessageContext().getSubcontext(DeviceStateContext.class);
+        Assert.assertEquals(stateCtx.getDeviceCode(), "DC123456");
+        Assert.assertEquals(stateCtx.getDeviceStateObject().getAccessToken(), "AT123456");
+        Assert.assertEquals(stateCtx.getVersion(),
+                storageService.read(DeviceCodesCache.CONTEXT_STATE, "DC123456").getVersion());
+    }
+
+    @Test
+    public void testSlowDown() {
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.AUTHORIZATION_PENDING);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.SLOW_DOWN);
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".polls.pending").getCount(), 1);
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".polls.slow_down").getCount(), 1);
+    }
+
+    @Test
+    public void testNoIssueTimeAttributes() {
+        profileRequestCtx.getInboundMessageContext().setMessage(new OAuth2DeviceTokenRequest(null,
+                new ClientID("clientID"), OAuth2DeviceTokenRequest.grantTypeValue, "DC654321"));
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+    }
+
+    @Test
+    public void testUnknownDeviceCode() {
+        profileRequestCtx.getInboundMessageContext().setMessage(new OAuth2DeviceTokenRequest(null,
+                new ClientID("clientID"), OAuth2DeviceTokenRequest.grantTypeValue, "unknown"));
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), DeviceEventIds.EXPIRED_TOKEN);
+    }
+
+    @Test
+    public void testLongPolling() throws Exception {
+        final DeviceStateObject state = new DeviceStateObject();
+        state.setClientID("clientID");
+        state.setLongPollingTimeout(10000L);
+        deviceCodesCache.updateDeviceState("DC123456", state, 100000);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> approval = executor.submit(() -> {
+                Thread.sleep(200);
+                return deviceCodesCache.updateDeviceState("DC123456",
+                        new DeviceStateObject(State.APPROVED, "AT123456", System.currentTimeMillis() + 100000),
+                        100000);
+            });
+            ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+            Assert.assertTrue(approval.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoMessage() {
+        profileRequestCtx.getInboundMessageContext().setMessage(null);
+        ActionTestingSupport.assertEvent(action.execute(requestCtx), EventIds.INVALID_MSG_CTX);
+    }
+}
@@ -32,11 +32,13 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
 import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 
 import fi.csc.shibboleth.plugin.oauth2.config.impl.DefaultOAuth2DeviceGrantConfiguration;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.messaging.context.DeviceUserAuthenticationContext;
+import fi.csc.shibboleth.plugin.oauth2.devicegrant.metrics.DeviceGrantMetrics;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodeObject;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceCodesCache;
 import fi.csc.shibboleth.plugin.oauth2.devicegrant.storage.DeviceStateObject;
@@ -72,6 +74,8 @@ public class StoreDeviceStateTest {
 
     private DeviceUserAuthenticationContext deviceUserAuthenticationContext;
 
+    private MetricRegistry metricRegistry;
+
     @BeforeMethod
     protected void setUp() throws Exception {
         requestCtx = new RequestContextBuilder().buildRequestContext();
@@ -104,10 +108,13 @@ public class StoreDeviceStateTest {
         deviceCodesCache = new DeviceCodesCache();
         deviceCodesCache.setStorage(storageService);
         deviceCodesCache.initialize();
-        deviceCodesCache.storeDeviceCode(new DeviceCodeObject("DC123456", new ClientID("clientID"), null), "UC123456",
-                100000);
+        final DeviceCodeObject deviceCodeObject = new DeviceCodeObject("DC123456", new ClientID("clientID"), null);
+        deviceCodeObject.setIssuedAt(System.currentTimeMillis() - 1000);
+        deviceCodesCache.storeDeviceCode(deviceCodeObject, "UC123456", 100000);
         action = new StoreDeviceState(getDataSealer());
         action.setDeviceCodesCache(deviceCodesCache);
+        metricRegistry = new MetricRegistry();
+        action.setMetrics(new DeviceGrantMetrics(metricRegistry));
         action.initialize();
     }
 
@@ -140,7 +147,12 @@ public class StoreDeviceStateTest {
         DeviceStateObject state = deviceCodesCache.getDeviceState("DC123456");
         Assert.assertEquals(DeviceStateObject.State.APPROVED, state.getState());
         Assert.assertNotNull(state.getAccessToken());
+        Assert.assertEquals(state.getClientID(), "clientID");
         Assert.assertNotNull(state.getExpiresAt());
+        Assert.assertNull(deviceCodesCache.getDeviceCode("UC123456"));
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".decisions.approved").getCount(), 1);
+        Assert.assertTrue(metricRegistry.timer(DeviceGrantMetrics.PREFIX + ".decisions.timeToApproval").getSnapshot()
+                .getMax() >= 1000000000L);
     }
 
     @Test
@@ -149,8 +161,23 @@ public class StoreDeviceStateTest {
         ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
         DeviceStateObject state = deviceCodesCache.getDeviceState("DC123456");
         Assert.assertEquals(DeviceStateObject.State.DENIED, state.getState());
+        Assert.assertEquals(state.getClientID(), "clientID");
         Assert.assertNull(state.getAccessToken());
         Assert.assertNull(state.getExpiresAt());
+        Assert.assertNull(deviceCodesCache.getDeviceCode("UC123456"));
+        Assert.assertEquals(metricRegistry.meter(DeviceGrantMetrics.PREFIX + ".decisions.denied").getCount(), 1);
+        Assert.assertEquals(metricRegistry.timer(DeviceGrantMetrics.PREFIX + ".decisions.timeToApproval").getCount(),
+                0);
+    }
+
+    @Test
+    public void testApprovedAttachedDeviceCodeObject() throws IOException, ParseException {
+        // The attached copy is used, the user code is not read from the cache again
+        deviceUserAuthenticationContext.setUserCode("UC123456_NOTSTORED");
+        deviceUserAuthenticationContext
+                .setDeviceCodeObject(new DeviceCodeObject("DC123456", new ClientID("clientID"), null));
+        ActionTestingSupport.assertProceedEvent(action.execute(requestCtx));
+        Assert.assertEquals(DeviceStateObject.State.APPROVED, deviceCodesCache.getDeviceState("DC123456").getState());
     }
 
     @Test